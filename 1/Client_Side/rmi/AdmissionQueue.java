@@ -0,0 +1,309 @@
+//Server side enforcement of a skeleton's admission control limits
+
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Counts the calls a skeleton is running and holds those waiting for a slot.
+// Calls are handed to the executor only once admitted, so that waiting calls
+// hold no thread. Each admitted call must be released when it completes,
+// which admits the call at the head of the queue. Calls which wait longer
+// than the queue timeout are rejected by the call timer, whether or not
+// other calls arrive or complete in the meantime. Calls made in-process run
+// on the calling thread, which waits in the queue in their place.
+class AdmissionQueue
+{
+	// A call, or a batch of calls, which can be run or refused.
+	interface Task extends Runnable
+	{
+		// Answers the call with an exception without running it, and ends it.
+		void reject(RMIException exception);
+	}
+
+	private final AdmissionControl control;
+	private final Executor executor;
+	private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+	private final ArrayDeque<Long> queuedAt = new ArrayDeque<Long>();
+	private int inFlight = 0;
+	private long rejected = 0;
+	// Rejection of the calls at the head of the queue once they expire, or
+	// null if none is scheduled.
+	private ScheduledFuture<?> expiry = null;
+
+	AdmissionQueue(AdmissionControl control, Executor executor)
+	{
+		this.control = control;
+		this.executor = executor;
+	}
+
+	// Starts the call, queues it, or rejects it if the skeleton is overloaded.
+	void submit(Task task)
+	{
+		List<Task> expired = new ArrayList<Task>();
+		boolean admitted = false;
+		boolean full = false;
+
+		synchronized(this)
+		{
+			expire(expired);
+
+			if(inFlight < control.getMaxInFlight())
+			{
+				inFlight++;
+				admitted = true;
+			}
+			else if(queue.size() < control.getMaxQueued())
+			{
+				queue.add(task);
+				queuedAt.add(System.nanoTime());
+				scheduleExpiry();
+			}
+			else
+			{
+				full = true;
+				rejected++;
+			}
+		}
+
+		rejectExpired(expired);
+
+		if(full)
+		{
+			task.reject(new OverloadException("Server side: overloaded, " + control.getMaxInFlight() + " calls running and " + control.getMaxQueued() + " waiting"));
+		}
+		else if(admitted)
+		{
+			start(task);
+		}
+	}
+
+	// Admits a call made in-process, to be run on the calling thread: at once
+	// if the limit allows, or once it has waited its turn in the queue. An
+	// admitted call must be released when it completes. Returns null once the
+	// call is admitted, or the OverloadException with which it is refused:
+	// because the skeleton is overloaded, or because the caller's deadline, if
+	// there is one, passed while the call was waiting.
+	RMIException admit(Deadline deadline) throws InterruptedException
+	{
+		Waiter waiter = new Waiter();
+
+		submit(waiter);
+		return waiter.await(deadline);
+	}
+
+	// Called when an admitted call completes. Starts the next waiting call.
+	void release()
+	{
+		List<Task> expired = new ArrayList<Task>();
+		Task next = null;
+
+		synchronized(this)
+		{
+			inFlight--;
+			expire(expired);
+
+			if(!queue.isEmpty())
+			{
+				next = queue.poll();
+				queuedAt.poll();
+				inFlight++;
+			}
+		}
+
+		rejectExpired(expired);
+
+		if(next != null)
+		{
+			start(next);
+		}
+	}
+
+	// Number of calls rejected because the queue was full or the wait too
+	// long.
+	synchronized long rejected()
+	{
+		return rejected;
+	}
+
+	synchronized int inFlight()
+	{
+		return inFlight;
+	}
+
+	synchronized int queued()
+	{
+		return queue.size();
+	}
+
+	// Whether calls to the method are started at once, outside the limits.
+	boolean isExempt(Method method)
+	{
+		return control.isExempt(method);
+	}
+
+	private void start(Task task)
+	{
+		if(task instanceof Waiter)
+		{
+			task.run();
+			return;
+		}
+
+		try
+		{
+			executor.execute(task);
+		}
+		catch(RejectedExecutionException e)
+		{
+			task.reject(Dispatcher.refused(executor));
+			release();
+		}
+	}
+
+	// Removes the calls which have waited longer than the queue timeout. The
+	// queue is in order of arrival, so they are at its head.
+	private void expire(List<Task> expired)
+	{
+		long timeout = control.getQueueTimeout(TimeUnit.NANOSECONDS);
+
+		if(timeout == 0)
+		{
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		while(!queue.isEmpty() && now - queuedAt.peek() >= timeout)
+		{
+			expired.add(queue.poll());
+			queuedAt.poll();
+			rejected++;
+		}
+	}
+
+	// Schedules the expiry of the call at the head of the queue, unless an
+	// expiry is already scheduled. An expiry which finds the head still
+	// waiting schedules the next one. The caller holds the lock.
+	private void scheduleExpiry()
+	{
+		long timeout = control.getQueueTimeout(TimeUnit.NANOSECONDS);
+
+		if(timeout == 0 || expiry != null || queue.isEmpty())
+		{
+			return;
+		}
+
+		long delay = queuedAt.peek() + timeout - System.nanoTime();
+
+		expiry = Connection.timer.schedule(new Runnable()
+		{
+			public void run()
+			{
+				expireQueued();
+			}
+		}, Math.max(0, delay), TimeUnit.NANOSECONDS);
+	}
+
+	// Rejects the expired calls on a pool thread, so that sending their
+	// replies does not hold up the call timer.
+	private void expireQueued()
+	{
+		final List<Task> expired = new ArrayList<Task>();
+
+		synchronized(this)
+		{
+			expiry = null;
+			expire(expired);
+			scheduleExpiry();
+		}
+
+		if(expired.isEmpty())
+		{
+			return;
+		}
+
+		ForkJoinPool.commonPool().execute(new Runnable()
+		{
+			public void run()
+			{
+				rejectExpired(expired);
+			}
+		});
+	}
+
+	private void rejectExpired(List<Task> expired)
+	{
+		for(Task task : expired)
+		{
+			task.reject(new OverloadException("Server side: overloaded, call waited longer than the queue timeout"));
+		}
+	}
+
+	// Thread waiting for the admission of the in-process call it makes. A
+	// waiter which stops waiting is released as soon as it is admitted.
+	private class Waiter implements Task
+	{
+		private boolean admitted = false;
+		private boolean abandoned = false;
+		private RMIException rejection = null;
+
+		public void run()
+		{
+			synchronized(this)
+			{
+				if(!abandoned)
+				{
+					admitted = true;
+					notifyAll();
+					return;
+				}
+			}
+
+			release();
+		}
+
+		public synchronized void reject(RMIException exception)
+		{
+			rejection = exception;
+			notifyAll();
+		}
+
+		synchronized RMIException await(Deadline deadline) throws InterruptedException
+		{
+			try
+			{
+				while(!admitted && rejection == null)
+				{
+					if(deadline == null)
+					{
+						wait();
+					}
+					else if(deadline.isExpired())
+					{
+						abandoned = true;
+						return new OverloadException("Server side: overloaded, deadline expired while the call waited");
+					}
+					else
+					{
+						TimeUnit.NANOSECONDS.timedWait(this, deadline.remaining(TimeUnit.NANOSECONDS));
+					}
+				}
+			}
+			catch(InterruptedException e)
+			{
+				if(admitted)
+				{
+					Thread.currentThread().interrupt();
+					return null;
+				}
+
+				abandoned = true;
+				throw e;
+			}
+
+			return rejection;
+		}
+	}
+}
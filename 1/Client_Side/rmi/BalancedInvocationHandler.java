@@ -0,0 +1,217 @@
+//Invocation handler of stubs balancing calls over several skeleton addresses
+
+package rmi;
+
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Each call is made through the stub of the endpoint chosen by the policy.
+// A call counts as a failure of its endpoint if it fails with an
+// RMIException; any other outcome, including an exception thrown by the
+// remote method, shows the endpoint to be working. A call to an idempotent
+// method which fails is retried once on another endpoint.
+class BalancedInvocationHandler implements InvocationHandler
+{
+	private final Class<?> c;
+	private final Endpoint[] endpoints;
+	private final BalancingPolicy policy;
+
+	BalancedInvocationHandler(Class<?> c, List<InetSocketAddress> addresses, BalancingPolicy policy)
+	{
+		this.c = c;
+		this.policy = policy;
+		this.endpoints = new Endpoint[addresses.size()];
+
+		for(int i = 0; i < endpoints.length; i++)
+		{
+			InetSocketAddress address = addresses.get(i);
+
+			endpoints[i] = new Endpoint(new MyInvocationHandler(c, address.getAddress(), address.getPort()));
+		}
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		if(method.getDeclaringClass() == Object.class)
+		{
+			return ReplicatedInvocationHandler.local(proxy, method, args, c.getSimpleName() + " balanced over " + endpoints.length + " skeletons, " + policy);
+		}
+
+		Endpoint endpoint = choose(null);
+		DispatchTable.Entry entry = endpoint.stub.entry(method);
+
+		try
+		{
+			return endpoint.call(entry, args);
+		}
+		catch(RMIException e)
+		{
+			// A streamed argument cannot be sent twice.
+			if(entry.idempotent == false || entry.streamedArgument >= 0 || endpoints.length == 1)
+			{
+				throw e;
+			}
+
+			return choose(endpoint).call(entry, args);
+		}
+	}
+
+	// Chooses the endpoint for a call, other than the one given if possible.
+	// Ejected endpoints are chosen only if every endpoint is ejected.
+	Endpoint choose(Endpoint excluded)
+	{
+		long now = System.nanoTime();
+		Endpoint best = null;
+		double bestScore = 0;
+		int ties = 0;
+		boolean healthy = false;
+
+		for(Endpoint endpoint : endpoints)
+		{
+			if(endpoint == excluded && endpoints.length > 1)
+			{
+				continue;
+			}
+
+			boolean available = !endpoint.isEjected(now);
+
+			// The first available endpoint found replaces ejected ones chosen
+			// before it.
+			if(available && !healthy)
+			{
+				healthy = true;
+				best = null;
+			}
+			else if(!available && healthy)
+			{
+				continue;
+			}
+
+			double score = score(endpoint);
+
+			if(best == null || score < bestScore)
+			{
+				best = endpoint;
+				bestScore = score;
+				ties = 1;
+			}
+			else if(score == bestScore && ThreadLocalRandom.current().nextInt(++ties) == 0)
+			{
+				best = endpoint;
+			}
+		}
+
+		return best;
+	}
+
+	private double score(Endpoint endpoint)
+	{
+		int outstanding = endpoint.outstanding.get();
+
+		return policy.isEwma() ? endpoint.latency() * (outstanding + 1) : outstanding;
+	}
+
+	// Endpoints, for inspection by tests.
+	Endpoint[] endpoints()
+	{
+		return endpoints;
+	}
+
+	// A skeleton address, with the state by which it is chosen.
+	class Endpoint
+	{
+		final MyInvocationHandler stub;
+		final AtomicInteger outstanding = new AtomicInteger();
+		private double latency = 0;
+		private long observed = 0;
+		private int failures = 0;
+		private long ejectedUntil = 0;
+		private boolean ejected = false;
+
+		Endpoint(MyInvocationHandler stub)
+		{
+			this.stub = stub;
+		}
+
+		Object call(DispatchTable.Entry entry, Object[] args) throws Throwable
+		{
+			long start = System.nanoTime();
+			boolean failed = false;
+
+			outstanding.incrementAndGet();
+
+			try
+			{
+				return stub.useClient(entry, args);
+			}
+			catch(RMIException e)
+			{
+				failed = true;
+				throw e;
+			}
+			finally
+			{
+				outstanding.decrementAndGet();
+				completed(start, System.nanoTime(), failed);
+			}
+		}
+
+		private synchronized void completed(long start, long end, boolean failed)
+		{
+			if(failed)
+			{
+				failures++;
+
+				if(policy.ejectAfter() > 0 && failures >= policy.ejectAfter())
+				{
+					ejected = true;
+					ejectedUntil = end + policy.ejectionNanos();
+					failures = 0;
+				}
+
+				return;
+			}
+
+			failures = 0;
+
+			long sample = end - start;
+
+			// The average rises at once to a slower latency, so that a
+			// skeleton which slows down is avoided quickly, and decays
+			// towards faster latencies with the time since the last
+			// observation.
+			if(observed == 0 || sample > latency)
+			{
+				latency = sample;
+			}
+			else
+			{
+				double weight = Math.exp(-(double)(end - observed) / policy.decayNanos());
+
+				latency = latency * weight + sample * (1 - weight);
+			}
+
+			observed = end;
+		}
+
+		// Average latency in nanoseconds, zero if no call has completed, so
+		// that new endpoints are tried first.
+		synchronized double latency()
+		{
+			return latency;
+		}
+
+		synchronized boolean isEjected(long now)
+		{
+			if(ejected && now - ejectedUntil >= 0)
+			{
+				ejected = false;
+			}
+
+			return ejected;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/** Batch of calls made through a stub in a single round trip.
+
+	<p>
+	Calls are queued by calling methods on the proxy returned by
+	<code>queue</code>, which implements the same remote interface as the stub.
+	The proxy does not contact the skeleton: each of its methods records the
+	call and returns <code>null</code>, zero or <code>false</code>. The queued
+	calls are then sent to the skeleton together, in one frame, by
+	<code>execute</code> or <code>executeParallel</code>, which return the
+	result of every call once all have completed. For example:
+
+	<pre>
+	Batch&lt;Service&gt; batch = new Batch&lt;Service&gt;(service);
+	Service queued = batch.queue();
+
+	queued.isDirectory(path);
+	queued.list(path);
+
+	List&lt;Batch.Result&gt; results = batch.execute();
+	boolean directory = (Boolean)results.get(0).get();
+	String[] children = (String[])results.get(1).get();
+	</pre>
+
+	<p>
+	A call which throws an exception does not prevent the calls after it from
+	running: its exception is returned in its result. A batch may be executed
+	only once; further calls may then be queued for another batch. Batches are
+	not thread-safe.
+
+	@param <T> The remote interface of the stub.
+ */
+public class Batch<T>
+{
+	private final MyInvocationHandler handler;
+	private final T queue;
+	private final List<Long> methodIds = new ArrayList<Long>();
+	private final List<Object[]> arguments = new ArrayList<Object[]>();
+
+	/** Creates an empty batch of calls to the skeleton of a stub.
+
+		@param stub The stub.
+		@throws NullPointerException If <code>stub</code> is <code>null</code>.
+		@throws IllegalArgumentException If <code>stub</code> is not a stub.
+	 */
+	@SuppressWarnings("unchecked")
+	public Batch(T stub)
+	{
+		if(stub == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(!Proxy.isProxyClass(stub.getClass()) || !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler))
+		{
+			throw new IllegalArgumentException("not a stub");
+		}
+
+		handler = (MyInvocationHandler)Proxy.getInvocationHandler(stub);
+
+		final DispatchTable table = handler.table();
+
+		queue = (T)Proxy.newProxyInstance(stub.getClass().getClassLoader(), stub.getClass().getInterfaces(), new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				DispatchTable.Entry entry = table.entry(method);
+
+				if(entry == null)
+				{
+					if(method.getName().equals("equals"))
+					{
+						return proxy == args[0];
+					}
+
+					if(method.getName().equals("hashCode"))
+					{
+						return System.identityHashCode(proxy);
+					}
+
+					return "batch of " + handler.getInterface().getSimpleName() + " calls";
+				}
+
+				if(entry.isStreamed())
+				{
+					throw new IllegalArgumentException("streamed methods cannot be batched");
+				}
+
+				methodIds.add(entry.id);
+				arguments.add(args);
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/** Returns the proxy through which calls are queued. */
+	public T queue()
+	{
+		return queue;
+	}
+
+	/** Returns the number of calls queued. */
+	public int size()
+	{
+		return methodIds.size();
+	}
+
+	/** Runs the queued calls one after the other, in the order in which they
+		were queued.
+
+		@return The result of each call, in the order of the calls.
+		@throws RMIException If the batch could not be sent or its results
+							 received.
+	 */
+	public List<Result> execute() throws RMIException
+	{
+		return execute(false);
+	}
+
+	/** Runs the queued calls in parallel. The calls may run in any order.
+
+		@return The result of each call, in the order of the calls.
+		@throws RMIException If the batch could not be sent or its results
+							 received.
+	 */
+	public List<Result> executeParallel() throws RMIException
+	{
+		return execute(true);
+	}
+
+	private List<Result> execute(boolean parallel) throws RMIException
+	{
+		long[] ids = new long[methodIds.size()];
+		Object[][] args = arguments.toArray(new Object[ids.length][]);
+
+		for(int i = 0; i < ids.length; i++)
+		{
+			ids[i] = methodIds.get(i);
+		}
+
+		methodIds.clear();
+		arguments.clear();
+
+		List<Result> results = new ArrayList<Result>();
+
+		if(ids.length == 0)
+		{
+			return results;
+		}
+
+		Frame[] replies = handler.useClientBatch(ids, args, parallel);
+
+		if(replies.length != ids.length)
+		{
+			throw new RMIException("RMI: batch answered with " + replies.length + " results for " + ids.length + " calls");
+		}
+
+		try
+		{
+			for(Frame reply : replies)
+			{
+				results.add(new Result(reply.isNormalReturn(), reply.result()));
+			}
+		}
+		catch(Exception e)
+		{
+			throw new RMIException("RMI", e);
+		}
+
+		return results;
+	}
+
+	private static Object defaultValue(Class<?> type)
+	{
+		if(type == boolean.class)
+		{
+			return false;
+		}
+
+		if(type == char.class)
+		{
+			return (char)0;
+		}
+
+		if(type.isPrimitive() && type != void.class)
+		{
+			// Narrowed to the return type by the proxy.
+			if(type == byte.class) return (byte)0;
+			if(type == short.class) return (short)0;
+			if(type == int.class) return 0;
+			if(type == long.class) return 0L;
+			if(type == float.class) return 0f;
+			return 0d;
+		}
+
+		return null;
+	}
+
+	/** Result of one call of a batch: a return value or an exception. */
+	public static class Result
+	{
+		private final boolean normal;
+		private final Object value;
+
+		Result(boolean normal, Object value)
+		{
+			this.normal = normal;
+			this.value = value;
+		}
+
+		/** Checks whether the call threw an exception. */
+		public boolean isException()
+		{
+			return !normal;
+		}
+
+		/** Returns the value returned by the call, or <code>null</code> if the
+			call threw an exception. */
+		public Object getValue()
+		{
+			return normal ? value : null;
+		}
+
+		/** Returns the exception thrown by the call, or <code>null</code> if
+			the call returned normally. */
+		public Throwable getException()
+		{
+			return normal ? null : (Throwable)value;
+		}
+
+		/** Returns the value returned by the call, or throws the exception it
+			threw.
+
+			@throws Throwable The exception thrown by the call.
+		 */
+		public Object get() throws Throwable
+		{
+			if(!normal)
+			{
+				throw (Throwable)value;
+			}
+
+			return value;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+//Compact binary codec, the default encoding of arguments and results
+
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.lang.reflect.Proxy;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Compact binary codec.
+
+    <p>
+    Every value is written as a one-byte tag followed by its contents.
+    Primitive wrappers are written in their natural width, with
+    <code>int</code> and <code>long</code> values as variable-length
+    integers. Strings are written as UTF-8, byte arrays as their length and
+    raw bytes, and arrays of objects as their component type followed by
+    their elements. Byte arrays of 64 KiB or more, and file regions, are
+    streamed after the frame carrying the call or reply rather than copied
+    into it. Stubs are written as their interface and skeleton address
+    rather than as a serialized proxy.
+
+    <p>
+    Exceptions whose only state is their message and cause are written as
+    their class, message and cause, and are created again on the receiving
+    side with their public <code>(String, Throwable)</code> or
+    <code>(String)</code> constructor. Their stack traces are written only by
+    skeletons which ask for them with <code>Skeleton.setStackTraces</code>.
+
+    <p>
+    Values of a type registered with <code>register</code> are written by its
+    <code>TypeCodec</code>. Any other value is written with Java
+    serialization, so that every serializable value can still be passed.
+ */
+public class BinaryCodec extends Codec
+{
+	static final int ID = 1;
+	static final BinaryCodec INSTANCE = new BinaryCodec();
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte CHAR = 5;
+	private static final byte INT = 6;
+	private static final byte LONG = 7;
+	private static final byte FLOAT = 8;
+	private static final byte DOUBLE = 9;
+	private static final byte STRING = 10;
+	private static final byte BYTES = 11;
+	private static final byte ARRAY = 12;
+	private static final byte STUB = 13;
+	private static final byte CUSTOM = 14;
+	private static final byte SERIALIZED = 15;
+	private static final byte STREAM = 16;
+	private static final byte EXCEPTION = 17;
+
+	// Byte arrays at least this large are streamed after the frame carrying
+	// them rather than copied into it.
+	static final int STREAM_THRESHOLD = 64 * 1024;
+
+	private static final Map<Class<?>, TypeCodec<?>> typeCodecs = new ConcurrentHashMap<Class<?>, TypeCodec<?>>();
+	private static final Map<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+	private BinaryCodec()
+	{
+	}
+
+	/** Registers the encoding of a type.
+
+		<p>
+		The codec is used for values whose class is exactly <code>type</code>.
+		It must be registered on both sides of the connection, which is most
+		easily done in a static initializer of the type itself.
+
+		@param type The type.
+		@param codec The encoding of values of the type.
+		@throws NullPointerException If either argument is <code>null</code>.
+	 */
+	public static <T> void register(Class<T> type, TypeCodec<T> codec)
+	{
+		if(type == null || codec == null)
+		{
+			throw new NullPointerException();
+		}
+
+		typeCodecs.put(type, codec);
+	}
+
+	public int id()
+	{
+		return ID;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void writeValue(DataOutputStream out, Object value) throws IOException
+	{
+		if(value == null)
+		{
+			out.writeByte(NULL);
+			return;
+		}
+
+		Class<?> type = value.getClass();
+
+		if(type == String.class)
+		{
+			out.writeByte(STRING);
+			writeString(out, (String)value);
+		}
+		else if(type == Integer.class)
+		{
+			out.writeByte(INT);
+			writeVarLong(out, zigZag((Integer)value));
+		}
+		else if(type == Long.class)
+		{
+			out.writeByte(LONG);
+			writeVarLong(out, zigZag((Long)value));
+		}
+		else if(type == Boolean.class)
+		{
+			out.writeByte((Boolean)value ? TRUE : FALSE);
+		}
+		else if(type == byte[].class && ((byte[])value).length >= STREAM_THRESHOLD && out instanceof Frame.Output)
+		{
+			out.writeByte(STREAM);
+			writeVarLong(out, ((Frame.Output)out).stream(value));
+		}
+		else if(type == byte[].class)
+		{
+			byte[] bytes = (byte[])value;
+
+			out.writeByte(BYTES);
+			writeVarLong(out, bytes.length);
+			out.write(bytes);
+		}
+		else if(type == Byte.class)
+		{
+			out.writeByte(BYTE);
+			out.writeByte((Byte)value);
+		}
+		else if(type == Short.class)
+		{
+			out.writeByte(SHORT);
+			out.writeShort((Short)value);
+		}
+		else if(type == Character.class)
+		{
+			out.writeByte(CHAR);
+			out.writeChar((Character)value);
+		}
+		else if(type == Float.class)
+		{
+			out.writeByte(FLOAT);
+			out.writeFloat((Float)value);
+		}
+		else if(type == Double.class)
+		{
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double)value);
+		}
+		else if(type.isArray() && !type.getComponentType().isPrimitive())
+		{
+			Object[] array = (Object[])value;
+
+			out.writeByte(ARRAY);
+			writeString(out, type.getComponentType().getName());
+			writeVarLong(out, array.length);
+
+			for(Object element : array)
+			{
+				writeValue(out, element);
+			}
+		}
+		else if(type == FileRegion.class)
+		{
+			if(!(out instanceof Frame.Output))
+			{
+				throw new NotSerializableException("file regions can only be passed in calls and replies");
+			}
+
+			out.writeByte(STREAM);
+			writeVarLong(out, ((Frame.Output)out).stream(value));
+		}
+		else if(Proxy.isProxyClass(type) && Proxy.getInvocationHandler(value) instanceof MyInvocationHandler)
+		{
+			writeStub(out, (MyInvocationHandler)Proxy.getInvocationHandler(value));
+		}
+		else
+		{
+			TypeCodec<Object> codec = (TypeCodec<Object>)typeCodecs.get(type);
+
+			if(codec != null)
+			{
+				out.writeByte(CUSTOM);
+				writeString(out, type.getName());
+				codec.write(value, out, this);
+			}
+			else if(value instanceof Throwable && ThrowableCodec.isCompact((Throwable)value))
+			{
+				out.writeByte(EXCEPTION);
+				writeString(out, type.getName());
+				ThrowableCodec.write(out, (Throwable)value, this, out instanceof Frame.Output && ((Frame.Output)out).stackTraces);
+			}
+			else
+			{
+				byte[] bytes = SerializationCodec.serialize(value);
+
+				out.writeByte(SERIALIZED);
+				writeVarLong(out, bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+
+	public Object readValue(DataInputStream in) throws IOException, ClassNotFoundException
+	{
+		byte tag = in.readByte();
+
+		switch(tag)
+		{
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case BYTE:
+				return in.readByte();
+			case SHORT:
+				return in.readShort();
+			case CHAR:
+				return in.readChar();
+			case INT:
+				return (int)unZigZag(readVarLong(in));
+			case LONG:
+				return unZigZag(readVarLong(in));
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case STRING:
+				return readString(in);
+			case BYTES:
+			{
+				byte[] bytes = new byte[readSize(in)];
+
+				in.readFully(bytes);
+				return bytes;
+			}
+			case ARRAY:
+			{
+				Class<?> component = resolve(readString(in), false);
+				int length = readSize(in);
+				Object[] array = (Object[])Array.newInstance(component, length);
+
+				for(int i = 0; i < length; i++)
+				{
+					array[i] = readValue(in);
+				}
+
+				return array;
+			}
+			case STUB:
+				return readStub(in);
+			case CUSTOM:
+			{
+				// Initializing the class gives it the chance to register its
+				// codec.
+				Class<?> type = resolve(readString(in), true);
+				TypeCodec<?> codec = typeCodecs.get(type);
+
+				if(codec == null)
+				{
+					throw new InvalidClassException(type.getName(), "no codec registered");
+				}
+
+				return codec.read(in, this);
+			}
+			case EXCEPTION:
+				return ThrowableCodec.read(in, this, resolve(readString(in), false));
+			case SERIALIZED:
+			{
+				byte[] bytes = new byte[readSize(in)];
+
+				in.readFully(bytes);
+				return SerializationCodec.deserialize(bytes);
+			}
+			case STREAM:
+			{
+				if(!(in instanceof Frame.Input))
+				{
+					throw new StreamCorruptedException("streamed value outside a frame");
+				}
+
+				return ((Frame.Input)in).stream(readLength(in));
+			}
+			default:
+				throw new StreamCorruptedException("unknown value tag " + tag);
+		}
+	}
+
+	// A stub is its remote interface and the address of its skeleton. The
+	// address is written as its raw bytes, so that no name lookup is needed on
+	// either side.
+	private void writeStub(DataOutputStream out, MyInvocationHandler handler) throws IOException
+	{
+		InetAddress address = handler.getAddress();
+
+		out.writeByte(STUB);
+		writeString(out, handler.getInterface().getName());
+
+		if(address == null)
+		{
+			out.writeByte(0);
+		}
+		else
+		{
+			byte[] bytes = address.getAddress();
+
+			out.writeByte(bytes.length);
+			out.write(bytes);
+		}
+
+		out.writeShort(handler.getPort());
+	}
+
+	private Object readStub(DataInputStream in) throws IOException, ClassNotFoundException
+	{
+		Class<?> c = resolve(readString(in), false);
+		byte[] bytes = new byte[in.readUnsignedByte()];
+
+		in.readFully(bytes);
+
+		InetAddress address = bytes.length == 0 ? null : InetAddress.getByAddress(bytes);
+		int port = in.readUnsignedShort();
+
+		return Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c}, new MyInvocationHandler(c, address, port));
+	}
+
+	private static Class<?> resolve(String name, boolean initialize) throws ClassNotFoundException
+	{
+		Class<?> type = classes.get(name);
+
+		if(type == null)
+		{
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+			if(loader == null)
+			{
+				loader = BinaryCodec.class.getClassLoader();
+			}
+
+			type = Class.forName(name, initialize, loader);
+			classes.put(name, type);
+		}
+
+		return type;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[readSize(in)];
+
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int readLength(DataInputStream in) throws IOException
+	{
+		long length = readVarLong(in);
+
+		if(length < 0 || length > Integer.MAX_VALUE)
+		{
+			throw new StreamCorruptedException("invalid length " + length);
+		}
+
+		return (int)length;
+	}
+
+	// Reads the length of an array, which is checked against the input left
+	// before the array is allocated.
+	private static int readSize(DataInputStream in) throws IOException
+	{
+		int length = readLength(in);
+
+		Frame.checkArrayLength(in, length);
+		return length;
+	}
+
+	// Unsigned variable-length integer: seven bits per byte, least significant
+	// first, with the high bit set on all but the last byte.
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		while((value & ~0x7fL) != 0)
+		{
+			out.writeByte((int)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0;
+
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+
+			value |= (long)(b & 0x7f) << shift;
+
+			if((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+
+		throw new StreamCorruptedException("variable-length integer too long");
+	}
+
+	// Maps signed values to unsigned ones so that small negative numbers are
+	// also written in few bytes.
+	private static long zigZag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,66 @@
+//Server side transport reading each connection on a dedicated thread
+
+package rmi;
+
+import java.io.IOException;
+import java.net.*;
+
+class BlockingTransport extends Transport
+{
+	static final BlockingTransport INSTANCE = new BlockingTransport();
+	// Connections waiting to be accepted, unless the options say otherwise.
+	private static final int BACKLOG = 50;
+
+	Endpoint open(InetSocketAddress address, Dispatcher<?> dispatcher, ExecutorStrategy strategy, TransportOptions options) throws IOException
+	{
+		final ServerSocket sock = new ServerSocket();
+
+		try
+		{
+			// A restarted skeleton rebinds its port at once, although
+			// connections from its last run may still be in TIME_WAIT.
+			sock.setReuseAddress(true);
+			options.configure(sock);
+			sock.bind(address, options.backlog(BACKLOG));
+		}
+		catch(IOException e)
+		{
+			sock.close();
+			throw e;
+		}
+
+		final Listener<?> listener = new Listener<>(sock, dispatcher, strategy, options);
+		listener.start();
+
+		return new Endpoint()
+		{
+			public InetSocketAddress getAddress()
+			{
+				return new InetSocketAddress(sock.getInetAddress(), sock.getLocalPort());
+			}
+
+			public void close() throws InterruptedException
+			{
+				try
+				{
+					sock.close();
+				}
+				catch(IOException e)
+				{
+				}
+
+				// Wait for the listener to leave accept, so that no connection
+				// is accepted on the closed socket.
+				if(listener != Thread.currentThread())
+				{
+					listener.join();
+				}
+			}
+		};
+	}
+
+	public String toString()
+	{
+		return "blocking";
+	}
+}
@@ -0,0 +1,45 @@
+package rmi;
+
+import java.lang.annotation.*;
+import java.util.concurrent.TimeUnit;
+
+/** Marks a method of a remote interface whose results may be cached by
+	stubs.
+
+	<p>
+	A stub calling a cacheable method first looks for a result of an earlier
+	call to the same method of the same skeleton, made with the same codec and
+	with arguments whose encoding was identical, and returns it without a
+	network round trip if it is younger than the method's time to live.
+	Otherwise the call is made, and its result kept if the method returned
+	normally. Arguments are compared as the bytes sent, not with
+	<code>equals</code>: equal arguments which encode differently, such as sets
+	which iterate in a different order or objects passed with Java
+	serialization, may miss the cache. Calls whose arguments are streamed,
+	such as file regions and byte arrays of 64 KiB or more, are not cached.
+	Each hit decodes the cached reply again, so callers never share a
+	returned object.
+
+	<p>
+	Results are kept in one cache shared by all stubs in the process, bounded
+	by the total size of the cached replies; when it is full, the least
+	recently used results are evicted first. Replies carrying streamed values
+	are not cached. Calls through asynchronous stubs and batches are not served
+	from the cache. A cached result may be stale for up to the time to live;
+	stubs discard results explicitly with <code>Stub.invalidate</code>, for
+	example after calls which change the results of cacheable methods.
+
+	@see Stub#invalidate(Object)
+	@see Stub#setCacheCapacity(long)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable
+{
+	/** Time for which a result is kept, in the given unit. */
+	long ttl() default 1000;
+
+	/** Unit of the time to live. */
+	TimeUnit unit() default TimeUnit.MILLISECONDS;
+}
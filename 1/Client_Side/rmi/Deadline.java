@@ -0,0 +1,189 @@
+package rmi;
+
+import java.util.concurrent.TimeUnit;
+
+/** Deadline by which remote calls must complete.
+
+	<p>
+	A deadline is attached to the current thread with <code>attach</code>. Every
+	remote call made by the thread while the deadline is attached, through any
+	stub, must complete before the deadline: connecting to the skeleton and
+	waiting for the reply are both bounded by the time remaining, and a call
+	made after the deadline has passed fails at once. A call which does not
+	complete in time fails with an <code>RMIException</code> whose cause is a
+	<code>SocketTimeoutException</code>.
+
+	<p>
+	The time remaining is sent with each call, and the skeleton attaches a
+	deadline with that much time to the thread running the method. Remote calls
+	made by the method, to other skeletons, therefore inherit what is left of the
+	caller's deadline. A skeleton does not start a call whose deadline has
+	already passed when the call is taken from the executor.
+
+	<p>
+	A timeout may also be set on a stub with <code>Stub.withTimeout</code>. Each
+	call through such a stub must complete within the timeout, and within the
+	deadline attached to the thread, if any.
+
+	<p>
+	Deadlines are immutable, and are measured with <code>System.nanoTime</code>.
+ */
+public final class Deadline
+{
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	private final long expiry;
+
+	private Deadline(long expiry)
+	{
+		this.expiry = expiry;
+	}
+
+	/** Returns a deadline the given time from now.
+
+		@param timeout The time until the deadline. Zero or a negative time
+					   gives a deadline which has already passed.
+		@param unit The unit of <code>timeout</code>.
+		@return The deadline.
+		@throws NullPointerException If <code>unit</code> is <code>null</code>.
+	 */
+	public static Deadline after(long timeout, TimeUnit unit)
+	{
+		if(unit == null)
+		{
+			throw new NullPointerException();
+		}
+
+		return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	/** Returns the deadline attached to the current thread.
+
+		@return The deadline, or <code>null</code> if none is attached.
+	 */
+	public static Deadline current()
+	{
+		return current.get();
+	}
+
+	/** Returns the time remaining until the deadline.
+
+		@param unit The unit in which the time is returned.
+		@return The time remaining, rounded down, or zero if the deadline has
+				passed.
+	 */
+	public long remaining(TimeUnit unit)
+	{
+		return unit.convert(Math.max(0, expiry - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/** Checks whether the deadline has passed. */
+	public boolean isExpired()
+	{
+		return expiry - System.nanoTime() <= 0;
+	}
+
+	/** Attaches the deadline to the current thread.
+
+		<p>
+		A deadline later than the one already attached does not extend it: the
+		earlier of the two remains in force until the returned scope is closed.
+		Scopes must be closed in the reverse order of attachment, normally with
+		a <code>try</code>-with-resources statement.
+
+		@return The scope which detaches the deadline when closed, restoring the
+				deadline previously attached.
+	 */
+	public Scope attach()
+	{
+		Deadline previous = current.get();
+
+		current.set(earliest(previous, this));
+		return new Scope(previous);
+	}
+
+	// Returns the deadline by which a call with the given timeout must
+	// complete: the earlier of the deadline attached to the thread and the
+	// timeout, which is not set if zero. Returns null if there is neither.
+	static Deadline forCall(long timeoutNanos)
+	{
+		Deadline attached = current.get();
+
+		if(timeoutNanos <= 0)
+		{
+			return attached;
+		}
+
+		return earliest(attached, new Deadline(System.nanoTime() + timeoutNanos));
+	}
+
+	// Returns the deadline, sent with a call, of which the given number of
+	// milliseconds remained when the call was received at the given time.
+	static Deadline received(long receivedNanos, int budgetMillis)
+	{
+		return new Deadline(receivedNanos + TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+	}
+
+	// Time remaining to be sent with a call, in milliseconds, rounded up so
+	// that a deadline which has not passed is never sent as no deadline.
+	int budgetMillis()
+	{
+		long nanos = expiry - System.nanoTime();
+
+		if(nanos <= 0)
+		{
+			return 1;
+		}
+
+		return (int)Math.min(Integer.MAX_VALUE, (nanos + 999999) / 1000000);
+	}
+
+	private static Deadline earliest(Deadline first, Deadline second)
+	{
+		if(first == null)
+		{
+			return second;
+		}
+
+		return first.expiry - second.expiry <= 0 ? first : second;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Deadline[" + remaining(TimeUnit.MILLISECONDS) + " ms remaining]";
+	}
+
+	/** Scope in which a deadline is attached to a thread. */
+	public static final class Scope implements AutoCloseable
+	{
+		private final Deadline previous;
+		private boolean closed = false;
+
+		private Scope(Deadline previous)
+		{
+			this.previous = previous;
+		}
+
+		/** Restores the deadline attached before this scope was entered. */
+		@Override
+		public void close()
+		{
+			if(closed)
+			{
+				return;
+			}
+
+			closed = true;
+
+			if(previous == null)
+			{
+				current.remove();
+			}
+			else
+			{
+				current.set(previous);
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+//Streamed arguments and results: elements sent in chunks under flow control
+
+package rmi;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// An argument or return value declared as an Iterator is not encoded with
+// the call or the reply. Its elements follow the call, or the reply, as CHUNK
+// frames carrying the identifier of the call, each holding up to
+// CHUNK_ELEMENTS elements or about CHUNK_BYTES bytes. The sender may have
+// WINDOW chunks unconsumed at once, and the receiver grants a further chunk
+// with a CREDIT frame each time it has consumed one. Neither side therefore
+// holds more than a window of elements, however long the stream, and the
+// receiver works on the first elements while the sender produces the rest.
+final class ElementStream
+{
+	static final int WINDOW = 4;
+	static final int CHUNK_ELEMENTS = 1024;
+	static final int CHUNK_BYTES = 64 * 1024;
+	// Time a sender waits for credit before giving up on the receiver.
+	static final long CREDIT_TIMEOUT = ServerConnection.IDLE_TIMEOUT;
+
+	private ElementStream()
+	{
+	}
+
+	// The connection carrying a stream.
+	interface Channel
+	{
+		// Sends a chunk or a credit of the stream.
+		void send(Frame frame) throws IOException;
+
+		// Called once the stream has ended, so that the connection forgets
+		// it.
+		void finished();
+	}
+
+	// Sending end of a stream.
+	static class Outbound
+	{
+		private final Semaphore credits = new Semaphore(WINDOW);
+		private volatile boolean cancelled = false;
+
+		// Called when a credit frame arrives.
+		void credit(int chunks)
+		{
+			if(chunks < 0)
+			{
+				cancel();
+			}
+			else
+			{
+				credits.release(chunks);
+			}
+		}
+
+		// Stops the stream, when the receiver has abandoned it, or will not
+		// read it any further.
+		void cancel()
+		{
+			cancelled = true;
+			credits.release(WINDOW);
+		}
+
+		// Sends the elements of the source as credit allows, until the source
+		// is exhausted or the stream is cancelled. An exception thrown by the
+		// source ends the stream, and is passed to the receiver. So does a
+		// receiver granting no credit for CREDIT_TIMEOUT.
+		void send(Iterator<?> source, Codec codec, long callId, Channel channel) throws IOException, InterruptedException
+		{
+			while(true)
+			{
+				if(credits.tryAcquire(CREDIT_TIMEOUT, TimeUnit.MILLISECONDS) == false)
+				{
+					fail(codec, callId, channel, new RMIException("stream stalled: no credit from the receiver"));
+					return;
+				}
+
+				if(cancelled)
+				{
+					return;
+				}
+
+				Frame chunk;
+
+				try
+				{
+					chunk = Frame.marshalChunk(codec, callId, source, CHUNK_ELEMENTS, CHUNK_BYTES);
+				}
+				catch(Exception | Error e)
+				{
+					fail(codec, callId, channel, e);
+					return;
+				}
+
+				channel.send(chunk);
+
+				if((chunk.chunkFlags() & Frame.LAST) != 0)
+				{
+					return;
+				}
+			}
+		}
+
+		private static void fail(Codec codec, long callId, Channel channel, Throwable failure) throws IOException
+		{
+			Frame chunk;
+
+			try
+			{
+				chunk = Frame.marshalFailure(codec, callId, failure);
+			}
+			catch(IOException e)
+			{
+				chunk = Frame.marshalFailure(codec, callId, new RMIException("unable to marshal stream failure: " + failure));
+			}
+
+			channel.send(chunk);
+		}
+	}
+
+	// Receiving end of a stream, read as an iterator. Closing it before the
+	// end abandons the stream.
+	static class Inbound implements Iterator<Object>, Closeable
+	{
+		// Chunks received, or the IOException which ended the connection.
+		private final BlockingQueue<Object> chunks = new LinkedBlockingQueue<Object>();
+		private long callId;
+		private Channel channel;
+		private Iterator<Object> current = Collections.emptyIterator();
+		private boolean ended = false;
+		private RuntimeException failure = null;
+
+		// Attaches the stream to the call it belongs to, before any chunk can
+		// arrive.
+		void open(long callId, Channel channel)
+		{
+			this.callId = callId;
+			this.channel = channel;
+		}
+
+		// Called when a chunk of the stream arrives.
+		void received(Frame chunk)
+		{
+			chunks.add(chunk);
+		}
+
+		// Called when the connection ends.
+		void failed(IOException cause)
+		{
+			chunks.add(cause);
+		}
+
+		public synchronized boolean hasNext()
+		{
+			while(current.hasNext() == false)
+			{
+				if(failure != null)
+				{
+					throw failure;
+				}
+
+				if(ended)
+				{
+					return false;
+				}
+
+				take();
+			}
+
+			return true;
+		}
+
+		public synchronized Object next()
+		{
+			if(hasNext() == false)
+			{
+				throw new NoSuchElementException();
+			}
+
+			return current.next();
+		}
+
+		public synchronized void close()
+		{
+			current = Collections.emptyIterator();
+
+			if(ended)
+			{
+				return;
+			}
+
+			try
+			{
+				channel.send(Frame.marshalCredit(callId, -1));
+			}
+			catch(IOException e)
+			{
+			}
+
+			end();
+		}
+
+		// Waits for the next chunk and decodes it. Consuming a chunk grants
+		// the sender another.
+		private void take()
+		{
+			Object item;
+
+			try
+			{
+				item = chunks.take();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				close();
+				throw failure = new StreamException(new RMIException("RMI", e));
+			}
+
+			if(item instanceof IOException)
+			{
+				end();
+				throw failure = new StreamException(new RMIException("RMI", (IOException)item));
+			}
+
+			Frame chunk = (Frame)item;
+			int flags;
+			List<Object> elements;
+
+			try
+			{
+				flags = chunk.chunkFlags();
+				elements = chunk.elements();
+			}
+			catch(IOException | ClassNotFoundException e)
+			{
+				close();
+				throw failure = new StreamException(new RMIException("RMI", e));
+			}
+
+			if((flags & Frame.FAILED) != 0)
+			{
+				end();
+
+				Object cause = elements.get(0);
+
+				throw failure = cause instanceof RuntimeException ? (RuntimeException)cause : new StreamException((Throwable)cause);
+			}
+
+			current = elements.iterator();
+
+			if((flags & Frame.LAST) != 0)
+			{
+				end();
+				return;
+			}
+
+			try
+			{
+				channel.send(Frame.marshalCredit(callId, 1));
+			}
+			catch(IOException e)
+			{
+				// The failure of the connection ends the stream.
+			}
+		}
+
+		private void end()
+		{
+			ended = true;
+			channel.finished();
+
+			for(Object item : chunks)
+			{
+				if(item instanceof Frame)
+				{
+					Frame.dispose(((Frame)item).streams);
+				}
+			}
+
+			chunks.clear();
+		}
+	}
+}
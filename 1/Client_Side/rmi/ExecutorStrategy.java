@@ -0,0 +1,377 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Strategy by which a skeleton runs the calls it receives.
+
+	<p>
+	Each time a skeleton is started it asks its strategy for a fresh
+	<code>ExecutorService</code>, to which every call received is then
+	submitted. The executor is shut down when the skeleton is stopped. Since
+	connections are multiplexed, calls arriving on one connection run
+	concurrently and may complete in any order. Each connection additionally
+	has a thread reading its calls, created by the strategy as well. Three
+	strategies are provided:
+
+	<ul>
+	<li><code>threadPerCall</code> starts a new platform thread for each call.
+		This is the default, and the historical behavior of the skeleton, which
+		used to receive one call per connection.</li>
+	<li><code>boundedPool</code> runs calls on a fixed number of pooled threads.
+		Calls received while every thread is busy wait in the pool's queue. This
+		bounds the number of threads running calls and avoids thread creation
+		on every call. The queue is unbounded unless a limit is given, in which
+		case calls arriving while it is full are refused with an
+		<code>OverloadException</code>.</li>
+	<li><code>virtualThreads</code> starts a new virtual thread for each call,
+		and reads each connection on a virtual thread. It requires a runtime
+		that supports virtual threads.</li>
+	</ul>
+ */
+public abstract class ExecutorStrategy
+{
+	/** Creates the executor used by one run of a skeleton.
+
+		@param name Name of the skeleton, used to name the threads created.
+		@return A new executor service.
+	 */
+	protected abstract ExecutorService newExecutor(String name);
+
+	/** Creates the thread which reads the calls arriving on one connection.
+
+		<p>
+		The default implementation creates a platform thread.
+
+		@param reader The code reading the connection.
+		@param name Name for the thread.
+		@return A new, unstarted thread.
+	 */
+	protected Thread newConnectionThread(Runnable reader, String name)
+	{
+		return new Thread(reader, name);
+	}
+
+	/** Returns the strategy which starts a new platform thread for each
+		call. */
+	public static ExecutorStrategy threadPerCall()
+	{
+		return new ExecutorStrategy()
+		{
+			@Override
+			protected ExecutorService newExecutor(String name)
+			{
+				return new ThreadPerTaskExecutor(new NamedThreadFactory(name));
+			}
+
+			@Override
+			public String toString()
+			{
+				return "thread-per-call";
+			}
+		};
+	}
+
+	/** Returns a strategy which runs calls on a fixed number of pooled
+		threads.
+
+		<p>
+		The queue of calls waiting for a thread is unbounded, so that a burst
+		of calls is never refused, but also holds any number of calls in
+		memory. To bound it, use <code>boundedPool(threads, maxQueued)</code>,
+		or limit the calls admitted to the skeleton with
+		<code>Skeleton.setAdmissionControl</code>.
+
+		@param threads The number of threads in the pool.
+		@throws IllegalArgumentException If <code>threads</code> is not
+				positive.
+	 */
+	public static ExecutorStrategy boundedPool(final int threads)
+	{
+		if(threads <= 0)
+		{
+			throw new IllegalArgumentException("pool size must be positive");
+		}
+
+		return new ExecutorStrategy()
+		{
+			@Override
+			protected ExecutorService newExecutor(String name)
+			{
+				return Executors.newFixedThreadPool(threads, new NamedThreadFactory(name));
+			}
+
+			@Override
+			public String toString()
+			{
+				return "bounded-pool(" + threads + ")";
+			}
+		};
+	}
+
+	/** Returns a strategy which runs calls on a fixed number of pooled
+		threads, with a bounded queue of calls waiting for a thread.
+
+		<p>
+		A call received while every thread is busy and the queue is full is
+		refused with an <code>OverloadException</code>.
+
+		@param threads The number of threads in the pool.
+		@param maxQueued The number of calls which may wait for a thread, which
+						 may be zero.
+		@throws IllegalArgumentException If <code>threads</code> is not
+				positive, or <code>maxQueued</code> is negative.
+	 */
+	public static ExecutorStrategy boundedPool(final int threads, final int maxQueued)
+	{
+		if(threads <= 0 || maxQueued < 0)
+		{
+			throw new IllegalArgumentException("pool size must be positive and queue size not negative");
+		}
+
+		return new ExecutorStrategy()
+		{
+			@Override
+			protected ExecutorService newExecutor(String name)
+			{
+				BlockingQueue<Runnable> queue = maxQueued == 0 ? new SynchronousQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(maxQueued);
+
+				return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, new NamedThreadFactory(name));
+			}
+
+			@Override
+			public String toString()
+			{
+				return "bounded-pool(" + threads + ", " + maxQueued + ")";
+			}
+		};
+	}
+
+	/** Returns the strategy which starts a new virtual thread for each call
+		and for each connection.
+
+		@throws UnsupportedOperationException If the running Java platform
+				does not support virtual threads.
+	 */
+	public static ExecutorStrategy virtualThreads()
+	{
+		final Method factory = virtualThreadFactory();
+
+		if(factory == null)
+		{
+			throw new UnsupportedOperationException("virtual threads are not supported by this runtime");
+		}
+
+		return new ExecutorStrategy()
+		{
+			@Override
+			protected ExecutorService newExecutor(String name)
+			{
+				try
+				{
+					return (ExecutorService)factory.invoke(null);
+				}
+				catch(Exception e)
+				{
+					throw new UnsupportedOperationException(
+						"unable to create virtual thread executor", e);
+				}
+			}
+
+			@Override
+			protected Thread newConnectionThread(Runnable reader, String name)
+			{
+				try
+				{
+					Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+					Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+					Thread thread = (Thread)unstarted.invoke(builder, reader);
+
+					thread.setName(name);
+					return thread;
+				}
+				catch(Exception e)
+				{
+					throw new UnsupportedOperationException(
+						"unable to create virtual thread", e);
+				}
+			}
+
+			@Override
+			public String toString()
+			{
+				return "virtual-threads";
+			}
+		};
+	}
+
+	/** Checks whether the running Java platform supports virtual threads.
+
+		@return <code>true</code> if <code>virtualThreads</code> may be used.
+	 */
+	public static boolean virtualThreadsSupported()
+	{
+		return virtualThreadFactory() != null;
+	}
+
+	// Virtual threads are looked up reflectively, so that the library still
+	// compiles and runs on platforms that predate them. The factory is tried
+	// once, since on Java 19 and 20 it exists but fails unless preview
+	// features are enabled.
+	private static Method virtualThreadFactory()
+	{
+		return VirtualThreads.FACTORY;
+	}
+
+	private static class VirtualThreads
+	{
+		static final Method FACTORY = find();
+
+		private static Method find()
+		{
+			try
+			{
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+				((ExecutorService)factory.invoke(null)).shutdown();
+				return factory;
+			}
+			catch(Exception e)
+			{
+				return null;
+			}
+		}
+	}
+
+	/** Thread factory giving each thread the skeleton name and a sequence
+		number. */
+	static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String name;
+		private final AtomicInteger sequence = new AtomicInteger();
+
+		NamedThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			return new Thread(runnable, name + "-" + sequence.incrementAndGet());
+		}
+	}
+
+	/** Executor service which starts a new thread for every task. */
+	private static class ThreadPerTaskExecutor extends AbstractExecutorService
+	{
+		private final ThreadFactory factory;
+		private final Set<Thread> running = new HashSet<Thread>();
+		private boolean shutdown = false;
+
+		ThreadPerTaskExecutor(ThreadFactory factory)
+		{
+			this.factory = factory;
+		}
+
+		@Override
+		public void execute(final Runnable task)
+		{
+			Thread thread;
+
+			synchronized(this)
+			{
+				if(shutdown)
+				{
+					throw new RejectedExecutionException("executor shut down");
+				}
+
+				thread = factory.newThread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							task.run();
+						}
+						finally
+						{
+							finished(Thread.currentThread());
+						}
+					}
+				});
+
+				running.add(thread);
+			}
+
+			thread.start();
+		}
+
+		private synchronized void finished(Thread thread)
+		{
+			running.remove(thread);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void shutdown()
+		{
+			shutdown = true;
+			notifyAll();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow()
+		{
+			List<Thread> threads;
+
+			synchronized(this)
+			{
+				shutdown();
+				threads = new ArrayList<Thread>(running);
+			}
+
+			for(Thread thread : threads)
+			{
+				thread.interrupt();
+			}
+
+			return new ArrayList<Runnable>();
+		}
+
+		@Override
+		public synchronized boolean isShutdown()
+		{
+			return shutdown;
+		}
+
+		@Override
+		public synchronized boolean isTerminated()
+		{
+			return shutdown && running.isEmpty();
+		}
+
+		@Override
+		public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+		{
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+			while(!isTerminated())
+			{
+				long remaining = deadline - System.nanoTime();
+
+				if(remaining <= 0)
+				{
+					return false;
+				}
+
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package rmi;
+
+import java.util.concurrent.TimeUnit;
+
+/** When a replicated stub sends a hedged request.
+
+	<p>
+	A call to an idempotent method through a replicated stub is first sent to
+	one replica. If no reply has arrived once the hedge delay has passed, the
+	same call is sent to a second replica, and the first reply to arrive is
+	returned, the other call being abandoned. Hedging bounds the latency of
+	calls served by a replica which is momentarily slow, at the cost of the
+	extra requests sent.
+
+	<p>
+	The delay may be fixed, or taken from the latencies observed by the stub:
+	a delay at the 95th percentile of recent latencies hedges about one call in
+	twenty, so adding about five percent to the load of the replicas.
+ */
+public final class HedgePolicy
+{
+	private static final HedgePolicy NONE = new HedgePolicy(-1, 0, 0);
+
+	// Number of latencies observed before the percentile is trusted.
+	static final int MIN_SAMPLES = 20;
+
+	private final long delayNanos;
+	private final double percentile;
+	private final long minimumNanos;
+
+	private HedgePolicy(long delayNanos, double percentile, long minimumNanos)
+	{
+		this.delayNanos = delayNanos;
+		this.percentile = percentile;
+		this.minimumNanos = minimumNanos;
+	}
+
+	/** Returns the policy which never hedges. Calls to idempotent methods are
+		still retried on other replicas when they fail. */
+	public static HedgePolicy none()
+	{
+		return NONE;
+	}
+
+	/** Returns a policy which hedges calls not answered after a fixed delay.
+
+		@param delay The delay.
+		@param unit The unit of <code>delay</code>.
+		@return The policy.
+		@throws IllegalArgumentException If <code>delay</code> is negative.
+		@throws NullPointerException If <code>unit</code> is
+									 <code>null</code>.
+	 */
+	public static HedgePolicy afterDelay(long delay, TimeUnit unit)
+	{
+		if(unit == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(delay < 0)
+		{
+			throw new IllegalArgumentException("negative delay");
+		}
+
+		return new HedgePolicy(unit.toNanos(delay), 0, 0);
+	}
+
+	/** Returns a policy which hedges calls not answered within a percentile
+		of the latencies recently observed for the method called.
+
+		<p>
+		Latencies are observed separately for each method of the replicated
+		stub. Until enough calls to a method have completed, the minimum delay
+		is used.
+
+		@param percentile The percentile, strictly between 0 and 1.
+		@param minimum The minimum delay.
+		@param unit The unit of <code>minimum</code>.
+		@return The policy.
+		@throws IllegalArgumentException If <code>percentile</code> is not
+										 between 0 and 1, or
+										 <code>minimum</code> is negative.
+		@throws NullPointerException If <code>unit</code> is
+									 <code>null</code>.
+	 */
+	public static HedgePolicy afterPercentile(double percentile, long minimum, TimeUnit unit)
+	{
+		if(unit == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(!(percentile > 0 && percentile < 1) || minimum < 0)
+		{
+			throw new IllegalArgumentException("invalid hedging parameters");
+		}
+
+		return new HedgePolicy(-1, percentile, unit.toNanos(minimum));
+	}
+
+	// Returns the hedge delay of a call to a method with the given observed
+	// latencies, or -1 if the call is not hedged.
+	long delayNanos(LatencyHistogram latencies)
+	{
+		if(percentile == 0)
+		{
+			return delayNanos;
+		}
+
+		if(latencies == null || latencies.count() < MIN_SAMPLES)
+		{
+			return minimumNanos;
+		}
+
+		return Math.max(minimumNanos, latencies.percentiles(percentile)[0]);
+	}
+
+	@Override
+	public String toString()
+	{
+		if(percentile == 0)
+		{
+			return delayNanos < 0 ? "no hedging" : "hedge after " + TimeUnit.NANOSECONDS.toMillis(delayNanos) + " ms";
+		}
+
+		return "hedge after p" + percentile * 100 + " latency, at least " + TimeUnit.NANOSECONDS.toMillis(minimumNanos) + " ms";
+	}
+}
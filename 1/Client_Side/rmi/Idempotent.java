@@ -0,0 +1,23 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Marks a method of a remote interface which may safely be called more than
+	once for a single invocation.
+
+	<p>
+	A replicated stub, created with <code>Stub.createReplicated</code>, sends
+	calls to idempotent methods to a second replica when the first is slow to
+	answer, and retries them on another replica when a call fails in transit.
+	Calls to methods without this annotation are sent to exactly one replica,
+	and never repeated, since the remote method may have run before the failure
+	was detected.
+
+	@see Stub#createReplicated(Class, HedgePolicy, java.util.List)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent
+{
+}
@@ -0,0 +1,118 @@
+//Concurrent log-linear histogram of call latencies
+
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Values are counted in buckets whose width doubles with every power of two,
+// each power of two being split into 32 buckets, so that any value is counted
+// in a bucket less than about three percent wider than the value. Values below
+// 64 have a bucket each. Recording a value is a few atomic increments and
+// allocates nothing, so every call may be recorded.
+class LatencyHistogram
+{
+	private static final int SUB_BITS = 6;
+	private static final int HALF = 1 << (SUB_BITS - 1);
+	private static final int BUCKETS = HALF * (64 - SUB_BITS + 1);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long value)
+	{
+		if(value < 0)
+		{
+			value = 0;
+		}
+
+		counts.incrementAndGet(index(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+
+		long highest = max.get();
+
+		while(value > highest && !max.compareAndSet(highest, value))
+		{
+			highest = max.get();
+		}
+	}
+
+	long count()
+	{
+		return total.get();
+	}
+
+	long mean()
+	{
+		long count = total.get();
+
+		return count == 0 ? 0 : sum.get() / count;
+	}
+
+	long max()
+	{
+		return max.get();
+	}
+
+	// Returns the values below which the given fractions of the values
+	// recorded lie, as the midpoints of the buckets containing them. The
+	// fractions must be in increasing order.
+	long[] percentiles(double... fractions)
+	{
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		long[] values = new long[fractions.length];
+		long seen = 0;
+		int bucket = 0;
+
+		for(int f = 0; f < fractions.length; f++)
+		{
+			long rank = (long)Math.ceil(fractions[f] * count);
+
+			while(bucket < BUCKETS && (seen + snapshot[bucket] < rank || snapshot[bucket] == 0))
+			{
+				seen += snapshot[bucket];
+				bucket++;
+			}
+
+			values[f] = count == 0 || bucket == BUCKETS ? 0 : Math.min(midpoint(bucket), max());
+		}
+
+		return values;
+	}
+
+	static int index(long value)
+	{
+		if(value < 2 * HALF)
+		{
+			return (int)value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+
+		return HALF * shift + (int)(value >>> shift);
+	}
+
+	static long midpoint(int index)
+	{
+		if(index < 2 * HALF)
+		{
+			return index;
+		}
+
+		int shift = index / HALF - 1;
+		long lowest = (long)(index - HALF * shift) << shift;
+
+		return lowest + (1L << shift) / 2;
+	}
+}
@@ -0,0 +1,29 @@
+package rmi;
+
+/** Remote interface through which a skeleton's call metrics are read.
+
+	<p>
+	Every skeleton answers calls to this interface on its own address, in
+	addition to calls to its remote interface. A monitoring client reads the
+	metrics of a running skeleton with a stub created by
+	<code>Stub.create(Metrics.class, address)</code>. The metrics kept by the
+	stubs of one interface in the local process are returned as a
+	<code>Metrics</code> object by <code>Stub.getMetrics</code>.
+ */
+public interface Metrics
+{
+	/** Returns the statistics of every method of the remote interface.
+
+		@return One entry for each method, in no particular order.
+		@throws RMIException If the call cannot be completed.
+	 */
+	public MethodStatistics[] statistics() throws RMIException;
+
+	/** Returns the statistics as a human-readable table, one line per
+		method.
+
+		@return The table.
+		@throws RMIException If the call cannot be completed.
+	 */
+	public String report() throws RMIException;
+}
@@ -0,0 +1,55 @@
+//Codec encoding every value with Java serialization
+
+package rmi;
+
+import java.io.*;
+
+// Each value is written as the length of its serialized form followed by the
+// serialized bytes, so that an ObjectInputStream never reads past the value.
+class SerializationCodec extends Codec
+{
+	static final int ID = 2;
+	static final SerializationCodec INSTANCE = new SerializationCodec();
+
+	public int id()
+	{
+		return ID;
+	}
+
+	public void writeValue(DataOutputStream out, Object value) throws IOException
+	{
+		byte[] bytes = serialize(value);
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public Object readValue(DataInputStream in) throws IOException, ClassNotFoundException
+	{
+		int length = in.readInt();
+
+		Frame.checkArrayLength(in, length);
+
+		byte[] bytes = new byte[length];
+
+		in.readFully(bytes);
+		return deserialize(bytes);
+	}
+
+	static byte[] serialize(Object value) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+
+		oos.writeObject(value);
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+		return ois.readObject();
+	}
+}
@@ -3,6 +3,9 @@ package rmi;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /** RMI skeleton
 
@@ -25,17 +28,71 @@ import java.util.*;
     The skeleton's response to these exceptions can be customized by deriving
     a class from <code>Skeleton</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
+
+    <p>
+    Connections are persistent and multiplexed: stubs may send any number of
+    calls over one connection, without waiting for earlier calls to complete.
+    The skeleton runs the calls concurrently and answers each as soon as it
+    completes. A connection which stays idle for thirty seconds is closed by
+    the skeleton. When the skeleton is stopped, connections stop accepting
+    calls; idle connections are closed immediately and busy ones as soon as
+    their calls in progress complete. A skeleton may also be stopped with a
+    timeout, in which case <code>stop</code> waits for the calls in progress
+    to be answered, and for stubs to close their connections, before it
+    returns, so that a server may be restarted without losing calls.
+
+    <p>
+    The threads on which calls are run are chosen by the skeleton's
+    <code>ExecutorStrategy</code>. By default a new thread is started for each
+    call; a bounded pool or virtual threads may be selected with
+    <code>setExecutorStrategy</code>. Connections are read by the skeleton's
+    <code>Transport</code>. By default each connection is read on a thread of
+    its own; a non-blocking transport, reading all connections from a few
+    threads, may be selected with <code>setTransport</code>. Socket options,
+    buffering and the accept backlog are set with
+    <code>setTransportOptions</code>.
+
+    <p>
+    By default every call received is started. Limits on the number of calls
+    running and waiting may be set with <code>setAdmissionControl</code>, in
+    which case calls beyond the limits are rejected with an
+    <code>OverloadException</code>.
+
+    <p>
+    The skeleton keeps call counts, error counts, bytes transferred and
+    latency histograms for each method of its interface. They may be read
+    locally with <code>getMetrics</code>, written to a file with
+    <code>dumpMetrics</code>, or read remotely through the
+    <code>Metrics</code> interface, which every skeleton also serves.
 */
 public class Skeleton<T>
 {
+	// Skeletons running in this JVM, by the address they listen on, a
+	// wildcard address being recorded as the port alone. Stubs for these
+	// addresses call the skeletons directly.
+	private static final Map<InetSocketAddress, Skeleton<?>> running = new ConcurrentHashMap<InetSocketAddress, Skeleton<?>>();
+
 	private T server;
     private Class<T> c;
+	private DispatchTable table;
 	private InetSocketAddress address;
 	private boolean threadStarted;	
     
-    private ServerSocket sock;
-    private Listener tlistener;
+    private Transport.Endpoint endpoint;
 	private Integer port;
+	private ExecutorStrategy strategy = ExecutorStrategy.threadPerCall();
+	private Transport transport = Transport.blocking();
+	private TransportOptions options = TransportOptions.defaults();
+	private AdmissionControl admission = AdmissionControl.unlimited();
+	private MetricsRegistry metrics;
+	private Dispatcher<T> dispatcher;
+	private boolean inProcessCalls = false;
+	private boolean stackTraces = false;
+	// Dispatcher serving calls from stubs in this JVM while the skeleton
+	// accepts calls, or null.
+	private volatile Dispatcher<T> local;
+	private ExecutorService executor;
+	private final Set<ServerConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<ServerConnection, Boolean>());
     
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
@@ -79,8 +136,9 @@ public class Skeleton<T>
 			this.address = null;
 			this.server = server;
 			this.c = c;
-			this.sock = null;
-			this.tlistener = null;
+			this.table = DispatchTable.forInterface(c);
+			this.metrics = new MetricsRegistry(c, true);
+			this.endpoint = null;
 			this.port = -1;
 		}
 		catch(Exception e)
@@ -131,8 +189,9 @@ public class Skeleton<T>
 			this.address = address;
 			this.server = server;
 			this.c = c;
-			this.sock = null;
-			this.tlistener = null;
+			this.table = DispatchTable.forInterface(c);
+			this.metrics = new MetricsRegistry(c, true);
+			this.endpoint = null;
 			this.port = -1;
 		}
 		catch(Exception e)
@@ -210,29 +269,46 @@ public class Skeleton<T>
      */
     public synchronized void start() throws RMIException
     {		
-    	try
-        {
-    		if(threadStarted == false)
-    		{
-        		if(address == null)
-                {
-                    address = new InetSocketAddress(0);
-                }
-                
-        		this.sock = new ServerSocket();
-        		sock.bind(address);
-                
-                threadStarted = true;
-
-                tlistener = new Listener(sock, server, c, this);            
-                tlistener.start();
-				notifyAll();
-    		}
-    	}
-    	catch(Exception e)
-    	{    		
-			//System.out.println("Server side: Skeleton start() exception");
-    	}
+		if(threadStarted == true)
+		{
+			return;
+		}
+
+		if(address == null)
+		{
+			address = new InetSocketAddress(0);
+		}
+
+		// The listening socket is bound with address reuse, so that a
+		// skeleton stopped and started again binds its port at once.
+		try
+		{
+			executor = strategy.newExecutor("skeleton-" + c.getSimpleName());
+		}
+		catch(RuntimeException e)
+		{
+			throw new RMIException("Server side: unable to create executor", e);
+		}
+
+		try
+		{
+			dispatcher = new Dispatcher<T>(server, table, this, executor, admission);
+			endpoint = transport.open(address, dispatcher, strategy, options);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			executor.shutdown();
+			throw new RMIException("Server side: unable to listen on " + address, e);
+		}
+
+		address = endpoint.getAddress();
+		threadStarted = true;
+		if(inProcessCalls)
+		{
+			local = dispatcher;
+			running.put(key(address), this);
+		}
+		notifyAll();
     }
 
     /** Stops the skeleton server, if it is already running.
@@ -251,7 +327,8 @@ public class Skeleton<T>
     		if(threadStarted == true)
     		{    			
         		threadStarted = false;
-            	sock.close();
+				stopAccepting(false);
+				executor.shutdown();
             	this.stopped(null);
 				notifyAll();
     		}    		
@@ -261,15 +338,368 @@ public class Skeleton<T>
     		this.stopped(e);    		
     	}        
     }
+
+	/** Stops the skeleton server, waiting for the calls in progress to be
+		answered.
+
+		<p>
+		The skeleton stops accepting connections and calls at once, as with
+		<code>stop()</code>. The method then waits until every call received
+		has been answered, and every stub has closed its connection, or until
+		the timeout expires, and closes the connections still open. Calls still
+		running at that point run to completion, but their replies are lost.
+		Since stubs see their connections close before the method returns,
+		their next calls go to a new connection, and are not sent to a
+		connection about to be closed.
+		The method <code>stopped</code> is called before this method returns,
+		and the skeleton may then be restarted at once on the same address.
+
+		<p>
+		The lock on the <code>Skeleton</code> object is held while waiting.
+
+		@param timeout The longest time to wait for the calls in progress.
+		@param unit The unit of <code>timeout</code>.
+		@return <code>true</code> if every call was answered, or the skeleton
+				was not running; <code>false</code> if calls were still in
+				progress when the timeout expired or the thread was
+				interrupted.
+		@throws NullPointerException If <code>unit</code> is
+									 <code>null</code>.
+	 */
+	public synchronized boolean stop(long timeout, TimeUnit unit)
+	{
+		if(unit == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(threadStarted == false)
+		{
+			return true;
+		}
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		List<ServerConnection> open = Collections.emptyList();
+		boolean drained = false;
+
+		threadStarted = false;
+
+		try
+		{
+			open = stopAccepting(true);
+			drained = dispatcher.awaitIdle(deadline);
+			awaitClosed(deadline);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		// Connections whose calls were answered have closed themselves.
+		for(ServerConnection connection : open)
+		{
+			connection.close();
+		}
+
+		executor.shutdown();
+		this.stopped(null);
+		notifyAll();
+		return drained;
+	}
+
+	// Closes the listening socket and asks every connection to close once
+	// its calls in progress have been answered, returning the connections.
+	// The socket is closed first, so that no connection is accepted once the
+	// connections have been asked to close.
+	private List<ServerConnection> stopAccepting(boolean graceful) throws InterruptedException
+	{
+		running.remove(key(address), this);
+		local = null;
+		endpoint.close();
+
+		// Connections leave the set when they stop reading, possibly before
+		// their calls have been answered.
+		List<ServerConnection> open = new ArrayList<ServerConnection>(connections);
+
+		for(ServerConnection connection : open)
+		{
+			connection.shutdown(graceful);
+		}
+
+		return open;
+	}
+
+	// Waits until every connection has stopped reading, or until the
+	// deadline. Connections shut down gracefully stop once their stubs have
+	// closed them.
+	private void awaitClosed(long deadline) throws InterruptedException
+	{
+		synchronized(connections)
+		{
+			while(!connections.isEmpty())
+			{
+				long remaining = deadline - System.nanoTime();
+
+				if(remaining <= 0)
+				{
+					return;
+				}
+
+				TimeUnit.NANOSECONDS.timedWait(connections, remaining);
+			}
+		}
+	}
 	
+	private static InetSocketAddress key(InetSocketAddress address)
+	{
+		return address.getAddress() == null || address.getAddress().isAnyLocalAddress() ? new InetSocketAddress(address.getPort()) : address;
+	}
+
+	// Returns the skeleton running in this JVM at the given address, or null
+	// if there is none. A skeleton listening on all addresses is returned if
+	// the address is one of this host's.
+	static Skeleton<?> running(InetAddress address, int port, boolean isLocalHost)
+	{
+		Skeleton<?> skeleton = running.get(new InetSocketAddress(address != null ? address : InetAddress.getLoopbackAddress(), port));
+
+		if(skeleton == null && isLocalHost)
+		{
+			skeleton = running.get(new InetSocketAddress(port));
+		}
+
+		return skeleton;
+	}
+
+	// Runs a call from a stub in this JVM on the calling thread, with the
+	// caller's deadline if it has one, and returns the reply, or null if the
+	// call must be sent over a connection instead.
+	Frame callLocal(Frame call, Deadline deadline) throws InterruptedException
+	{
+		Dispatcher<T> current = local;
+
+		return current == null ? null : current.local(call, deadline);
+	}
+
+	/** Selects the strategy used to run calls.
+
+		<p>
+		The strategy takes effect the next time the skeleton is started.
+
+		@param strategy The executor strategy.
+		@throws NullPointerException If <code>strategy</code> is
+									 <code>null</code>.
+	 */
+	public synchronized void setExecutorStrategy(ExecutorStrategy strategy)
+	{
+		if(strategy == null)
+		{
+			throw new NullPointerException();
+		}
+
+		this.strategy = strategy;
+	}
+
+	// Getter method for the executor strategy
+	public synchronized ExecutorStrategy getExecutorStrategy()
+	{
+		return strategy;
+	}
+
+	/** Selects the transport on which calls are received.
+
+		<p>
+		The transport takes effect the next time the skeleton is started.
+
+		@param transport The transport.
+		@throws NullPointerException If <code>transport</code> is
+									 <code>null</code>.
+	 */
+	public synchronized void setTransport(Transport transport)
+	{
+		if(transport == null)
+		{
+			throw new NullPointerException();
+		}
+
+		this.transport = transport;
+	}
+
+	// Getter method for the transport
+	public synchronized Transport getTransport()
+	{
+		return transport;
+	}
+
+	/** Sets the limits on the calls the skeleton runs and holds at once.
+
+		<p>
+		The limits take effect the next time the skeleton is started.
+
+		@param admission The admission control policy.
+		@throws NullPointerException If <code>admission</code> is
+									 <code>null</code>.
+	 */
+	public synchronized void setAdmissionControl(AdmissionControl admission)
+	{
+		if(admission == null)
+		{
+			throw new NullPointerException();
+		}
+
+		this.admission = admission;
+	}
+
+	// Getter method for the admission control policy
+	public synchronized AdmissionControl getAdmissionControl()
+	{
+		return admission;
+	}
+
+	/** Sets the socket and buffering options of the connections the skeleton
+		accepts, and its accept backlog.
+
+		<p>
+		The options take effect the next time the skeleton is started.
+
+		@param options The transport options.
+		@throws NullPointerException If <code>options</code> is
+									 <code>null</code>.
+	 */
+	public synchronized void setTransportOptions(TransportOptions options)
+	{
+		if(options == null)
+		{
+			throw new NullPointerException();
+		}
+
+		this.options = options;
+	}
+
+	// Getter method for the transport options
+	public synchronized TransportOptions getTransportOptions()
+	{
+		return options;
+	}
+
+	/** Allows stubs in the same JVM to call the skeleton directly.
+
+		<p>
+		While a skeleton allowing in-process calls is running, stubs in the
+		same JVM for its address run their calls on the calling thread rather
+		than sending them over a connection. Arguments and results are still
+		encoded and decoded with the stub's codec, so that the server and the
+		caller each work on their own copies, exactly as across the network,
+		but the calls bypass the network stack, the skeleton's executor and
+		the thread hand-offs between them. The setting takes effect the next
+		time the skeleton is started.
+
+		<p>
+		A call with a deadline runs with the deadline attached to the calling
+		thread, so that the method and the calls it makes in turn are bounded
+		by it, but the caller cannot stop waiting for a method which is already
+		running. Under admission control a direct call takes a slot like any
+		other call, and the calling thread waits in the queue if none is free;
+		a call which is refused throws the same <code>OverloadException</code>
+		as over a connection, as does a call whose deadline passes while it
+		waits in the queue. One-way calls, asynchronous calls, batches and
+		calls streaming an argument or a result are still sent over a
+		connection. Calls made directly are recorded in the skeleton's metrics
+		and traces, and a graceful <code>stop</code> waits for them, but they
+		are not counted as connections.
+
+		@param enabled Whether stubs in the same JVM call the skeleton
+					   directly.
+	 */
+	public synchronized void setInProcessCalls(boolean enabled)
+	{
+		inProcessCalls = enabled;
+	}
+
+	// Getter method for in-process calls
+	public synchronized boolean getInProcessCalls()
+	{
+		return inProcessCalls;
+	}
+
+	/** Sends the stack traces of exceptions thrown by the server to callers.
+
+		<p>
+		By default an exception thrown by a remote method reaches the caller
+		with its type, message and cause, and with a stack trace leading to the
+		call of the stub. Sending the server's stack trace as well makes
+		failures easier to diagnose, at the cost of a larger and slower reply
+		on every call which throws. Exceptions with state other than their
+		message and cause are always sent in their serialized form, which
+		includes the stack trace. The setting takes effect the next time the
+		skeleton is started, and applies to calls using the binary codec.
+
+		@param enabled Whether exceptions are sent with their stack traces.
+	 */
+	public synchronized void setStackTraces(boolean enabled)
+	{
+		stackTraces = enabled;
+	}
+
+	// Getter method for stack traces
+	public synchronized boolean getStackTraces()
+	{
+		return stackTraces;
+	}
+
+	/** Returns the metrics of the calls received by the skeleton.
+
+		<p>
+		The metrics are kept from the creation of the skeleton, across restarts.
+		They may also be read remotely, by calling the <code>Metrics</code>
+		interface on the skeleton's address.
+
+		@return The skeleton's metrics.
+	 */
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/** Writes a report of the skeleton's metrics to a file.
+
+		@param file The file, whose contents are replaced.
+		@throws IOException If the file cannot be written.
+	 */
+	public void dumpMetrics(File file) throws IOException
+	{
+		metrics.dump(file);
+	}
+
+	MetricsRegistry metrics()
+	{
+		return metrics;
+	}
+
+	// Dispatcher of the current or last run of the skeleton
+	synchronized Dispatcher<T> dispatcher()
+	{
+		return dispatcher;
+	}
+
+	// Registers a connection accepted by the transport
+	void connectionOpened(ServerConnection connection)
+	{
+		connections.add(connection);
+	}
+
+	// Removes a connection once the transport has stopped reading it
+	void connectionClosed(ServerConnection connection)
+	{
+		synchronized(connections)
+		{
+			connections.remove(connection);
+			connections.notifyAll();
+		}
+	}
+
 	// Getter method for Address
     public InetSocketAddress getAddress()
     {
-        if(sock != null && sock.isBound()) 
-        {
-            address =  new InetSocketAddress(sock.getInetAddress(), sock.getLocalPort());
-        }
-        
         return address;
     }
 	//Getter method for Port
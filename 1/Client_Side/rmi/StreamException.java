@@ -0,0 +1,33 @@
+package rmi;
+
+/** Exception thrown by the iterator of a streamed argument or result when
+	the stream fails.
+
+	<p>
+	A parameter or return type of a remote method declared as
+	<code>java.util.Iterator</code> is streamed: its elements are sent after
+	the call or the reply in bounded chunks, and the receiver reads the first
+	elements while the sender is still producing the rest. A method may have
+	one streamed parameter, which it may read only until it returns. The
+	iterator returned by a stub for a streamed result also implements
+	<code>java.io.Closeable</code>, and closing it before the end stops the
+	skeleton from sending the remaining elements. Streamed methods cannot be
+	called asynchronously or in a batch.
+
+	<p>
+	A stream fails when the connection carrying it fails, or when the
+	iterator producing its elements throws an exception. In the first case the
+	cause is an <code>RMIException</code>. In the second, unchecked exceptions
+	thrown by the producer are thrown by the receiving iterator as they are,
+	and checked ones are the cause of this exception.
+ */
+public class StreamException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Creates a <code>StreamException</code> with the given cause. */
+	public StreamException(Throwable cause)
+	{
+		super(cause);
+	}
+}
@@ -0,0 +1,211 @@
+//Rolling file to which the spans of sampled traces are written
+
+package rmi;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Spans are handed to a daemon thread which formats and writes them, so that
+// a traced call only pays for queuing its record. Spans arriving while the
+// queue is full are dropped and counted. When the file exceeds its size limit
+// it is renamed with the suffix .1, earlier files being shifted to .2 and so
+// on, and the oldest beyond the file limit deleted.
+//
+// Each span is one line of tab-separated fields:
+//
+//     trace span parent kind name peer start duration queue decode execute encode error
+//
+// Identifiers are hexadecimal, and zero for no parent. The kind is C for a
+// call made by a stub, S for a call run by a skeleton, and L for a local span.
+// The start is in microseconds since the epoch, and the duration and phases in
+// nanoseconds, phases being -1 when not measured. Queue is the time a call
+// waited in the skeleton before it started, decode the time taken to decode
+// its arguments, execute the time taken by the method, and encode the time
+// taken to encode the reply.
+class TraceLog implements Runnable
+{
+	static final int QUEUE_SIZE = 8192;
+
+	private final File file;
+	private final long maxBytes;
+	private final int maxFiles;
+	private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private final AtomicLong dropped = new AtomicLong();
+	private long written = 0;
+	private Writer out;
+
+	TraceLog(File file, long maxBytes, int maxFiles) throws IOException
+	{
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+
+		open();
+
+		writer = new Thread(this, "rmi-trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	void add(Record record)
+	{
+		if(!queue.offer(record))
+		{
+			dropped.incrementAndGet();
+		}
+	}
+
+	long dropped()
+	{
+		return dropped.get();
+	}
+
+	// Writes the spans queued so far, and stops the writing thread.
+	void close()
+	{
+		closed = true;
+		writer.interrupt();
+
+		try
+		{
+			writer.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run()
+	{
+		try
+		{
+			while(true)
+			{
+				Record record;
+
+				try
+				{
+					record = closed ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+				}
+				catch(InterruptedException e)
+				{
+					continue;
+				}
+
+				if(record == null)
+				{
+					out.flush();
+
+					if(closed)
+					{
+						break;
+					}
+
+					continue;
+				}
+
+				String line = record.toString();
+
+				out.write(line);
+				written += line.length();
+
+				if(written >= maxBytes)
+				{
+					roll();
+				}
+				else if(queue.isEmpty())
+				{
+					out.flush();
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			// Tracing stops; calls are not affected.
+		}
+		finally
+		{
+			try
+			{
+				out.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+
+	private void open() throws IOException
+	{
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		written = file.length();
+	}
+
+	private void roll() throws IOException
+	{
+		out.close();
+
+		new File(file.getPath() + "." + maxFiles).delete();
+
+		for(int i = maxFiles - 1; i >= 1; i--)
+		{
+			File older = new File(file.getPath() + "." + i);
+
+			if(older.exists())
+			{
+				older.renameTo(new File(file.getPath() + "." + (i + 1)));
+			}
+		}
+
+		file.renameTo(new File(file.getPath() + ".1"));
+		open();
+	}
+
+	// One span, formatted by the writing thread.
+	static class Record
+	{
+		final long traceId;
+		final long spanId;
+		final long parentId;
+		final char kind;
+		final String name;
+		final String peer;
+		final long startMicros;
+		final long duration;
+		final long queue;
+		final long decode;
+		final long execute;
+		final long encode;
+		final boolean error;
+
+		Record(long traceId, long spanId, long parentId, char kind, String name, String peer, long startMicros, long duration, long queue, long decode, long execute, long encode, boolean error)
+		{
+			this.traceId = traceId;
+			this.spanId = spanId;
+			this.parentId = parentId;
+			this.kind = kind;
+			this.name = name;
+			this.peer = peer;
+			this.startMicros = startMicros;
+			this.duration = duration;
+			this.queue = queue;
+			this.decode = decode;
+			this.execute = execute;
+			this.encode = encode;
+			this.error = error;
+		}
+
+		@Override
+		public String toString()
+		{
+			return Long.toHexString(traceId) + '\t' + Long.toHexString(spanId) + '\t' + Long.toHexString(parentId) + '\t'
+				+ kind + '\t' + name + '\t' + (peer == null ? "-" : peer) + '\t' + startMicros + '\t' + duration + '\t'
+				+ queue + '\t' + decode + '\t' + execute + '\t' + encode + '\t' + (error ? 1 : 0) + '\n';
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Sampled tracing of remote calls.
+
+	<p>
+	A trace follows one operation across processes. Every remote call made as
+	part of a trace is a <em>span</em>, identified by a span ID and by the ID of
+	the span it was made from. The trace and span IDs travel in the header of
+	each call, and the skeleton attaches them to the thread running the method,
+	so that calls made by the method, to other skeletons, are recorded as
+	children of the call which caused them. A trace may be started explicitly
+	with <code>startSpan</code>; a remote call made outside any trace starts a
+	new trace with the probability given by the sample rate.
+
+	<p>
+	When tracing is enabled, the spans of sampled traces observed by this
+	process are written to a rolling log file. Stubs record the duration of
+	each call, and skeletons additionally the time each call spent waiting to
+	start, decoding its arguments, executing, and encoding its reply. Tracing
+	is disabled by default; skeletons still pass trace IDs on to the calls made
+	by their methods, so that traces remain connected through processes which
+	do not record them.
+
+	<p>
+	The logs of all processes involved may be analyzed offline with
+	<code>TraceAnalyzer</code>, which reconstructs each trace and its critical
+	path.
+ */
+public final class Tracer
+{
+	/** Default size in bytes beyond which the log file is rolled over. */
+	public static final long DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+	/** Default number of rolled-over log files kept. */
+	public static final int DEFAULT_FILES = 4;
+
+	private static volatile TraceLog log;
+	private static volatile double sampleRate = 0;
+
+	// Offset from System.nanoTime to the time since the epoch, so that span
+	// start times have sub-millisecond resolution.
+	private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+	private Tracer()
+	{
+	}
+
+	/** Enables tracing, with the default log size limits.
+
+		@param file The log file. Spans are appended to it if it exists.
+		@param sampleRate The fraction of operations outside any trace which
+						  start a new trace, between 0 and 1.
+		@throws IOException If the log file cannot be opened.
+	 */
+	public static void enable(File file, double sampleRate) throws IOException
+	{
+		enable(file, sampleRate, DEFAULT_FILE_SIZE, DEFAULT_FILES);
+	}
+
+	/** Enables tracing.
+
+		<p>
+		If tracing is already enabled, the previous log is closed first.
+
+		@param file The log file. Spans are appended to it if it exists.
+		@param sampleRate The fraction of operations outside any trace which
+						  start a new trace, between 0 and 1.
+		@param maxFileSize The size in bytes beyond which the log file is
+						   renamed with the suffix <code>.1</code> and a new
+						   file started.
+		@param maxFiles The number of rolled-over files kept.
+		@throws IOException If the log file cannot be opened.
+		@throws IllegalArgumentException If <code>sampleRate</code> is not
+										 between 0 and 1, or a limit is not
+										 positive.
+		@throws NullPointerException If <code>file</code> is
+									 <code>null</code>.
+	 */
+	public static synchronized void enable(File file, double sampleRate, long maxFileSize, int maxFiles) throws IOException
+	{
+		if(file == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(!(sampleRate >= 0 && sampleRate <= 1) || maxFileSize <= 0 || maxFiles <= 0)
+		{
+			throw new IllegalArgumentException("invalid tracing parameters");
+		}
+
+		disable();
+
+		log = new TraceLog(file, maxFileSize, maxFiles);
+		Tracer.sampleRate = sampleRate;
+	}
+
+	/** Disables tracing, writing the spans recorded so far to the log. */
+	public static synchronized void disable()
+	{
+		TraceLog previous = log;
+
+		sampleRate = 0;
+		log = null;
+
+		if(previous != null)
+		{
+			previous.close();
+		}
+	}
+
+	/** Checks whether tracing is enabled. */
+	public static boolean isEnabled()
+	{
+		return log != null;
+	}
+
+	/** Returns the number of spans dropped because they were recorded faster
+		than they could be written. */
+	public static long droppedSpans()
+	{
+		TraceLog current = log;
+
+		return current == null ? 0 : current.dropped();
+	}
+
+	/** Starts a local span, for an operation which makes remote calls.
+
+		<p>
+		Within a trace, the span is a child of the current span. Outside any
+		trace, a new trace is started with the probability given by the sample
+		rate. Until the span is closed, it is the parent of the remote calls
+		made by the current thread. If the trace is not sampled, the span
+		records nothing.
+
+		@param name Name of the operation.
+		@return The span, to be closed when the operation completes, normally
+				with a <code>try</code>-with-resources statement.
+	 */
+	public static Span startSpan(String name)
+	{
+		TraceContext parent = TraceContext.current();
+		TraceContext context = parent != null ? parent.child() : (sample() ? TraceContext.root() : null);
+
+		return new Span(name, context, parent);
+	}
+
+	// Whether a call made outside any trace starts one.
+	static boolean sample()
+	{
+		double rate = sampleRate;
+
+		return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+	}
+
+	// Records the span of a call made by a stub, or of a local span.
+	static void recordClient(TraceContext span, long parentId, char kind, String name, String peer, long start, long end, boolean error)
+	{
+		TraceLog current = log;
+
+		if(current != null)
+		{
+			current.add(new TraceLog.Record(span.traceId, span.spanId, parentId, kind, name, peer, epochMicros(start), end - start, -1, -1, -1, -1, error));
+		}
+	}
+
+	// Records the span of a call run by a skeleton: received at the first
+	// time, started at the second, its arguments decoded at the third, the
+	// method returned at the fourth and the reply encoded at the last.
+	static void recordServer(TraceContext span, long parentId, String name, long received, long started, long decoded, long executed, long encoded, boolean error)
+	{
+		TraceLog current = log;
+
+		if(current != null)
+		{
+			current.add(new TraceLog.Record(span.traceId, span.spanId, parentId, 'S', name, null, epochMicros(received), encoded - received,
+											started - received, decoded - started, executed - decoded, encoded - executed, error));
+		}
+	}
+
+	// Name under which the calls of a method are recorded.
+	static String spanName(Method method)
+	{
+		return method == null ? "?" : method.getDeclaringClass().getSimpleName() + "." + method.getName();
+	}
+
+	private static long epochMicros(long nanoTime)
+	{
+		return (EPOCH_OFFSET_NANOS + nanoTime) / 1000;
+	}
+
+	/** Span of a local operation, started with <code>startSpan</code>. */
+	public static final class Span implements AutoCloseable
+	{
+		private final String name;
+		private final TraceContext context;
+		private final TraceContext previous;
+		private final long parentId;
+		private final long start = System.nanoTime();
+		private boolean error = false;
+		private boolean closed = false;
+
+		private Span(String name, TraceContext context, TraceContext parent)
+		{
+			this.name = name;
+			this.context = context;
+			this.parentId = parent == null ? 0 : parent.spanId;
+			this.previous = context == null ? null : context.attach();
+		}
+
+		/** Checks whether the span belongs to a sampled trace. */
+		public boolean isSampled()
+		{
+			return context != null;
+		}
+
+		/** Returns the trace ID in hexadecimal, or <code>null</code> if the
+			trace is not sampled. */
+		public String getTraceId()
+		{
+			return context == null ? null : Long.toHexString(context.traceId);
+		}
+
+		/** Marks the operation as failed. */
+		public void setError()
+		{
+			error = true;
+		}
+
+		/** Ends the span, and restores the span current when it was
+			started. */
+		@Override
+		public void close()
+		{
+			if(closed || context == null)
+			{
+				return;
+			}
+
+			closed = true;
+			TraceContext.restore(previous);
+			recordClient(context, parentId, 'L', name, null, start, System.nanoTime(), error);
+		}
+	}
+}
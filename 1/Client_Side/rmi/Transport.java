@@ -0,0 +1,133 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+
+/** Network transport by which a skeleton receives calls.
+
+	<p>
+	Each time a skeleton is started it asks its transport to listen on the
+	skeleton's address. The transport accepts connections from stubs, reads
+	the calls arriving on them, and hands each call to the skeleton's executor.
+	Replies are written back by the thread which ran the call. Two transports
+	are provided:
+
+	<ul>
+	<li><code>blocking</code> accepts connections on a listening thread and
+		reads each connection on a thread of its own, created by the skeleton's
+		<code>ExecutorStrategy</code>. This is the default.</li>
+	<li><code>nio</code> accepts connections on one or more acceptor threads
+		and reads all connections with non-blocking channels from a small,
+		fixed number of event loop threads, each running a selector. A
+		connection therefore costs no thread while it is idle, and a skeleton
+		can hold a very large number of mostly idle connections. Since calls
+		are still run by the skeleton's executor, this transport is best
+		combined with a bounded pool.</li>
+	<li><code>unixDomain</code> is the non-blocking transport, accepting
+		connections through a Unix-domain socket file as well as on the
+		skeleton's address. Stubs on the same host reach the skeleton through
+		the file, with <code>Stub.withUnixDomainSocket</code>, bypassing the
+		TCP stack; remote stubs use the address as usual. Unix-domain sockets
+		require Java 16.</li>
+	</ul>
+
+	<p>
+	All transports speak the same protocol, so stubs need not know which
+	transport a skeleton uses.
+ */
+public abstract class Transport
+{
+	// Transports depend on the internals of the library, so only the
+	// transports provided here may be used.
+	Transport()
+	{
+	}
+
+	// Binds to the given address and starts accepting connections, whose
+	// calls are handed to the dispatcher. Sockets are configured with the
+	// given options.
+	abstract Endpoint open(InetSocketAddress address, Dispatcher<?> dispatcher, ExecutorStrategy strategy, TransportOptions options) throws IOException;
+
+	/** Returns the transport which reads each connection on a thread of its
+		own. */
+	public static Transport blocking()
+	{
+		return BlockingTransport.INSTANCE;
+	}
+
+	/** Returns a transport which reads connections with non-blocking
+		channels, using one acceptor thread and one event loop thread for each
+		available processor, up to four. */
+	public static Transport nio()
+	{
+		return nio(1, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+	}
+
+	/** Returns a transport which reads connections with non-blocking
+		channels.
+
+		@param acceptors The number of threads accepting connections.
+		@param eventLoops The number of threads reading and writing
+						  connections.
+		@throws IllegalArgumentException If either number is not positive.
+	 */
+	public static Transport nio(int acceptors, int eventLoops)
+	{
+		if(acceptors <= 0 || eventLoops <= 0)
+		{
+			throw new IllegalArgumentException("thread counts must be positive");
+		}
+
+		return new NioTransport(acceptors, eventLoops);
+	}
+
+	/** Returns a transport which reads connections with non-blocking
+		channels, and accepts connections through the given Unix-domain socket
+		file as well as on the skeleton's address. A file left at the path by
+		an earlier run is replaced, and the file is deleted when the skeleton
+		stops.
+
+		@param file The path of the socket file.
+		@throws NullPointerException If <code>file</code> is
+									 <code>null</code>.
+		@throws UnsupportedOperationException If the runtime does not support
+											  Unix-domain sockets.
+	 */
+	public static Transport unixDomain(Path file)
+	{
+		if(file == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(unixDomainSupported() == false)
+		{
+			throw new UnsupportedOperationException("Unix-domain sockets not supported by this runtime");
+		}
+
+		return new NioTransport(1, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), file);
+	}
+
+	/** Tells whether the runtime supports Unix-domain sockets, which are
+		available from Java 16.
+
+		@return <code>true</code> if <code>unixDomain</code> may be used.
+	 */
+	public static boolean unixDomainSupported()
+	{
+		return UnixDomain.isSupported();
+	}
+
+	// A listening address opened by a transport.
+	interface Endpoint
+	{
+		// Address to which the endpoint is bound.
+		InetSocketAddress getAddress();
+
+		// Stops accepting connections, and returns once no further connection
+		// can be accepted. Connections already accepted are shut down by the
+		// skeleton.
+		void close() throws InterruptedException;
+	}
+}
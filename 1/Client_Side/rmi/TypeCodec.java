@@ -0,0 +1,39 @@
+package rmi;
+
+import java.io.*;
+
+/** Hand-written encoding of one type for the binary codec.
+
+    <p>
+    Types which are passed to or returned from remote methods frequently can
+    be given a compact encoding by registering a <code>TypeCodec</code> with
+    <code>BinaryCodec.register</code>. Values of the type are then written as
+    the class name followed by whatever <code>write</code> writes. The class is
+    initialized on the receiving side before <code>read</code> is called, so a
+    type may register its codec in its own static initializer.
+
+    @param <T> The type encoded.
+ */
+public interface TypeCodec<T>
+{
+    /** Encodes a value.
+
+        @param value The value, which is never <code>null</code>.
+        @param out Stream to which the value is written.
+        @param codec Codec which may be used to write nested values.
+        @throws IOException If the value cannot be written.
+     */
+    void write(T value, DataOutputStream out, Codec codec) throws IOException;
+
+    /** Decodes a value written by <code>write</code>.
+
+        @param in Stream from which the value is read.
+        @param codec Codec which may be used to read nested values.
+        @return The value.
+        @throws IOException If the value cannot be read.
+        @throws ClassNotFoundException If the class of a nested value cannot
+                                       be found.
+     */
+    T read(DataInputStream in, Codec codec)
+        throws IOException, ClassNotFoundException;
+}
@@ -8,6 +8,28 @@ import test.*;
     Tests run are:
     <ul>
     <li>{@link rmi.SampleUnitTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.MultiplexTest}</li>
+    <li>{@link rmi.DispatchTableTest}</li>
+    <li>{@link rmi.CodecTest}</li>
+    <li>{@link rmi.NioTransportTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.StreamingTest}</li>
+    <li>{@link rmi.DeadlineTest}</li>
+    <li>{@link rmi.AdmissionControlTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link rmi.TracingTest}</li>
+    <li>{@link rmi.ResultCacheTest}</li>
+    <li>{@link rmi.ReplicatedStubTest}</li>
+    <li>{@link rmi.BalancedStubTest}</li>
+    <li>{@link rmi.DrainTest}</li>
+    <li>{@link rmi.OneWayTest}</li>
+    <li>{@link rmi.StreamedIteratorTest}</li>
+    <li>{@link rmi.TransportOptionsTest}</li>
+    <li>{@link rmi.CoLocatedTest}</li>
+    <li>{@link rmi.ExceptionEncodingTest}</li>
+    <li>{@link rmi.ExecutorStrategyTest}</li>
     </ul>
  */
 public class UnitTests
@@ -21,7 +43,29 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {rmi.SampleUnitTest.class};
+            new Class[] {rmi.SampleUnitTest.class,
+                         rmi.ConnectionPoolTest.class,
+                         rmi.MultiplexTest.class,
+                         rmi.DispatchTableTest.class,
+                         rmi.CodecTest.class,
+                         rmi.NioTransportTest.class,
+                         rmi.AsyncStubTest.class,
+                         rmi.BatchTest.class,
+                         rmi.StreamingTest.class,
+                         rmi.DeadlineTest.class,
+                         rmi.AdmissionControlTest.class,
+                         rmi.MetricsTest.class,
+                         rmi.TracingTest.class,
+                         rmi.ResultCacheTest.class,
+                         rmi.ReplicatedStubTest.class,
+                         rmi.BalancedStubTest.class,
+                         rmi.DrainTest.class,
+                         rmi.OneWayTest.class,
+                         rmi.StreamedIteratorTest.class,
+                         rmi.TransportOptionsTest.class,
+                         rmi.CoLocatedTest.class,
+                         rmi.ExceptionEncodingTest.class,
+                         rmi.ExecutorStrategyTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,173 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unit test for batches of calls.
+
+    <p>
+    Checks that the calls of a batch are run in the order in which they were
+    queued, that each call's result or exception is returned, that a parallel
+    batch runs its calls concurrently, and that a batch can be reused after it
+    has been executed.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batches of calls";
+
+    private Skeleton<BatchInterface>    skeleton;
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<BatchInterface>(BatchInterface.class,
+                                                new BatchServer(),
+                                                new InetSocketAddress(
+                                                    "127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        BatchInterface          stub = Stub.create(BatchInterface.class,
+                                                   skeleton.getAddress());
+        Batch<BatchInterface>   batch = new Batch<BatchInterface>(stub);
+        BatchInterface          queued = batch.queue();
+
+        task("running a batch in order");
+
+        try
+        {
+            queued.append("a");
+            queued.fail();
+            queued.append("b");
+
+            if(queued.log() != null)
+                throw new TestFailed("queued call returned a value");
+
+            if(batch.size() != 4)
+                throw new TestFailed("batch has " + batch.size() + " calls");
+
+            List<Batch.Result>  results = batch.execute();
+
+            if(results.size() != 4)
+                throw new TestFailed("batch returned " + results.size() +
+                                     " results");
+
+            if(!(results.get(1).getException() instanceof
+                 IllegalStateException))
+            {
+                throw new TestFailed("exception not returned");
+            }
+
+            if(results.get(0).isException() || results.get(2).isException())
+                throw new TestFailed("call failed");
+
+            if(!"ab".equals(results.get(3).getValue()))
+                throw new TestFailed("calls not run in order: " +
+                                     results.get(3).getValue());
+
+            task("running a batch in parallel");
+
+            if(batch.size() != 0)
+                throw new TestFailed("executed batch not emptied");
+
+            queued.meet();
+            queued.meet();
+
+            results = batch.executeParallel();
+
+            for(Batch.Result result : results)
+            {
+                if(!Boolean.TRUE.equals(result.get()))
+                    throw new TestFailed("parallel calls did not run " +
+                                         "concurrently");
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("batch failed", t);
+        }
+
+        task();
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface BatchInterface
+    {
+        public void append(String value) throws RMIException;
+        public String log() throws RMIException;
+        public void fail() throws RMIException;
+        public boolean meet() throws RMIException;
+    }
+
+    private static class BatchServer implements BatchInterface
+    {
+        private final StringBuffer      log = new StringBuffer();
+        private final CountDownLatch    meeting = new CountDownLatch(2);
+
+        @Override
+        public void append(String value)
+        {
+            log.append(value);
+        }
+
+        @Override
+        public String log()
+        {
+            return log.toString();
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+
+        // Returns true once two calls have met, or false if no other call
+        // arrives within ten seconds.
+        @Override
+        public boolean meet()
+        {
+            meeting.countDown();
+
+            try
+            {
+                return meeting.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                return false;
+            }
+        }
+    }
+}
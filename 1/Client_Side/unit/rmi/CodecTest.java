@@ -0,0 +1,196 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test for the binary codec.
+
+    <p>
+    Checks that values of every type with a dedicated encoding, values of
+    types with a registered <code>TypeCodec</code>, stubs, and values which
+    fall back to Java serialization are decoded to values equal to those
+    encoded. Also checks that strings and small integers are encoded
+    compactly.
+ */
+public class CodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking binary codec";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Codec       codec = Codec.binary();
+
+        task("checking primitive values and strings");
+
+        Object[]    values =
+            new Object[] {null, true, false, (byte)-3, (short)1000, 'x', 0, -1,
+                          Integer.MIN_VALUE, Long.MAX_VALUE, 1.5f, -2.25,
+                          "", "path/\u00e9\u4e2d"};
+
+        for(Object value : values)
+            check(codec, value);
+
+        task("checking arrays");
+
+        byte[]      bytes = (byte[])roundTrip(codec, new byte[] {1, 2, 3});
+
+        if(!Arrays.equals(bytes, new byte[] {1, 2, 3}))
+            throw new TestFailed("byte array decoded incorrectly");
+
+        String[]    strings = (String[])roundTrip(codec,
+                                                  new String[] {"a", null});
+
+        if(!Arrays.equals(strings, new String[] {"a", null}))
+            throw new TestFailed("string array decoded incorrectly");
+
+        task("checking values with a registered encoding");
+
+        check(codec, new Point(3, -4));
+
+        if(size(codec, new Point(3, -4)) >= size(Codec.serialization(),
+                                                 new Point(3, -4)))
+        {
+            throw new TestFailed("registered encoding not used");
+        }
+
+        task("checking values encoded with Java serialization");
+
+        check(codec, new ArrayList<String>(Arrays.asList("a", "b")));
+        check(codec, new IllegalStateException("message").getMessage());
+
+        task("checking stubs");
+
+        InetSocketAddress   address = new InetSocketAddress("127.0.0.1", 7002);
+        Object              stub = Stub.create(PointInterface.class, address);
+        Object              decoded = roundTrip(codec, stub);
+
+        if(!(decoded instanceof PointInterface) || !stub.equals(decoded))
+            throw new TestFailed("stub decoded incorrectly");
+
+        task("checking compactness");
+
+        if(size(codec, 5) != 2)
+            throw new TestFailed("small integer takes " + size(codec, 5) +
+                                 " bytes");
+
+        if(size(codec, "abc") != 5)
+            throw new TestFailed("short string takes " + size(codec, "abc") +
+                                 " bytes");
+
+        task();
+    }
+
+    private void check(Codec codec, Object value) throws TestFailed
+    {
+        Object  decoded = roundTrip(codec, value);
+
+        if(value == null ? decoded != null : !value.equals(decoded))
+            throw new TestFailed(value + " decoded as " + decoded);
+    }
+
+    private Object roundTrip(Codec codec, Object value) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+            codec.writeValue(new DataOutputStream(bytes), value);
+
+            DataInputStream         in =
+                new DataInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray()));
+            Object                  decoded = codec.readValue(in);
+
+            if(in.read() != -1)
+                throw new TestFailed("bytes left after decoding " + value);
+
+            return decoded;
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode " + value, t);
+        }
+    }
+
+    private int size(Codec codec, Object value) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+            codec.writeValue(new DataOutputStream(bytes), value);
+            return bytes.size();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode " + value, e);
+        }
+    }
+
+    /** Serializable type with a registered binary encoding. */
+    public static class Point implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        static
+        {
+            BinaryCodec.register(Point.class, new TypeCodec<Point>()
+            {
+                @Override
+                public void write(Point value, DataOutputStream out,
+                                  Codec codec) throws IOException
+                {
+                    out.writeInt(value.x);
+                    out.writeInt(value.y);
+                }
+
+                @Override
+                public Point read(DataInputStream in, Codec codec)
+                    throws IOException
+                {
+                    return new Point(in.readInt(), in.readInt());
+                }
+            });
+        }
+
+        private final int   x;
+        private final int   y;
+
+        Point(int x, int y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Point && ((Point)other).x == x &&
+                   ((Point)other).y == y;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * x + y;
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface PointInterface
+    {
+        public Point get() throws RMIException;
+    }
+}
@@ -0,0 +1,251 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Unit test for call deadlines.
+
+    <p>
+    Checks that a call through a stub with a timeout, or made while a deadline
+    is attached to the calling thread, fails once the deadline passes, that
+    the connection remains usable afterwards, that the timeout is not carried
+    by a serialized stub, and that the time remaining is propagated to calls
+    made by the remote method.
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+
+    private Skeleton<DeadlineInterface> skeleton;
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<DeadlineInterface>(DeadlineInterface.class,
+                                                   new DeadlineServer(),
+                                                   new InetSocketAddress(
+                                                       "127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        DeadlineInterface   stub = Stub.create(DeadlineInterface.class,
+                                               skeleton.getAddress());
+        DeadlineInterface   bounded = Stub.withTimeout(stub, 200,
+                                                       TimeUnit.MILLISECONDS);
+
+        task("timing out a call through a stub with a timeout");
+
+        expectTimeout(bounded, 200);
+
+        try
+        {
+            if(bounded.remaining() <= 0)
+                throw new TestFailed("timeout not sent with call");
+
+            if(stub.remaining() != -1)
+                throw new TestFailed("call without timeout has a deadline");
+
+            task("leaving the timeout behind when a stub is serialized");
+
+            if(serialized(bounded).remaining() != -1)
+                throw new TestFailed("timeout carried by serialized stub");
+
+            task("timing out a call made under a deadline");
+
+            Deadline.Scope  scope = Deadline.after(200, TimeUnit.MILLISECONDS)
+                                            .attach();
+
+            try
+            {
+                expectTimeout(stub, 200);
+
+                task("failing a call made after the deadline");
+
+                long    start = System.nanoTime();
+
+                expectTimeout(stub, 0);
+
+                if(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(
+                                                   100))
+                {
+                    throw new TestFailed("expired call was not failed at once");
+                }
+            }
+            finally
+            {
+                scope.close();
+            }
+
+            if(Deadline.current() != null)
+                throw new TestFailed("deadline not detached");
+
+            task("propagating the deadline to nested calls");
+
+            scope = Deadline.after(5, TimeUnit.SECONDS).attach();
+
+            try
+            {
+                long    remaining = stub.relay(stub);
+
+                if(remaining <= 0 || remaining > 5000)
+                    throw new TestFailed("nested call received deadline of " +
+                                         remaining + " ms");
+            }
+            finally
+            {
+                scope.close();
+            }
+
+            if(stub.relay(stub) != -1)
+                throw new TestFailed("nested call without deadline has one");
+
+            task("timing out an asynchronous call");
+
+            AsyncDeadlineInterface  async =
+                Stub.createAsync(AsyncDeadlineInterface.class, bounded);
+
+            try
+            {
+                async.sleep(5000).get(2, TimeUnit.SECONDS);
+                throw new TestFailed("asynchronous call did not time out");
+            }
+            catch(ExecutionException e)
+            {
+                if(!(e.getCause() instanceof RMIException) ||
+                   !(e.getCause().getCause() instanceof SocketTimeoutException))
+                {
+                    throw new TestFailed("unexpected failure", e.getCause());
+                }
+            }
+            catch(TimeoutException e)
+            {
+                throw new TestFailed("asynchronous call did not time out");
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    // Makes a call which should time out after about the given time, and
+    // checks that the connection can still be used afterwards.
+    private void expectTimeout(DeadlineInterface stub, long timeout)
+        throws TestFailed
+    {
+        long        start = System.nanoTime();
+
+        try
+        {
+            stub.sleep(5000);
+            throw new TestFailed("call did not time out");
+        }
+        catch(RMIException e)
+        {
+            if(!(e.getCause() instanceof SocketTimeoutException))
+                throw new TestFailed("unexpected failure", e);
+        }
+
+        long        elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() -
+                                                            start);
+
+        if(elapsed < timeout - 20 || elapsed > timeout + 2000)
+            throw new TestFailed("call timed out after " + elapsed + " ms");
+    }
+
+    // Returns a copy of a stub made by serializing it.
+    private DeadlineInterface serialized(DeadlineInterface stub)
+        throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        ObjectOutputStream      out = new ObjectOutputStream(bytes);
+
+        out.writeObject(stub);
+        out.close();
+
+        ObjectInputStream       in = new ObjectInputStream(
+                                    new ByteArrayInputStream(
+                                        bytes.toByteArray()));
+
+        return (DeadlineInterface)in.readObject();
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface DeadlineInterface
+    {
+        public void sleep(long millis) throws RMIException;
+        public long remaining() throws RMIException;
+        public long relay(DeadlineInterface next) throws RMIException;
+    }
+
+    /** Asynchronous counterpart of the remote interface. */
+    public interface AsyncDeadlineInterface
+    {
+        public CompletableFuture<Void> sleep(long millis);
+    }
+
+    private static class DeadlineServer implements DeadlineInterface
+    {
+        @Override
+        public void sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+
+        // Returns the time remaining before the deadline of the call, or -1
+        // if it has none.
+        @Override
+        public long remaining()
+        {
+            Deadline    deadline = Deadline.current();
+
+            return deadline == null ? -1 :
+                deadline.remaining(TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long relay(DeadlineInterface next) throws RMIException
+        {
+            return next.remaining();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Unit test for stopping skeletons gracefully.
+
+    <p>
+    Checks, with each transport, that a skeleton stopped with a timeout waits
+    for the calls in progress and answers them, that it gives up when the
+    timeout expires, that it can be restarted at once on the same port, and
+    that a skeleton which cannot bind its address fails to start.
+ */
+public class DrainTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking graceful skeleton stop";
+
+    private Skeleton<DrainInterface>    skeleton;
+    private Skeleton<DrainInterface>    conflicting;
+    private DrainServer                 server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            check(Transport.blocking());
+            check(Transport.nio(1, 1));
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    private void check(Transport transport) throws Throwable
+    {
+        task("draining calls in progress with the " + transport +
+             " transport");
+
+        start(transport, new InetSocketAddress("127.0.0.1", 0));
+
+        InetSocketAddress       address = skeleton.getAddress();
+        AsyncDrainInterface     async = Stub.createAsync(
+            AsyncDrainInterface.class,
+            Stub.create(DrainInterface.class, address));
+        CompletableFuture<String>   held = async.hold();
+
+        if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+            throw new TestFailed("call did not start");
+
+        Stopper                 stopper = new Stopper(10000);
+
+        stopper.start();
+        Thread.sleep(200);
+
+        if(!stopper.isAlive())
+            throw new TestFailed("stop returned with a call in progress");
+
+        server.release.release();
+        stopper.join(10000);
+
+        if(!stopper.drained)
+            throw new TestFailed("stop reported calls not answered");
+
+        if(!held.get(10, TimeUnit.SECONDS).equals("released"))
+            throw new TestFailed("wrong result");
+
+        task("restarting at once on the same port with the " + transport +
+             " transport");
+
+        DrainInterface          stub = Stub.create(DrainInterface.class,
+                                                   address);
+
+        for(int restart = 0; restart < 5; ++restart)
+        {
+            skeleton.start();
+
+            if(!stub.echo("restart").equals("restart"))
+                throw new TestFailed("wrong result");
+
+            if(!skeleton.stop(10, TimeUnit.SECONDS))
+                throw new TestFailed("idle skeleton not drained");
+        }
+
+        task("giving up when the timeout expires with the " + transport +
+             " transport");
+
+        skeleton.start();
+        held = async.hold();
+
+        if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+            throw new TestFailed("call did not start");
+
+        long                    start = System.nanoTime();
+
+        if(skeleton.stop(100, TimeUnit.MILLISECONDS))
+            throw new TestFailed("stop reported a running call answered");
+
+        if(System.nanoTime() - start > TimeUnit.SECONDS.toNanos(5))
+            throw new TestFailed("stop waited past its timeout");
+
+        server.release.release();
+
+        try
+        {
+            held.get(10, TimeUnit.SECONDS);
+            throw new TestFailed("call answered after its connection closed");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof RMIException))
+                throw new TestFailed("unexpected failure", e.getCause());
+        }
+
+        task("failing to start on an address in use with the " + transport +
+             " transport");
+
+        skeleton.start();
+        conflicting = new Skeleton<DrainInterface>(DrainInterface.class,
+                                                   new DrainServer(),
+                                                   address);
+        conflicting.setTransport(transport);
+
+        try
+        {
+            conflicting.start();
+            throw new TestFailed("skeleton started on an address in use");
+        }
+        catch(RMIException e)
+        {
+        }
+
+        skeleton.stop();
+    }
+
+    // Creates and starts a skeleton with the given transport.
+    private void start(Transport transport, InetSocketAddress address)
+        throws RMIException
+    {
+        server = new DrainServer();
+        skeleton = new Skeleton<DrainInterface>(DrainInterface.class, server,
+                                                address);
+        skeleton.setTransport(transport);
+        skeleton.start();
+    }
+
+    /** Stops the test skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.release(100);
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(conflicting != null)
+            conflicting.stop();
+    }
+
+    // Thread stopping the skeleton with a timeout.
+    private class Stopper extends Thread
+    {
+        private final long      timeout;
+        volatile boolean        drained = false;
+
+        Stopper(long timeout)
+        {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void run()
+        {
+            drained = skeleton.stop(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface DrainInterface
+    {
+        public String hold() throws RMIException;
+        public String echo(String value) throws RMIException;
+    }
+
+    /** Asynchronous counterpart of the remote interface. */
+    public interface AsyncDrainInterface
+    {
+        public CompletableFuture<String> hold();
+    }
+
+    // Server whose held calls wait until released.
+    private static class DrainServer implements DrainInterface
+    {
+        final Semaphore         entered = new Semaphore(0);
+        final Semaphore         release = new Semaphore(0);
+
+        @Override
+        public String hold()
+        {
+            entered.release();
+
+            try
+            {
+                release.tryAcquire(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+
+            return "released";
+        }
+
+        @Override
+        public String echo(String value)
+        {
+            return value;
+        }
+    }
+}
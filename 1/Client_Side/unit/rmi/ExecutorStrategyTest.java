@@ -0,0 +1,313 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unit test for executor strategies.
+
+    <p>
+    Checks that a bounded pool runs no more calls at once than it has threads,
+    that a pool with a bounded queue refuses calls beyond it with an
+    <code>OverloadException</code>, that virtual threads run calls where the
+    runtime supports them and are refused where it does not, and that the
+    executors of the strategies refuse tasks once shut down and terminate when
+    their tasks complete or are interrupted.
+ */
+public class ExecutorStrategyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking executor strategies";
+
+    private Skeleton<PoolInterface>     skeleton;
+    private PoolServer                  server;
+    private final List<ExecutorService> executors =
+        new ArrayList<ExecutorService>();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkBound();
+            checkQueueLimit();
+            checkVirtualThreads();
+            checkShutdown(ExecutorStrategy.threadPerCall());
+            checkShutdown(ExecutorStrategy.boundedPool(2));
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    private void checkBound() throws Throwable
+    {
+        task("running no more calls than the pool has threads");
+
+        PoolInterface           stub = start(ExecutorStrategy.boundedPool(2));
+        AsyncPoolInterface      async =
+            Stub.createAsync(AsyncPoolInterface.class, stub);
+        List<CompletableFuture<Void>> calls =
+            new ArrayList<CompletableFuture<Void>>();
+
+        for(int call = 0; call < 5; ++call)
+            calls.add(async.block());
+
+        if(!server.entered.tryAcquire(2, 10, TimeUnit.SECONDS))
+            throw new TestFailed("pooled calls did not start");
+
+        if(server.entered.tryAcquire(300, TimeUnit.MILLISECONDS))
+            throw new TestFailed("call beyond the pool size was started");
+
+        server.release.release(5);
+
+        for(CompletableFuture<Void> call : calls)
+            call.get(10, TimeUnit.SECONDS);
+
+        if(server.maximum != 2)
+            throw new TestFailed(server.maximum + " calls ran at once");
+
+        skeleton.stop();
+    }
+
+    private void checkQueueLimit() throws Throwable
+    {
+        task("refusing calls beyond the queue of the pool");
+
+        PoolInterface           stub =
+            start(ExecutorStrategy.boundedPool(1, 0));
+        AsyncPoolInterface      async =
+            Stub.createAsync(AsyncPoolInterface.class, stub);
+        CompletableFuture<Void> first = async.block();
+
+        if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+            throw new TestFailed("pooled call did not start");
+
+        try
+        {
+            stub.block();
+            throw new TestFailed("call beyond the queue was accepted");
+        }
+        catch(OverloadException e)
+        {
+        }
+
+        server.release.release();
+        first.get(10, TimeUnit.SECONDS);
+
+        skeleton.stop();
+    }
+
+    private void checkVirtualThreads() throws Throwable
+    {
+        task("running calls on virtual threads where they are supported");
+
+        if(!ExecutorStrategy.virtualThreadsSupported())
+        {
+            try
+            {
+                ExecutorStrategy.virtualThreads();
+                throw new TestFailed("virtual thread strategy created " +
+                                     "without runtime support");
+            }
+            catch(UnsupportedOperationException e)
+            {
+                return;
+            }
+        }
+
+        PoolInterface           stub =
+            start(ExecutorStrategy.virtualThreads());
+
+        if(!stub.virtual())
+            throw new TestFailed("call did not run on a virtual thread");
+
+        skeleton.stop();
+    }
+
+    // Checks that an executor of the strategy refuses tasks once shut down,
+    // terminates once its running task completes, and interrupts its tasks
+    // when shut down at once.
+    private void checkShutdown(ExecutorStrategy strategy) throws Throwable
+    {
+        task("shutting down the executor of the " + strategy + " strategy");
+
+        ExecutorService         executor = newExecutor(strategy);
+        Blocker                 blocker = new Blocker();
+
+        executor.execute(blocker);
+
+        if(!blocker.started.await(10, TimeUnit.SECONDS))
+            throw new TestFailed("task did not start");
+
+        executor.shutdown();
+
+        try
+        {
+            executor.execute(new Blocker());
+            throw new TestFailed("task accepted after shutdown");
+        }
+        catch(RejectedExecutionException e)
+        {
+        }
+
+        if(executor.isTerminated())
+            throw new TestFailed("executor terminated with a task running");
+
+        blocker.release.countDown();
+
+        if(!executor.awaitTermination(10, TimeUnit.SECONDS))
+            throw new TestFailed("executor did not terminate");
+
+        executor = newExecutor(strategy);
+        blocker = new Blocker();
+        executor.execute(blocker);
+
+        if(!blocker.started.await(10, TimeUnit.SECONDS))
+            throw new TestFailed("task did not start");
+
+        executor.shutdownNow();
+
+        if(!executor.awaitTermination(10, TimeUnit.SECONDS))
+            throw new TestFailed("executor did not interrupt its task");
+    }
+
+    private ExecutorService newExecutor(ExecutorStrategy strategy)
+    {
+        ExecutorService         executor =
+            strategy.newExecutor("executor-test");
+
+        executors.add(executor);
+        return executor;
+    }
+
+    // Starts a skeleton with the given strategy and returns a stub for it.
+    private PoolInterface start(ExecutorStrategy strategy) throws TestFailed
+    {
+        server = new PoolServer();
+        skeleton = new Skeleton<PoolInterface>(PoolInterface.class, server,
+                                               new InetSocketAddress(
+                                                   "127.0.0.1", 0));
+        skeleton.setExecutorStrategy(strategy);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return Stub.create(PoolInterface.class, skeleton.getAddress());
+    }
+
+    /** Stops the test skeleton and the executors created by the test. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.release(100);
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        for(ExecutorService executor : executors)
+            executor.shutdownNow();
+    }
+
+    /** Remote interface used by the test. */
+    public interface PoolInterface
+    {
+        public void block() throws RMIException;
+        public boolean virtual() throws RMIException;
+    }
+
+    /** Asynchronous counterpart of the remote interface. */
+    public interface AsyncPoolInterface
+    {
+        public CompletableFuture<Void> block();
+    }
+
+    // Task which waits until released or interrupted.
+    private static class Blocker implements Runnable
+    {
+        final CountDownLatch    started = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public void run()
+        {
+            started.countDown();
+
+            try
+            {
+                release.await(30, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+    }
+
+    // Server whose calls wait until released, counting the calls running at
+    // once.
+    private static class PoolServer implements PoolInterface
+    {
+        final Semaphore         entered = new Semaphore(0);
+        final Semaphore         release = new Semaphore(0);
+        private int             running = 0;
+        volatile int            maximum = 0;
+
+        @Override
+        public void block()
+        {
+            synchronized(this)
+            {
+                running++;
+                maximum = Math.max(maximum, running);
+            }
+
+            entered.release();
+
+            try
+            {
+                release.tryAcquire(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+
+            synchronized(this)
+            {
+                running--;
+            }
+        }
+
+        @Override
+        public boolean virtual()
+        {
+            try
+            {
+                return (Boolean)Thread.class.getMethod("isVirtual")
+                                            .invoke(Thread.currentThread());
+            }
+            catch(Exception e)
+            {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test for the non-blocking skeleton transport.
+
+    <p>
+    Checks that a skeleton using the non-blocking transport holds many idle
+    connections without a thread for each, that it receives and answers
+    frames larger than its read buffer, and that it answers calls made
+    concurrently from several threads.
+ */
+public class NioTransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking non-blocking transport";
+
+    private static final int    IDLE_CONNECTIONS = 200;
+    private static final int    CLIENT_THREADS = 8;
+
+    private Skeleton<EchoInterface> skeleton;
+    private final List<Socket>      idle = new ArrayList<Socket>();
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<EchoInterface>(EchoInterface.class,
+                                               new EchoServer(),
+                                               new InetSocketAddress(
+                                                   "127.0.0.1", 0));
+        skeleton.setTransport(Transport.nio(2, 2));
+        skeleton.setExecutorStrategy(ExecutorStrategy.boundedPool(4));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final EchoInterface stub =
+            Stub.create(EchoInterface.class, skeleton.getAddress());
+
+        task("opening " + IDLE_CONNECTIONS + " idle connections");
+
+        call(stub, new byte[] {1});
+
+        int     threads = Thread.activeCount();
+
+        try
+        {
+            for(int i = 0; i < IDLE_CONNECTIONS; i++)
+                idle.add(new Socket("127.0.0.1",
+                                    skeleton.getAddress().getPort()));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to connect to skeleton", t);
+        }
+
+        call(stub, new byte[] {2});
+
+        if(Thread.activeCount() - threads > 10)
+            throw new TestFailed("idle connections hold " +
+                                 (Thread.activeCount() - threads) +
+                                 " threads");
+
+        task("sending frames larger than the read buffer");
+
+        byte[]  large = new byte[1 << 20];
+        new Random(1).nextBytes(large);
+        call(stub, large);
+
+        task("calling from several threads");
+
+        final List<Throwable>   failures =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[]                clients = new Thread[CLIENT_THREADS];
+
+        for(int i = 0; i < clients.length; i++)
+        {
+            final byte  value = (byte)i;
+
+            clients[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int j = 0; j < 100; j++)
+                            call(stub, new byte[] {value, (byte)j});
+                    }
+                    catch(Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                }
+            };
+            clients[i].start();
+        }
+
+        for(Thread client : clients)
+        {
+            try
+            {
+                client.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted", e);
+            }
+        }
+
+        if(!failures.isEmpty())
+            throw new TestFailed("concurrent call failed", failures.get(0));
+
+        task();
+    }
+
+    /** Closes the idle connections and stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        for(Socket socket : idle)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(Throwable t) { }
+        }
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    private void call(EchoInterface stub, byte[] data) throws TestFailed
+    {
+        try
+        {
+            if(!Arrays.equals(stub.echo(data), data))
+                throw new TestFailed("call returned incorrect result");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call test skeleton", e);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface EchoInterface
+    {
+        public byte[] echo(byte[] data) throws RMIException;
+    }
+
+    private static class EchoServer implements EchoInterface
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit test for the stub result cache.
+
+    <p>
+    Checks that calls to methods annotated as <code>Cacheable</code> with equal
+    arguments are answered from the cache, that exceptions are not cached, that
+    results expire after their time to live and may be invalidated, that
+    results are keyed on the arguments as they were when the call was made,
+    that callers do not share cached objects, and that the cache evicts the least
+    recently used results when it exceeds its capacity.
+ */
+public class ResultCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the stub result cache";
+
+    private Skeleton<CacheInterface>    skeleton;
+    private CacheServer                 server;
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        ResultCache.shared().clear();
+
+        server = new CacheServer();
+        skeleton = new Skeleton<CacheInterface>(CacheInterface.class, server,
+                                                new InetSocketAddress(
+                                                    "127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        CacheInterface  stub = Stub.create(CacheInterface.class,
+                                           skeleton.getAddress());
+        CacheInterface  other = Stub.create(CacheInterface.class,
+                                            skeleton.getAddress());
+
+        try
+        {
+            task("answering repeated calls from the cache");
+
+            stub.lookup("a", new int[] {1, 2});
+            stub.lookup("a", new int[] {1, 2});
+            other.lookup("a", new int[] {1, 2});
+            expectCalls(1);
+
+            stub.lookup("a", new int[] {1, 3});
+            stub.lookup("b", new int[] {1, 2});
+            expectCalls(3);
+
+            stub.uncached();
+            stub.uncached();
+            expectCalls(5);
+
+            task("returning a separate object from each hit");
+
+            stub.lookup("a", new int[] {1, 2})[0] = "changed";
+
+            if(!stub.lookup("a", new int[] {1, 2})[0].equals("a"))
+                throw new TestFailed("cached result shared between callers");
+
+            task("not caching exceptions");
+
+            for(int call = 0; call < 2; ++call)
+            {
+                try
+                {
+                    stub.fail();
+                    throw new TestFailed("exception not thrown");
+                }
+                catch(IllegalStateException e)
+                {
+                }
+            }
+
+            expectCalls(7);
+
+            task("expiring results");
+
+            stub.version();
+            expectCalls(8);
+            Thread.sleep(300);
+            stub.version();
+            expectCalls(9);
+
+            task("invalidating results");
+
+            Stub.invalidate(other, "version");
+            stub.lookup("a", new int[] {1, 2});
+            expectCalls(9);
+
+            Stub.invalidate(other, "lookup");
+            stub.lookup("a", new int[] {1, 2});
+            expectCalls(10);
+
+            Stub.invalidate(stub);
+            stub.lookup("a", new int[] {1, 2});
+            expectCalls(11);
+
+            task("keying results on the arguments as they were sent");
+
+            int[]       numbers = new int[] {4, 5};
+
+            stub.lookup("c", numbers);
+            numbers[0] = 6;
+            stub.lookup("c", numbers);
+            expectCalls(13);
+
+            stub.lookup("c", new int[] {4, 5});
+            expectCalls(13);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        checkEviction();
+
+        task();
+    }
+
+    // Checks that the least recently used replies are evicted to keep the
+    // cache within its capacity.
+    private void checkEviction() throws TestFailed
+    {
+        task("evicting the least recently used results");
+
+        long            weight = 1 + 100 + ResultCache.ENTRY_OVERHEAD;
+        ResultCache     cache = new ResultCache(3 * weight);
+        ResultCache.Key[] keys = new ResultCache.Key[4];
+
+        for(int index = 0; index < keys.length; ++index)
+        {
+            keys[index] = new ResultCache.Key(null, 1, 1, 0,
+                                              new byte[] {(byte)index});
+        }
+
+        long            ttl = TimeUnit.MINUTES.toNanos(1);
+
+        cache.put(keys[0], reply(100), ttl);
+        cache.put(keys[1], reply(100), ttl);
+        cache.put(keys[2], reply(100), ttl);
+        cache.get(keys[0]);
+        cache.put(keys[3], reply(100), ttl);
+
+        if(cache.get(keys[1]) != null || cache.get(keys[0]) == null ||
+           cache.get(keys[3]) == null)
+        {
+            throw new TestFailed("wrong result evicted");
+        }
+
+        if(cache.size() != 3 * weight)
+            throw new TestFailed("cache size is " + cache.size());
+
+        cache.put(keys[1], reply(1000), ttl);
+
+        if(cache.get(keys[1]) != null || cache.entries() != 3)
+            throw new TestFailed("result larger than the cache was cached");
+
+        cache.setCapacity(weight);
+
+        if(cache.entries() != 1 || cache.get(keys[3]) == null)
+            throw new TestFailed("reducing capacity did not evict results");
+    }
+
+    private Frame reply(int length)
+    {
+        return new Frame(Frame.REPLY, 0, new byte[length]);
+    }
+
+    private void expectCalls(int calls) throws TestFailed
+    {
+        if(server.calls.get() != calls)
+            throw new TestFailed("skeleton called " + server.calls.get() +
+                                 " times rather than " + calls);
+    }
+
+    /** Stops the test skeleton and empties the cache. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        ResultCache.shared().clear();
+    }
+
+    /** Remote interface used by the test. */
+    public interface CacheInterface
+    {
+        @Cacheable(ttl = 1, unit = TimeUnit.MINUTES)
+        public String[] lookup(String key, int[] values) throws RMIException;
+        @Cacheable(ttl = 1, unit = TimeUnit.MINUTES)
+        public void fail() throws RMIException;
+        public void uncached() throws RMIException;
+        @Cacheable(ttl = 100)
+        public int version() throws RMIException;
+    }
+
+    private static class CacheServer implements CacheInterface
+    {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public String[] lookup(String key, int[] values)
+        {
+            calls.incrementAndGet();
+            return new String[] {key, String.valueOf(values.length)};
+        }
+
+        @Override
+        public void fail()
+        {
+            calls.incrementAndGet();
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public void uncached()
+        {
+            calls.incrementAndGet();
+        }
+
+        @Override
+        public int version()
+        {
+            return calls.incrementAndGet();
+        }
+    }
+}
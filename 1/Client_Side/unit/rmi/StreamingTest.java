@@ -0,0 +1,419 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Unit test for streamed arguments and results.
+
+    <p>
+    Checks that large byte arrays and file regions are passed to and returned
+    from remote methods intact, on both the blocking and the non-blocking
+    transport, and that a file region received by the server is backed by a
+    temporary file which is deleted when the region is disposed, as is the
+    temporary file of a region returned after its call timed out. Also checks
+    that a call sent between the chunks of a large argument is answered before
+    the large argument is complete, and that a frame announcing more than the
+    largest frame length is refused.
+ */
+public class StreamingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streamed arguments and " +
+                                         "results";
+
+    /** Size of the data passed in the test. */
+    private static final int    SIZE = 3 * 1024 * 1024 + 17;
+
+    private Skeleton<StreamInterface>   blocking;
+    private Skeleton<StreamInterface>   nio;
+    private File                        file;
+
+    /** Starts the test skeletons and writes the file passed in the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        blocking = new Skeleton<StreamInterface>(StreamInterface.class,
+                                                 new StreamServer(),
+                                                 new InetSocketAddress(
+                                                     "127.0.0.1", 0));
+        nio = new Skeleton<StreamInterface>(StreamInterface.class,
+                                            new StreamServer(),
+                                            new InetSocketAddress(
+                                                "127.0.0.1", 0));
+        nio.setTransport(Transport.nio(1, 1));
+
+        try
+        {
+            blocking.start();
+            nio.start();
+
+            file = File.createTempFile("streaming-test", null);
+
+            FileOutputStream    out = new FileOutputStream(file);
+
+            try
+            {
+                out.write(data(SIZE + 100));
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to initialize test", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        check(Stub.create(StreamInterface.class, blocking.getAddress()),
+              "blocking");
+        check(Stub.create(StreamInterface.class, nio.getAddress()),
+              "non-blocking");
+        abandon(Stub.create(StreamInterface.class, blocking.getAddress()));
+        interleave(blocking.getAddress(), "blocking");
+        interleave(nio.getAddress(), "non-blocking");
+
+        task();
+    }
+
+    // Passes a large array and a file region to the server and checks the
+    // values returned.
+    private void check(StreamInterface stub, String transport)
+        throws TestFailed
+    {
+        task("echoing a large array on the " + transport + " transport");
+
+        byte[]      expected = data(SIZE + 100);
+
+        try
+        {
+            byte[]  echoed = stub.echo(Arrays.copyOf(expected, SIZE));
+
+            if(!Arrays.equals(echoed, Arrays.copyOf(expected, SIZE)))
+                throw new TestFailed("array corrupted");
+
+            task("passing a file region on the " + transport + " transport");
+
+            FileRegion  region = stub.copy(new FileRegion(file, 100, SIZE));
+
+            try
+            {
+                if(!Arrays.equals(region.toByteArray(),
+                                  Arrays.copyOfRange(expected, 100,
+                                                     SIZE + 100)))
+                {
+                    throw new TestFailed("file region corrupted");
+                }
+
+                File    received = region.getFile();
+
+                region.dispose();
+
+                if(received.exists())
+                    throw new TestFailed("received region not deleted");
+            }
+            finally
+            {
+                region.dispose();
+            }
+
+            if(!file.exists())
+                throw new TestFailed("region sent was deleted");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("streamed call failed", t);
+        }
+    }
+
+    // Makes a call which times out before the server returns a file region,
+    // and checks that the temporary file of the region is deleted when the
+    // region arrives.
+    private void abandon(StreamInterface stub) throws TestFailed
+    {
+        task("deleting a file region returned after its call timed out");
+
+        int                 before = spooled();
+        StreamInterface     bounded = Stub.withTimeout(stub, 100,
+                                                       TimeUnit.MILLISECONDS);
+
+        try
+        {
+            try
+            {
+                bounded.delay(new FileRegion(file, 0, 64 * 1024), 300);
+                throw new TestFailed("call did not time out");
+            }
+            catch(RMIException e)
+            {
+                if(!(e.getCause() instanceof SocketTimeoutException))
+                    throw new TestFailed("unexpected failure", e);
+            }
+
+            // Replies arrive on the connection in the order they are sent, so
+            // once a call made after the late reply was sent is answered, the
+            // late reply has been read.
+            Thread.sleep(400);
+            stub.echo(new byte[1]);
+
+            if(spooled() > before)
+                throw new TestFailed("late region not deleted");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+    }
+
+    // Returns the number of temporary files holding received file regions.
+    private static int spooled()
+    {
+        File[]      files = new File(System.getProperty("java.io.tmpdir"))
+                                .listFiles();
+        int         count = 0;
+
+        for(File file : files)
+        {
+            if(file.getName().startsWith("rmi-region"))
+                count++;
+        }
+
+        return count;
+    }
+
+    // Sends calls on a connection of its own, frame by frame, to check that
+    // a small call is answered while a large argument has only partly been
+    // sent, and that an oversized frame is refused.
+    private void interleave(InetSocketAddress address, String transport)
+        throws TestFailed
+    {
+        task("answering a call sent within a large argument on the " +
+             transport + " transport");
+
+        try
+        {
+            long        id = DispatchTable.methodId(
+                StreamInterface.class.getMethod("echo", byte[].class));
+            Frame       large = Frame.marshalCall(Codec.binary(), id, null,
+                                                  null, new Object[] {
+                                                      data(SIZE)})
+                                     .withCallId(1);
+            Frame       small = Frame.marshalCall(Codec.binary(), id, null,
+                                                  null, new Object[] {
+                                                      new byte[] {42}})
+                                     .withCallId(2);
+            Frame.Data  chunks = large.new Data();
+
+            try(Socket socket = connect(address))
+            {
+                DataOutputStream    out = new DataOutputStream(
+                    socket.getOutputStream());
+                DataInputStream     in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+                Frame.Assembler     assembler = new Frame.Assembler();
+
+                write(out, Collections.<Object>singletonList(large.head()));
+                write(out, chunks.next());
+                small.write(out);
+
+                Frame               reply = read(in, assembler);
+
+                if(reply.callId != 2 ||
+                   !Arrays.equals((byte[])reply.result(), new byte[] {42}))
+                {
+                    throw new TestFailed("small call held back by large " +
+                                         "argument");
+                }
+
+                while(chunks.hasNext())
+                    write(out, chunks.next());
+
+                reply = read(in, assembler);
+
+                if(reply.callId != 1 ||
+                   !Arrays.equals((byte[])reply.result(), data(SIZE)))
+                {
+                    throw new TestFailed("large argument corrupted");
+                }
+            }
+
+            task("refusing an oversized frame on the " + transport +
+                 " transport");
+
+            try(Socket socket = connect(address))
+            {
+                DataOutputStream    out = new DataOutputStream(
+                    socket.getOutputStream());
+
+                out.writeInt(Frame.MAX_LENGTH + 1);
+                out.flush();
+
+                try
+                {
+                    if(socket.getInputStream().read() != -1)
+                        throw new TestFailed("unexpected reply");
+                }
+                catch(SocketException e)
+                {
+                    // The connection was reset rather than closed.
+                }
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("interleaved call failed", t);
+        }
+    }
+
+    // Opens a connection to a test skeleton.
+    private static Socket connect(InetSocketAddress address)
+        throws IOException
+    {
+        Socket      socket = new Socket();
+
+        socket.setSoTimeout(2000);
+        socket.connect(address);
+        return socket;
+    }
+
+    // Writes the buffers of a frame.
+    private static void write(DataOutputStream out, List<Object> parts)
+        throws IOException
+    {
+        for(Object part : parts)
+        {
+            ByteBuffer  buffer = (ByteBuffer)part;
+
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                      buffer.remaining());
+        }
+
+        out.flush();
+    }
+
+    // Reads frames until a reply is complete.
+    private static Frame read(DataInputStream in, Frame.Assembler assembler)
+        throws IOException
+    {
+        while(true)
+        {
+            Frame   frame = Frame.read(in, assembler);
+
+            if(frame != null)
+                return frame;
+        }
+    }
+
+    // Returns an array of the given length filled with a repeating pattern.
+    private static byte[] data(int length)
+    {
+        byte[]      data = new byte[length];
+
+        for(int index = 0; index < length; ++index)
+            data[index] = (byte)(index * 31 + index / 251);
+
+        return data;
+    }
+
+    /** Stops the test skeletons and deletes the file passed in the test. */
+    @Override
+    protected void clean()
+    {
+        if(blocking != null)
+            blocking.stop();
+
+        if(nio != null)
+            nio.stop();
+
+        if(file != null)
+            file.delete();
+    }
+
+    /** Remote interface used by the test. */
+    public interface StreamInterface
+    {
+        public byte[] echo(byte[] data) throws RMIException;
+        public FileRegion copy(FileRegion region) throws RMIException;
+        public FileRegion delay(FileRegion region, long millis)
+            throws RMIException;
+    }
+
+    // Server which returns a copy of each region received, so that the
+    // region returned is sent from a different file.
+    private static class StreamServer implements StreamInterface
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+
+        // Returns a copy of the region after the given time.
+        @Override
+        public FileRegion delay(FileRegion region, long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+            }
+
+            return copy(region);
+        }
+
+        @Override
+        public FileRegion copy(FileRegion region)
+        {
+            try
+            {
+                File                copy = File.createTempFile("streaming-copy",
+                                                               null);
+                RandomAccessFile    target = new RandomAccessFile(copy, "rw");
+
+                copy.deleteOnExit();
+
+                try
+                {
+                    region.transferTo(target.getChannel(), 0);
+                }
+                finally
+                {
+                    target.close();
+                    region.dispose();
+                }
+
+                return new FileRegion(copy, 0, region.length());
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
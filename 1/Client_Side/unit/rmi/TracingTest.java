@@ -0,0 +1,282 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test for call tracing.
+
+    <p>
+    Checks that the trace of a local span is propagated through a remote call
+    to the calls made by the remote method, that stub and skeleton spans are
+    written to the log with the correct parents, that calls outside any trace
+    are not traced at a sample rate of zero, that the log is rolled over when
+    it reaches its size limit, and that the analyzer reports the traces.
+ */
+public class TracingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call tracing";
+
+    private Skeleton<TracingInterface>  skeleton;
+    private final List<File>            files = new ArrayList<File>();
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<TracingInterface>(TracingInterface.class,
+                                                  new TracingServer(),
+                                                  new InetSocketAddress(
+                                                      "127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        TracingInterface    stub = Stub.create(TracingInterface.class,
+                                               skeleton.getAddress());
+
+        try
+        {
+            task("propagating a trace to nested calls");
+
+            File            log = temporary();
+            String          traceId;
+
+            Tracer.enable(log, 1);
+
+            Tracer.Span     span = Tracer.startSpan("operation");
+
+            try
+            {
+                traceId = span.getTraceId();
+
+                if(traceId == null)
+                    throw new TestFailed("span not sampled at sample rate 1");
+
+                String      nested = stub.relay(stub);
+
+                if(!traceId.equals(nested))
+                    throw new TestFailed("nested call in trace " + nested +
+                                         " rather than " + traceId);
+            }
+            finally
+            {
+                span.close();
+            }
+
+            if(TraceContext.current() != null)
+                throw new TestFailed("span not detached");
+
+            Tracer.disable();
+
+            if(stub.traceId() != null)
+                throw new TestFailed("call traced with tracing disabled");
+
+            task("sampling no calls at sample rate 0");
+
+            Tracer.enable(temporary(), 0);
+
+            span = Tracer.startSpan("operation");
+            span.close();
+
+            if(span.isSampled() || stub.traceId() != null)
+                throw new TestFailed("unsampled call traced");
+
+            Tracer.disable();
+
+            task("writing spans with their parents");
+
+            checkSpans(read(log), traceId);
+
+            task("analyzing the trace log");
+
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            PrintStream             out = new PrintStream(bytes, true, "UTF-8");
+
+            if(TraceAnalyzer.run(new String[] {log.getPath()}, out) != 0)
+                throw new TestFailed("analyzer failed");
+
+            String          report = bytes.toString("UTF-8");
+
+            if(!report.contains("trace " + traceId))
+                throw new TestFailed("trace missing from report:\n" + report);
+
+            // The nested call ends the chain of calls, so it is on the
+            // critical path.
+            boolean         critical = false;
+
+            for(String line : report.split("\n"))
+            {
+                if(line.startsWith("*") &&
+                   line.contains("S TracingInterface.traceId"))
+                {
+                    critical = true;
+                }
+            }
+
+            if(!critical)
+                throw new TestFailed("critical path not marked:\n" + report);
+
+            task("rolling the log over");
+
+            log = temporary();
+            Tracer.enable(log, 1, 512, 2);
+
+            for(int call = 0; call < 50; ++call)
+                stub.traceId();
+
+            Tracer.disable();
+
+            File            first = new File(log.getPath() + ".1");
+            File            third = new File(log.getPath() + ".3");
+
+            files.add(first);
+            files.add(new File(log.getPath() + ".2"));
+            files.add(third);
+
+            if(!first.exists() || third.exists())
+                throw new TestFailed("log not rolled over correctly");
+
+            if(first.length() > 512 + 256)
+                throw new TestFailed("rolled log exceeds its size limit");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    // Checks that the log holds the spans of the traced operation: the local
+    // span, the relay call made by the stub and run by the skeleton, and the
+    // nested call made by the skeleton and run by it in turn.
+    private void checkSpans(List<String[]> spans, String traceId)
+        throws TestFailed
+    {
+        String[]    local = find(spans, traceId, "L", "operation");
+        String[]    relay = find(spans, traceId, "C", "TracingInterface.relay");
+        String[]    relayed = find(spans, traceId, "S",
+                                   "TracingInterface.relay");
+        String[]    nested = find(spans, traceId, "C",
+                                  "TracingInterface.traceId");
+        String[]    served = find(spans, traceId, "S",
+                                  "TracingInterface.traceId");
+
+        if(!local[2].equals("0") || !relay[2].equals(local[1]) ||
+           !relayed[2].equals(relay[1]) || !nested[2].equals(relayed[1]) ||
+           !served[2].equals(nested[1]))
+        {
+            throw new TestFailed("span recorded with the wrong parent");
+        }
+
+        if(spans.size() != 5)
+            throw new TestFailed(spans.size() + " spans recorded rather " +
+                                 "than 5");
+
+        for(int field = 7; field < 12; ++field)
+        {
+            if(Long.parseLong(relayed[field]) < 0)
+                throw new TestFailed("skeleton phase not measured");
+        }
+
+        if(Long.parseLong(relay[7]) < Long.parseLong(relayed[7]))
+            throw new TestFailed("stub span shorter than skeleton span");
+    }
+
+    private String[] find(List<String[]> spans, String traceId, String kind,
+                          String name) throws TestFailed
+    {
+        for(String[] span : spans)
+        {
+            if(span[0].equals(traceId) && span[3].equals(kind) &&
+               span[4].equals(name))
+            {
+                return span;
+            }
+        }
+
+        throw new TestFailed("span " + kind + " " + name + " not recorded");
+    }
+
+    private List<String[]> read(File file) throws IOException
+    {
+        BufferedReader  reader = new BufferedReader(new FileReader(file));
+        List<String[]>  spans = new ArrayList<String[]>();
+        String          line;
+
+        while((line = reader.readLine()) != null)
+            spans.add(line.split("\t"));
+
+        reader.close();
+        return spans;
+    }
+
+    private File temporary() throws IOException
+    {
+        File        file = File.createTempFile("trace", null);
+
+        files.add(file);
+        return file;
+    }
+
+    /** Stops tracing and the test skeleton, and deletes the logs. */
+    @Override
+    protected void clean()
+    {
+        Tracer.disable();
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        for(File file : files)
+            file.delete();
+    }
+
+    /** Remote interface used by the test. */
+    public interface TracingInterface
+    {
+        public String traceId() throws RMIException;
+        public String relay(TracingInterface next) throws RMIException;
+    }
+
+    private static class TracingServer implements TracingInterface
+    {
+        // Returns the ID of the trace the call belongs to, or null if it is
+        // not traced.
+        @Override
+        public String traceId()
+        {
+            TraceContext    context = TraceContext.current();
+
+            return context == null ? null :
+                Long.toHexString(context.traceId);
+        }
+
+        @Override
+        public String relay(TracingInterface next) throws RMIException
+        {
+            return next.traceId();
+        }
+    }
+}
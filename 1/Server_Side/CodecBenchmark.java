@@ -0,0 +1,198 @@
+//CodecBenchmark file comparing the encoding of Storage.read calls by each codec
+
+import rmi.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+// Encodes a call to Storage.read and its reply with each codec, for several
+// read sizes, and reports the payload bytes and encoding cost per call. Then
+// makes the same calls through a skeleton with a stub using each codec, and
+// reports the round trip time per call.
+//
+// Storage and common.Path belong to the file system built on this library, so
+// the benchmark declares a Storage interface with the same read method and a
+// FilePath class which is serialized, and registered with the binary codec,
+// in the same way as common.Path.
+//
+// Usage: java CodecBenchmark [seconds per measurement]
+public class CodecBenchmark
+{
+	private static final int[] sizes = {16, 1024, 65536};
+	private static int seconds = 2;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0)
+		{
+			seconds = Integer.parseInt(args[0]);
+		}
+
+		Codec[] codecs = {Codec.binary(), Codec.serialization()};
+
+		System.out.println("Storage.read(path, offset, length), " + seconds + " s per measurement");
+		System.out.println(String.format("%-20s %8s %10s %10s %12s %12s", "codec", "length", "call B", "reply B", "encode ns", "round trip ns"));
+
+		for(int size : sizes)
+		{
+			for(Codec codec : codecs)
+			{
+				run(codec, size);
+			}
+		}
+	}
+
+	private static void run(Codec codec, int size) throws Exception
+	{
+		Object[] call = {new FilePath("/directory/subdirectory/file.txt"), 4096L, size};
+		byte[] data = new byte[size];
+
+		System.out.println(String.format("%-20s %8d %10d %10d %12.0f %12.0f", codec.getClass().getSimpleName(), size,
+			encodedSize(codec, call), encodedSize(codec, data),
+			encodeTime(codec, call, data), roundTripTime(codec, size)));
+	}
+
+	// Size of the values as encoded on the wire, excluding the frame header.
+	private static int encodedSize(Codec codec, Object... values) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		for(Object value : values)
+		{
+			codec.writeValue(out, value);
+		}
+
+		out.flush();
+		return bytes.size();
+	}
+
+	// Time taken to encode and decode both the call and the reply.
+	private static double encodeTime(Codec codec, Object[] call, byte[] reply) throws Exception
+	{
+		cycle(codec, call, reply, seconds / 2.0);
+		return cycle(codec, call, reply, seconds);
+	}
+
+	private static double cycle(Codec codec, Object[] call, byte[] reply, double duration) throws Exception
+	{
+		long end = System.nanoTime() + (long)(duration * 1e9);
+		long start = System.nanoTime();
+		long count = 0;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		while(System.nanoTime() < end)
+		{
+			for(int i = 0; i < 100; i++)
+			{
+				bytes.reset();
+				DataOutputStream out = new DataOutputStream(bytes);
+
+				for(Object value : call)
+				{
+					codec.writeValue(out, value);
+				}
+
+				codec.writeValue(out, reply);
+				out.flush();
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+				for(int j = 0; j <= call.length; j++)
+				{
+					codec.readValue(in);
+				}
+			}
+
+			count += 100;
+		}
+
+		return (System.nanoTime() - start) / (double)count;
+	}
+
+	// Time taken by calls from a single client thread to a local skeleton.
+	private static double roundTripTime(Codec codec, int size) throws Exception
+	{
+		Skeleton<Storage> skeleton = new Skeleton<Storage>(Storage.class, new StorageServer(), new InetSocketAddress("127.0.0.1", 0));
+		skeleton.start();
+
+		try
+		{
+			Storage stub = Stub.withCodec(Stub.create(Storage.class, skeleton), codec);
+			FilePath file = new FilePath("/directory/subdirectory/file.txt");
+
+			calls(stub, file, size, seconds / 2.0);
+			return calls(stub, file, size, seconds);
+		}
+		finally
+		{
+			skeleton.stop();
+		}
+	}
+
+	private static double calls(Storage stub, FilePath file, int size, double duration) throws Exception
+	{
+		long end = System.nanoTime() + (long)(duration * 1e9);
+		long start = System.nanoTime();
+		long count = 0;
+
+		while(System.nanoTime() < end)
+		{
+			stub.read(file, 4096L, size);
+			count++;
+		}
+
+		return (System.nanoTime() - start) / (double)count;
+	}
+
+	public interface Storage
+	{
+		public byte[] read(FilePath file, long offset, int length) throws RMIException, IOException;
+	}
+
+	private static class StorageServer implements Storage
+	{
+		public byte[] read(FilePath file, long offset, int length)
+		{
+			return new byte[length];
+		}
+	}
+
+	// Stand-in for common.Path: the path string and its list of components.
+	public static class FilePath implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		static
+		{
+			BinaryCodec.register(FilePath.class, new TypeCodec<FilePath>()
+			{
+				public void write(FilePath value, DataOutputStream out, Codec codec) throws IOException
+				{
+					out.writeUTF(value.path);
+				}
+
+				public FilePath read(DataInputStream in, Codec codec) throws IOException
+				{
+					return new FilePath(in.readUTF());
+				}
+			});
+		}
+
+		private final String path;
+		private final List<String> components = new ArrayList<String>();
+
+		FilePath(String path)
+		{
+			this.path = path;
+
+			for(String component : path.split("/"))
+			{
+				if(component.isEmpty() == false)
+				{
+					components.add(component);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,578 @@
+//LoadGenerator file driving remote interfaces at a fixed request rate
+
+import rmi.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Open-loop load generator. Requests are sent on a fixed schedule, whatever the
+// state of the requests already sent, from a pool of worker threads; a request
+// whose scheduled time comes while every worker is busy waits for a worker, and
+// the time it waits counts towards its latency. Latency is therefore measured
+// from the time each request was scheduled to be sent, not from the time it was
+// actually sent, so that a stalled server is charged for all the requests it
+// held up rather than only the few which were in flight. This corrects for
+// coordinated omission. The time from actual send to reply, the service time,
+// is reported alongside for comparison.
+//
+// Several rates may be given; each is run in turn after a warm-up at the same
+// rate, and a line reported for each. The rate beyond which the latency
+// percentiles rise steeply, and the achieved rate falls short of the requested
+// rate, is the saturation point of the skeleton. The full percentile
+// distribution of each rate, in the format of HdrHistogram, is written to
+// standard output for a single rate, or to files given with -o.
+//
+// Workloads:
+//     ping [host:port]         PingPongServer.ping, on a skeleton started in
+//                              this process if no address is given
+//     factory [host:port]      PingPongServer.ping, on a server obtained from
+//                              PingPongServerFactory.makePingServer (default
+//                              address localhost:6000)
+//     call interface host:port method [argument...]
+//                              any method of any remote interface, arguments
+//                              given as strings and converted to the parameter
+//                              types: primitives, strings, enumerations, and
+//                              classes with a constructor from a string, such
+//                              as common.Path
+//
+// For example, with the naming server on localhost:
+//     java -cp .:../../2 LoadGenerator -r 500,1000,2000 call naming.Service localhost:6000 isDirectory /
+//
+// Usage: java LoadGenerator [-r rate[,rate...]] [-d seconds] [-w warm-up seconds]
+//                           [-c workers] [-o file] workload...
+public class LoadGenerator
+{
+	private static double[] rates = {1000};
+	private static int seconds = 10;
+	private static int warmup = 2;
+	private static int workers = 64;
+	private static String output = null;
+
+	public static void main(String[] args) throws Throwable
+	{
+		int next = options(args);
+
+		if(next == args.length)
+		{
+			usage();
+			return;
+		}
+
+		Target target = target(Arrays.copyOfRange(args, next, args.length));
+		Step step = null;
+
+		try
+		{
+			System.out.println(target + ", " + seconds + " s per rate after " + warmup + " s warm-up, " + workers + " workers");
+			System.out.println("latency is measured from the scheduled send time; service time from the actual send time");
+			System.out.println(String.format("%10s %10s %10s %10s %10s %10s %12s %8s %8s", "rate/s", "achieved/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms",
+				"svc p99 ms", "errors", "behind"));
+
+			for(double rate : rates)
+			{
+				if(warmup > 0)
+				{
+					run(target, rate, warmup);
+				}
+
+				step = run(target, rate, seconds);
+
+				step.print(System.out);
+
+				if(output != null)
+				{
+					File file = new File(rates.length == 1 ? output : output + "." + (long)rate);
+					PrintStream out = new PrintStream(new FileOutputStream(file));
+
+					try
+					{
+						step.latency.printDistribution(out);
+					}
+					finally
+					{
+						out.close();
+					}
+				}
+			}
+
+			if(output == null && rates.length == 1)
+			{
+				System.out.println();
+				System.out.println("Latency distribution (ms) from the scheduled send time:");
+				System.out.println();
+				step.latency.printDistribution(System.out);
+			}
+		}
+		finally
+		{
+			target.close();
+		}
+	}
+
+	// Reads the options, and returns the index of the first argument of the
+	// workload.
+	private static int options(String[] args)
+	{
+		int i = 0;
+
+		for(; i + 1 < args.length && args[i].startsWith("-"); i += 2)
+		{
+			String value = args[i + 1];
+
+			if(args[i].equals("-r"))
+			{
+				String[] list = value.split(",");
+
+				rates = new double[list.length];
+
+				for(int j = 0; j < list.length; j++)
+				{
+					rates[j] = Double.parseDouble(list[j]);
+				}
+			}
+			else if(args[i].equals("-d"))
+			{
+				seconds = Integer.parseInt(value);
+			}
+			else if(args[i].equals("-w"))
+			{
+				warmup = Integer.parseInt(value);
+			}
+			else if(args[i].equals("-c"))
+			{
+				workers = Integer.parseInt(value);
+			}
+			else if(args[i].equals("-o"))
+			{
+				output = value;
+			}
+			else
+			{
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		return i;
+	}
+
+	private static void usage()
+	{
+		System.out.println("usage: java LoadGenerator [-r rate[,rate...]] [-d seconds] [-w warm-up seconds] [-c workers] [-o file] workload...");
+		System.out.println("workloads:");
+		System.out.println("    ping [host:port]");
+		System.out.println("    factory [host:port]");
+		System.out.println("    call interface host:port method [argument...]");
+	}
+
+	// Sends requests at the given rate for the given time, and waits for all of
+	// them to complete.
+	private static Step run(final Target target, double rate, int duration) throws InterruptedException
+	{
+		final Step step = new Step(rate);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		double interval = 1e9 / rate;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		long sent = 0;
+
+		executor.prestartAllCoreThreads();
+
+		// The send time of each request is computed from the start, rather
+		// than from the previous request, so that the schedule does not drift.
+		for(long scheduled = start; scheduled < end; scheduled = start + (long)(++sent * interval))
+		{
+			waitUntil(scheduled);
+
+			final long intended = scheduled;
+
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					long begin = System.nanoTime();
+					boolean failed = false;
+
+					try
+					{
+						target.call();
+					}
+					catch(Throwable t)
+					{
+						failed = true;
+					}
+
+					step.completed(intended, begin, System.nanoTime(), failed);
+				}
+			});
+		}
+
+		step.behind = executor.getQueue().size();
+		executor.shutdown();
+
+		if(executor.awaitTermination(duration + 60, TimeUnit.SECONDS) == false)
+		{
+			System.out.println("requests still outstanding after " + (duration + 60) + " s; abandoning them");
+			executor.shutdownNow();
+		}
+
+		step.elapsed = System.nanoTime() - start;
+		return step;
+	}
+
+	// Waits until the given time, sleeping while it is distant and yielding
+	// once it is near, so that requests leave close to their scheduled times.
+	private static void waitUntil(long time)
+	{
+		while(true)
+		{
+			long remaining = time - System.nanoTime();
+
+			if(remaining <= 0)
+			{
+				return;
+			}
+
+			if(remaining > 200000)
+			{
+				LockSupport.parkNanos(remaining - 100000);
+			}
+			else
+			{
+				Thread.yield();
+			}
+		}
+	}
+
+	// Creates the target of the requests from the workload arguments.
+	private static Target target(String[] args) throws Throwable
+	{
+		if(args[0].equals("ping"))
+		{
+			if(args.length > 1)
+			{
+				return new Target(RemoteInterface.class, Stub.create(RemoteInterface.class, address(args[1])), "ping", "1");
+			}
+
+			Skeleton<RemoteInterface> skeleton = new Skeleton<RemoteInterface>(RemoteInterface.class, new PingPongServer(), new InetSocketAddress("127.0.0.1", 0));
+
+			skeleton.start();
+
+			Target target = new Target(RemoteInterface.class, Stub.create(RemoteInterface.class, skeleton), "ping", "1");
+
+			target.skeleton = skeleton;
+			return target;
+		}
+
+		if(args[0].equals("factory"))
+		{
+			FactoryRemoteInterface factory = Stub.create(FactoryRemoteInterface.class, address(args.length > 1 ? args[1] : "localhost:6000"));
+
+			return new Target(RemoteInterface.class, factory.makePingServer(), "ping", "1");
+		}
+
+		if(args[0].equals("call") && args.length >= 4)
+		{
+			Class<?> c = Class.forName(args[1]);
+
+			return new Target(c, Stub.create(c, address(args[2])), args[3], Arrays.copyOfRange(args, 4, args.length));
+		}
+
+		throw new IllegalArgumentException("unknown workload " + args[0]);
+	}
+
+	private static InetSocketAddress address(String text)
+	{
+		int colon = text.lastIndexOf(':');
+
+		if(colon < 0)
+		{
+			throw new IllegalArgumentException("address " + text + " is not of the form host:port");
+		}
+
+		return new InetSocketAddress(text.substring(0, colon), Integer.parseInt(text.substring(colon + 1)));
+	}
+
+	// A method of a stub, called repeatedly with the same arguments.
+	private static class Target
+	{
+		private final Object stub;
+		private final Method method;
+		private final Object[] arguments;
+		// Skeleton started by the generator, stopped when it exits.
+		Skeleton<?> skeleton = null;
+
+		Target(Class<?> c, Object stub, String name, String... arguments) throws Exception
+		{
+			Method found = null;
+
+			for(Method candidate : c.getMethods())
+			{
+				if(candidate.getName().equals(name) && candidate.getParameterTypes().length == arguments.length)
+				{
+					found = candidate;
+					break;
+				}
+			}
+
+			if(found == null)
+			{
+				throw new IllegalArgumentException(c.getName() + " has no method " + name + " taking " + arguments.length + " arguments");
+			}
+
+			this.stub = stub;
+			this.method = found;
+			this.arguments = new Object[arguments.length];
+
+			for(int i = 0; i < arguments.length; i++)
+			{
+				this.arguments[i] = convert(arguments[i], found.getParameterTypes()[i]);
+			}
+		}
+
+		void call() throws Throwable
+		{
+			try
+			{
+				method.invoke(stub, arguments);
+			}
+			catch(InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+		}
+
+		void close()
+		{
+			if(skeleton != null)
+			{
+				skeleton.stop();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return method.getDeclaringClass().getSimpleName() + "." + method.getName() + Arrays.toString(arguments);
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private static Object convert(String text, Class<?> type) throws Exception
+		{
+			if(type == String.class)
+			{
+				return text;
+			}
+
+			if(type == int.class || type == Integer.class)
+			{
+				return Integer.valueOf(text);
+			}
+
+			if(type == long.class || type == Long.class)
+			{
+				return Long.valueOf(text);
+			}
+
+			if(type == boolean.class || type == Boolean.class)
+			{
+				return Boolean.valueOf(text);
+			}
+
+			if(type == double.class || type == Double.class)
+			{
+				return Double.valueOf(text);
+			}
+
+			if(type == short.class || type == Short.class)
+			{
+				return Short.valueOf(text);
+			}
+
+			if(type == byte.class || type == Byte.class)
+			{
+				return Byte.valueOf(text);
+			}
+
+			if(type.isEnum())
+			{
+				return Enum.valueOf((Class<? extends Enum>)type, text);
+			}
+
+			return type.getConstructor(String.class).newInstance(text);
+		}
+	}
+
+	// Results of one rate.
+	private static class Step
+	{
+		final double rate;
+		final Histogram latency = new Histogram();
+		final Histogram service = new Histogram();
+		final AtomicLong errors = new AtomicLong();
+		long elapsed;
+		// Requests waiting for a worker when the last was scheduled.
+		long behind;
+
+		Step(double rate)
+		{
+			this.rate = rate;
+		}
+
+		void completed(long intended, long begin, long end, boolean failed)
+		{
+			latency.record(end - intended);
+			service.record(end - begin);
+
+			if(failed)
+			{
+				errors.incrementAndGet();
+			}
+		}
+
+		void print(PrintStream out)
+		{
+			out.println(String.format("%10.0f %10.0f %10.3f %10.3f %10.3f %10.3f %12.3f %8d %8d", rate, latency.count() / (elapsed / 1e9),
+				latency.valueAt(50) / 1e6, latency.valueAt(99) / 1e6, latency.valueAt(99.9) / 1e6, latency.max() / 1e6,
+				service.valueAt(99) / 1e6, errors.get(), behind));
+		}
+	}
+
+	// Histogram of latencies in nanoseconds. Values below 2^7 have a bucket
+	// each; above, each power of two is divided into 2^7 buckets, so that
+	// every value is reported within 1/128 of its true value.
+	private static class Histogram
+	{
+		private static final int SUB_BITS = 7;
+
+		private final long[] counts = new long[(64 - SUB_BITS) << SUB_BITS];
+		private long total = 0;
+		private long max = 0;
+		private double sum = 0;
+		private double sumOfSquares = 0;
+
+		synchronized void record(long value)
+		{
+			value = Math.max(0, value);
+			counts[index(value)]++;
+			total++;
+			max = Math.max(max, value);
+			sum += value;
+			sumOfSquares += (double)value * value;
+		}
+
+		synchronized long count()
+		{
+			return total;
+		}
+
+		synchronized long max()
+		{
+			return max;
+		}
+
+		// Returns the value below or at which the given percentage of the
+		// recorded values lie.
+		synchronized long valueAt(double percentile)
+		{
+			long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+			long seen = 0;
+
+			for(int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+
+				if(seen >= target)
+				{
+					return Math.min(highest(i), max);
+				}
+			}
+
+			return max;
+		}
+
+		private synchronized long countAtOrBelow(long value)
+		{
+			long seen = 0;
+
+			for(int i = 0; i <= index(value); i++)
+			{
+				seen += counts[i];
+			}
+
+			return seen;
+		}
+
+		// Writes the percentile distribution in milliseconds, in the format
+		// of HdrHistogram, with five reporting steps for every halving of the
+		// distance to the 100th percentile.
+		synchronized void printDistribution(PrintStream out)
+		{
+			out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+			out.println();
+
+			if(total == 0)
+			{
+				return;
+			}
+
+			double percentile = 0;
+
+			while(true)
+			{
+				long value = valueAt(percentile);
+
+				if(value >= max)
+				{
+					break;
+				}
+
+				out.println(String.format("%12.3f %2.12f %10d %14.2f", value / 1e6, percentile / 100, countAtOrBelow(value), 1 / (1 - percentile / 100)));
+
+				long halfDistance = 1L << ((int)(Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+
+				percentile += 100.0 / (5 * halfDistance);
+			}
+
+			out.println(String.format("%12.3f %2.12f %10d", max / 1e6, 1.0, total));
+
+			double mean = sum / total;
+			double deviation = Math.sqrt(Math.max(0, sumOfSquares / total - mean * mean));
+
+			out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]", mean / 1e6, deviation / 1e6));
+			out.println(String.format("#[Max     = %12.3f, Total count    = %12d]", max / 1e6, total));
+			out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]", 64 - SUB_BITS, 1 << SUB_BITS));
+		}
+
+		// Below 2^7, the value itself. Above, the bucket of the top eight bits
+		// of the value, shifted to follow the buckets of smaller values.
+		private static int index(long value)
+		{
+			if(value < (1L << SUB_BITS))
+			{
+				return (int)value;
+			}
+
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+
+			return (shift << SUB_BITS) + (int)(value >>> shift);
+		}
+
+		// Highest value counted in a bucket.
+		private static long highest(int index)
+		{
+			if(index < (1 << SUB_BITS))
+			{
+				return index;
+			}
+
+			int shift = (index >> SUB_BITS) - 1;
+			long top = index - ((long)shift << SUB_BITS);
+
+			return ((top + 1) << shift) - 1;
+		}
+	}
+}
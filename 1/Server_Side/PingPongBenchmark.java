@@ -0,0 +1,144 @@
+//PingPongBenchmark file comparing skeleton executor strategies
+
+import rmi.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Drives a PingPongServer skeleton from several client threads with each of the
+// executor strategies in turn, and reports the call rate and latency
+// percentiles observed by the clients.
+//
+// Usage: java PingPongBenchmark [client threads] [seconds per strategy]
+public class PingPongBenchmark
+{
+	private static int clientThreads = 16;
+	private static int seconds = 5;
+	private static int poolSize = 8;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0)
+		{
+			clientThreads = Integer.parseInt(args[0]);
+		}
+
+		if(args.length > 1)
+		{
+			seconds = Integer.parseInt(args[1]);
+		}
+
+		List<ExecutorStrategy> strategies = new ArrayList<ExecutorStrategy>();
+		strategies.add(ExecutorStrategy.threadPerCall());
+		strategies.add(ExecutorStrategy.boundedPool(poolSize));
+
+		if(ExecutorStrategy.virtualThreadsSupported())
+		{
+			strategies.add(ExecutorStrategy.virtualThreads());
+		}
+		else
+		{
+			System.out.println("virtual threads not supported by this runtime, skipping");
+		}
+
+		System.out.println(clientThreads + " client threads, " + seconds + " s per strategy");
+		System.out.println(String.format("%-24s %12s %10s %10s %10s", "strategy", "calls/s", "p50 us", "p99 us", "max us"));
+
+		for(ExecutorStrategy strategy : strategies)
+		{
+			run(strategy);
+		}
+	}
+
+	// Runs one strategy: a short warm-up followed by the measured interval.
+	private static void run(ExecutorStrategy strategy) throws Exception
+	{
+		Skeleton<RemoteInterface> skeleton = new Skeleton<RemoteInterface>(RemoteInterface.class, new PingPongServer(), new InetSocketAddress("127.0.0.1", 0));
+		skeleton.setExecutorStrategy(strategy);
+		skeleton.start();
+
+		try
+		{
+			RemoteInterface stub = Stub.create(RemoteInterface.class, skeleton);
+
+			measure(stub, 1);
+			long[] latencies = measure(stub, seconds);
+
+			Arrays.sort(latencies);
+
+			System.out.println(String.format("%-24s %12.0f %10.1f %10.1f %10.1f", strategy,
+				latencies.length / (double)seconds,
+				percentile(latencies, 0.50) / 1000.0,
+				percentile(latencies, 0.99) / 1000.0,
+				latencies.length == 0 ? 0.0 : latencies[latencies.length - 1] / 1000.0));
+		}
+		finally
+		{
+			skeleton.stop();
+		}
+	}
+
+	// Calls ping from every client thread until the interval expires and
+	// returns the latency of each call in nanoseconds.
+	private static long[] measure(final RemoteInterface stub, int duration) throws Exception
+	{
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+		ExecutorService clients = Executors.newFixedThreadPool(clientThreads);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+
+		for(int i = 0; i < clientThreads; i++)
+		{
+			final int id = i;
+
+			results.add(clients.submit(new Callable<long[]>()
+			{
+				public long[] call() throws Exception
+				{
+					long[] samples = new long[1024];
+					int count = 0;
+
+					while(System.nanoTime() < end)
+					{
+						long start = System.nanoTime();
+						stub.ping(id);
+						long latency = System.nanoTime() - start;
+
+						if(count == samples.length)
+						{
+							samples = Arrays.copyOf(samples, count * 2);
+						}
+
+						samples[count++] = latency;
+					}
+
+					return Arrays.copyOf(samples, count);
+				}
+			}));
+		}
+
+		long[] all = new long[0];
+
+		for(Future<long[]> result : results)
+		{
+			long[] samples = result.get();
+			int offset = all.length;
+
+			all = Arrays.copyOf(all, offset + samples.length);
+			System.arraycopy(samples, 0, all, offset, samples.length);
+		}
+
+		clients.shutdown();
+		return all;
+	}
+
+	private static long percentile(long[] sorted, double fraction)
+	{
+		if(sorted.length == 0)
+		{
+			return 0;
+		}
+
+		int index = (int)Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(index, 0)];
+	}
+}
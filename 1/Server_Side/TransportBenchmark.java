@@ -0,0 +1,207 @@
+//TransportBenchmark file comparing transport options on PingPongServer calls
+
+import rmi.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Calls PingPongServer.ping from a single client thread with each set of
+// transport options in turn, applied to both the skeleton and the stub, and
+// reports the call rate and latency percentiles. A single caller makes the
+// cost of each call visible: the system calls made per frame, and any time a
+// frame is held back by Nagle's algorithm. Then, for each accept backlog,
+// opens a burst of connections at once to the skeleton and reports the
+// longest time taken to connect.
+//
+// Usage: java TransportBenchmark [seconds per measurement] [burst size]
+public class TransportBenchmark
+{
+	private static int seconds = 3;
+	private static int burst = 512;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0)
+		{
+			seconds = Integer.parseInt(args[0]);
+		}
+
+		if(args.length > 1)
+		{
+			burst = Integer.parseInt(args[1]);
+		}
+
+		TransportOptions defaults = TransportOptions.defaults();
+		Map<String, TransportOptions> configurations = new LinkedHashMap<String, TransportOptions>();
+
+		configurations.put("defaults", defaults);
+		configurations.put("unbuffered", defaults.withBuffering(0));
+		configurations.put("small buffers", defaults.withBuffering(64));
+		configurations.put("nagle", defaults.withTcpNoDelay(false));
+		configurations.put("unbuffered, nagle", defaults.withBuffering(0).withTcpNoDelay(false));
+		configurations.put("4 KiB socket buffers", defaults.withSocketBuffers(4096, 4096));
+		configurations.put("1 MiB socket buffers", defaults.withSocketBuffers(1 << 20, 1 << 20));
+
+		System.out.println("PingPongServer.ping from one client thread, " + seconds + " s per measurement");
+		System.out.println(String.format("%-24s %-10s %12s %10s %10s %10s", "options", "transport", "calls/s", "p50 us", "p99 us", "max us"));
+
+		for(Map.Entry<String, TransportOptions> configuration : configurations.entrySet())
+		{
+			latency(configuration.getKey(), configuration.getValue(), Transport.blocking());
+			latency(configuration.getKey(), configuration.getValue(), Transport.nio(1, 1));
+		}
+
+		System.out.println();
+		System.out.println(burst + " connections opened at once");
+		System.out.println(String.format("%-24s %-10s %14s", "backlog", "transport", "max connect ms"));
+
+		for(int backlog : new int[] {1, 0, 4096})
+		{
+			connect(backlog, Transport.blocking());
+			connect(backlog, Transport.nio(1, 1));
+		}
+	}
+
+	private static void latency(String name, TransportOptions options, Transport transport) throws Exception
+	{
+		Skeleton<RemoteInterface> skeleton = start(options, transport);
+
+		try
+		{
+			RemoteInterface stub = Stub.withTransportOptions(Stub.create(RemoteInterface.class, skeleton), options);
+
+			measure(stub, 1);
+
+			long[] latencies = measure(stub, seconds);
+
+			Arrays.sort(latencies);
+
+			System.out.println(String.format("%-24s %-10s %12.0f %10.1f %10.1f %10.1f", name, transportName(transport),
+				latencies.length / (double)seconds,
+				percentile(latencies, 0.50) / 1000.0,
+				percentile(latencies, 0.99) / 1000.0,
+				latencies.length == 0 ? 0.0 : latencies[latencies.length - 1] / 1000.0));
+		}
+		finally
+		{
+			skeleton.stop();
+		}
+	}
+
+	// Calls ping until the interval expires and returns the latency of each
+	// call in nanoseconds.
+	private static long[] measure(RemoteInterface stub, int duration) throws Exception
+	{
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+		long[] samples = new long[1024];
+		int count = 0;
+
+		while(System.nanoTime() < end)
+		{
+			long start = System.nanoTime();
+			stub.ping(count);
+			long latency = System.nanoTime() - start;
+
+			if(count == samples.length)
+			{
+				samples = Arrays.copyOf(samples, count * 2);
+			}
+
+			samples[count++] = latency;
+		}
+
+		return Arrays.copyOf(samples, count);
+	}
+
+	// Opens the burst of connections from as many threads, and reports the
+	// longest connection time. Connections refused or dropped while the
+	// backlog is full are retried by the client's TCP stack, which shows as a
+	// connection time of a second or more.
+	private static void connect(int backlog, Transport transport) throws Exception
+	{
+		Skeleton<RemoteInterface> skeleton = start(TransportOptions.defaults().withBacklog(backlog), transport);
+		final InetSocketAddress address = skeleton.getAddress();
+		final CountDownLatch ready = new CountDownLatch(1);
+		ExecutorService clients = Executors.newFixedThreadPool(burst);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+		try
+		{
+			for(int i = 0; i < burst; i++)
+			{
+				results.add(clients.submit(new Callable<Long>()
+				{
+					public Long call() throws Exception
+					{
+						Socket socket = new Socket();
+
+						sockets.add(socket);
+						ready.await();
+
+						long start = System.nanoTime();
+						socket.connect(address, 10000);
+						return System.nanoTime() - start;
+					}
+				}));
+			}
+
+			ready.countDown();
+
+			long longest = 0;
+			int failed = 0;
+
+			for(Future<Long> result : results)
+			{
+				try
+				{
+					longest = Math.max(longest, result.get());
+				}
+				catch(ExecutionException e)
+				{
+					failed++;
+				}
+			}
+
+			System.out.println(String.format("%-24s %-10s %14.1f%s", backlog == 0 ? "default" : String.valueOf(backlog), transportName(transport),
+				longest / 1e6, failed == 0 ? "" : "  (" + failed + " failed)"));
+		}
+		finally
+		{
+			clients.shutdown();
+
+			for(Socket socket : sockets)
+			{
+				socket.close();
+			}
+
+			skeleton.stop();
+		}
+	}
+
+	private static Skeleton<RemoteInterface> start(TransportOptions options, Transport transport) throws RMIException
+	{
+		Skeleton<RemoteInterface> skeleton = new Skeleton<RemoteInterface>(RemoteInterface.class, new PingPongServer(), new InetSocketAddress("127.0.0.1", 0));
+
+		skeleton.setTransport(transport);
+		skeleton.setTransportOptions(options);
+		skeleton.start();
+		return skeleton;
+	}
+
+	private static String transportName(Transport transport)
+	{
+		return transport.toString().startsWith("nio") ? "nio" : "blocking";
+	}
+
+	private static long percentile(long[] sorted, double fraction)
+	{
+		if(sorted.length == 0)
+		{
+			return 0;
+		}
+
+		int index = (int)Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(index, 0)];
+	}
+}
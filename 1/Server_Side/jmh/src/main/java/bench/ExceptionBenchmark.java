@@ -0,0 +1,118 @@
+//JMH benchmark of the cost of remote calls which throw
+
+package bench;
+
+import rmi.*;
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Compares a call which returns normally with calls whose remote method throws
+// a checked exception, with and without a deep stack, and a runtime exception,
+// so that the cost of encoding, decoding and rethrowing the exception can be
+// read off the difference. Each is measured with the compact encoding of the
+// binary codec, with and without the server's stack traces, and with Java
+// serialization of the whole exception.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ExceptionBenchmark
+{
+	@Param({"compact", "stack-traces", "serialization"})
+	public String encoding;
+
+	private Skeleton<Thrower> skeleton;
+	private Thrower stub;
+
+	@Setup
+	public void start() throws Exception
+	{
+		skeleton = new Skeleton<Thrower>(Thrower.class, new ThrowerServer(), new InetSocketAddress("127.0.0.1", 0));
+		skeleton.setStackTraces(encoding.equals("stack-traces"));
+		skeleton.start();
+		stub = Stub.create(Thrower.class, skeleton);
+
+		if(encoding.equals("serialization"))
+		{
+			stub = Stub.withCodec(stub, Codec.serialization());
+		}
+	}
+
+	@TearDown
+	public void stop()
+	{
+		skeleton.stop();
+	}
+
+	@Benchmark
+	public String normalReturn() throws Exception
+	{
+		return stub.call(false, 0);
+	}
+
+	@Benchmark
+	public Object exceptionReturn() throws Exception
+	{
+		return expectException(0);
+	}
+
+	@Benchmark
+	public Object deepExceptionReturn() throws Exception
+	{
+		return expectException(64);
+	}
+
+	@Benchmark
+	public Object nullPointerReturn() throws Exception
+	{
+		try
+		{
+			return stub.call(null, 0);
+		}
+		catch(NullPointerException e)
+		{
+			return e;
+		}
+	}
+
+	private Object expectException(int depth) throws Exception
+	{
+		try
+		{
+			return stub.call(true, depth);
+		}
+		catch(FileNotFoundException e)
+		{
+			return e;
+		}
+	}
+
+	public interface Thrower
+	{
+		public String call(Boolean fail, int depth) throws RMIException, FileNotFoundException;
+	}
+
+	private static class ThrowerServer implements Thrower
+	{
+		// Throws, if asked to, from the given number of nested frames. A null
+		// flag throws a NullPointerException.
+		public String call(Boolean fail, int depth) throws FileNotFoundException
+		{
+			if(depth > 0)
+			{
+				return call(fail, depth - 1);
+			}
+
+			if(fail)
+			{
+				throw new FileNotFoundException("/directory/file.txt");
+			}
+
+			return "returned";
+		}
+	}
+}
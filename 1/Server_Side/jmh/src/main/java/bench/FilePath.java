@@ -0,0 +1,47 @@
+//Stand-in for common.Path, used as a benchmark payload
+
+package bench;
+
+import rmi.*;
+import java.io.*;
+import java.util.*;
+
+// Path string and its list of components, serialized, and registered with the
+// binary codec, in the same way as common.Path, which belongs to the file
+// system built on this library.
+public class FilePath implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	static
+	{
+		BinaryCodec.register(FilePath.class, new TypeCodec<FilePath>()
+		{
+			public void write(FilePath value, DataOutputStream out, Codec codec) throws IOException
+			{
+				out.writeUTF(value.path);
+			}
+
+			public FilePath read(DataInputStream in, Codec codec) throws IOException
+			{
+				return new FilePath(in.readUTF());
+			}
+		});
+	}
+
+	private final String path;
+	private final List<String> components = new ArrayList<String>();
+
+	public FilePath(String path)
+	{
+		this.path = path;
+
+		for(String component : path.split("/"))
+		{
+			if(component.isEmpty() == false)
+			{
+				components.add(component);
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+//JMH benchmark of round trips against argument and result size
+
+package bench;
+
+import rmi.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Sends a payload to a skeleton which returns it unchanged: byte arrays of
+// increasing size, which are streamed once they are large enough, and arrays
+// of an increasing number of paths, each encoded by the binary codec.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PayloadBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		Skeleton<Echo> skeleton;
+		Echo stub;
+
+		@Setup
+		public void start() throws Exception
+		{
+			skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(), new InetSocketAddress("127.0.0.1", 0));
+			skeleton.start();
+			stub = Stub.create(Echo.class, skeleton);
+		}
+
+		@TearDown
+		public void stop()
+		{
+			skeleton.stop();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Bytes
+	{
+		@Param({"16", "1024", "65536", "1048576"})
+		public int size;
+
+		byte[] data;
+
+		@Setup
+		public void create()
+		{
+			data = new byte[size];
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Paths
+	{
+		@Param({"1", "16", "256", "4096"})
+		public int count;
+
+		FilePath[] paths;
+
+		@Setup
+		public void create()
+		{
+			paths = new FilePath[count];
+
+			for(int i = 0; i < count; i++)
+			{
+				paths[i] = new FilePath("/directory/subdirectory/file" + i + ".txt");
+			}
+		}
+	}
+
+	@Benchmark
+	public byte[] bytes(Server server, Bytes bytes) throws RMIException
+	{
+		return server.stub.echo(bytes.data);
+	}
+
+	@Benchmark
+	public FilePath[] paths(Server server, Paths paths) throws RMIException
+	{
+		return server.stub.echo(paths.paths);
+	}
+
+	public interface Echo
+	{
+		public byte[] echo(byte[] data) throws RMIException;
+		public FilePath[] echo(FilePath[] paths) throws RMIException;
+	}
+
+	private static class EchoServer implements Echo
+	{
+		public byte[] echo(byte[] data)
+		{
+			return data;
+		}
+
+		public FilePath[] echo(FilePath[] paths)
+		{
+			return paths;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+//JMH benchmark of PingPongServer.ping round trips
+
+package bench;
+
+import rmi.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Measures the round trip time of a single ping, and the rate of pings against
+// the number of client threads sharing one stub. The skeleton runs in the same
+// process, on the loopback interface.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PingBenchmark
+{
+	private Skeleton<RemoteInterface> skeleton;
+	private RemoteInterface stub;
+
+	@Setup
+	public void start() throws Exception
+	{
+		// PingPongServer is in the unnamed package, which cannot be imported
+		// here.
+		RemoteInterface server = (RemoteInterface)Class.forName("PingPongServer").getDeclaredConstructor().newInstance();
+
+		skeleton = new Skeleton<RemoteInterface>(RemoteInterface.class, server, new InetSocketAddress("127.0.0.1", 0));
+		skeleton.start();
+		stub = Stub.create(RemoteInterface.class, skeleton);
+	}
+
+	@TearDown
+	public void stop()
+	{
+		skeleton.stop();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public String latency() throws RMIException
+	{
+		return stub.ping(1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(1)
+	public String throughput1Thread() throws RMIException
+	{
+		return stub.ping(1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(4)
+	public String throughput4Threads() throws RMIException
+	{
+		return stub.ping(1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(16)
+	public String throughput16Threads() throws RMIException
+	{
+		return stub.ping(1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(64)
+	public String throughput64Threads() throws RMIException
+	{
+		return stub.ping(1);
+	}
+}
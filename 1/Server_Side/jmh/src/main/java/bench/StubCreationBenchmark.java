@@ -0,0 +1,57 @@
+//JMH benchmark of the cost of creating stubs
+
+package bench;
+
+import rmi.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Measures the creation of a stub from a skeleton and from an address, and the
+// first call through a newly created stub, which shares the pooled connection
+// of earlier stubs for the same address.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StubCreationBenchmark
+{
+	private Skeleton<RemoteInterface> skeleton;
+	private InetSocketAddress address;
+
+	@Setup
+	public void start() throws Exception
+	{
+		RemoteInterface server = (RemoteInterface)Class.forName("PingPongServer").getDeclaredConstructor().newInstance();
+
+		skeleton = new Skeleton<RemoteInterface>(RemoteInterface.class, server, new InetSocketAddress("127.0.0.1", 0));
+		skeleton.start();
+		address = skeleton.getAddress();
+	}
+
+	@TearDown
+	public void stop()
+	{
+		skeleton.stop();
+	}
+
+	@Benchmark
+	public RemoteInterface fromSkeleton() throws Exception
+	{
+		return Stub.create(RemoteInterface.class, skeleton);
+	}
+
+	@Benchmark
+	public RemoteInterface fromAddress()
+	{
+		return Stub.create(RemoteInterface.class, address);
+	}
+
+	@Benchmark
+	public String firstCall() throws RMIException
+	{
+		return Stub.create(RemoteInterface.class, address).ping(1);
+	}
+}
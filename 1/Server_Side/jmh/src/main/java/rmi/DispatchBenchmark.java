@@ -0,0 +1,47 @@
+//JMH benchmark of dispatch through the method handles of a dispatch table
+
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Compares the invocation of PingPongServer.ping through the handle of its
+// dispatch table entry, as skeletons call methods, with Method.invoke, as they
+// called them before the table held handles. Both read the method from a
+// field, as a skeleton does, so that neither is folded into a constant. The
+// benchmark is in the rmi package because the dispatch table is not public.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DispatchBenchmark
+{
+	private Object server;
+	private DispatchTable.Entry entry;
+	private Method method;
+	private Object[] args;
+
+	@Setup
+	public void start() throws Exception
+	{
+		server = Class.forName("PingPongServer").getDeclaredConstructor().newInstance();
+		method = RemoteInterface.class.getMethod("ping", int.class);
+		entry = DispatchTable.forInterface(RemoteInterface.class).entry(method);
+		args = new Object[] {1};
+	}
+
+	@Benchmark
+	public Object handle() throws Throwable
+	{
+		return (Object)entry.invoker.invokeExact(server, args);
+	}
+
+	@Benchmark
+	public Object reflective() throws Exception
+	{
+		return method.invoke(server, args);
+	}
+}
@@ -0,0 +1,167 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Limits on the calls a skeleton accepts at once.
+
+	<p>
+	Without admission control a skeleton starts every call it receives, and
+	under enough load runs out of threads or memory. With admission control, at
+	most <code>maxInFlight</code> calls run at once. Further calls wait, without
+	holding a thread, in a queue of at most <code>maxQueued</code> calls, and
+	are started in the order in which they arrived as running calls complete.
+	A call arriving when the queue is full, or still waiting when the queue
+	timeout passes, is rejected at once with an <code>OverloadException</code>,
+	so that callers learn of the overload quickly rather than by timing out.
+
+	<p>
+	Each skeleton serves a single remote interface, so limits are set per
+	interface with <code>Skeleton.setAdmissionControl</code>. A batch of calls
+	counts as one call.
+
+	<p>
+	Methods which block until another call is made, such as a lock released
+	by a later call to an unlock method, must not count toward the limits: the
+	blocked calls could otherwise hold every running slot while the call which
+	would release them waits in the queue. Such methods are named with
+	<code>exempt</code>, and calls to them are started at once.
+ */
+public final class AdmissionControl
+{
+	private static final AdmissionControl UNLIMITED = new AdmissionControl(Integer.MAX_VALUE, 0, 0, Collections.<String>emptySet());
+
+	private final int maxInFlight;
+	private final int maxQueued;
+	private final long queueTimeoutNanos;
+	// Names of the methods whose calls are not limited.
+	private final Set<String> exempt;
+
+	private AdmissionControl(int maxInFlight, int maxQueued, long queueTimeoutNanos, Set<String> exempt)
+	{
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+		this.queueTimeoutNanos = queueTimeoutNanos;
+		this.exempt = exempt;
+	}
+
+	/** Returns the policy which starts every call received. This is the
+		default. */
+	public static AdmissionControl unlimited()
+	{
+		return UNLIMITED;
+	}
+
+	/** Returns a policy limiting the number of calls running and waiting.
+
+		@param maxInFlight The maximum number of calls running at once.
+		@param maxQueued The maximum number of calls waiting to run. If zero,
+						 calls are rejected as soon as <code>maxInFlight</code>
+						 calls are running.
+		@param queueTimeout The time after which a waiting call is rejected, or
+							zero if waiting calls are not rejected.
+		@param unit The unit of <code>queueTimeout</code>.
+		@return The policy.
+		@throws IllegalArgumentException If <code>maxInFlight</code> is not
+										 positive, or <code>maxQueued</code> or
+										 <code>queueTimeout</code> is negative.
+		@throws NullPointerException If <code>unit</code> is <code>null</code>.
+	 */
+	public static AdmissionControl limit(int maxInFlight, int maxQueued, long queueTimeout, TimeUnit unit)
+	{
+		if(unit == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(maxInFlight <= 0 || maxQueued < 0 || queueTimeout < 0)
+		{
+			throw new IllegalArgumentException("invalid admission limits");
+		}
+
+		return new AdmissionControl(maxInFlight, maxQueued, unit.toNanos(queueTimeout), Collections.<String>emptySet());
+	}
+
+	/** Returns a policy with the same limits, under which calls to the named
+		methods are started at once and do not count toward the limits.
+
+		<p>
+		All methods of the remote interface with one of the given names are
+		exempt, whatever their parameters.
+
+		@param methods The names of the exempt methods, in addition to those
+					   already exempt under this policy.
+		@return The policy.
+		@throws NullPointerException If <code>methods</code> or one of its
+									 elements is <code>null</code>.
+	 */
+	public AdmissionControl exempt(String... methods)
+	{
+		Set<String> names = new HashSet<String>(exempt);
+
+		for(String method : methods)
+		{
+			if(method == null)
+			{
+				throw new NullPointerException();
+			}
+
+			names.add(method);
+		}
+
+		if(isUnlimited())
+		{
+			return this;
+		}
+
+		return new AdmissionControl(maxInFlight, maxQueued, queueTimeoutNanos, Collections.unmodifiableSet(names));
+	}
+
+	// Getter method for the maximum number of running calls
+	public int getMaxInFlight()
+	{
+		return maxInFlight;
+	}
+
+	// Getter method for the maximum number of waiting calls
+	public int getMaxQueued()
+	{
+		return maxQueued;
+	}
+
+	// Getter method for the queue timeout
+	public long getQueueTimeout(TimeUnit unit)
+	{
+		return unit.convert(queueTimeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	// Getter method for the names of the exempt methods
+	public Set<String> getExempt()
+	{
+		return exempt;
+	}
+
+	boolean isUnlimited()
+	{
+		return this == UNLIMITED;
+	}
+
+	boolean isExempt(Method method)
+	{
+		return exempt.contains(method.getName());
+	}
+
+	@Override
+	public String toString()
+	{
+		if(isUnlimited())
+		{
+			return "unlimited";
+		}
+
+		String limits = "limit(" + maxInFlight + " running, " + maxQueued + " queued, " + TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos) + " ms";
+
+		return exempt.isEmpty() ? limits + ")" : limits + ", exempt " + new TreeSet<String>(exempt) + ")";
+	}
+}
@@ -0,0 +1,80 @@
+//Invocation handler of asynchronous stubs, which make remote calls without waiting for their replies
+
+package rmi;
+
+import java.lang.reflect.*;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+// Each method of the asynchronous interface is mapped, when the stub is
+// created, to the method of the remote interface with the same name and
+// parameter types. Calls are sent through the handler of the synchronous stub
+// the asynchronous stub was created from.
+class AsyncInvocationHandler implements InvocationHandler
+{
+	private final MyInvocationHandler target;
+	private final Map<Method, Method> remoteMethods;
+
+	AsyncInvocationHandler(Class<?> async, MyInvocationHandler target)
+	{
+		Class<?> c = target.getInterface();
+		Map<Method, Method> methods = new HashMap<Method, Method>();
+
+		for(Method method : async.getMethods())
+		{
+			if(!method.getReturnType().isAssignableFrom(CompletableFuture.class) || method.getReturnType() == Object.class)
+			{
+				throw new Error(method + " does not return a CompletableFuture");
+			}
+
+			try
+			{
+				methods.put(method, c.getMethod(method.getName(), method.getParameterTypes()));
+			}
+			catch(NoSuchMethodException e)
+			{
+				throw new Error(method + " has no counterpart in " + c.getName());
+			}
+		}
+
+		this.target = target;
+		this.remoteMethods = methods;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		Method remote = remoteMethods.get(method);
+
+		if(remote != null)
+		{
+			return target.useClientAsync(remote, args);
+		}
+
+		// Asynchronous stubs are equal if they implement the same interface and
+		// carry the same remote server address.
+		if(method.getName().equals("equals"))
+		{
+			if(args[0] == null || proxy.getClass() != args[0].getClass())
+			{
+				return false;
+			}
+
+			MyInvocationHandler other = ((AsyncInvocationHandler)Proxy.getInvocationHandler(args[0])).target;
+
+			return Objects.equals(target.getAddress(), other.getAddress()) && target.getPort().equals(other.getPort());
+		}
+
+		if(method.getName().equals("hashCode"))
+		{
+			return Objects.hashCode(target.getAddress()) + target.getPort().hashCode() + proxy.getClass().hashCode();
+		}
+
+		if(method.getName().equals("toString"))
+		{
+			return "async " + target.getInterface().getSimpleName() + " " + target.getAddress() + " " + target.getPort();
+		}
+
+		return method.invoke(this, args);
+	}
+}
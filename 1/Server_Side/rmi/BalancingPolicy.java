@@ -0,0 +1,130 @@
+package rmi;
+
+import java.util.concurrent.TimeUnit;
+
+/** How a balanced stub chooses the skeleton for each call.
+
+	<p>
+	A balanced stub, created with <code>Stub.createBalanced</code>, sends each
+	call to one of several skeletons serving the same interface. With the
+	least-outstanding policy, the call goes to the skeleton with the fewest
+	calls from the stub still awaiting replies, which favours skeletons that
+	answer quickly without measuring them. With the EWMA policy, the stub keeps
+	an exponentially weighted moving average of the latency of each skeleton,
+	which rises at once to any slower latency observed and decays towards
+	faster ones over the given time, and the call goes to the skeleton whose
+	average, multiplied by one more than its outstanding calls, is lowest.
+	Ties are broken at random.
+
+	<p>
+	With outlier ejection, a skeleton whose calls fail in transit a number of
+	times in a row is excluded for a time, after which it is tried again. At
+	least one skeleton is never excluded: when every skeleton would be, all are
+	used.
+ */
+public final class BalancingPolicy
+{
+	private final long decayNanos;
+	private final int ejectAfter;
+	private final long ejectionNanos;
+
+	private BalancingPolicy(long decayNanos, int ejectAfter, long ejectionNanos)
+	{
+		this.decayNanos = decayNanos;
+		this.ejectAfter = ejectAfter;
+		this.ejectionNanos = ejectionNanos;
+	}
+
+	/** Returns the policy which sends each call to the skeleton with the
+		fewest outstanding calls, without outlier ejection. */
+	public static BalancingPolicy leastOutstanding()
+	{
+		return new BalancingPolicy(0, 0, 0);
+	}
+
+	/** Returns the policy which sends each call to the skeleton with the
+		lowest weighted average latency, without outlier ejection.
+
+		@param decay The time over which the weight of a latency observed falls
+					 by a factor of <i>e</i>.
+		@param unit The unit of <code>decay</code>.
+		@return The policy.
+		@throws IllegalArgumentException If <code>decay</code> is not
+										 positive.
+		@throws NullPointerException If <code>unit</code> is
+									 <code>null</code>.
+	 */
+	public static BalancingPolicy ewmaLatency(long decay, TimeUnit unit)
+	{
+		if(unit == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(decay <= 0)
+		{
+			throw new IllegalArgumentException("decay must be positive");
+		}
+
+		return new BalancingPolicy(unit.toNanos(decay), 0, 0);
+	}
+
+	/** Returns the same policy with outlier ejection.
+
+		@param consecutiveFailures The number of calls in a row which must fail
+								   in transit for a skeleton to be excluded.
+		@param ejectionTime The time for which the skeleton is excluded.
+		@param unit The unit of <code>ejectionTime</code>.
+		@return The policy.
+		@throws IllegalArgumentException If <code>consecutiveFailures</code> or
+										 <code>ejectionTime</code> is not
+										 positive.
+		@throws NullPointerException If <code>unit</code> is
+									 <code>null</code>.
+	 */
+	public BalancingPolicy withOutlierEjection(int consecutiveFailures, long ejectionTime, TimeUnit unit)
+	{
+		if(unit == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(consecutiveFailures <= 0 || ejectionTime <= 0)
+		{
+			throw new IllegalArgumentException("invalid ejection parameters");
+		}
+
+		return new BalancingPolicy(decayNanos, consecutiveFailures, unit.toNanos(ejectionTime));
+	}
+
+	// Whether skeletons are chosen by latency rather than by outstanding calls.
+	boolean isEwma()
+	{
+		return decayNanos > 0;
+	}
+
+	long decayNanos()
+	{
+		return decayNanos;
+	}
+
+	// Number of consecutive failures after which a skeleton is excluded, or
+	// zero if skeletons are never excluded.
+	int ejectAfter()
+	{
+		return ejectAfter;
+	}
+
+	long ejectionNanos()
+	{
+		return ejectionNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		String choice = isEwma() ? "EWMA latency over " + TimeUnit.NANOSECONDS.toMillis(decayNanos) + " ms" : "least outstanding";
+
+		return ejectAfter == 0 ? choice : choice + ", ejecting after " + ejectAfter + " failures for " + TimeUnit.NANOSECONDS.toMillis(ejectionNanos) + " ms";
+	}
+}
@@ -0,0 +1,132 @@
+package rmi;
+
+import java.io.*;
+
+/** Encoding of the values exchanged between stubs and skeletons.
+
+    <p>
+    A codec turns the arguments of a call, and its return value or exception,
+    into bytes and back. Each codec has a wire ID, carried by every call so
+    that the skeleton decodes the call and encodes its reply with the codec
+    the stub used. Two codecs are provided:
+
+    <ul>
+    <li><code>binary</code>, the default, which encodes primitive values,
+        strings, byte arrays, arrays and stubs itself, and types registered with
+        <code>BinaryCodec.register</code> with their own
+        <code>TypeCodec</code>. It falls back to Java serialization for any
+        other value.</li>
+    <li><code>serialization</code>, which encodes every value with Java
+        serialization.</li>
+    </ul>
+
+    <p>
+    Further codecs may be plugged in by deriving from this class and
+    registering an instance with <code>register</code> on both sides of the
+    connection. A stub is switched to a codec with
+    <code>Stub.withCodec</code>.
+ */
+public abstract class Codec
+{
+    // Codecs registered in addition to the two built-in ones.
+    private static final Codec[] codecs = new Codec[256];
+
+    /** Returns the wire ID of the codec, in the range 0 to 255. */
+    public abstract int id();
+
+    /** Encodes a value.
+
+        @param out Stream to which the value is written.
+        @param value The value, which may be <code>null</code>.
+        @throws IOException If the value cannot be encoded or written.
+     */
+    public abstract void writeValue(DataOutputStream out, Object value)
+        throws IOException;
+
+    /** Decodes a value written by <code>writeValue</code>.
+
+        @param in Stream from which the value is read.
+        @return The value.
+        @throws IOException If the value cannot be read or decoded.
+        @throws ClassNotFoundException If the class of the value cannot be
+                                       found.
+     */
+    public abstract Object readValue(DataInputStream in)
+        throws IOException, ClassNotFoundException;
+
+    /** Returns the default, compact binary codec. */
+    public static Codec binary()
+    {
+        return BinaryCodec.INSTANCE;
+    }
+
+    /** Returns the codec which encodes every value with Java serialization. */
+    public static Codec serialization()
+    {
+        return SerializationCodec.INSTANCE;
+    }
+
+    /** Makes a codec available for use by stubs and skeletons.
+
+        @param codec The codec.
+        @throws IllegalStateException If a different codec is already
+                                      registered with the same ID, or the ID
+                                      is that of a built-in codec.
+        @throws IllegalArgumentException If the ID of the codec is not in the
+                                         range 0 to 255.
+     */
+    public static void register(Codec codec)
+    {
+        if(codec.id() < 0 || codec.id() > 255)
+        {
+            throw new IllegalArgumentException("codec ID out of range");
+        }
+
+        if(codec.id() == BinaryCodec.ID || codec.id() == SerializationCodec.ID)
+        {
+            throw new IllegalStateException("codec ID " + codec.id() +
+                                            " is reserved");
+        }
+
+        synchronized(codecs)
+        {
+            Codec existing = codecs[codec.id()];
+
+            if(existing != null && existing.getClass() != codec.getClass())
+            {
+                throw new IllegalStateException("codec ID " + codec.id() +
+                                                " already in use");
+            }
+
+            codecs[codec.id()] = codec;
+        }
+    }
+
+    // Returns the codec with the given wire ID.
+    static Codec forId(int id) throws IOException
+    {
+        if(id == BinaryCodec.ID)
+        {
+            return BinaryCodec.INSTANCE;
+        }
+
+        if(id == SerializationCodec.ID)
+        {
+            return SerializationCodec.INSTANCE;
+        }
+
+        Codec codec;
+
+        synchronized(codecs)
+        {
+            codec = codecs[id & 0xff];
+        }
+
+        if(codec == null)
+        {
+            throw new StreamCorruptedException("unknown codec " + id);
+        }
+
+        return codec;
+    }
+}
@@ -0,0 +1,483 @@
+//Client side multiplexed connection to a skeleton, shared through a ConnectionPool
+
+package rmi;
+
+import java.net.*;
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+class Connection implements Runnable
+{
+	// Fails asynchronous calls whose deadline passes before their reply
+	// arrives, and starts the hedged requests of replicated stubs.
+	static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "rmi-call-timer");
+
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static
+	{
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	// Socket or Unix-domain channel carrying the connection.
+	private final Closeable socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final Map<Long, CompletableFuture<Frame>> pending = new ConcurrentHashMap<Long, CompletableFuture<Frame>>();
+	// Streamed results being received, and streamed arguments being sent, by
+	// call identifier.
+	private final Map<Long, ElementStream.Inbound> inbound = new ConcurrentHashMap<Long, ElementStream.Inbound>();
+	private final Map<Long, ElementStream.Outbound> outbound = new ConcurrentHashMap<Long, ElementStream.Outbound>();
+	private final AtomicLong nextCallId = new AtomicLong();
+
+	private volatile boolean broken;
+	private volatile long lastUsed;
+
+	// Starts the thread which reads the replies arriving on a connected
+	// socket, through the given streams.
+	private Connection(Closeable socket, InputStream in, OutputStream out, TransportOptions options, String peer)
+	{
+		this.socket = socket;
+		this.out = options.output(out);
+		this.in = options.input(in);
+
+		lastUsed = System.currentTimeMillis();
+		broken = false;
+
+		Thread reader = new Thread(this, "rmi-connection-" + peer);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	// Opens a connection to the skeleton at the given address. With the
+	// default options output is buffered so that each frame leaves in a
+	// single write, and Nagle's algorithm is disabled so that a frame is not
+	// held back waiting for the acknowledgement of the previous one. The
+	// connection must be established before the deadline, if there is one.
+	static Connection open(InetSocketAddress address, Deadline deadline, TransportOptions options) throws IOException
+	{
+		Socket socket = new Socket();
+
+		try
+		{
+			socket.setKeepAlive(true);
+			options.configure(socket);
+			socket.connect(address, deadline == null ? 0 : (int)Math.max(1, Math.min(Integer.MAX_VALUE, deadline.remaining(TimeUnit.MILLISECONDS))));
+
+			return new Connection(socket, socket.getInputStream(), socket.getOutputStream(), options, address.toString());
+		}
+		catch(IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
+	// Opens a connection to a skeleton on the same host through its
+	// Unix-domain socket file. Only the buffering options apply.
+	static Connection open(Path file, TransportOptions options) throws IOException
+	{
+		SocketChannel channel = UnixDomain.connect(file);
+
+		return new Connection(channel, UnixDomain.input(channel), UnixDomain.output(channel), options, file.toString());
+	}
+
+	// Sends a call and waits for its reply. Any number of threads may be
+	// waiting for replies on the same connection at once.
+	// The request is a call or a batch of calls, whose identifier is assigned
+	// here. If the reply has not arrived by the deadline, the call fails with
+	// a SocketTimeoutException; a reply arriving later is discarded and the
+	// connection remains usable.
+	Frame call(Frame request, Deadline deadline) throws IOException, InterruptedException
+	{
+		long callId = nextCallId.incrementAndGet();
+		CompletableFuture<Frame> reply = send(request.withCallId(callId));
+
+		try
+		{
+			return await(reply, deadline);
+		}
+		finally
+		{
+			pending.remove(callId);
+			lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	// Sends a call with a streamed argument or result, and waits for its
+	// reply. The elements of the argument are sent from the calling thread
+	// once the call has been written, until the source is exhausted or the
+	// reply arrives. Chunks of the result, which follow the reply, are handed
+	// to the given stream, which the caller must read to the end or close.
+	Frame callStreamed(Frame request, Deadline deadline, Iterator<?> argument, Codec codec, ElementStream.Inbound result) throws IOException, InterruptedException
+	{
+		final long callId = nextCallId.incrementAndGet();
+		ElementStream.Channel channel = channel(callId);
+		final ElementStream.Outbound producer = argument == null ? null : new ElementStream.Outbound();
+
+		if(result != null)
+		{
+			result.open(callId, channel);
+			inbound.put(callId, result);
+		}
+
+		if(producer != null)
+		{
+			outbound.put(callId, producer);
+		}
+
+		CompletableFuture<Frame> reply = send(request.withCallId(callId));
+
+		try
+		{
+			if(producer != null)
+			{
+				reply.whenComplete(new BiConsumer<Frame, Throwable>()
+				{
+					public void accept(Frame frame, Throwable failure)
+					{
+						producer.cancel();
+					}
+				});
+
+				producer.send(argument, codec, callId, channel);
+			}
+
+			return await(reply, deadline);
+		}
+		catch(IOException | InterruptedException | RuntimeException e)
+		{
+			if(result != null)
+			{
+				result.close();
+			}
+
+			throw e;
+		}
+		finally
+		{
+			pending.remove(callId);
+			outbound.remove(callId);
+			lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	// Waits for the reply to a call, until the deadline if there is one.
+	private static Frame await(CompletableFuture<Frame> reply, Deadline deadline) throws IOException, InterruptedException
+	{
+		try
+		{
+			if(deadline == null)
+			{
+				return reply.get();
+			}
+
+			return reply.get(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			abandon(reply);
+			throw new SocketTimeoutException("deadline expired waiting for reply");
+		}
+		catch(InterruptedException e)
+		{
+			abandon(reply);
+			throw e;
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// Gives up waiting for a reply. A reply arriving later is disposed of by
+	// the reader, and one which arrived in the meantime is disposed of here.
+	private static void abandon(CompletableFuture<Frame> reply)
+	{
+		if(!reply.cancel(false) && !reply.isCompletedExceptionally())
+		{
+			Frame.dispose(reply.join().streams);
+		}
+	}
+
+	// The connection as seen by the stream of a call.
+	private ElementStream.Channel channel(final long callId)
+	{
+		return new ElementStream.Channel()
+		{
+			public void send(Frame frame) throws IOException
+			{
+				write(frame);
+			}
+
+			public void finished()
+			{
+				inbound.remove(callId);
+			}
+		};
+	}
+
+	// Sends a call and returns without waiting for its reply. The future is
+	// completed by the reading thread when the reply arrives, and fails with
+	// an IOException if the connection fails first, or with a
+	// SocketTimeoutException if the deadline passes first.
+	CompletableFuture<Frame> callAsync(Frame request, Deadline deadline)
+	{
+		final long callId = nextCallId.incrementAndGet();
+		final CompletableFuture<Frame> reply = send(request.withCallId(callId));
+
+		if(deadline != null && !reply.isDone())
+		{
+			final ScheduledFuture<?> timeout = timer.schedule(new Runnable()
+			{
+				public void run()
+				{
+					reply.completeExceptionally(new SocketTimeoutException("deadline expired waiting for reply"));
+				}
+			}, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+
+			reply.whenComplete(new BiConsumer<Frame, Throwable>()
+			{
+				public void accept(Frame frame, Throwable failure)
+				{
+					timeout.cancel(false);
+				}
+			});
+		}
+
+		reply.whenComplete(new BiConsumer<Frame, Throwable>()
+		{
+			public void accept(Frame frame, Throwable failure)
+			{
+				pending.remove(callId);
+				lastUsed = System.currentTimeMillis();
+			}
+		});
+
+		return reply;
+	}
+
+	// Writes a call which is not answered, and returns once it has been
+	// flushed to the socket.
+	void callOneWay(Frame request) throws IOException
+	{
+		try
+		{
+			write(request.withCallId(nextCallId.incrementAndGet()));
+		}
+		catch(IOException e)
+		{
+			throw new NotSentException(e);
+		}
+		finally
+		{
+			lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	// Writes a frame, closing the connection if it fails. The streams of the
+	// frame are written in DATA frames, between which other threads may write
+	// theirs.
+	private void write(Frame frame) throws IOException
+	{
+		if(broken)
+		{
+			throw new EOFException("connection closed");
+		}
+
+		try
+		{
+			frame.write(out);
+		}
+		catch(IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	// Registers a call and writes it to the connection. If the call cannot be
+	// written, the future returned fails with a NotSentException.
+	private CompletableFuture<Frame> send(Frame request)
+	{
+		CompletableFuture<Frame> reply = new CompletableFuture<Frame>();
+
+		pending.put(request.callId, reply);
+
+		try
+		{
+			// The reader may have failed the pending calls before this one was
+			// registered.
+			if(broken)
+			{
+				throw new EOFException("connection closed");
+			}
+
+			request.write(out);
+		}
+		catch(IOException e)
+		{
+			close();
+			pending.remove(request.callId);
+
+			// The reader may already have failed the call along with the
+			// others pending, but this one was never written.
+			reply = new CompletableFuture<Frame>();
+			reply.completeExceptionally(new NotSentException(e));
+		}
+
+		return reply;
+	}
+
+	// Reads replies and hands each to the thread waiting for it. When the
+	// connection ends, every call still waiting fails.
+	public void run()
+	{
+		IOException failure;
+		Frame.Assembler assembler = new Frame.Assembler();
+
+		try
+		{
+			while(true)
+			{
+				Frame frame = Frame.read(in, assembler);
+
+				if(frame == null)
+				{
+					continue;
+				}
+
+				if(frame.type == Frame.CHUNK)
+				{
+					ElementStream.Inbound stream = inbound.get(frame.callId);
+
+					if(stream != null)
+					{
+						stream.received(frame);
+					}
+					else
+					{
+						Frame.dispose(frame.streams);
+					}
+
+					continue;
+				}
+
+				if(frame.type == Frame.CREDIT)
+				{
+					ElementStream.Outbound stream = outbound.get(frame.callId);
+
+					if(stream != null)
+					{
+						stream.credit(frame.credit());
+					}
+
+					continue;
+				}
+
+				if(frame.type != Frame.REPLY)
+				{
+					throw new StreamCorruptedException("unexpected frame type " + frame.type);
+				}
+
+				CompletableFuture<Frame> reply = pending.get(frame.callId);
+
+				// A reply to a call which has timed out or been cancelled is
+				// dropped, along with the temporary files of its streams.
+				if(reply == null || !reply.complete(frame))
+				{
+					Frame.dispose(frame.streams);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			failure = e;
+		}
+
+		close();
+		assembler.dispose();
+
+		for(CompletableFuture<Frame> reply : pending.values())
+		{
+			reply.completeExceptionally(failure);
+		}
+
+		for(ElementStream.Inbound stream : inbound.values())
+		{
+			stream.failed(failure);
+		}
+
+		for(ElementStream.Outbound stream : outbound.values())
+		{
+			stream.cancel();
+		}
+	}
+
+	// Failure of a call which was not written in full to the connection,
+	// because the write failed or the connection had already been closed. The
+	// skeleton only starts a call once it has read the whole frame, so such a
+	// call was certainly not served, and may be sent again.
+	static class NotSentException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		NotSentException(IOException cause)
+		{
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	int pendingCalls()
+	{
+		return pending.size();
+	}
+
+	// Whether calls are pending, or arguments or results are being streamed.
+	boolean isBusy()
+	{
+		return !pending.isEmpty() || !inbound.isEmpty() || !outbound.isEmpty();
+	}
+
+	// Time since the connection was last used.
+	long idleTime(long now)
+	{
+		return now - lastUsed;
+	}
+
+	// Health check performed before the connection is used for a call.
+	boolean isOpen()
+	{
+		return !broken;
+	}
+
+	void close()
+	{
+		broken = true;
+
+		try
+		{
+			socket.close();
+		}
+		catch(IOException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,355 @@
+//Client side pool of persistent connections to a single skeleton address
+
+package rmi;
+
+import java.net.*;
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** Pool of persistent connections to one skeleton.
+
+	<p>
+	Connections are multiplexed: any number of calls from different threads
+	may be outstanding on one connection at once. Stubs therefore share the
+	pooled connections rather than borrowing them, and consecutive calls to the
+	same skeleton do not each pay for a TCP handshake. Pools are shared by all
+	stubs carrying the same address and transport options, and reaching the
+	skeleton the same way: over TCP, or through a Unix-domain socket file.
+
+	<p>
+	A pool opens connections lazily, up to <code>MAX_CONNECTIONS</code>, and
+	sends each call on the open connection with the fewest calls in progress.
+	A second connection is only opened while every existing one is busy. A
+	connection with no calls in progress is closed after
+	<code>IDLE_TIMEOUT</code> milliseconds by a background daemon thread, which
+	also retires pools left without connections for as long, so that pools for
+	addresses no longer called do not accumulate. A stub holding a retired pool
+	is given the pool now registered for its skeleton on its next call.
+	Sockets are opened with TCP keep-alive enabled, and a connection is checked
+	to still be open before each call is sent on it. A connection opened for a
+	call with a deadline must be established before the deadline.
+ */
+class ConnectionPool
+{
+	// Time after which an idle connection is closed. This is shorter than the
+	// time after which the skeleton closes an idle connection, so that the
+	// client normally closes first.
+	static final long IDLE_TIMEOUT = 15000;
+	static final int MAX_CONNECTIONS = 2;
+
+	private static final Map<Key, ConnectionPool> pools = new ConcurrentHashMap<Key, ConnectionPool>();
+	private static final Timer reaper = new Timer("rmi-connection-reaper", true);
+
+	static
+	{
+		reaper.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				reap(System.currentTimeMillis());
+			}
+		}, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2);
+	}
+
+	private final Key key;
+	private final InetSocketAddress address;
+	private final TransportOptions options;
+	// Unix-domain socket file through which the skeleton is reached, or null
+	// to connect to its address.
+	private final Path file;
+	private final List<Connection> connections = new ArrayList<Connection>();
+	// Connections being opened, outside the lock, which count toward the
+	// size of the pool.
+	private int opening = 0;
+	// Time at which a call last acquired a connection, or the pool was
+	// created.
+	private long lastUsed = System.currentTimeMillis();
+	// Whether the pool has been removed from the pools shared by stubs.
+	private volatile boolean retired = false;
+
+	private ConnectionPool(Key key)
+	{
+		this.key = key;
+		this.address = key.address;
+		this.options = key.options;
+		this.file = key.file;
+	}
+
+	// Returns the pool for the given skeleton address with the default
+	// options, creating it if needed.
+	static ConnectionPool get(InetAddress inetAddress, int port)
+	{
+		return get(inetAddress, port, TransportOptions.defaults(), null);
+	}
+
+	// Returns the pool for the given skeleton address whose connections have
+	// the given options, creating it if needed.
+	static ConnectionPool get(InetAddress inetAddress, int port, TransportOptions options)
+	{
+		return get(inetAddress, port, options, null);
+	}
+
+	// Returns the pool for the given skeleton address whose connections have
+	// the given options, and are made through the given socket file if it is
+	// not null, creating it if needed.
+	static ConnectionPool get(InetAddress inetAddress, int port, TransportOptions options, Path file)
+	{
+		Key key = new Key(new InetSocketAddress(inetAddress, port), options, file);
+		ConnectionPool pool = pools.get(key);
+
+		if(pool == null)
+		{
+			synchronized(pools)
+			{
+				pool = pools.get(key);
+
+				if(pool == null)
+				{
+					pool = new ConnectionPool(key);
+					pools.put(key, pool);
+				}
+			}
+		}
+
+		return pool;
+	}
+
+	// Returns the connection on which to send the next call: the least busy
+	// open connection, or a new connection if there is none or all are busy
+	// and the pool is not full. A new connection must be established before
+	// the deadline, if there is one. Connections are opened outside the lock
+	// on the pool, so that a slow connect does not hold up callers which can
+	// use a connection already open. A caller finding no open connection,
+	// while the connections being opened already fill the pool, waits for
+	// one of them until its deadline.
+	Connection acquire(Deadline deadline) throws IOException
+	{
+		if(!use())
+		{
+			return get(address.getAddress(), address.getPort(), options, file).acquire(deadline);
+		}
+
+		synchronized(this)
+		{
+			while(true)
+			{
+				Connection best = leastBusy();
+
+				if(connections.size() + opening < MAX_CONNECTIONS && (best == null || best.pendingCalls() > 0))
+				{
+					opening++;
+					break;
+				}
+
+				if(best != null)
+				{
+					return best;
+				}
+
+				awaitOpening(deadline);
+			}
+		}
+
+		Connection connection = null;
+
+		try
+		{
+			connection = file != null ? Connection.open(file, options) : Connection.open(address, deadline, options);
+			return connection;
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				opening--;
+
+				if(connection != null)
+				{
+					connections.add(connection);
+				}
+
+				notifyAll();
+			}
+		}
+	}
+
+	// Records the use of the pool, unless it has been retired. A pool used
+	// within the idle timeout is not retired.
+	private synchronized boolean use()
+	{
+		if(retired)
+		{
+			return false;
+		}
+
+		lastUsed = System.currentTimeMillis();
+		return true;
+	}
+
+	// Whether the pool has been retired, after which stubs must look up the
+	// pool for their skeleton again.
+	boolean isRetired()
+	{
+		return retired;
+	}
+
+	// Closes the connections of every pool which have been idle for the idle
+	// timeout at the given time, and retires the pools left without
+	// connections which have not been used for as long.
+	static void reap(long now)
+	{
+		for(ConnectionPool pool : pools.values())
+		{
+			pool.evict(IDLE_TIMEOUT, now);
+
+			if(pool.retire(now))
+			{
+				pools.remove(pool.key, pool);
+			}
+		}
+	}
+
+	private synchronized boolean retire(long now)
+	{
+		if(connections.isEmpty() && opening == 0 && now - lastUsed >= IDLE_TIMEOUT)
+		{
+			retired = true;
+		}
+
+		return retired;
+	}
+
+	// Returns the open connection with the fewest calls in progress, or null
+	// if there is none, dropping the connections which have closed. The
+	// caller holds the lock.
+	private Connection leastBusy()
+	{
+		Connection best = null;
+		Iterator<Connection> iterator = connections.iterator();
+
+		while(iterator.hasNext())
+		{
+			Connection connection = iterator.next();
+
+			if(!connection.isOpen())
+			{
+				iterator.remove();
+				continue;
+			}
+
+			if(best == null || connection.pendingCalls() < best.pendingCalls())
+			{
+				best = connection;
+			}
+		}
+
+		return best;
+	}
+
+	// Waits for a connection being opened by another caller, until the
+	// deadline if there is one. The caller holds the lock.
+	private void awaitOpening(Deadline deadline) throws IOException
+	{
+		try
+		{
+			if(deadline == null)
+			{
+				wait();
+				return;
+			}
+
+			long remaining = deadline.remaining(TimeUnit.NANOSECONDS);
+
+			if(remaining <= 0)
+			{
+				throw new SocketTimeoutException("deadline expired waiting for a connection");
+			}
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for a connection");
+		}
+	}
+
+	// Closes all connections which carry no calls and no streams. This is used
+	// when a connection turns out to have been closed by the skeleton, in
+	// which case the others are likely to have been closed as well.
+	void clear()
+	{
+		evict(0, System.currentTimeMillis());
+	}
+
+	// Number of connections currently open
+	synchronized int size()
+	{
+		return connections.size();
+	}
+
+	private void evict(long timeout, long now)
+	{
+		List<Connection> closed = new ArrayList<Connection>();
+
+		synchronized(this)
+		{
+			Iterator<Connection> iterator = connections.iterator();
+
+			while(iterator.hasNext())
+			{
+				Connection connection = iterator.next();
+
+				if(!connection.isOpen() || (!connection.isBusy() && connection.idleTime(now) >= timeout))
+				{
+					iterator.remove();
+					closed.add(connection);
+				}
+			}
+		}
+
+		for(Connection connection : closed)
+		{
+			connection.close();
+		}
+	}
+
+	// Identity of a pool: the skeleton address, the connection options and
+	// the socket file, if any.
+	private static final class Key
+	{
+		final InetSocketAddress address;
+		final TransportOptions options;
+		final Path file;
+
+		Key(InetSocketAddress address, TransportOptions options, Path file)
+		{
+			this.address = address;
+			this.options = options;
+			this.file = file;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if(!(other instanceof Key))
+			{
+				return false;
+			}
+
+			Key key = (Key)other;
+
+			return address.equals(key.address) && options.equals(key.options) && Objects.equals(file, key.file);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (address.hashCode() * 31 + options.hashCode()) * 31 + Objects.hashCode(file);
+		}
+	}
+}
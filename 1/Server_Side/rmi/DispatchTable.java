@@ -0,0 +1,342 @@
+//Precomputed mapping between the methods of a remote interface and their method IDs
+
+package rmi;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Dispatch table of a remote interface.
+
+	<p>
+	Every method of a remote interface, including those inherited from its
+	superinterfaces, is identified on the wire by a 64-bit method ID. The ID is
+	derived from the method name and its full type descriptor, so that
+	overloaded methods have distinct IDs and a method has the same ID whichever
+	interface it is declared in. Static methods of the interface are not
+	called remotely, and are not in the table. Stubs send only the ID of the method called,
+	and skeletons look the method up in the table built when the skeleton was
+	created, with no reflection on the call path.
+
+	<p>
+	Each method has an entry holding what stubs and skeletons need on every
+	call: its ID, the annotations which affect how it is called, and a method
+	handle which invokes it on a server object with an array of arguments.
+	The handle is built once, when the table is, so that skeletons do not go
+	through <code>Method.invoke</code>, and stubs do not inspect the method's
+	declaration, on each call.
+
+	<p>
+	Tables are immutable, and are shared by all stubs and skeletons for the
+	same interface.
+ */
+class DispatchTable
+{
+	private static final Map<Class<?>, DispatchTable> tables = new ConcurrentHashMap<Class<?>, DispatchTable>();
+
+	// Method IDs in ascending order, and the entries of the methods they
+	// identify.
+	private final long[] ids;
+	private final Entry[] entries;
+	private final Map<Method, Entry> entriesByMethod;
+
+	private DispatchTable(Class<?> c)
+	{
+		Method[] all = c.getMethods();
+		TreeMap<Long, Entry> sorted = new TreeMap<Long, Entry>();
+		Map<Method, Entry> byMethod = new HashMap<Method, Entry>();
+
+		for(Method method : all)
+		{
+			if(Modifier.isStatic(method.getModifiers()))
+			{
+				continue;
+			}
+
+			long id = methodId(method);
+			Entry existing = sorted.get(id);
+
+			// An interface may inherit the same method from several
+			// superinterfaces. Either declaration may then be invoked.
+			if(existing != null && !sameSignature(existing.method, method))
+			{
+				throw new Error("method ID collision between " + existing.method + " and " + method);
+			}
+
+			try
+			{
+				method.setAccessible(true);
+			}
+			catch(RuntimeException e)
+			{
+				// Access checks are then performed on each call instead.
+			}
+
+			Entry entry = new Entry(method, id);
+
+			sorted.put(id, entry);
+			byMethod.put(method, entry);
+		}
+
+		ids = new long[sorted.size()];
+		entries = new Entry[sorted.size()];
+
+		int index = 0;
+
+		for(Map.Entry<Long, Entry> entry : sorted.entrySet())
+		{
+			ids[index] = entry.getKey();
+			entries[index] = entry.getValue();
+			index++;
+		}
+
+		entriesByMethod = Collections.unmodifiableMap(byMethod);
+	}
+
+	// Returns the table for the given remote interface.
+	static DispatchTable forInterface(Class<?> c)
+	{
+		DispatchTable table = tables.get(c);
+
+		if(table == null)
+		{
+			table = new DispatchTable(c);
+			tables.put(c, table);
+		}
+
+		return table;
+	}
+
+	// Returns the method with the given ID, or null if the interface has no
+	// such method.
+	Method lookup(long id)
+	{
+		Entry entry = entry(id);
+
+		return entry != null ? entry.method : null;
+	}
+
+	// Returns the entry of the method with the given ID, or null if the
+	// interface has no such method.
+	Entry entry(long id)
+	{
+		int index = Arrays.binarySearch(ids, id);
+
+		return index >= 0 ? entries[index] : null;
+	}
+
+	// Returns the entry of the given method, or null if it is not a method of
+	// the interface, such as a method of Object called on a stub.
+	Entry entry(Method method)
+	{
+		return entriesByMethod.get(method);
+	}
+
+	// Returns the position of the method with the given ID in the table, or a
+	// negative number if the interface has no such method. Positions run from
+	// zero to size() - 1.
+	int indexOf(long id)
+	{
+		return Arrays.binarySearch(ids, id);
+	}
+
+	// Returns the method at the given position in the table.
+	Method method(int index)
+	{
+		return entries[index].method;
+	}
+
+	// Returns the ID of the given method of the interface.
+	long idOf(Method method)
+	{
+		Entry entry = entriesByMethod.get(method);
+
+		return entry != null ? entry.id : methodId(method);
+	}
+
+	int size()
+	{
+		return ids.length;
+	}
+
+	// Computes the ID of a method: the first eight bytes of the SHA-1 digest of
+	// its name and type descriptor.
+	static long methodId(Method method)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(signature(method).getBytes("UTF-8"));
+			long id = 0;
+
+			for(int i = 0; i < 8; i++)
+			{
+				id = (id << 8) | (hash[i] & 0xff);
+			}
+
+			return id;
+		}
+		catch(NoSuchAlgorithmException | UnsupportedEncodingException e)
+		{
+			throw new Error("unable to compute method ID", e);
+		}
+	}
+
+	// Name and JVM type descriptor of a method, for example
+	// ping(I)Ljava/lang/String;
+	static String signature(Method method)
+	{
+		StringBuilder builder = new StringBuilder(method.getName()).append('(');
+
+		for(Class<?> type : method.getParameterTypes())
+		{
+			builder.append(descriptor(type));
+		}
+
+		return builder.append(')').append(descriptor(method.getReturnType())).toString();
+	}
+
+	private static boolean sameSignature(Method first, Method second)
+	{
+		return signature(first).equals(signature(second));
+	}
+
+	private static String descriptor(Class<?> type)
+	{
+		if(type.isArray())
+		{
+			return type.getName().replace('.', '/');
+		}
+
+		if(type.isPrimitive())
+		{
+			if(type == int.class) return "I";
+			if(type == long.class) return "J";
+			if(type == boolean.class) return "Z";
+			if(type == byte.class) return "B";
+			if(type == char.class) return "C";
+			if(type == short.class) return "S";
+			if(type == float.class) return "F";
+			if(type == double.class) return "D";
+			return "V";
+		}
+
+		return "L" + type.getName().replace('.', '/') + ";";
+	}
+
+	// A method of the interface, with what is needed to call it.
+	static final class Entry
+	{
+		// Handle of Method.invoke, used for methods which cannot be
+		// unreflected.
+		private static final MethodHandle REFLECTIVE;
+
+		static
+		{
+			try
+			{
+				REFLECTIVE = MethodHandles.lookup().findVirtual(Method.class, "invoke", MethodType.methodType(Object.class, Object.class, Object[].class));
+			}
+			catch(ReflectiveOperationException e)
+			{
+				throw new Error(e);
+			}
+		}
+
+		final Method method;
+		final long id;
+		// Invokes the method: the handle has the type (Object, Object[])Object,
+		// taking the server object and the arguments, and returning null for
+		// void methods. Exceptions thrown by the method are thrown by the
+		// handle as they are, unless the method could not be unreflected, in
+		// which case they are wrapped in an InvocationTargetException.
+		final MethodHandle invoker;
+		final Cacheable cacheable;
+		final boolean idempotent;
+		final boolean oneWay;
+		// Position of the parameter declared as an Iterator, whose elements
+		// are streamed after the call, or -1 if there is none.
+		final int streamedArgument;
+		// Whether the method is declared to return an Iterator, whose
+		// elements are streamed after the reply.
+		final boolean streamedResult;
+
+		Entry(Method method, long id)
+		{
+			this.method = method;
+			this.id = id;
+			this.invoker = invoker(method);
+			this.idempotent = method.getAnnotation(Idempotent.class) != null;
+			this.oneWay = method.getAnnotation(OneWay.class) != null;
+			this.streamedArgument = streamedArgument(method);
+			this.streamedResult = method.getReturnType() == Iterator.class;
+			// A streamed result can be read only once, and cannot be cached.
+			this.cacheable = streamedResult ? null : method.getAnnotation(Cacheable.class);
+
+			if(oneWay && method.getReturnType() != void.class)
+			{
+				throw new Error("one-way method " + method + " does not return void");
+			}
+
+			if(oneWay && streamedArgument >= 0)
+			{
+				throw new Error("one-way method " + method + " has a streamed argument");
+			}
+		}
+
+		// Entry of a method which is not in any table.
+		Entry(Method method)
+		{
+			this(method, methodId(method));
+		}
+
+		// Whether calls to the method stream an argument or the result.
+		boolean isStreamed()
+		{
+			return streamedArgument >= 0 || streamedResult;
+		}
+
+		private static int streamedArgument(Method method)
+		{
+			Class<?>[] types = method.getParameterTypes();
+			int found = -1;
+
+			for(int index = 0; index < types.length; index++)
+			{
+				if(types[index] != Iterator.class)
+				{
+					continue;
+				}
+
+				if(found >= 0)
+				{
+					throw new Error("method " + method + " has more than one streamed argument");
+				}
+
+				found = index;
+			}
+
+			return found;
+		}
+
+		private static MethodHandle invoker(Method method)
+		{
+			int count = method.getParameterTypes().length;
+
+			try
+			{
+				MethodHandle handle = MethodHandles.lookup().unreflect(method);
+
+				return handle.asType(MethodType.genericMethodType(count + 1)).asSpreader(Object[].class, count);
+			}
+			catch(IllegalAccessException e)
+			{
+				return REFLECTIVE.bindTo(method);
+			}
+		}
+	}
+}
@@ -0,0 +1,814 @@
+//Server side unmarshalling, method dispatch and replies, shared by all transports
+
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the calls read from connections by a skeleton's transport on the
+// skeleton's executor, and sends their replies back on the connection each
+// call arrived on.
+class Dispatcher<T>
+{
+	private final T server;
+	private final DispatchTable table;
+	private final Skeleton<T> skeleton;
+	private final Executor executor;
+	// Admission of calls to the executor, or null if every call is started.
+	private final AdmissionQueue admission;
+	private final MetricsRegistry metrics;
+	// Whether exceptions thrown by the server are sent with their stack traces.
+	private final boolean stackTraces;
+	// Calls and batches received and not yet answered, on all connections.
+	private int inFlight = 0;
+
+	Dispatcher(T server, DispatchTable table, Skeleton<T> skeleton, Executor executor, AdmissionControl control)
+	{
+		this.server = server;
+		this.table = table;
+		this.skeleton = skeleton;
+		this.executor = executor;
+		this.admission = control.isUnlimited() ? null : new AdmissionQueue(control, executor);
+		this.metrics = skeleton.metrics();
+		this.stackTraces = skeleton.getStackTraces();
+	}
+
+	Skeleton<T> skeleton()
+	{
+		return skeleton;
+	}
+
+	// Hands a call or a batch of calls to the executor, through admission
+	// control if the skeleton has limits and the method called is not exempt
+	// from them. Returns false if the connection is
+	// closing and no longer accepts calls. Chunks and credits of streams are
+	// handed to their streams.
+	boolean dispatch(ServerConnection connection, Frame frame) throws IOException
+	{
+		AdmissionQueue.Task task;
+		Call call = null;
+
+		if(frame.type == Frame.CHUNK || frame.type == Frame.CREDIT)
+		{
+			connection.received(frame);
+			return true;
+		}
+
+		if(frame.type == Frame.CALL || frame.type == Frame.ONEWAY)
+		{
+			task = call = new Call(connection, frame);
+		}
+		else if(frame.type == Frame.BATCH)
+		{
+			task = new BatchCall(connection, frame);
+		}
+		else
+		{
+			throw new StreamCorruptedException("unexpected frame type " + frame.type);
+		}
+
+		if(connection.beginCall() == false)
+		{
+			return false;
+		}
+
+		synchronized(this)
+		{
+			inFlight++;
+		}
+
+		// The chunks of a streamed argument may arrive before the call is run.
+		if(call != null)
+		{
+			call.open();
+		}
+
+		if(admission != null && (call == null || !call.exempt))
+		{
+			admission.submit(task);
+			return true;
+		}
+
+		try
+		{
+			executor.execute(task);
+		}
+		catch(RejectedExecutionException e)
+		{
+			task.reject(refused(executor));
+		}
+
+		return true;
+	}
+
+	// Exception answering a call the executor refused: because the skeleton
+	// is stopping, or because the executor's queue is full.
+	static RMIException refused(Executor executor)
+	{
+		if(executor instanceof ExecutorService && !((ExecutorService)executor).isShutdown())
+		{
+			return new OverloadException("Server side: overloaded, executor queue full");
+		}
+
+		return new RMIException("Server side: skeleton stopped");
+	}
+
+	// Admission control of the skeleton, or null if it has no limits.
+	AdmissionQueue admission()
+	{
+		return admission;
+	}
+
+	// Called when a call or batch which was run completes.
+	private void ended(ServerConnection connection)
+	{
+		answered(connection);
+
+		if(admission != null)
+		{
+			admission.release();
+		}
+	}
+
+	// Called when a call or batch has been answered, whether it was run or
+	// rejected.
+	private void answered(ServerConnection connection)
+	{
+		connection.endCall();
+		finished();
+	}
+
+	private synchronized void finished()
+	{
+		inFlight--;
+
+		if(inFlight == 0)
+		{
+			notifyAll();
+		}
+	}
+
+	// Runs a call made by a stub in the same JVM on the calling thread, and
+	// returns the reply. The call counts as in progress until it returns, so
+	// that a graceful stop waits for it. The caller's deadline, if any, is
+	// attached to the thread while the call runs. Under admission control the
+	// call takes a slot like any other, and the calling thread waits in the
+	// queue if there is none; a call refused is answered with the exception
+	// refusing it.
+	Frame local(Frame call, Deadline deadline) throws InterruptedException
+	{
+		long received = System.nanoTime();
+		boolean admitted = false;
+		Deadline.Scope scope = null;
+
+		synchronized(this)
+		{
+			inFlight++;
+		}
+
+		try
+		{
+			if(admission != null && !isExempt(call))
+			{
+				RMIException rejection = admission.admit(deadline);
+
+				if(rejection != null)
+				{
+					return marshal(call, false, rejection);
+				}
+
+				admitted = true;
+			}
+
+			if(deadline != null)
+			{
+				scope = deadline.attach();
+			}
+
+			return invoke(call, received, null);
+		}
+		finally
+		{
+			if(scope != null)
+			{
+				scope.close();
+			}
+
+			if(admitted)
+			{
+				admission.release();
+			}
+
+			finished();
+		}
+	}
+
+	// Whether a call is to a method exempt from admission control.
+	private boolean isExempt(Frame call)
+	{
+		try
+		{
+			DispatchTable.Entry entry = table.entry(call.methodId());
+
+			return entry != null && admission.isExempt(entry.method);
+		}
+		catch(IOException e)
+		{
+			// The call fails when it is run.
+			return false;
+		}
+	}
+
+	// Number of calls and batches received and not yet answered.
+	synchronized int inFlight()
+	{
+		return inFlight;
+	}
+
+	// Waits until every call received has been answered, or until the given
+	// System.nanoTime() deadline. Returns false if calls remain.
+	synchronized boolean awaitIdle(long deadline) throws InterruptedException
+	{
+		while(inFlight > 0)
+		{
+			long remaining = deadline - System.nanoTime();
+
+			if(remaining <= 0)
+			{
+				return false;
+			}
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return true;
+	}
+
+	// Sends the reply to a call.
+	void reply(ServerConnection connection, Frame call, boolean isServerAlive, Object result)
+	{
+		send(connection, call.callId, marshal(call, isServerAlive, result));
+	}
+
+	private void send(ServerConnection connection, long callId, Frame reply)
+	{
+		if(reply == null)
+		{
+			return;
+		}
+
+		try
+		{
+			connection.send(reply.withCallId(callId));
+		}
+		catch(IOException e)
+		{
+			if(!connection.isClosing())
+			{
+				skeleton.service_error(new RMIException("Server Side: IO Exception", e));
+			}
+		}
+	}
+
+	// Encodes the reply to a call with the codec of the call. Returns null if
+	// not even the failure to encode the result can be encoded.
+	private Frame marshal(Frame call, boolean isServerAlive, Object result)
+	{
+		Codec codec = codec(call);
+
+		try
+		{
+			return Frame.marshalReply(codec, isServerAlive, result, stackTraces);
+		}
+		catch(IOException e)
+		{
+			try
+			{
+				return Frame.marshalReply(codec, false, new RMIException("Server side: unable to marshal result", e), stackTraces);
+			}
+			catch(IOException j)
+			{
+				skeleton.service_error(new RMIException("Server Side: IO Exception", j));
+				return null;
+			}
+		}
+	}
+
+	// Codec in which a call is answered.
+	private static Codec codec(Frame call)
+	{
+		try
+		{
+			return call.codec();
+		}
+		catch(IOException e)
+		{
+			// The stub cannot be answered in a codec unknown here.
+			return Codec.binary();
+		}
+	}
+
+	// Runs a call and returns the reply, recording the call in the metrics of
+	// the method called. The call is null for calls in a batch.
+	private Frame invoke(Frame frame, long received, Call call)
+	{
+		MetricsRegistry.MethodMetrics counters;
+
+		try
+		{
+			counters = metrics.forId(frame.methodId());
+		}
+		catch(IOException e)
+		{
+			counters = null;
+		}
+
+		if(counters == null)
+		{
+			return execute(frame, received, call);
+		}
+
+		Frame reply = null;
+
+		counters.begin();
+
+		try
+		{
+			reply = execute(frame, received, call);
+			return reply;
+		}
+		finally
+		{
+			counters.transferred(frame.size(), reply == null ? 0 : reply.size());
+			counters.end(received, reply == null || !isNormalReturn(reply));
+		}
+	}
+
+	private static boolean isNormalReturn(Frame reply)
+	{
+		try
+		{
+			return reply.isNormalReturn();
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+
+	// Unmarshals a call, invokes the method and returns the reply. Calls to
+	// the Metrics interface are answered with the skeleton's metrics. A call
+	// sent with a deadline is not started once the deadline has passed, and
+	// otherwise runs with the deadline attached to the thread, so that calls
+	// made by the method inherit it. The time remaining is counted from the
+	// time the call was received. Likewise a call which belongs to a trace
+	// runs with its span attached to the thread, and is recorded in the trace
+	// with the time taken by each phase of the call. The streamed argument of
+	// a call is read from the stream the call registered, and a streamed
+	// result is left in the call, to be sent after the reply.
+	private Frame execute(Frame frame, long received, Call call)
+	{
+		long started = System.nanoTime();
+		Deadline.Scope scope = null;
+		TraceContext caller = null;
+		TraceContext span = null;
+		TraceContext previous = null;
+		DispatchTable.Entry entry = null;
+		long decoded = 0;
+		long executed = 0;
+		Frame reply = null;
+
+		try
+		{
+			Object target = server;
+			entry = table.entry(frame.methodId());
+
+			if(entry == null)
+			{
+				target = metrics;
+				entry = MetricsRegistry.TABLE.entry(frame.methodId());
+			}
+
+			if(entry == null)
+			{
+				return reply = marshal(frame, false, new RMIException("Server side: method not in remote interface"));
+			}
+
+			int budget = frame.budget();
+
+			if(budget > 0)
+			{
+				Deadline deadline = Deadline.received(received, budget);
+
+				if(deadline.isExpired())
+				{
+					return reply = marshal(frame, false, new RMIException("Server side: deadline expired before the call started", new SocketTimeoutException()));
+				}
+
+				scope = deadline.attach();
+			}
+
+			caller = frame.trace();
+
+			if(caller != null)
+			{
+				span = caller.child();
+				previous = span.attach();
+			}
+
+			Object[] args = frame.arguments();
+
+			if(entry.isStreamed())
+			{
+				if(call == null)
+				{
+					return reply = marshal(frame, false, new RMIException("Server side: streamed method called in a batch"));
+				}
+
+				if(entry.streamedArgument >= 0)
+				{
+					args[entry.streamedArgument] = call.argument;
+				}
+			}
+
+			decoded = System.nanoTime();
+
+			Object result;
+
+			// Whatever the method throws is its reply.
+			try
+			{
+				result = (Object)entry.invoker.invokeExact(target, args);
+			}
+			catch(InvocationTargetException ite)
+			{
+				return reply = marshal(frame, false, ite.getCause());
+			}
+			catch(Throwable t)
+			{
+				return reply = marshal(frame, false, t);
+			}
+			finally
+			{
+				executed = System.nanoTime();
+			}
+
+			if(entry.streamedResult)
+			{
+				call.result = result != null ? (Iterator<?>)result : Collections.emptyIterator();
+				result = null;
+			}
+
+			return reply = marshal(frame, true, result);
+		}
+		catch(Exception e)
+		{
+			return reply = marshal(frame, false, e);
+		}
+		finally
+		{
+			if(scope != null)
+			{
+				scope.close();
+			}
+
+			if(span != null)
+			{
+				TraceContext.restore(previous);
+				record(span, caller.spanId, entry == null ? null : entry.method, received, started, decoded, executed, reply);
+			}
+		}
+	}
+
+	// Records the span of a traced call. The span is a child of the span of
+	// the stub which made the call, whose ID the call carries, so that the
+	// calls made by the method are children of the skeleton's span rather
+	// than of the stub's.
+	private static void record(TraceContext span, long parentId, Method method, long received, long started, long decoded, long executed, Frame reply)
+	{
+		long encoded = System.nanoTime();
+
+		if(decoded == 0)
+		{
+			decoded = started;
+		}
+
+		if(executed == 0)
+		{
+			executed = decoded;
+		}
+
+		Tracer.recordServer(span, parentId, Tracer.spanName(method), received, started, decoded, executed, encoded, reply == null || !isNormalReturn(reply));
+	}
+
+	// Reports the failure of a one-way call, which has no caller to be told.
+	private void reportOneWay(Frame reply)
+	{
+		if(reply == null || isNormalReturn(reply))
+		{
+			return;
+		}
+
+		Throwable cause;
+
+		try
+		{
+			cause = (Throwable)reply.result();
+		}
+		catch(Exception e)
+		{
+			cause = e;
+		}
+
+		skeleton.service_error(new RMIException("Server side: one-way call failed", cause));
+	}
+
+	// A call received on a connection, run on the skeleton's executor. A
+	// one-way call is not answered. The elements of a streamed result are sent
+	// after the reply, from the executor thread, and the call remains in
+	// progress until the last has been sent.
+	private class Call implements AdmissionQueue.Task
+	{
+		private final ServerConnection connection;
+		private final Frame frame;
+		private final long received = System.nanoTime();
+		// Streamed argument, or null if the method has none.
+		ElementStream.Inbound argument = null;
+		// Streamed result, once the method has returned it.
+		Iterator<?> result = null;
+		// Whether the method is exempt from admission control.
+		boolean exempt = false;
+
+		Call(ServerConnection connection, Frame frame)
+		{
+			this.connection = connection;
+			this.frame = frame;
+		}
+
+		// Registers the streamed argument of the call, if the method has one,
+		// and finds whether the call is exempt from admission control.
+		void open()
+		{
+			DispatchTable.Entry entry;
+
+			try
+			{
+				entry = table.entry(frame.methodId());
+			}
+			catch(IOException e)
+			{
+				// The call fails when it is run.
+				return;
+			}
+
+			if(entry != null && entry.streamedArgument >= 0)
+			{
+				argument = new ElementStream.Inbound();
+				connection.receive(frame.callId, argument);
+			}
+
+			exempt = entry != null && admission != null && admission.isExempt(entry.method);
+		}
+
+		public void run()
+		{
+			try
+			{
+				Frame reply = invoke(frame, received, this);
+
+				// The argument is read only until the method returns.
+				closeArgument();
+
+				if(frame.type == Frame.ONEWAY)
+				{
+					reportOneWay(reply);
+				}
+				else if(result != null && reply != null)
+				{
+					ElementStream.Outbound producer = new ElementStream.Outbound();
+
+					connection.produce(frame.callId, producer);
+					send(connection, frame.callId, reply);
+					produce(producer);
+				}
+				else
+				{
+					send(connection, frame.callId, reply);
+				}
+			}
+			finally
+			{
+				closeArgument();
+
+				if(exempt)
+				{
+					answered(connection);
+				}
+				else
+				{
+					ended(connection);
+				}
+			}
+		}
+
+		// Abandons what remains of the streamed argument, if any.
+		private void closeArgument()
+		{
+			if(argument != null)
+			{
+				argument.close();
+			}
+		}
+
+		private void produce(ElementStream.Outbound producer)
+		{
+			try
+			{
+				producer.send(result, codec(frame), frame.callId, connection.channel(frame.callId));
+			}
+			catch(IOException e)
+			{
+				if(!connection.isClosing())
+				{
+					skeleton.service_error(new RMIException("Server Side: IO Exception", e));
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				connection.produced(frame.callId);
+			}
+		}
+
+		public void reject(RMIException exception)
+		{
+			closeArgument();
+
+			if(frame.type == Frame.ONEWAY)
+			{
+				skeleton.service_error(exception);
+			}
+			else
+			{
+				reply(connection, frame, false, exception);
+			}
+
+			answered(connection);
+		}
+	}
+
+	// A batch of calls received on a connection. The calls are run one after
+	// the other on the executor thread running the batch, or, for a parallel
+	// batch, each as a separate task on the executor. The batch is answered
+	// once every call has completed.
+	private class BatchCall implements AdmissionQueue.Task
+	{
+		private final ServerConnection connection;
+		private final Frame frame;
+		private final long received = System.nanoTime();
+		private Frame[] calls;
+		private Frame[] replies;
+		private AtomicInteger remaining;
+
+		BatchCall(ServerConnection connection, Frame frame)
+		{
+			this.connection = connection;
+			this.frame = frame;
+		}
+
+		public void run()
+		{
+			boolean finished = true;
+
+			try
+			{
+				calls = frame.split(Frame.CALL);
+				replies = new Frame[calls.length];
+
+				if(frame.isParallel() && calls.length > 1)
+				{
+					finished = false;
+					fork();
+				}
+				else
+				{
+					for(int i = 0; i < calls.length; i++)
+					{
+						replies[i] = invoke(calls[i], received, null);
+					}
+
+					answer();
+				}
+			}
+			catch(IOException e)
+			{
+				skeleton.service_error(new RMIException("Server side: invalid batch", e));
+				connection.close();
+			}
+			finally
+			{
+				if(finished)
+				{
+					ended(connection);
+				}
+			}
+		}
+
+		// Answers every call of a batch which could not be run.
+		public void reject(RMIException exception)
+		{
+			try
+			{
+				calls = frame.split(Frame.CALL);
+				replies = new Frame[calls.length];
+
+				for(int i = 0; i < calls.length; i++)
+				{
+					replies[i] = marshal(calls[i], false, exception);
+				}
+
+				answer();
+			}
+			catch(IOException e)
+			{
+				connection.close();
+			}
+			finally
+			{
+				answered(connection);
+			}
+		}
+
+		// Runs every call as a separate task. The thread completing the last
+		// call answers the batch.
+		private void fork()
+		{
+			remaining = new AtomicInteger(calls.length);
+
+			for(int i = 0; i < calls.length; i++)
+			{
+				final int index = i;
+				Runnable part = new Runnable()
+				{
+					public void run()
+					{
+						replies[index] = invoke(calls[index], received, null);
+						complete();
+					}
+				};
+
+				try
+				{
+					executor.execute(part);
+				}
+				catch(RejectedExecutionException e)
+				{
+					replies[index] = marshal(calls[index], false, refused(executor));
+					complete();
+				}
+			}
+		}
+
+		private void complete()
+		{
+			if(remaining.decrementAndGet() == 0)
+			{
+				try
+				{
+					answer();
+				}
+				finally
+				{
+					ended(connection);
+				}
+			}
+		}
+
+		private void answer()
+		{
+			for(int i = 0; i < replies.length; i++)
+			{
+				if(replies[i] == null)
+				{
+					replies[i] = marshal(calls[i], false, new RMIException("Server side: unable to marshal result"));
+				}
+			}
+
+			try
+			{
+				send(connection, frame.callId, Frame.marshalBatchReply(replies));
+			}
+			catch(IOException e)
+			{
+				skeleton.service_error(new RMIException("Server Side: IO Exception", e));
+			}
+		}
+	}
+}
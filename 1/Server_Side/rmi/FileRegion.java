@@ -0,0 +1,333 @@
+package rmi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/** Region of a file passed to or returned from a remote method.
+
+	<p>
+	A file region may be used as an argument or return type of a remote
+	method in place of a <code>byte[]</code>, when the data may be too large
+	to be held in memory. The contents of the region are not encoded with the
+	call or reply: they are streamed after it, in chunks of bounded size
+	between which other calls and replies may be sent, straight from the file
+	to the connection with <code>FileChannel.transferTo</code>.
+	On the receiving side the data is written to a temporary file as it
+	arrives, and the method receives a region covering that file. It may then
+	be moved into its destination with <code>transferTo</code>, which uses
+	<code>FileChannel.transferFrom</code>, or read with
+	<code>openStream</code>.
+
+	<p>
+	The contents of the region are read when the call or reply is sent, not
+	when the region is created. A received region should be released with
+	<code>dispose</code> once it is no longer needed; the temporary file is
+	otherwise only deleted when the Java virtual machine exits. Regions can
+	only be passed with the binary codec.
+ */
+public final class FileRegion
+{
+	private static final int CHUNK = 64 * 1024;
+
+	private final File file;
+	private final long position;
+	private final long length;
+	private final boolean temporary;
+
+	/** Creates a region of an existing file.
+
+		@param file The file.
+		@param position Offset of the first byte of the region in the file.
+		@param length Number of bytes in the region.
+		@throws NullPointerException If <code>file</code> is <code>null</code>.
+		@throws IllegalArgumentException If <code>position</code> or
+										 <code>length</code> is negative.
+	 */
+	public FileRegion(File file, long position, long length)
+	{
+		this(file, position, length, false);
+	}
+
+	private FileRegion(File file, long position, long length, boolean temporary)
+	{
+		if(file == null)
+		{
+			throw new NullPointerException();
+		}
+
+		if(position < 0 || length < 0)
+		{
+			throw new IllegalArgumentException("negative position or length");
+		}
+
+		this.file = file;
+		this.position = position;
+		this.length = length;
+		this.temporary = temporary;
+	}
+
+	/** Returns the number of bytes in the region. */
+	public long length()
+	{
+		return length;
+	}
+
+	/** Returns the file containing the region. */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/** Returns the offset of the region in its file. */
+	public long getPosition()
+	{
+		return position;
+	}
+
+	/** Copies the region into a file channel.
+
+		@param target The channel written.
+		@param targetPosition Offset in the channel at which the region is
+							  written.
+		@throws IOException If the region cannot be read or the channel
+							written.
+	 */
+	public void transferTo(FileChannel target, long targetPosition) throws IOException
+	{
+		FileChannel source = new FileInputStream(file).getChannel();
+
+		try
+		{
+			source.position(position);
+
+			long done = 0;
+
+			while(done < length)
+			{
+				long count = target.transferFrom(source, targetPosition + done, Math.min(length - done, CHUNK * 16));
+
+				if(count <= 0)
+				{
+					throw new EOFException("file region truncated");
+				}
+
+				done += count;
+			}
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	/** Opens a stream reading the contents of the region.
+
+		@throws IOException If the file cannot be opened.
+	 */
+	public InputStream openStream() throws IOException
+	{
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+
+		input.seek(position);
+
+		return new InputStream()
+		{
+			private long remaining = length;
+
+			public int read() throws IOException
+			{
+				if(remaining <= 0)
+				{
+					return -1;
+				}
+
+				remaining--;
+				return input.read();
+			}
+
+			public int read(byte[] buffer, int offset, int count) throws IOException
+			{
+				if(remaining <= 0)
+				{
+					return -1;
+				}
+
+				int read = input.read(buffer, offset, (int)Math.min(count, remaining));
+
+				if(read > 0)
+				{
+					remaining -= read;
+				}
+
+				return read;
+			}
+
+			public void close() throws IOException
+			{
+				input.close();
+			}
+		};
+	}
+
+	/** Reads the whole region into memory.
+
+		@throws IOException If the region cannot be read, or is larger than
+							the largest array.
+	 */
+	public byte[] toByteArray() throws IOException
+	{
+		if(length > Integer.MAX_VALUE - 8)
+		{
+			throw new IOException("file region too large for an array");
+		}
+
+		byte[] data = new byte[(int)length];
+		DataInputStream input = new DataInputStream(openStream());
+
+		try
+		{
+			input.readFully(data);
+		}
+		finally
+		{
+			input.close();
+		}
+
+		return data;
+	}
+
+	/** Deletes the temporary file backing a received region. Has no effect
+		on a region of a file given by the user. */
+	public void dispose()
+	{
+		if(temporary)
+		{
+			file.delete();
+		}
+	}
+
+	// Returns the part of the region of the given length at the given offset
+	// within it. The part is never temporary, even if the region is.
+	FileRegion slice(long offset, long count)
+	{
+		return new FileRegion(file, position + offset, count, false);
+	}
+
+	// Writes the contents of the region to a stream, in bounded chunks.
+	void writeTo(OutputStream out) throws IOException
+	{
+		FileChannel source = new FileInputStream(file).getChannel();
+
+		try
+		{
+			WritableByteChannel target = Channels.newChannel(out);
+			long done = 0;
+
+			while(done < length)
+			{
+				long count = source.transferTo(position + done, Math.min(length - done, CHUNK), target);
+
+				if(count <= 0)
+				{
+					throw new EOFException("file region truncated");
+				}
+
+				done += count;
+			}
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	// Reads a region of the given length from a stream into a temporary file.
+	static FileRegion receive(InputStream in, long length) throws IOException
+	{
+		Spool spool = new Spool(length);
+
+		try
+		{
+			ReadableByteChannel source = Channels.newChannel(in);
+
+			while(spool.remaining() > 0)
+			{
+				long count = spool.channel.transferFrom(source, spool.written, Math.min(spool.remaining(), CHUNK));
+
+				if(count <= 0)
+				{
+					throw new EOFException("connection closed within file region");
+				}
+
+				spool.written += count;
+			}
+
+			return spool.finish();
+		}
+		catch(IOException e)
+		{
+			spool.abort();
+			throw e;
+		}
+	}
+
+	// Temporary file into which a region is received as it arrives.
+	static class Spool
+	{
+		private final File file;
+		private final FileChannel channel;
+		private final long length;
+		private long written = 0;
+
+		Spool(long length) throws IOException
+		{
+			this.length = length;
+			this.file = File.createTempFile("rmi-region", null);
+			file.deleteOnExit();
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		long remaining()
+		{
+			return length - written;
+		}
+
+		// Writes as much of the buffer as the region still needs.
+		void write(ByteBuffer buffer) throws IOException
+		{
+			int limit = buffer.limit();
+
+			if(buffer.remaining() > remaining())
+			{
+				buffer.limit(buffer.position() + (int)remaining());
+			}
+
+			while(buffer.hasRemaining())
+			{
+				written += channel.write(buffer, written);
+			}
+
+			buffer.limit(limit);
+		}
+
+		FileRegion finish() throws IOException
+		{
+			channel.close();
+			return new FileRegion(file, 0, length, true);
+		}
+
+		void abort()
+		{
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e)
+			{
+			}
+
+			file.delete();
+		}
+	}
+}
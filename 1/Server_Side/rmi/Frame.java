@@ -0,0 +1,1027 @@
+//Unit of transmission of the RMI protocol, shared by stubs and skeletons
+
+package rmi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Frame of the RMI wire protocol.
+
+	<p>
+	Every message exchanged between a stub and a skeleton is a frame carrying a
+	type, a call identifier and a payload. On the wire a frame is the length of
+	the rest of the frame as an <code>int</code>, the type as a
+	<code>byte</code>, the call identifier as a <code>long</code>, and then the
+	payload bytes.
+
+	<p>
+	Call identifiers are chosen by the stub side of a connection, and the
+	skeleton answers each <code>CALL</code> frame with a <code>REPLY</code>
+	frame carrying the same identifier. Since replies are matched to calls by
+	identifier, many calls may be outstanding on one connection at once, and
+	the skeleton may answer them in any order.
+
+	<p>
+	Large binary values are not copied into the payload. The payload refers to
+	them by index, and they are sent as streams after the frame. The
+	<code>STREAMED</code> bit is set in the type of a frame with streams, whose
+	payload is then preceded by the number of streams as an <code>int</code>
+	and, for each stream, its kind as a <code>byte</code> and its length as a
+	<code>long</code>. The contents of the streams follow in order, cut into
+	<code>DATA</code> frames carrying the identifier of the call. Other frames
+	may be sent between the <code>DATA</code> frames of a call, so that a large
+	value does not hold back the calls and replies of others on the same
+	connection; only the frames of the same call, in the same direction, keep
+	their order. The receiver hands a frame on once all its streams have
+	arrived, in arrays grown as the data arrives or in temporary files.
+
+	<p>
+	No frame may be longer than <code>MAX_LENGTH</code>, and no array read from
+	a payload longer than what remains of it, so that a peer cannot make the
+	receiver allocate more memory than it has sent.
+ */
+class Frame
+{
+	// A method call: the method ID as a long, the codec ID, the time remaining
+	// until the caller's deadline in milliseconds as an int, or zero if there
+	// is none, a flag which is true if the call belongs to a sampled trace,
+	// followed in that case by the trace ID and the span ID of the call as
+	// longs, and the arguments encoded with the codec.
+	static final byte CALL = 1;
+	// The result of a call: the codec ID, a flag which is true for a normal
+	// return, and the return value or the exception thrown.
+	static final byte REPLY = 2;
+	// Several method calls: a flag which is true if the calls may run in
+	// parallel, the number of calls as an int, and the payload of each call
+	// frame preceded by its length and its number of streams. A batch is
+	// answered by a single REPLY frame carrying the number of replies and the
+	// payload of each reply frame, in the same form, in the order of the
+	// calls. The streams of the parts follow the batch in order.
+	static final byte BATCH = 3;
+	// A call to a one-way method, with the payload of a CALL frame. The
+	// skeleton sends no reply.
+	static final byte ONEWAY = 4;
+	// Elements of a streamed argument or result, sent after the call or the
+	// reply with the identifier of the call: the codec ID, the chunk flags,
+	// the number of elements as an int and the elements, or, with the FAILED
+	// flag, the exception which ended the stream.
+	static final byte CHUNK = 5;
+	// Permission for the sender of a stream to send further chunks, sent with
+	// the identifier of the call: the number of chunks as an int, or a
+	// negative number if the receiver abandons the stream.
+	static final byte CREDIT = 6;
+	// Contents of the streams of the last frame sent with the identifier of
+	// the call, continuing where the previous DATA frame stopped.
+	static final byte DATA = 7;
+
+	// Flags of a chunk: the last chunk of the stream, and a stream ended by
+	// an exception.
+	static final byte LAST = 1;
+	static final byte FAILED = 2;
+
+	// Bit set in the type of a frame with streams
+	static final byte STREAMED = 0x40;
+
+	// Kinds of stream: the contents of a byte array, or of a file region.
+	static final byte BYTES = 0;
+	static final byte FILE = 1;
+
+	static final int HEADER_LENGTH = 9;
+	static final int MAX_STREAMS = 65536;
+	// Largest length of a frame, and largest amount of stream data sent in a
+	// single DATA frame.
+	static final int MAX_LENGTH = 64 * 1024 * 1024;
+	static final int DATA_LENGTH = 64 * 1024;
+
+	final byte type;
+	final long callId;
+	final byte[] payload;
+	// Values carried as streams: byte arrays and file regions.
+	final List<Object> streams;
+
+	Frame(byte type, long callId, byte[] payload)
+	{
+		this(type, callId, payload, Collections.<Object>emptyList());
+	}
+
+	Frame(byte type, long callId, byte[] payload, List<Object> streams)
+	{
+		this.type = type;
+		this.callId = callId;
+		this.payload = payload;
+		this.streams = streams;
+	}
+
+	// Returns the same frame with another call identifier.
+	Frame withCallId(long id)
+	{
+		return new Frame(type, id, payload, streams);
+	}
+
+	// Returns the one-way call with the payload of a call frame.
+	Frame asOneWay()
+	{
+		return new Frame(ONEWAY, callId, payload, streams);
+	}
+
+	// Reads the next frame as it is on the wire, and passes it to the
+	// assembler of the connection. An EOFException is thrown if the stream
+	// ends at a frame boundary or within a frame.
+	static Frame read(DataInputStream in, Assembler assembler) throws IOException
+	{
+		int length = in.readInt();
+
+		checkLength(length);
+
+		byte type = in.readByte();
+		long callId = in.readLong();
+		int bodyLength = length - HEADER_LENGTH;
+		// The body is read in pieces of growing size, so that no more is
+		// allocated than has arrived.
+		byte[] body = new byte[Math.min(bodyLength, DATA_LENGTH)];
+		int read = 0;
+
+		while(read < bodyLength)
+		{
+			if(read == body.length)
+			{
+				body = Arrays.copyOf(body, (int)Math.min(bodyLength, 2L * body.length));
+			}
+
+			int count = in.read(body, read, body.length - read);
+
+			if(count < 0)
+			{
+				throw new EOFException("connection closed within a frame");
+			}
+
+			read += count;
+		}
+
+		return assembler.add(type, callId, body);
+	}
+
+	static void checkLength(int length) throws IOException
+	{
+		if(length < HEADER_LENGTH || length > MAX_LENGTH)
+		{
+			throw new StreamCorruptedException("invalid frame length " + length);
+		}
+	}
+
+	// Checks the length of an array about to be read from a payload: it must
+	// fit in a frame and, since every element takes at least one byte, in
+	// what remains of the payload.
+	static void checkArrayLength(DataInputStream in, long length) throws IOException
+	{
+		if(length < 0 || length > MAX_LENGTH || (in instanceof Input && length > in.available()))
+		{
+			throw new StreamCorruptedException("invalid array length " + length);
+		}
+	}
+
+	static void checkStreamCount(int count) throws IOException
+	{
+		if(count < 0 || count > MAX_STREAMS)
+		{
+			throw new StreamCorruptedException("invalid stream count " + count);
+		}
+	}
+
+	static void checkStream(byte kind, long length) throws IOException
+	{
+		if((kind != BYTES && kind != FILE) || length < 0 || (kind == BYTES && length > Integer.MAX_VALUE - 8))
+		{
+			throw new StreamCorruptedException("invalid stream of kind " + kind + " and length " + length);
+		}
+	}
+
+	// Deletes the temporary files of file regions received with a frame.
+	static void dispose(List<Object> streams)
+	{
+		for(Object stream : streams)
+		{
+			if(stream instanceof FileRegion)
+			{
+				((FileRegion)stream).dispose();
+			}
+		}
+	}
+
+	// Returns a copy of the frame for a call or reply passed within the JVM,
+	// whose streams are copies of this frame's, as if it had been received:
+	// byte arrays are cloned, and file regions spooled to temporary files.
+	Frame copy() throws IOException
+	{
+		if(streams.isEmpty())
+		{
+			return this;
+		}
+
+		List<Object> copies = new ArrayList<Object>(streams.size());
+
+		try
+		{
+			for(Object stream : streams)
+			{
+				if(stream instanceof byte[])
+				{
+					copies.add(((byte[])stream).clone());
+					continue;
+				}
+
+				FileRegion region = (FileRegion)stream;
+
+				try(InputStream in = region.openStream())
+				{
+					copies.add(FileRegion.receive(in, region.length()));
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			dispose(copies);
+			throw e;
+		}
+
+		return new Frame(type, callId, payload, copies);
+	}
+
+	// Writes the frame, then the contents of its streams in DATA frames. The
+	// lock on the output stream is only held while one frame is written, so
+	// that the frames of other calls are sent between DATA frames.
+	void write(DataOutputStream out) throws IOException
+	{
+		ByteBuffer head = head();
+
+		synchronized(out)
+		{
+			out.write(head.array(), 0, head.limit());
+			out.flush();
+		}
+
+		Data data = new Data();
+
+		while(data.hasNext())
+		{
+			List<Object> parts = data.next();
+
+			synchronized(out)
+			{
+				for(Object part : parts)
+				{
+					if(part instanceof ByteBuffer)
+					{
+						ByteBuffer buffer = (ByteBuffer)part;
+
+						out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					}
+					else
+					{
+						out.flush();
+						((FileRegion)part).writeTo(out);
+					}
+				}
+
+				out.flush();
+			}
+		}
+	}
+
+	// Returns the frame itself as it is written on the wire: its header, its
+	// table of streams if it has streams, and its payload.
+	ByteBuffer head() throws IOException
+	{
+		int table = streams.isEmpty() ? 0 : 4 + 9 * streams.size();
+
+		if(table + payload.length > MAX_LENGTH - HEADER_LENGTH)
+		{
+			throw new IOException("frame of " + (table + payload.length) + " bytes too large to send");
+		}
+
+		ByteBuffer head = ByteBuffer.allocate(4 + HEADER_LENGTH + table + payload.length);
+
+		head.putInt(HEADER_LENGTH + table + payload.length);
+		head.put(streams.isEmpty() ? type : (byte)(type | STREAMED));
+		head.putLong(callId);
+
+		if(!streams.isEmpty())
+		{
+			head.putInt(streams.size());
+
+			for(Object stream : streams)
+			{
+				head.put(stream instanceof byte[] ? BYTES : FILE);
+				head.putLong(length(stream));
+			}
+		}
+
+		head.put(payload);
+		head.flip();
+		return head;
+	}
+
+	private static long length(Object stream)
+	{
+		return stream instanceof byte[] ? ((byte[])stream).length : ((FileRegion)stream).length();
+	}
+
+	// Returns the number of bytes the frame and its DATA frames occupy on the
+	// wire.
+	long size()
+	{
+		long size = 4 + HEADER_LENGTH + payload.length;
+
+		if(!streams.isEmpty())
+		{
+			size += 4 + 9 * streams.size();
+		}
+
+		for(int i = 0; i < streams.size(); i++)
+		{
+			long length = length(streams.get(i));
+
+			size += length + (4 + HEADER_LENGTH) * ((length + DATA_LENGTH - 1) / DATA_LENGTH);
+		}
+
+		return size;
+	}
+
+	// The DATA frames carrying the streams of the frame, made one at a time as
+	// they are sent.
+	class Data
+	{
+		private int stream = 0;
+		private long offset = 0;
+
+		// Whether any DATA frame remains to be sent.
+		boolean hasNext()
+		{
+			while(stream < streams.size() && offset == length(streams.get(stream)))
+			{
+				stream++;
+				offset = 0;
+			}
+
+			return stream < streams.size();
+		}
+
+		// Returns the next DATA frame as it is written on the wire: its header,
+		// and its contents as a buffer or as a region of a file.
+		List<Object> next()
+		{
+			hasNext();
+
+			Object value = streams.get(stream);
+			int count = (int)Math.min(DATA_LENGTH, length(value) - offset);
+			ByteBuffer header = ByteBuffer.allocate(4 + HEADER_LENGTH);
+			Object contents;
+
+			header.putInt(HEADER_LENGTH + count);
+			header.put(DATA);
+			header.putLong(callId);
+			header.flip();
+
+			if(value instanceof byte[])
+			{
+				contents = ByteBuffer.wrap((byte[])value, (int)offset, count);
+			}
+			else
+			{
+				contents = ((FileRegion)value).slice(offset, count);
+			}
+
+			offset += count;
+			return Arrays.asList(header, contents);
+		}
+	}
+
+	// Builds a call frame: the method ID, the ID of the codec, the time left
+	// before the deadline, the trace context, the number of arguments as a
+	// byte, and the arguments.
+	static Frame marshalCall(Codec codec, long methodId, Deadline deadline, TraceContext trace, Object[] args) throws IOException
+	{
+		return marshalCall(codec, methodId, deadline, trace, marshalArguments(codec, args));
+	}
+
+	// Builds a call frame from arguments already encoded with the codec.
+	static Frame marshalCall(Codec codec, long methodId, Deadline deadline, TraceContext trace, Arguments arguments) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(30 + arguments.bytes.length);
+		DataOutputStream data = new DataOutputStream(bytes);
+
+		data.writeLong(methodId);
+		data.writeByte(codec.id());
+		data.writeInt(deadline == null ? 0 : deadline.budgetMillis());
+		data.writeBoolean(trace != null);
+
+		if(trace != null)
+		{
+			data.writeLong(trace.traceId);
+			data.writeLong(trace.spanId);
+		}
+
+		data.write(arguments.bytes);
+		data.flush();
+		return new Frame(CALL, 0, bytes.toByteArray(), arguments.streams);
+	}
+
+	// Encodes the arguments of a call: their number as a byte, and the
+	// arguments.
+	static Arguments marshalArguments(Codec codec, Object[] args) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		Output data = new Output(bytes);
+		int count = args == null ? 0 : args.length;
+
+		data.writeByte(count);
+
+		for(int i = 0; i < count; i++)
+		{
+			codec.writeValue(data, args[i]);
+		}
+
+		data.flush();
+		return new Arguments(bytes.toByteArray(), data.streams);
+	}
+
+	// Arguments of a call encoded with a codec, and the values they carry as
+	// streams.
+	static class Arguments
+	{
+		final byte[] bytes;
+		final List<Object> streams;
+
+		Arguments(byte[] bytes, List<Object> streams)
+		{
+			this.bytes = bytes;
+			this.streams = streams;
+		}
+	}
+
+	// Builds a reply frame: the ID of the codec, a flag which is true for a
+	// normal return, and the return value or the exception, with or without
+	// the stack traces of exceptions.
+	static Frame marshalReply(Codec codec, boolean normal, Object result, boolean stackTraces) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		Output data = new Output(bytes);
+
+		data.stackTraces = stackTraces;
+
+		data.writeByte(codec.id());
+		data.writeBoolean(normal);
+		codec.writeValue(data, result);
+		data.flush();
+		return new Frame(REPLY, 0, bytes.toByteArray(), data.streams);
+	}
+
+	// Builds a batch frame from its calls.
+	static Frame marshalBatch(boolean parallel, Frame[] calls) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+
+		data.writeBoolean(parallel);
+
+		List<Object> streams = writeParts(data, calls);
+		return new Frame(BATCH, 0, bytes.toByteArray(), streams);
+	}
+
+	// Builds the reply to a batch from the replies to its calls.
+	static Frame marshalBatchReply(Frame[] replies) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+
+		List<Object> streams = writeParts(data, replies);
+		return new Frame(REPLY, 0, bytes.toByteArray(), streams);
+	}
+
+	// Writes the payloads of the parts of a batch, and returns their streams.
+	private static List<Object> writeParts(DataOutputStream data, Frame[] parts) throws IOException
+	{
+		List<Object> streams = new ArrayList<Object>();
+
+		data.writeInt(parts.length);
+
+		for(Frame part : parts)
+		{
+			data.writeInt(part.payload.length);
+			data.writeInt(part.streams.size());
+			data.write(part.payload);
+			streams.addAll(part.streams);
+		}
+
+		data.flush();
+		return streams;
+	}
+
+	// Whether the calls of a batch frame may run in parallel.
+	boolean isParallel() throws IOException
+	{
+		if(payload.length < 1)
+		{
+			throw new StreamCorruptedException("batch frame too short");
+		}
+
+		return payload[0] != 0;
+	}
+
+	// Splits a batch frame, or the reply to a batch, into a frame of the given
+	// type for each call or reply. The frames are given the position of the
+	// call in the batch as their call identifiers.
+	Frame[] split(byte partType) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+
+		if(type == BATCH)
+		{
+			data.readBoolean();
+		}
+
+		int count = data.readInt();
+
+		if(count < 0 || count > payload.length)
+		{
+			throw new StreamCorruptedException("invalid batch size " + count);
+		}
+
+		Frame[] parts = new Frame[count];
+		int stream = 0;
+
+		for(int i = 0; i < count; i++)
+		{
+			int length = data.readInt();
+			int streamCount = data.readInt();
+
+			if(length < 0 || length > payload.length || streamCount < 0 || streamCount > streams.size() - stream)
+			{
+				throw new StreamCorruptedException("invalid batch part");
+			}
+
+			byte[] part = new byte[length];
+
+			data.readFully(part);
+			parts[i] = new Frame(partType, i, part, streams.subList(stream, stream + streamCount));
+			stream += streamCount;
+		}
+
+		return parts;
+	}
+
+	// Returns the method ID carried by a call frame.
+	long methodId() throws IOException
+	{
+		argumentsOffset();
+		return readLong(0, 8);
+	}
+
+	// Returns the codec with which the frame was written. The skeleton replies
+	// to a call with the codec the call was written with.
+	Codec codec() throws IOException
+	{
+		int offset = type == CALL || type == ONEWAY ? 8 : 0;
+
+		if(payload.length <= offset)
+		{
+			throw new StreamCorruptedException("frame too short");
+		}
+
+		return Codec.forId(payload[offset] & 0xff);
+	}
+
+	// Returns the time in milliseconds which remained until the caller's
+	// deadline when a call frame was sent, or zero if the call has no
+	// deadline.
+	int budget() throws IOException
+	{
+		argumentsOffset();
+		return Math.max(0, (int)readLong(9, 4));
+	}
+
+	// Returns the trace context of the call carried by a call frame, or null
+	// if the call does not belong to a sampled trace.
+	TraceContext trace() throws IOException
+	{
+		if(argumentsOffset() == 14)
+		{
+			return null;
+		}
+
+		return new TraceContext(readLong(14, 8), readLong(22, 8));
+	}
+
+	// Returns the offset in a call frame of the number of arguments, which
+	// follows the trace context if there is one.
+	private int argumentsOffset() throws IOException
+	{
+		if(payload.length < 14)
+		{
+			throw new StreamCorruptedException("call frame too short");
+		}
+
+		int offset = payload[13] == 0 ? 14 : 30;
+
+		if(payload.length < offset + 1)
+		{
+			throw new StreamCorruptedException("call frame too short");
+		}
+
+		return offset;
+	}
+
+	// Reads a big-endian integer of the given number of bytes from the
+	// payload.
+	private long readLong(int offset, int length)
+	{
+		long value = 0;
+
+		for(int i = offset; i < offset + length; i++)
+		{
+			value = (value << 8) | (payload[i] & 0xff);
+		}
+
+		return value;
+	}
+
+	// Returns the arguments carried by a call frame.
+	Object[] arguments() throws IOException, ClassNotFoundException
+	{
+		Codec codec = codec();
+		int offset = argumentsOffset();
+		Input data = new Input(new ByteArrayInputStream(payload, offset + 1, payload.length - offset - 1), streams);
+		Object[] args = new Object[payload[offset] & 0xff];
+
+		for(int i = 0; i < args.length; i++)
+		{
+			args[i] = codec.readValue(data);
+		}
+
+		return args;
+	}
+
+	// Whether a reply frame carries a return value rather than an exception.
+	boolean isNormalReturn() throws IOException
+	{
+		if(payload.length < 2)
+		{
+			throw new StreamCorruptedException("reply frame too short");
+		}
+
+		return payload[1] != 0;
+	}
+
+	// Returns the return value or exception carried by a reply frame.
+	Object result() throws IOException, ClassNotFoundException
+	{
+		Codec codec = codec();
+
+		return codec.readValue(new Input(new ByteArrayInputStream(payload, 2, payload.length - 2), streams));
+	}
+
+	// Builds the next chunk of a stream from the elements of its source: as
+	// many as are available, up to the given number of elements or until the
+	// chunk holds the given number of bytes. The chunk is the last if the
+	// source has no further element. Exceptions thrown by the source are
+	// passed on.
+	static Frame marshalChunk(Codec codec, long callId, Iterator<?> source, int maxElements, long maxBytes) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		Output data = new Output(bytes);
+		int count = 0;
+		long streamed = 0;
+
+		data.writeByte(codec.id());
+		data.writeByte(0);
+		data.writeInt(0);
+
+		while(count < maxElements && data.size() + streamed < maxBytes && source.hasNext())
+		{
+			int streams = data.streams.size();
+
+			codec.writeValue(data, source.next());
+			count++;
+
+			for(int i = streams; i < data.streams.size(); i++)
+			{
+				Object stream = data.streams.get(i);
+
+				streamed += stream instanceof byte[] ? ((byte[])stream).length : ((FileRegion)stream).length();
+			}
+		}
+
+		boolean last = !source.hasNext();
+
+		data.flush();
+
+		byte[] payload = bytes.toByteArray();
+
+		payload[1] = last ? LAST : 0;
+		ByteBuffer.wrap(payload, 2, 4).putInt(count);
+		return new Frame(CHUNK, callId, payload, data.streams);
+	}
+
+	// Builds the chunk which ends a stream with an exception.
+	static Frame marshalFailure(Codec codec, long callId, Throwable failure) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		Output data = new Output(bytes);
+
+		data.writeByte(codec.id());
+		data.writeByte(LAST | FAILED);
+		data.writeInt(0);
+		codec.writeValue(data, failure);
+		data.flush();
+		return new Frame(CHUNK, callId, bytes.toByteArray(), data.streams);
+	}
+
+	static Frame marshalCredit(long callId, int chunks)
+	{
+		return new Frame(CREDIT, callId, ByteBuffer.allocate(4).putInt(chunks).array());
+	}
+
+	// Returns the flags of a chunk.
+	int chunkFlags() throws IOException
+	{
+		if(payload.length < 6)
+		{
+			throw new StreamCorruptedException("chunk frame too short");
+		}
+
+		return payload[1];
+	}
+
+	// Returns the elements carried by a chunk, or, for a chunk with the
+	// FAILED flag, a list holding only the exception.
+	List<Object> elements() throws IOException, ClassNotFoundException
+	{
+		int flags = chunkFlags();
+		Codec codec = codec();
+		int count = (int)readLong(2, 4);
+		Input data = new Input(new ByteArrayInputStream(payload, 6, payload.length - 6), streams);
+
+		if((flags & FAILED) != 0)
+		{
+			return Collections.singletonList(codec.readValue(data));
+		}
+
+		if(count < 0 || count > payload.length)
+		{
+			throw new StreamCorruptedException("invalid chunk size " + count);
+		}
+
+		List<Object> elements = new ArrayList<Object>(count);
+
+		for(int i = 0; i < count; i++)
+		{
+			elements.add(codec.readValue(data));
+		}
+
+		return elements;
+	}
+
+	// Returns the number of chunks granted by a credit frame.
+	int credit() throws IOException
+	{
+		if(payload.length != 4)
+		{
+			throw new StreamCorruptedException("invalid credit frame");
+		}
+
+		return (int)readLong(0, 4);
+	}
+
+	// Frames received on a connection whose streams are still arriving, by
+	// call identifier. Each reader of a connection has its own assembler.
+	static class Assembler
+	{
+		private final Map<Long, Assembly> assemblies = new HashMap<Long, Assembly>();
+
+		// Takes a frame as it was read from the wire. Returns the frame, if it
+		// has no streams, or the frame whose last stream a DATA frame
+		// completes, or null if the streams of the frame are still arriving.
+		Frame add(byte type, long callId, byte[] body) throws IOException
+		{
+			if(type == DATA)
+			{
+				Assembly assembly = assemblies.get(callId);
+
+				if(assembly == null)
+				{
+					throw new StreamCorruptedException("unexpected data for call " + callId);
+				}
+
+				if(!assembly.receive(body))
+				{
+					return null;
+				}
+
+				assemblies.remove(callId);
+				return assembly.frame;
+			}
+
+			if((type & STREAMED) == 0)
+			{
+				return new Frame(type, callId, body);
+			}
+
+			if(assemblies.containsKey(callId))
+			{
+				throw new StreamCorruptedException("frame for call " + callId + " before the data of the previous one");
+			}
+
+			DataInputStream table = new DataInputStream(new ByteArrayInputStream(body));
+			int count = table.readInt();
+
+			checkStreamCount(count);
+
+			if(body.length < 4 + 9L * count)
+			{
+				throw new StreamCorruptedException("frame too short for its streams");
+			}
+
+			byte[] kinds = new byte[count];
+			long[] lengths = new long[count];
+
+			for(int i = 0; i < count; i++)
+			{
+				kinds[i] = table.readByte();
+				lengths[i] = table.readLong();
+				checkStream(kinds[i], lengths[i]);
+			}
+
+			byte[] payload = Arrays.copyOfRange(body, 4 + 9 * count, body.length);
+			Assembly assembly = new Assembly(new Frame((byte)(type & ~STREAMED), callId, payload, new ArrayList<Object>(count)), kinds, lengths);
+
+			if(assembly.receive(new byte[0]))
+			{
+				return assembly.frame;
+			}
+
+			assemblies.put(callId, assembly);
+			return null;
+		}
+
+		// Deletes whatever was received of frames which will not be
+		// completed, once the connection has ended.
+		void dispose()
+		{
+			for(Assembly assembly : assemblies.values())
+			{
+				assembly.dispose();
+			}
+
+			assemblies.clear();
+		}
+	}
+
+	// Frame whose streams are being received. Arrays are grown as data
+	// arrives rather than allocated at their announced length, and the
+	// temporary file of a file region is only created once its data starts.
+	private static class Assembly
+	{
+		final Frame frame;
+		private final byte[] kinds;
+		private final long[] lengths;
+		private byte[] array;
+		private int filled;
+		private FileRegion.Spool spool;
+
+		Assembly(Frame frame, byte[] kinds, long[] lengths)
+		{
+			this.frame = frame;
+			this.kinds = kinds;
+			this.lengths = lengths;
+		}
+
+		// Adds the contents of a DATA frame to the streams. Returns true once
+		// every stream has been received.
+		boolean receive(byte[] data) throws IOException
+		{
+			int offset = 0;
+
+			while(true)
+			{
+				int stream = frame.streams.size();
+
+				if(stream == lengths.length)
+				{
+					if(offset < data.length)
+					{
+						throw new StreamCorruptedException("data beyond the streams of call " + frame.callId);
+					}
+
+					return true;
+				}
+
+				if(offset == data.length && lengths[stream] > 0)
+				{
+					return false;
+				}
+
+				long length = lengths[stream];
+
+				if(kinds[stream] == BYTES)
+				{
+					if(array == null)
+					{
+						array = new byte[(int)Math.min(length, DATA_LENGTH)];
+						filled = 0;
+					}
+
+					int count = (int)Math.min(data.length - offset, length - filled);
+
+					if(filled + count > array.length)
+					{
+						array = Arrays.copyOf(array, (int)Math.min(length, Math.max(filled + count, 2L * array.length)));
+					}
+
+					System.arraycopy(data, offset, array, filled, count);
+					filled += count;
+					offset += count;
+
+					if(filled == length)
+					{
+						frame.streams.add(array);
+						array = null;
+					}
+				}
+				else
+				{
+					if(spool == null)
+					{
+						spool = new FileRegion.Spool(length);
+					}
+
+					int count = (int)Math.min(data.length - offset, spool.remaining());
+
+					spool.write(ByteBuffer.wrap(data, offset, count));
+					offset += count;
+
+					if(spool.remaining() == 0)
+					{
+						frame.streams.add(spool.finish());
+						spool = null;
+					}
+				}
+			}
+		}
+
+		void dispose()
+		{
+			if(spool != null)
+			{
+				spool.abort();
+				spool = null;
+			}
+
+			Frame.dispose(frame.streams);
+		}
+	}
+
+	// Stream into which the payload of a frame is encoded. Codecs may add
+	// large values to the streams of the frame rather than writing them.
+	static class Output extends DataOutputStream
+	{
+		final List<Object> streams = new ArrayList<Object>();
+		// Whether exceptions are written with their stack traces.
+		boolean stackTraces = false;
+
+		Output(OutputStream out)
+		{
+			super(out);
+		}
+
+		// Adds a value to the streams of the frame, and returns its index.
+		int stream(Object value)
+		{
+			streams.add(value);
+			return streams.size() - 1;
+		}
+	}
+
+	// Stream from which the payload of a frame is decoded.
+	static class Input extends DataInputStream
+	{
+		private final List<Object> streams;
+
+		Input(InputStream in, List<Object> streams)
+		{
+			super(in);
+			this.streams = streams;
+		}
+
+		// Returns the value carried by a stream of the frame.
+		Object stream(int index) throws IOException
+		{
+			if(index < 0 || index >= streams.size())
+			{
+				throw new StreamCorruptedException("invalid stream index " + index);
+			}
+
+			return streams.get(index);
+		}
+	}
+}
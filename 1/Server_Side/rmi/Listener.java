@@ -1,22 +1,25 @@
 //Server side program for thread handling
 package rmi;
 
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 
 public class Listener<T> extends Thread
 {
     private ServerSocket sock;
-    private T server;
-    private Class<T> c;
+    private Dispatcher<T> dispatcher;
 	private Skeleton<T> skeleton;
+	private ExecutorStrategy strategy;
+	private TransportOptions options;
 
-	public Listener(ServerSocket sock, T server, Class<T> c, Skeleton<T> skeleton)
+	Listener(ServerSocket sock, Dispatcher<T> dispatcher, ExecutorStrategy strategy, TransportOptions options)
 	{
 		this.sock = sock;
-        this.server = server;
-        this.c = c;
-		this.skeleton = skeleton;
+        this.dispatcher = dispatcher;
+		this.skeleton = dispatcher.skeleton();
+		this.strategy = strategy;
+		this.options = options;
 	}
 
 	public void run()
@@ -26,8 +29,19 @@ public class Listener<T> extends Thread
             while(true)
             {
                 Socket s = sock.accept();
-                ThreadRunnable thread = new ThreadRunnable(s, server, c, skeleton);
-                thread.start();
+				ThreadRunnable<T> connection = new ThreadRunnable<T>(s, dispatcher, options);
+
+				try
+				{
+					skeleton.connectionOpened(connection);
+					strategy.newConnectionThread(connection, "rmi-skeleton-" + s.getRemoteSocketAddress()).start();
+				}
+				catch(RuntimeException e)
+				{
+					skeleton.connectionClosed(connection);
+					close(s);
+					skeleton.service_error(new RMIException("Server side: unable to start connection thread", e));
+				}
             }
         }
         catch(Exception e)
@@ -35,4 +49,15 @@ public class Listener<T> extends Thread
 			//System.out.println("Server side: Listener Exception");
         }
 	}
-}
\ No newline at end of file
+
+	private void close(Socket s)
+	{
+		try
+		{
+			s.close();
+		}
+		catch(IOException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package rmi;
+
+import java.io.Serializable;
+
+/** Statistics of the calls to one method of a remote interface.
+
+	<p>
+	Statistics are a snapshot of the counters kept by a skeleton, for the calls
+	it received, or by the stubs of a process, for the calls they made. Counts
+	and bytes are totals since the skeleton was created or the stubs first
+	used. Latencies are measured by the skeleton from the arrival of the call to
+	the encoding of its reply, including time spent waiting to be admitted, and
+	by stubs from the encoding of the call to the decoding of its reply.
+	Latency percentiles are accurate to within about three percent.
+ */
+public final class MethodStatistics implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final String owner;
+	private final String method;
+	private final boolean server;
+	private final long calls;
+	private final long errors;
+	private final long inFlight;
+	private final long bytesIn;
+	private final long bytesOut;
+	private final long meanNanos;
+	private final long maxNanos;
+	private final long[] percentileNanos;
+
+	MethodStatistics(String owner, String method, boolean server, long calls, long errors, long inFlight, long bytesIn, long bytesOut, long meanNanos, long maxNanos, long[] percentileNanos)
+	{
+		this.owner = owner;
+		this.method = method;
+		this.server = server;
+		this.calls = calls;
+		this.errors = errors;
+		this.inFlight = inFlight;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.meanNanos = meanNanos;
+		this.maxNanos = maxNanos;
+		this.percentileNanos = percentileNanos;
+	}
+
+	/** Returns the name of the remote interface. */
+	public String getInterfaceName()
+	{
+		return owner;
+	}
+
+	/** Returns the name and type descriptor of the method, for example
+		<code>read(Lcommon/Path;JI)[B</code>. */
+	public String getMethod()
+	{
+		return method;
+	}
+
+	/** Checks whether the statistics were kept by a skeleton rather than by
+		stubs. */
+	public boolean isServer()
+	{
+		return server;
+	}
+
+	/** Returns the number of calls completed. */
+	public long getCalls()
+	{
+		return calls;
+	}
+
+	/** Returns the number of completed calls which ended with an
+		exception. */
+	public long getErrors()
+	{
+		return errors;
+	}
+
+	/** Returns the number of calls in progress when the statistics were
+		taken. */
+	public long getInFlight()
+	{
+		return inFlight;
+	}
+
+	/** Returns the number of bytes received: calls for a skeleton, replies for
+		stubs. */
+	public long getBytesIn()
+	{
+		return bytesIn;
+	}
+
+	/** Returns the number of bytes sent: replies for a skeleton, calls for
+		stubs. */
+	public long getBytesOut()
+	{
+		return bytesOut;
+	}
+
+	/** Returns the mean latency in nanoseconds, or zero if there were no
+		calls. */
+	public long getMeanLatency()
+	{
+		return meanNanos;
+	}
+
+	/** Returns the highest latency in nanoseconds. */
+	public long getMaxLatency()
+	{
+		return maxNanos;
+	}
+
+	/** Returns the median latency in nanoseconds. */
+	public long getP50()
+	{
+		return percentileNanos[0];
+	}
+
+	/** Returns the 99th percentile of latency in nanoseconds. */
+	public long getP99()
+	{
+		return percentileNanos[1];
+	}
+
+	/** Returns the 99.9th percentile of latency in nanoseconds. */
+	public long getP999()
+	{
+		return percentileNanos[2];
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%-6s %-50s %10d %8d %6d %12d %12d %10.1f %10.1f %10.1f %10.1f",
+							 server ? "server" : "client",
+							 shortName(owner) + "." + method,
+							 calls, errors, inFlight, bytesIn, bytesOut,
+							 getP50() / 1000.0, getP99() / 1000.0, getP999() / 1000.0, maxNanos / 1000.0);
+	}
+
+	/** Returns the header line of a table of statistics in the format of
+		<code>toString</code>. Latencies are in microseconds. */
+	public static String header()
+	{
+		return String.format("%-6s %-50s %10s %8s %6s %12s %12s %10s %10s %10s %10s",
+							 "side", "method", "calls", "errors", "active", "bytes-in", "bytes-out",
+							 "p50-us", "p99-us", "p99.9-us", "max-us");
+	}
+
+	private static String shortName(String name)
+	{
+		int dot = name.lastIndexOf('.');
+
+		return dot < 0 ? name : name.substring(dot + 1);
+	}
+}
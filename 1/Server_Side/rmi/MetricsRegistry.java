@@ -0,0 +1,152 @@
+//Per-method call metrics kept by a skeleton or by the stubs of one interface
+
+package rmi;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Metrics are kept in an array parallel to the interface's dispatch table, so
+// that the metrics of a call are found by binary search on its method ID.
+// Recording a call allocates nothing. The registry implements the Metrics
+// remote interface, which skeletons answer on their own address.
+class MetricsRegistry implements Metrics
+{
+	// Dispatch table of the Metrics interface, consulted by skeletons for
+	// method IDs absent from their own interface.
+	static final DispatchTable TABLE = DispatchTable.forInterface(Metrics.class);
+
+	private static final Map<Class<?>, MetricsRegistry> stubs = new ConcurrentHashMap<Class<?>, MetricsRegistry>();
+
+	private final Class<?> c;
+	private final boolean server;
+	private final DispatchTable table;
+	private final MethodMetrics[] methods;
+
+	MetricsRegistry(Class<?> c, boolean server)
+	{
+		this.c = c;
+		this.server = server;
+		this.table = DispatchTable.forInterface(c);
+		this.methods = new MethodMetrics[table.size()];
+
+		for(int i = 0; i < methods.length; i++)
+		{
+			methods[i] = new MethodMetrics();
+		}
+	}
+
+	// Returns the registry shared by all stubs for the given interface in this
+	// process.
+	static MetricsRegistry forStubs(Class<?> c)
+	{
+		MetricsRegistry registry = stubs.get(c);
+
+		if(registry == null)
+		{
+			synchronized(stubs)
+			{
+				registry = stubs.get(c);
+
+				if(registry == null)
+				{
+					registry = new MetricsRegistry(c, false);
+					stubs.put(c, registry);
+				}
+			}
+		}
+
+		return registry;
+	}
+
+	// Returns the metrics of the method with the given ID, or null if it is
+	// not a method of the interface.
+	MethodMetrics forId(long id)
+	{
+		int index = table.indexOf(id);
+
+		return index >= 0 ? methods[index] : null;
+	}
+
+	public MethodStatistics[] statistics()
+	{
+		MethodStatistics[] statistics = new MethodStatistics[methods.length];
+
+		for(int i = 0; i < methods.length; i++)
+		{
+			statistics[i] = methods[i].snapshot(c.getName(), DispatchTable.signature(table.method(i)), server);
+		}
+
+		return statistics;
+	}
+
+	public String report()
+	{
+		StringBuilder builder = new StringBuilder(MethodStatistics.header()).append('\n');
+
+		for(MethodStatistics statistics : statistics())
+		{
+			builder.append(statistics).append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	// Writes the report to a file, replacing its contents.
+	void dump(File file) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+		try
+		{
+			writer.write(report());
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	// Counters of the calls to one method.
+	static class MethodMetrics
+	{
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong inFlight = new AtomicLong();
+		private final AtomicLong bytesIn = new AtomicLong();
+		private final AtomicLong bytesOut = new AtomicLong();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		void begin()
+		{
+			inFlight.incrementAndGet();
+		}
+
+		// Records a completed call, begun at the given time.
+		void end(long startNanos, boolean failed)
+		{
+			latency.record(System.nanoTime() - startNanos);
+			inFlight.decrementAndGet();
+			calls.incrementAndGet();
+
+			if(failed)
+			{
+				errors.incrementAndGet();
+			}
+		}
+
+		void transferred(long received, long sent)
+		{
+			bytesIn.addAndGet(received);
+			bytesOut.addAndGet(sent);
+		}
+
+		MethodStatistics snapshot(String owner, String method, boolean server)
+		{
+			return new MethodStatistics(owner, method, server, calls.get(), errors.get(), inFlight.get(),
+										bytesIn.get(), bytesOut.get(), latency.mean(), latency.max(),
+										latency.percentiles(0.5, 0.99, 0.999));
+		}
+	}
+}
@@ -7,28 +7,57 @@ import java.lang.reflect.*;
 import java.net.*;
 import java.lang.*;
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
 
 public class MyInvocationHandler implements InvocationHandler, Serializable
 {
 	private InetAddress inetAddress;
 	private Class c;
 	private Integer port;	
+	// Codec and timeout chosen for this stub. Like the options, they are not
+	// carried when the stub is transmitted, and a received stub uses the
+	// default codec and no timeout.
+	private transient int codecId = BinaryCodec.ID;
+	private transient long timeoutNanos = 0;
+	// Options of the connections made by this stub, or null for the defaults.
+	private transient TransportOptions options;
+	// Unix-domain socket file through which the skeleton is reached, or null
+	// to connect to its address.
+	private transient Path file;
+	private transient volatile ConnectionPool pool;
+	private transient volatile MetricsRegistry metrics;
+	private transient volatile DispatchTable table;
+	// Whether the skeleton address is one of this host's, once known.
+	private transient volatile Boolean localHost;
 	
+	// The dispatch table is built when the first stub for an interface is
+	// created, so that an invalid interface is rejected at once.
 	public MyInvocationHandler(Class c, InetAddress inetAddress, Integer port)
 	{
 		this.c = c;
 		this.inetAddress = inetAddress;
 		this.port = port;
+		this.table = DispatchTable.forInterface(c);
 	}
 	public MyInvocationHandler(Class c, Integer port)
 	{
 		this.c = c;
 		this.port = port;
 		this.inetAddress = null;
+		this.table = DispatchTable.forInterface(c);
 	}
 	
 	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		codecId = BinaryCodec.ID;
+	}
+	
 	public InetAddress getAddress()
 	{
 		return inetAddress;
@@ -39,11 +68,69 @@ public class MyInvocationHandler implements InvocationHandler, Serializable
 		return port;
 	}
 	
+	Class getInterface()
+	{
+		return c;
+	}
+	
+	// Returns a handler for the same skeleton which encodes calls with the
+	// given codec.
+	MyInvocationHandler withCodec(Codec codec)
+	{
+		MyInvocationHandler handler = copy();
+		
+		handler.codecId = codec.id();
+		return handler;
+	}
+	
+	// Returns a handler for the same skeleton whose calls time out after the
+	// given time, or never if it is zero.
+	MyInvocationHandler withTimeout(long timeoutNanos)
+	{
+		MyInvocationHandler handler = copy();
+		
+		handler.timeoutNanos = timeoutNanos;
+		return handler;
+	}
+	
+	// Returns a handler for the same skeleton whose connections have the
+	// given options.
+	MyInvocationHandler withTransportOptions(TransportOptions options)
+	{
+		MyInvocationHandler handler = copy();
+		
+		handler.options = options;
+		return handler;
+	}
+	
+	// Returns a handler for the same skeleton which connects through the
+	// given Unix-domain socket file.
+	MyInvocationHandler withUnixDomainSocket(Path file)
+	{
+		MyInvocationHandler handler = copy();
+		
+		handler.file = file;
+		return handler;
+	}
+	
+	private MyInvocationHandler copy()
+	{
+		MyInvocationHandler handler = new MyInvocationHandler(c, inetAddress, port);
+		
+		handler.codecId = codecId;
+		handler.timeoutNanos = timeoutNanos;
+		handler.options = options;
+		handler.file = file;
+		return handler;
+	}
+	
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
 	{
 		try
         {
-			if(RMIException.isRMIMethod(method) == false)
+			DispatchTable.Entry entry = table().entry(method);
+			
+			if(entry == null)
 			{
 				//System.out.println("Local Method Executing");
 				return localFunctionHandler(proxy, method, args);
@@ -51,7 +138,7 @@ public class MyInvocationHandler implements InvocationHandler, Serializable
 	        else
 			{
 				//System.out.println("Remote Method Executing");
-				return useClient(proxy, method, args); 
+				return useClient(entry, args); 
 			}
 	    }
         catch (Exception e) 
@@ -185,41 +272,334 @@ public class MyInvocationHandler implements InvocationHandler, Serializable
 	
 	public Object useClient(Object proxy, Method method, Object[] args) throws Throwable
 	{
-		Socket clientSocket = null;
-		boolean isServerAlive = true;
-		Object result = null;
+		return useClient(entry(method), args);
+	}
+	
+	Object useClient(DispatchTable.Entry entry, Object[] args) throws Throwable
+	{
+		long start = System.nanoTime();
+		long methodId = entry.id;
+		MetricsRegistry.MethodMetrics counters = metrics().forId(methodId);
+		Cacheable cacheable = entry.cacheable;
+		Frame.Arguments arguments = null;
+		ResultCache.Key key = null;
+		
+		// The arguments of a cacheable call are encoded first, and the
+		// encoding is both the key of the cache and what is sent on a miss.
+		// Arguments carried as streams are not compared, so such calls are
+		// not cached.
+		if(cacheable != null)
+		{
+			arguments = marshalArguments(args);
+			
+			if(arguments.streams.isEmpty())
+			{
+				key = new ResultCache.Key(inetAddress, port, methodId, codecId, arguments.bytes);
+				
+				Frame cached = ResultCache.shared().get(key);
+				
+				if(cached != null)
+				{
+					return decode(cached);
+				}
+			}
+		}
+		
+		TraceContext parent = TraceContext.current();
+		TraceContext span = startSpan(parent);
+		boolean failed = true;
+		
+		if(counters != null)
+		{
+			counters.begin();
+		}
 		
 		try
-		{			
-			clientSocket = new Socket(inetAddress, port);
+		{
+			if(entry.oneWay)
+			{
+				remoteCallOneWay(methodId, args, counters, span);
+				failed = false;
+				return null;
+			}
 			
-			ObjectOutputStream oos = new ObjectOutputStream(clientSocket.getOutputStream());
+			if(entry.isStreamed())
+			{
+				Object result = remoteCallStreamed(entry, args, counters, span);
+				
+				failed = false;
+				return result;
+			}
 			
-			oos.flush();
+			Frame reply = remoteCall(methodId, arguments != null ? arguments : marshalArguments(args), counters, span);
 			
-			oos.writeObject(c.getName());
-			oos.writeObject(method.getName());			
-			oos.writeObject(method.getParameterTypes());			
-			oos.writeObject(args);
+			if(key != null && isNormalReturn(reply))
+			{
+				ResultCache.shared().put(key, reply, cacheable.unit().toNanos(cacheable.ttl()));
+			}
 			
-			ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream());							
+			Object result = decode(reply);
 			
-			isServerAlive = (boolean)ois.readObject();
-
-			result = ois.readObject();			
-			clientSocket.close();
+			failed = false;
+			return result;
+		}
+		finally
+		{
+			if(counters != null)
+			{
+				counters.end(start, failed);
+			}
+			
+			endSpan(span, parent, entry.method, start, failed);
+		}
+	}
+	
+	// Returns the trace context of a call: a child of the span current on the
+	// calling thread, or the root of a new trace if the call is sampled, or
+	// null if the call is not traced.
+	private static TraceContext startSpan(TraceContext parent)
+	{
+		if(parent != null)
+		{
+			return parent.child();
+		}
+		
+		return Tracer.sample() ? TraceContext.root() : null;
+	}
+	
+	// Records the span of a traced call.
+	private void endSpan(TraceContext span, TraceContext parent, Method method, long start, boolean failed)
+	{
+		if(span != null)
+		{
+			Tracer.recordClient(span, parent == null ? 0 : parent.spanId, 'C', Tracer.spanName(method), peer(), start, System.nanoTime(), failed);
+		}
+	}
+	
+	private String peer()
+	{
+		return (inetAddress == null ? "localhost" : inetAddress.getHostAddress()) + ":" + port;
+	}
+	
+	// Encodes the arguments of a call with the stub's codec.
+	private Frame.Arguments marshalArguments(Object[] args) throws RMIException
+	{
+		try
+		{
+			return Frame.marshalArguments(Codec.forId(codecId), args);
 		}
 		catch(Exception e)
 		{
-			//System.out.println("useClient Exception");
-			throw new RMIException("RMI");
+			throw new RMIException("RMI", e);
 		}
-		finally
+	}
+	
+	// Makes a call with encoded arguments and returns the reply.
+	private Frame remoteCall(long methodId, Frame.Arguments arguments, MetricsRegistry.MethodMetrics counters, TraceContext span) throws RMIException
+	{
+		Frame request;
+		Deadline deadline = Deadline.forCall(timeoutNanos);
+		
+		try
+		{
+			request = Frame.marshalCall(Codec.forId(codecId), methodId, deadline, span, arguments);
+		}
+		catch(Exception e)
+		{
+			throw new RMIException("RMI", e);
+		}
+		
+		Frame reply = local(request, deadline);
+		
+		if(reply == null)
+		{
+			reply = exchange(request, deadline);
+		}
+		
+		if(counters != null)
+		{
+			counters.transferred(reply.size(), request.size());
+		}
+		
+		return reply;
+	}
+	
+	// Makes a call directly if the skeleton is running in this JVM, and
+	// returns the reply, or null if the call must be sent over a connection.
+	// The call and the reply are still encoded, so that arguments and results
+	// are copies, as they are when sent over a connection, but the call runs
+	// on the calling thread, without going through the network stack. A call
+	// whose deadline has already passed is left to fail as it would over a
+	// connection.
+	private Frame local(Frame request, Deadline deadline) throws RMIException
+	{
+		Skeleton<?> skeleton = Skeleton.running(inetAddress, port, isLocalHost());
+		
+		if(skeleton == null || (deadline != null && deadline.isExpired()))
+		{
+			return null;
+		}
+		
+		try
+		{
+			Frame reply = skeleton.callLocal(request.copy(), deadline);
+			
+			return reply == null ? null : reply.copy();
+		}
+		catch(IOException | InterruptedException e)
+		{
+			throw new RMIException("RMI", e);
+		}
+	}
+	
+	private boolean isLocalHost()
+	{
+		if(localHost == null)
+		{
+			boolean local;
+			
+			try
+			{
+				local = inetAddress == null || inetAddress.isAnyLocalAddress() || inetAddress.isLoopbackAddress() || NetworkInterface.getByInetAddress(inetAddress) != null;
+			}
+			catch(SocketException e)
+			{
+				local = false;
+			}
+			
+			localHost = local;
+		}
+		
+		return localHost;
+	}
+	
+	// Sends a call to a one-way method, returning once it has been written.
+	// As for other calls, a call which cannot be written is tried once more on
+	// a new connection.
+	private void remoteCallOneWay(long methodId, Object[] args, MetricsRegistry.MethodMetrics counters, TraceContext span) throws RMIException
+	{
+		Frame request;
+		Deadline deadline = Deadline.forCall(timeoutNanos);
+		
+		try
+		{
+			request = Frame.marshalCall(Codec.forId(codecId), methodId, deadline, span, args).asOneWay();
+		}
+		catch(Exception e)
+		{
+			throw new RMIException("RMI", e);
+		}
+		
+		ConnectionPool connectionPool = pool();
+		
+		for(int attempt = 0; ; attempt++)
+		{
+			Connection connection = null;
+			
+			try
+			{
+				checkDeadline(deadline);
+				connection = connectionPool.acquire(deadline);
+				connection.callOneWay(request);
+				break;
+			}
+			catch(Exception e)
+			{
+				if(isRetryable(connection, attempt, e))
+				{
+					connectionPool.clear();
+					continue;
+				}
+				
+				throw new RMIException("RMI", e);
+			}
+		}
+		
+		if(counters != null)
+		{
+			counters.transferred(0, request.size());
+		}
+	}
+	
+	// Makes a call with a streamed argument or result. The elements of the
+	// argument are sent from the calling thread after the call, and the
+	// result is returned as soon as the reply arrives, its elements being
+	// read as the caller iterates over it. A streamed call is never retried,
+	// as its argument may have been partly consumed.
+	private Object remoteCallStreamed(DispatchTable.Entry entry, Object[] args, MetricsRegistry.MethodMetrics counters, TraceContext span) throws Throwable
+	{
+		Codec codec = Codec.forId(codecId);
+		Deadline deadline = Deadline.forCall(timeoutNanos);
+		Iterator<?> argument = null;
+		Frame request;
+		
+		if(entry.streamedArgument >= 0)
+		{
+			args = args.clone();
+			argument = (Iterator<?>)args[entry.streamedArgument];
+			args[entry.streamedArgument] = null;
+			
+			if(argument == null)
+			{
+				argument = Collections.emptyIterator();
+			}
+		}
+		
+		try
+		{
+			request = Frame.marshalCall(codec, entry.id, deadline, span, args);
+		}
+		catch(Exception e)
+		{
+			throw new RMIException("RMI", e);
+		}
+		
+		ElementStream.Inbound result = entry.streamedResult ? new ElementStream.Inbound() : null;
+		Frame reply;
+		
+		try
+		{
+			checkDeadline(deadline);
+			reply = pool().acquire(deadline).callStreamed(request, deadline, argument, codec, result);
+		}
+		catch(Exception e)
 		{
-			if(clientSocket != null && clientSocket.isClosed()==false)
+			throw new RMIException("RMI", e);
+		}
+		
+		if(counters != null)
+		{
+			counters.transferred(reply.size(), request.size());
+		}
+		
+		if(result == null || isNormalReturn(reply) == false)
+		{
+			if(result != null)
 			{
-				clientSocket.close();
+				result.close();
 			}
+			
+			return decode(reply);
+		}
+		
+		return result;
+	}
+	
+	// Returns the value carried by a reply, or throws the exception it
+	// carries.
+	private static Object decode(Frame reply) throws Throwable
+	{
+		boolean isServerAlive;
+		Object result;
+		
+		try
+		{
+			isServerAlive = reply.isNormalReturn();
+			result = reply.result();
+		}
+		catch(Exception e)
+		{
+			throw new RMIException("RMI", e);
 		}
 		
         if(isServerAlive == false) 
@@ -228,5 +608,335 @@ public class MyInvocationHandler implements InvocationHandler, Serializable
         }
 
         return result;		
-	}	
+	}
+	
+	// Sends several calls in one batch frame and returns the replies to each.
+	Frame[] useClientBatch(long[] methodIds, Object[][] args, boolean parallel) throws RMIException
+	{
+		Frame[] calls = new Frame[methodIds.length];
+		Deadline deadline = Deadline.forCall(timeoutNanos);
+		TraceContext parent = TraceContext.current();
+		TraceContext[] spans = new TraceContext[calls.length];
+		
+		try
+		{
+			for(int i = 0; i < calls.length; i++)
+			{
+				spans[i] = startSpan(parent);
+				calls[i] = Frame.marshalCall(Codec.forId(codecId), methodIds[i], deadline, spans[i], args[i]);
+			}
+		}
+		catch(Exception e)
+		{
+			throw new RMIException("RMI", e);
+		}
+		
+		// Each call of the batch is recorded in the metrics of its method, and
+		// traced, with the latency of the whole batch.
+		long start = System.nanoTime();
+		MetricsRegistry.MethodMetrics[] counters = new MetricsRegistry.MethodMetrics[calls.length];
+		Frame[] replies = null;
+		
+		for(int i = 0; i < calls.length; i++)
+		{
+			counters[i] = metrics().forId(methodIds[i]);
+			
+			if(counters[i] != null)
+			{
+				counters[i].begin();
+			}
+		}
+		
+		try
+		{
+			replies = exchange(Frame.marshalBatch(parallel, calls), deadline).split(Frame.REPLY);
+			return replies;
+		}
+		catch(IOException e)
+		{
+			throw new RMIException("RMI", e);
+		}
+		finally
+		{
+			for(int i = 0; i < calls.length; i++)
+			{
+				boolean answered = replies != null && i < replies.length;
+				boolean failed = !answered || !isNormalReturn(replies[i]);
+				
+				endSpan(spans[i], parent, table().lookup(methodIds[i]), start, failed);
+				
+				if(counters[i] == null)
+				{
+					continue;
+				}
+				
+				if(answered)
+				{
+					counters[i].transferred(replies[i].size(), calls[i].size());
+				}
+				
+				counters[i].end(start, failed);
+			}
+		}
+	}
+	
+	private static boolean isNormalReturn(Frame reply)
+	{
+		try
+		{
+			return reply.isNormalReturn();
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+	
+	// Sends a request on a pooled connection and waits for the reply, until
+	// the deadline if there is one. The request is sent again on a new
+	// connection if isRetryable allows it.
+	private Frame exchange(Frame request, Deadline deadline) throws RMIException
+	{
+		ConnectionPool connectionPool = pool();
+		
+		for(int attempt = 0; ; attempt++)
+		{
+			Connection connection = null;
+			
+			try
+			{
+				checkDeadline(deadline);
+				connection = connectionPool.acquire(deadline);
+				return connection.call(request, deadline);
+			}
+			catch(Exception e)
+			{
+				if(isRetryable(connection, attempt, e))
+				{
+					connectionPool.clear();
+					continue;
+				}
+				
+				//System.out.println("useClient Exception");
+				throw new RMIException("RMI", e);
+			}
+		}
+	}
+	
+	// Fails a call whose deadline has passed before it could be sent.
+	private static void checkDeadline(Deadline deadline) throws SocketTimeoutException
+	{
+		if(deadline != null && deadline.isExpired())
+		{
+			throw new SocketTimeoutException("deadline expired");
+		}
+	}
+	
+	// Whether a failed call is sent once more on a new connection. Only a
+	// call which was never written in full, because the write failed or the
+	// connection was already known to be closed, is sent again: the skeleton
+	// starts a call only once it has read the whole frame, so such a call
+	// cannot have run. A connection which fails once the call has been written
+	// may have been closed by the skeleton while idle, but the skeleton may
+	// equally have run the call before failing, so the failure is reported.
+	private static boolean isRetryable(Connection connection, int attempt, Throwable failure)
+	{
+		return connection != null && attempt == 0 && failure instanceof Connection.NotSentException;
+	}
+	
+	// Makes a remote call without waiting for its reply. The reply is decoded,
+	// and the future completed, on a pool thread rather than on the thread
+	// reading the connection, so that callbacks attached to the future cannot
+	// hold up the replies to other calls. The deadline, and the trace, are
+	// those of the thread making the call.
+	CompletableFuture<Object> useClientAsync(final Method method, Object[] args)
+	{
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		final long start = System.nanoTime();
+		final DispatchTable.Entry entry = entry(method);
+		
+		if(entry.isStreamed())
+		{
+			result.completeExceptionally(new RMIException("streamed method " + method.getName() + " cannot be called asynchronously"));
+			return result;
+		}
+		
+		// A one-way call is complete once it has been written.
+		if(entry.oneWay)
+		{
+			try
+			{
+				useClient(entry, args);
+				result.complete(null);
+			}
+			catch(Throwable t)
+			{
+				result.completeExceptionally(t);
+			}
+			
+			return result;
+		}
+		
+		final MetricsRegistry.MethodMetrics counters = metrics().forId(entry.id);
+		final TraceContext parent = TraceContext.current();
+		final TraceContext span = startSpan(parent);
+		
+		if(span != null)
+		{
+			result.whenComplete(new BiConsumer<Object, Throwable>()
+			{
+				public void accept(Object value, Throwable failure)
+				{
+					endSpan(span, parent, method, start, failure != null);
+				}
+			});
+		}
+		
+		if(counters != null)
+		{
+			counters.begin();
+			result.whenComplete(new BiConsumer<Object, Throwable>()
+			{
+				public void accept(Object value, Throwable failure)
+				{
+					counters.end(start, failure != null);
+				}
+			});
+		}
+		
+		sendAsync(entry, args, Deadline.forCall(timeoutNanos), span, 0, result);
+		return result;
+	}
+	
+	private void sendAsync(final DispatchTable.Entry entry, final Object[] args, final Deadline deadline, final TraceContext span, final int attempt, final CompletableFuture<Object> result)
+	{
+		final ConnectionPool connectionPool = pool();
+		final Connection connection;
+		Frame request;
+		
+		try
+		{
+			checkDeadline(deadline);
+			request = Frame.marshalCall(Codec.forId(codecId), entry.id, deadline, span, args);
+			connection = connectionPool.acquire(deadline);
+		}
+		catch(Exception e)
+		{
+			result.completeExceptionally(new RMIException("RMI", e));
+			return;
+		}
+		
+		final long sent = request.size();
+		final CompletableFuture<Frame> call = connection.callAsync(request, deadline);
+		
+		// A call abandoned by the caller, such as the losing request of a
+		// hedged call, no longer waits for its reply.
+		result.whenComplete(new BiConsumer<Object, Throwable>()
+		{
+			public void accept(Object value, Throwable failure)
+			{
+				if(result.isCancelled())
+				{
+					call.cancel(false);
+				}
+			}
+		});
+		
+		call.whenComplete(new BiConsumer<Frame, Throwable>()
+		{
+			public void accept(final Frame reply, final Throwable failure)
+			{
+				ForkJoinPool.commonPool().execute(new Runnable()
+				{
+					public void run()
+					{
+						// As for blocking calls, a call which was not written is
+						// retried once on a new connection.
+						if(failure != null)
+						{
+							if(isRetryable(connection, attempt, failure))
+							{
+								connectionPool.clear();
+								sendAsync(entry, args, deadline, span, attempt + 1, result);
+								return;
+							}
+							
+							result.completeExceptionally(new RMIException("RMI", failure));
+							return;
+						}
+						
+						MetricsRegistry.MethodMetrics counters = metrics().forId(entry.id);
+						
+						if(counters != null)
+						{
+							counters.transferred(reply.size(), sent);
+						}
+						
+						try
+						{
+							boolean isServerAlive = reply.isNormalReturn();
+							Object value = reply.result();
+							
+							if(isServerAlive)
+							{
+								result.complete(value);
+							}
+							else
+							{
+								result.completeExceptionally((Throwable)value);
+							}
+						}
+						catch(Exception e)
+						{
+							result.completeExceptionally(new RMIException("RMI", e));
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	// Metrics of the calls made by all stubs for the interface of this stub.
+	private MetricsRegistry metrics()
+	{
+		if(metrics == null)
+		{
+			metrics = MetricsRegistry.forStubs(c);
+		}
+		
+		return metrics;
+	}
+	
+	// Dispatch table of the interface of this stub.
+	DispatchTable table()
+	{
+		if(table == null)
+		{
+			table = DispatchTable.forInterface(c);
+		}
+		
+		return table;
+	}
+	
+	// Entry of a method called through this stub. A method which is not in
+	// the table is sent by its ID all the same, and rejected by the skeleton.
+	DispatchTable.Entry entry(Method method)
+	{
+		DispatchTable.Entry entry = table().entry(method);
+		
+		return entry != null ? entry : new DispatchTable.Entry(method);
+	}
+	
+	// Connection pool for the skeleton address carried by this stub, its
+	// transport options and its socket file. It is looked up once, and again after the stub is
+	// deserialized or the pool is retired.
+	private ConnectionPool pool()
+	{
+		if(pool == null || pool.isRetired())
+		{
+			pool = ConnectionPool.get(inetAddress, port, options != null ? options : TransportOptions.defaults(), file);
+		}
+		
+		return pool;
+	}
 }
\ No newline at end of file
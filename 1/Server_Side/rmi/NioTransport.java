@@ -0,0 +1,830 @@
+//Server side transport reading all connections from a few selector threads
+
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Connections are accepted by blocking acceptor threads, all accepting on the
+// same channel, and assigned in turn to event loops. Each event loop owns a
+// selector and reads the frames arriving on its connections into a buffer per
+// connection. Complete call frames are handed to the dispatcher. Replies are
+// written directly by the thread which ran the call; only a reply which does
+// not fit in the socket buffer is left for the event loop to finish writing.
+// Queued replies take turns, one frame at a time, so that the streams of a
+// large reply do not hold back the others.
+class NioTransport extends Transport
+{
+	// Interval at which event loops look for idle connections
+	private static final long IDLE_CHECK = 1000;
+	// Connections waiting to be accepted, unless the options say otherwise.
+	// Bursts of connections are expected when many clients connect at once.
+	private static final int BACKLOG = 1024;
+
+	private final int acceptors;
+	private final int eventLoops;
+	// Unix-domain socket file on which connections are also accepted, or null.
+	private final Path file;
+
+	NioTransport(int acceptors, int eventLoops)
+	{
+		this(acceptors, eventLoops, null);
+	}
+
+	NioTransport(int acceptors, int eventLoops, Path file)
+	{
+		this.acceptors = acceptors;
+		this.eventLoops = eventLoops;
+		this.file = file;
+	}
+
+	Endpoint open(InetSocketAddress address, Dispatcher<?> dispatcher, ExecutorStrategy strategy, TransportOptions options) throws IOException
+	{
+		ServerSocketChannel channel = ServerSocketChannel.open();
+
+		try
+		{
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			options.configure(channel.socket());
+			channel.bind(address, options.backlog(BACKLOG));
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		ServerSocketChannel local = null;
+
+		try
+		{
+			if(file != null)
+			{
+				local = UnixDomain.listen(file, options.backlog(BACKLOG));
+			}
+
+			return new NioEndpoint(channel, local, dispatcher, options);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			channel.close();
+
+			if(local != null)
+			{
+				local.close();
+				Files.deleteIfExists(file);
+			}
+
+			throw e;
+		}
+	}
+
+	public String toString()
+	{
+		return "nio(" + acceptors + ", " + eventLoops + ")" + (file == null ? "" : " + unix(" + file + ")");
+	}
+
+	private class NioEndpoint implements Endpoint
+	{
+		private final ServerSocketChannel channel;
+		// Channel listening on the Unix-domain socket file, or null.
+		private final ServerSocketChannel local;
+		private final Dispatcher<?> dispatcher;
+		private final TransportOptions options;
+		private final EventLoop[] loops;
+		private final Thread[] acceptorThreads;
+		private final AtomicInteger next = new AtomicInteger();
+
+		NioEndpoint(ServerSocketChannel channel, ServerSocketChannel local, Dispatcher<?> dispatcher, TransportOptions options) throws IOException
+		{
+			this.channel = channel;
+			this.local = local;
+			this.dispatcher = dispatcher;
+			this.options = options;
+
+			int port = channel.socket().getLocalPort();
+
+			loops = new EventLoop[eventLoops];
+
+			for(int i = 0; i < loops.length; i++)
+			{
+				loops[i] = new EventLoop(Selector.open());
+			}
+
+			for(int i = 0; i < loops.length; i++)
+			{
+				Thread thread = new Thread(loops[i], "rmi-nio-loop-" + port + "-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			// Connections through the socket file are accepted by one more
+			// acceptor.
+			acceptorThreads = new Thread[local == null ? acceptors : acceptors + 1];
+
+			for(int i = 0; i < acceptorThreads.length; i++)
+			{
+				final ServerSocketChannel listening = i < acceptors ? channel : local;
+
+				acceptorThreads[i] = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						accept(listening);
+					}
+				}, "rmi-nio-accept-" + port + "-" + i);
+				acceptorThreads[i].start();
+			}
+		}
+
+		public InetSocketAddress getAddress()
+		{
+			ServerSocket sock = channel.socket();
+
+			return new InetSocketAddress(sock.getInetAddress(), sock.getLocalPort());
+		}
+
+		public void close() throws InterruptedException
+		{
+			try
+			{
+				channel.close();
+
+				if(local != null)
+				{
+					local.close();
+					Files.deleteIfExists(file);
+				}
+			}
+			catch(IOException e)
+			{
+			}
+
+			for(Thread thread : acceptorThreads)
+			{
+				if(thread != Thread.currentThread())
+				{
+					thread.join();
+				}
+			}
+
+			// The event loops finish sending the replies to the calls in
+			// progress, and exit once their connections have closed.
+			for(EventLoop loop : loops)
+			{
+				loop.stop();
+			}
+		}
+
+		// Accepts connections until the listening channel is closed. Socket
+		// options apply to TCP connections only.
+		private void accept(ServerSocketChannel listening)
+		{
+			while(true)
+			{
+				SocketChannel socket;
+
+				try
+				{
+					socket = listening.accept();
+				}
+				catch(IOException e)
+				{
+					return;
+				}
+
+				NioConnection connection = null;
+
+				try
+				{
+					socket.configureBlocking(false);
+					if(listening == channel)
+					{
+						options.configure(socket.socket());
+					}
+
+					EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+
+					connection = new NioConnection(socket, dispatcher, loop, options.channelBufferSize());
+					dispatcher.skeleton().connectionOpened(connection);
+					loop.add(connection);
+				}
+				catch(IOException e)
+				{
+					if(connection != null)
+					{
+						dispatcher.skeleton().connectionClosed(connection);
+					}
+
+					try
+					{
+						socket.close();
+					}
+					catch(IOException j)
+					{
+					}
+
+					dispatcher.skeleton().service_error(new RMIException("Server side: unable to register connection", e));
+				}
+			}
+		}
+	}
+
+	// Thread multiplexing the reading of many connections over one selector.
+	private static class EventLoop implements Runnable
+	{
+		private final Selector selector;
+		private final Queue<NioConnection> added = new ConcurrentLinkedQueue<NioConnection>();
+		private volatile boolean stopping = false;
+
+		EventLoop(Selector selector)
+		{
+			this.selector = selector;
+		}
+
+		void add(NioConnection connection)
+		{
+			added.add(connection);
+			selector.wakeup();
+		}
+
+		void stop()
+		{
+			stopping = true;
+			selector.wakeup();
+		}
+
+		void wakeup()
+		{
+			selector.wakeup();
+		}
+
+		public void run()
+		{
+			long lastCheck = System.currentTimeMillis();
+
+			try
+			{
+				while(!(stopping && added.isEmpty() && selector.keys().isEmpty()))
+				{
+					selector.select(IDLE_CHECK);
+					register();
+
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+					while(iterator.hasNext())
+					{
+						SelectionKey key = iterator.next();
+						NioConnection connection = (NioConnection)key.attachment();
+
+						iterator.remove();
+
+						if(key.isValid() && key.isReadable())
+						{
+							connection.readable();
+						}
+
+						if(key.isValid() && key.isWritable())
+						{
+							connection.writable();
+						}
+					}
+
+					long now = System.currentTimeMillis();
+
+					if(now - lastCheck >= IDLE_CHECK)
+					{
+						lastCheck = now;
+
+						for(SelectionKey key : selector.keys())
+						{
+							if(key.isValid())
+							{
+								((NioConnection)key.attachment()).checkIdle(now);
+							}
+						}
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				for(SelectionKey key : selector.keys())
+				{
+					((NioConnection)key.attachment()).ended(e);
+				}
+			}
+			finally
+			{
+				try
+				{
+					selector.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+
+		private void register()
+		{
+			NioConnection connection;
+
+			while((connection = added.poll()) != null)
+			{
+				try
+				{
+					connection.register(selector);
+				}
+				catch(ClosedChannelException e)
+				{
+					// The skeleton was stopped before the connection could be
+					// registered.
+					connection.ended(e);
+				}
+			}
+		}
+	}
+
+	// Connection read by an event loop.
+	private static class NioConnection extends ServerConnection
+	{
+		private final SocketChannel channel;
+		private final Dispatcher<?> dispatcher;
+		private final EventLoop loop;
+		private final int bufferSize;
+		// Frames not yet written in full, in the order in which they are
+		// written.
+		private final LinkedList<Outgoing> output = new LinkedList<Outgoing>();
+		private final Frame.Assembler assembler = new Frame.Assembler();
+
+		private SelectionKey key;
+		private ByteBuffer input;
+		private int calls = 0;
+		private boolean ended = false;
+		private boolean closeWhenFlushed = false;
+		private boolean shutdownWhenFlushed = false;
+		private volatile long lastActive = System.currentTimeMillis();
+
+		NioConnection(SocketChannel channel, Dispatcher<?> dispatcher, EventLoop loop, int bufferSize)
+		{
+			this.channel = channel;
+			this.dispatcher = dispatcher;
+			this.loop = loop;
+			this.bufferSize = bufferSize;
+			this.input = ByteBuffer.allocate(bufferSize);
+		}
+
+		void register(Selector selector) throws ClosedChannelException
+		{
+			synchronized(output)
+			{
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+			}
+		}
+
+		// Reads what has arrived and dispatches every complete call frame.
+		void readable()
+		{
+			try
+			{
+				if(channel.read(input) < 0)
+				{
+					ended(new EOFException());
+					return;
+				}
+
+				lastActive = System.currentTimeMillis();
+				input.flip();
+
+				while(!ended && consumeFrame())
+				{
+				}
+
+				input.compact();
+
+				// Return to a small buffer once a large frame has been read.
+				if(input.position() == 0 && input.capacity() > bufferSize)
+				{
+					input = ByteBuffer.allocate(bufferSize);
+				}
+			}
+			catch(IOException e)
+			{
+				if(!isClosing())
+				{
+					dispatcher.skeleton().service_error(new RMIException("Server Side: IO Exception", e));
+				}
+
+				ended(null);
+			}
+		}
+
+		// Consumes the next frame of the input, and dispatches it if it
+		// completes a call. Returns false if more input is needed.
+		private boolean consumeFrame() throws IOException
+		{
+			if(input.remaining() < 4)
+			{
+				return false;
+			}
+
+			int length = input.getInt(input.position());
+
+			Frame.checkLength(length);
+
+			if(input.remaining() < 4 + length)
+			{
+				// Make room for more of a frame larger than the buffer, once the
+				// buffer is half full of it: the buffer grows with the frame
+				// received rather than with the length announced.
+				if(input.capacity() < 4 + length && input.remaining() >= input.capacity() / 2)
+				{
+					ByteBuffer larger = ByteBuffer.allocate((int)Math.min(4 + length, 2L * input.capacity()));
+
+					larger.put(input);
+					larger.flip();
+					input = larger;
+				}
+
+				return false;
+			}
+
+			input.getInt();
+
+			byte type = input.get();
+			long callId = input.getLong();
+			byte[] body = new byte[length - Frame.HEADER_LENGTH];
+
+			input.get(body);
+
+			Frame frame = assembler.add(type, callId, body);
+
+			return frame == null || deliver(frame);
+		}
+
+		// Hands the frame received, with all its streams, to the dispatcher.
+		private boolean deliver(Frame frame) throws IOException
+		{
+			if(dispatcher.dispatch(this, frame) == false)
+			{
+				Frame.dispose(frame.streams);
+				ended(null);
+				return false;
+			}
+
+			calls++;
+			return true;
+		}
+
+		// Called by the event loop when the connection has ended, or is to stop
+		// reading. The cause is reported if no call was received.
+		void ended(IOException cause)
+		{
+			if(ended)
+			{
+				return;
+			}
+
+			ended = true;
+			assembler.dispose();
+
+			if(key != null && key.isValid())
+			{
+				synchronized(output)
+				{
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+			}
+
+			if(cause != null && calls == 0 && !isClosing())
+			{
+				dispatcher.skeleton().service_error(new RMIException("Server side: connection closed before any call", cause));
+			}
+
+			endReading();
+			dispatcher.skeleton().connectionClosed(this);
+		}
+
+		void checkIdle(long now)
+		{
+			if(!ended && isIdle() && now - lastActive >= IDLE_TIMEOUT)
+			{
+				ended(null);
+			}
+		}
+
+		// Writes as much of the reply as the socket accepts, and leaves the rest
+		// to the event loop.
+		void send(Frame reply) throws IOException
+		{
+			Outgoing frame = new Outgoing(reply);
+
+			synchronized(output)
+			{
+				boolean written = output.isEmpty();
+
+				output.add(frame);
+
+				if(written && flush())
+				{
+					lastActive = System.currentTimeMillis();
+					return;
+				}
+
+				if(key == null || !key.isValid())
+				{
+					throw new ClosedChannelException();
+				}
+
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+
+			loop.wakeup();
+		}
+
+		// Writes queued output until the socket is full. A frame whose streams
+		// are not yet sent returns to the queue after each of its DATA frames,
+		// so that a large reply does not hold back the replies queued after
+		// it. Returns true if all output has been written.
+		private boolean flush() throws IOException
+		{
+			while(!output.isEmpty())
+			{
+				Outgoing frame = output.peek();
+
+				if(!frame.write(channel))
+				{
+					return false;
+				}
+
+				output.poll();
+
+				if(frame.next())
+				{
+					requeue(frame);
+				}
+			}
+
+			return true;
+		}
+
+		// Queues the rest of a frame behind the frames queued since, but ahead
+		// of any later frame of the same call, which must follow it.
+		private void requeue(Outgoing frame)
+		{
+			ListIterator<Outgoing> queued = output.listIterator();
+
+			while(queued.hasNext())
+			{
+				if(queued.next().callId == frame.callId)
+				{
+					queued.previous();
+					break;
+				}
+			}
+
+			queued.add(frame);
+		}
+
+		// Continues writing the replies left by send.
+		void writable()
+		{
+			try
+			{
+				synchronized(output)
+				{
+					if(!flush())
+					{
+						return;
+					}
+
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					lastActive = System.currentTimeMillis();
+
+					if(closeWhenFlushed)
+					{
+						close();
+					}
+					else if(shutdownWhenFlushed)
+					{
+						channel.shutdownOutput();
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				if(!isClosing())
+				{
+					dispatcher.skeleton().service_error(new RMIException("Server Side: IO Exception", e));
+				}
+
+				synchronized(output)
+				{
+					discard();
+				}
+
+				close();
+			}
+		}
+
+		// Drops the output not yet written. The caller holds the output lock.
+		private void discard()
+		{
+			for(Outgoing frame : output)
+			{
+				frame.close();
+			}
+
+			output.clear();
+		}
+
+		void shutdownInput() throws IOException
+		{
+			channel.shutdownInput();
+		}
+
+		// Sends the end of the stream once the replies not yet written have
+		// been sent.
+		void shutdownOutput() throws IOException
+		{
+			synchronized(output)
+			{
+				if(!output.isEmpty())
+				{
+					shutdownWhenFlushed = true;
+					return;
+				}
+
+				channel.shutdownOutput();
+			}
+		}
+
+		// Closes the connection once the replies not yet written have been
+		// sent.
+		void close()
+		{
+			synchronized(output)
+			{
+				if(!output.isEmpty() && channel.isOpen())
+				{
+					closeWhenFlushed = true;
+					return;
+				}
+
+				discard();
+			}
+
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e)
+			{
+			}
+
+			loop.wakeup();
+		}
+	}
+
+	// Frame being written to a connection: the frame itself, then the DATA
+	// frames carrying its streams, each made once the previous one has been
+	// written.
+	private static class Outgoing
+	{
+		final long callId;
+		private final Frame.Data data;
+		// Parts of the frame being written: buffers, and file regions being
+		// transferred.
+		private final Deque<Object> parts = new ArrayDeque<Object>();
+
+		Outgoing(Frame frame) throws IOException
+		{
+			this.callId = frame.callId;
+			this.data = frame.new Data();
+			parts.add(frame.head());
+		}
+
+		// Writes as much of the frame as the socket accepts. Returns true once
+		// the whole frame has been written.
+		boolean write(SocketChannel channel) throws IOException
+		{
+			while(!parts.isEmpty())
+			{
+				Object part = parts.peek();
+
+				if(part instanceof ByteBuffer)
+				{
+					ByteBuffer buffer = (ByteBuffer)part;
+
+					channel.write(buffer);
+
+					if(buffer.hasRemaining())
+					{
+						return false;
+					}
+				}
+				else if(((Transfer)part).to(channel) == false)
+				{
+					return false;
+				}
+
+				parts.poll();
+			}
+
+			return true;
+		}
+
+		// Moves on to the next DATA frame. Returns false if none is left.
+		boolean next()
+		{
+			if(!data.hasNext())
+			{
+				return false;
+			}
+
+			for(Object part : data.next())
+			{
+				parts.add(part instanceof FileRegion ? new Transfer((FileRegion)part) : part);
+			}
+
+			return true;
+		}
+
+		void close()
+		{
+			for(Object part : parts)
+			{
+				if(part instanceof Transfer)
+				{
+					((Transfer)part).close();
+				}
+			}
+		}
+	}
+
+	// File region being sent on a connection with FileChannel.transferTo,
+	// which lets the operating system copy the file to the socket.
+	private static class Transfer
+	{
+		private final FileRegion region;
+		private FileChannel source;
+		private long done = 0;
+
+		Transfer(FileRegion region)
+		{
+			this.region = region;
+		}
+
+		// Transfers as much of the region as the socket accepts. Returns true
+		// once the whole region has been sent.
+		boolean to(SocketChannel target) throws IOException
+		{
+			if(source == null)
+			{
+				source = new FileInputStream(region.getFile()).getChannel();
+			}
+
+			while(done < region.length())
+			{
+				long count = source.transferTo(region.getPosition() + done, region.length() - done, target);
+
+				if(count <= 0)
+				{
+					if(source.size() < region.getPosition() + region.length())
+					{
+						close();
+						throw new EOFException("file region truncated");
+					}
+
+					return false;
+				}
+
+				done += count;
+			}
+
+			close();
+			return true;
+		}
+
+		void close()
+		{
+			try
+			{
+				if(source != null)
+				{
+					source.close();
+				}
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+}
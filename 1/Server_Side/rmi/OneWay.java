@@ -0,0 +1,27 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Marks a method of a remote interface whose calls are not answered.
+
+	<p>
+	A stub calling a one-way method returns as soon as the call has been
+	written to the connection, without waiting for the method to run. The
+	skeleton runs the method but sends no reply. An exception thrown by the
+	method, or the rejection of the call by the skeleton, is reported to the
+	skeleton's <code>service_error</code> method rather than to the caller.
+	The stub throws an <code>RMIException</code> only if the call cannot be
+	written. A call written to a connection the skeleton is closing may be
+	lost without either side noticing, so one-way methods suit notifications
+	whose loss is tolerable, such as cache invalidations.
+
+	<p>
+	One-way methods must return <code>void</code>. A one-way method called in
+	a batch is answered like any other call of the batch.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OneWay
+{
+}
@@ -0,0 +1,23 @@
+package rmi;
+
+/** Exception thrown by a call which a skeleton refused because it was
+	overloaded.
+
+	<p>
+	A skeleton with admission control enabled rejects a call at once, with this
+	exception, when the maximum number of calls are already running and its
+	wait queue is full, or when the call waited in the queue for longer than
+	the queue timeout. The call was not started, so it may safely be retried,
+	preferably after a delay or on another server.
+ */
+public class OverloadException extends RMIException
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Creates an <code>OverloadException</code> with the given message
+		string. */
+	public OverloadException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,309 @@
+//Invocation handler of stubs spreading calls over several equivalent skeletons
+
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+// Calls are sent to the replicas in turn, each call starting at the replica
+// after the one the previous call started at. Calls to methods not marked
+// @Idempotent are made through that replica only. Calls to idempotent methods
+// are sent to the next replica as well if the first has not answered within
+// the hedge delay, and to the next untried replica whenever a call fails in
+// transit, until a reply arrives or every replica has failed. The first reply
+// is returned, whether a value or an exception thrown by the remote method,
+// and the calls still outstanding are cancelled.
+class ReplicatedInvocationHandler implements InvocationHandler
+{
+	// Number of latencies in the window from which hedge delays are taken.
+	static final int WINDOW = 1000;
+
+	private final Class<?> c;
+	private final MyInvocationHandler[] replicas;
+	private final HedgePolicy policy;
+	private final AtomicInteger next = new AtomicInteger();
+	private final ConcurrentHashMap<Method, Latencies> latencies = new ConcurrentHashMap<Method, Latencies>();
+
+	ReplicatedInvocationHandler(Class<?> c, MyInvocationHandler[] replicas, HedgePolicy policy)
+	{
+		this.c = c;
+		this.replicas = replicas;
+		this.policy = policy;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		if(method.getDeclaringClass() == Object.class)
+		{
+			return local(proxy, method, args, c.getSimpleName() + " replicated over " + replicas.length + " skeletons, " + policy);
+		}
+
+		int first = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+		DispatchTable.Entry entry = replicas[first].entry(method);
+
+		// Streamed calls cannot be sent more than once, nor asynchronously.
+		if(entry.idempotent == false || entry.isStreamed())
+		{
+			return replicas[first].useClient(entry, args);
+		}
+
+		Call call = new Call(method, args, first);
+
+		call.start();
+
+		try
+		{
+			return call.result.get();
+		}
+		catch(ExecutionException e)
+		{
+			throw e.getCause();
+		}
+		catch(InterruptedException e)
+		{
+			call.result.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new RMIException("RMI", e);
+		}
+	}
+
+	// Replicated and balanced stubs are equal only to themselves.
+	static Object local(Object proxy, Method method, Object[] args, String description)
+	{
+		if(method.getName().equals("equals"))
+		{
+			return args[0] == proxy;
+		}
+
+		if(method.getName().equals("hashCode"))
+		{
+			return System.identityHashCode(proxy);
+		}
+
+		return description;
+	}
+
+	// Latencies observed for a method, or null if there are none yet.
+	LatencyHistogram latencies(Method method)
+	{
+		Latencies observed = latencies.get(method);
+
+		return observed == null ? null : observed.window();
+	}
+
+	private void observed(Method method, long latency)
+	{
+		Latencies observed = latencies.get(method);
+
+		if(observed == null)
+		{
+			latencies.putIfAbsent(method, new Latencies());
+			observed = latencies.get(method);
+		}
+
+		observed.record(latency);
+	}
+
+	// A call to an idempotent method, and the requests sent for it.
+	private class Call
+	{
+		final Method method;
+		final Object[] args;
+		final int first;
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		// The deadline and trace of the calling thread, which apply to
+		// requests sent from other threads as well.
+		private final Deadline deadline = Deadline.current();
+		private final TraceContext trace = TraceContext.current();
+		private final List<CompletableFuture<Object>> requests = new ArrayList<CompletableFuture<Object>>();
+		private int outstanding = 0;
+		private Throwable failure = null;
+		private ScheduledFuture<?> hedge = null;
+
+		Call(Method method, Object[] args, int first)
+		{
+			this.method = method;
+			this.args = args;
+			this.first = first;
+		}
+
+		void start()
+		{
+			result.whenComplete(new BiConsumer<Object, Throwable>()
+			{
+				public void accept(Object value, Throwable failure)
+				{
+					abandon();
+				}
+			});
+
+			send();
+
+			long delay = policy.delayNanos(latencies(method));
+
+			if(delay >= 0 && replicas.length > 1)
+			{
+				schedule(delay);
+			}
+		}
+
+		private synchronized void schedule(long delay)
+		{
+			if(result.isDone())
+			{
+				return;
+			}
+
+			hedge = Connection.timer.schedule(new Runnable()
+			{
+				public void run()
+				{
+					// Connecting to the replica may block, which must not
+					// hold up the timer.
+					ForkJoinPool.commonPool().execute(new Runnable()
+					{
+						public void run()
+						{
+							send();
+						}
+					});
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		}
+
+		// Sends the call to the next replica not yet tried, if any.
+		private synchronized void send()
+		{
+			if(result.isDone() || requests.size() == replicas.length)
+			{
+				return;
+			}
+
+			MyInvocationHandler replica = replicas[(first + requests.size()) % replicas.length];
+			final long start = System.nanoTime();
+			Deadline.Scope scope = deadline == null ? null : deadline.attach();
+			TraceContext previous = trace == null ? null : trace.attach();
+			final CompletableFuture<Object> request;
+
+			try
+			{
+				request = replica.useClientAsync(method, args);
+			}
+			finally
+			{
+				if(trace != null)
+				{
+					TraceContext.restore(previous);
+				}
+
+				if(scope != null)
+				{
+					scope.close();
+				}
+			}
+
+			requests.add(request);
+			outstanding++;
+
+			request.whenComplete(new BiConsumer<Object, Throwable>()
+			{
+				public void accept(Object value, Throwable failure)
+				{
+					completed(request, start, value, failure);
+				}
+			});
+		}
+
+		private void completed(CompletableFuture<Object> request, long start, Object value, Throwable thrown)
+		{
+			if(request.isCancelled())
+			{
+				return;
+			}
+
+			if(thrown == null)
+			{
+				observed(method, System.nanoTime() - start);
+				result.complete(value);
+				return;
+			}
+
+			if(thrown instanceof CompletionException && thrown.getCause() != null)
+			{
+				thrown = thrown.getCause();
+			}
+
+			// An exception thrown by the remote method is its answer. Only a
+			// call which failed in transit is tried on another replica.
+			if(!(thrown instanceof RMIException))
+			{
+				result.completeExceptionally(thrown);
+				return;
+			}
+
+			synchronized(this)
+			{
+				outstanding--;
+				failure = thrown;
+
+				if(requests.size() < replicas.length)
+				{
+					send();
+				}
+				else if(outstanding == 0)
+				{
+					result.completeExceptionally(failure);
+				}
+			}
+		}
+
+		// Cancels the hedge and the requests still outstanding once the call
+		// has its result.
+		private void abandon()
+		{
+			List<CompletableFuture<Object>> sent;
+
+			synchronized(this)
+			{
+				if(hedge != null)
+				{
+					hedge.cancel(false);
+				}
+
+				sent = new ArrayList<CompletableFuture<Object>>(requests);
+			}
+
+			for(CompletableFuture<Object> request : sent)
+			{
+				request.cancel(false);
+			}
+		}
+	}
+
+	// Latencies of the recent calls of a method: the current window, and the
+	// last complete window, from which delays are taken once it exists.
+	private static class Latencies
+	{
+		private LatencyHistogram current = new LatencyHistogram();
+		private LatencyHistogram previous = null;
+
+		synchronized void record(long latency)
+		{
+			current.record(latency);
+
+			if(current.count() >= WINDOW)
+			{
+				previous = current;
+				current = new LatencyHistogram();
+			}
+		}
+
+		synchronized LatencyHistogram window()
+		{
+			return previous != null ? previous : current;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+//Stub side cache of the results of cacheable methods
+
+package rmi;
+
+import java.net.InetAddress;
+import java.util.*;
+
+// Replies to calls of methods annotated with @Cacheable, keyed by skeleton
+// address, method and encoded arguments. Entries are weighed by the size of
+// the key and the reply frame, and the least recently used evicted once the
+// total exceeds the capacity. An entry is discarded when it is found to have expired.
+class ResultCache
+{
+	static final long DEFAULT_CAPACITY = 16 * 1024 * 1024;
+	// Estimated memory taken by an entry besides its encoded arguments and
+	// reply payload.
+	static final int ENTRY_OVERHEAD = 128;
+
+	private static final ResultCache shared = new ResultCache(DEFAULT_CAPACITY);
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long capacity;
+	private long size = 0;
+
+	ResultCache(long capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	static ResultCache shared()
+	{
+		return shared;
+	}
+
+	// Returns the cached reply to a call, or null if there is none or it has
+	// expired.
+	synchronized Frame get(Key key)
+	{
+		Entry entry = entries.get(key);
+
+		if(entry == null)
+		{
+			return null;
+		}
+
+		if(System.nanoTime() - entry.expires >= 0)
+		{
+			remove(key);
+			return null;
+		}
+
+		return entry.reply;
+	}
+
+	// Caches the reply to a call, for the given time in nanoseconds.
+	synchronized void put(Key key, Frame reply, long ttlNanos)
+	{
+		long weight = key.arguments.length + reply.payload.length + ENTRY_OVERHEAD;
+
+		if(weight > capacity || !reply.streams.isEmpty())
+		{
+			return;
+		}
+
+		remove(key);
+		entries.put(key, new Entry(reply, System.nanoTime() + ttlNanos, weight));
+		size += weight;
+		evict();
+	}
+
+	synchronized void setCapacity(long capacity)
+	{
+		this.capacity = capacity;
+		evict();
+	}
+
+	synchronized long size()
+	{
+		return size;
+	}
+
+	synchronized int entries()
+	{
+		return entries.size();
+	}
+
+	// Discards the results of calls to the skeleton at the given address, of
+	// the given methods, or of all methods if methods is null.
+	synchronized void invalidate(InetAddress address, int port, Set<Long> methods)
+	{
+		Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+
+		while(iterator.hasNext())
+		{
+			Map.Entry<Key, Entry> entry = iterator.next();
+			Key key = entry.getKey();
+
+			if(key.port == port && Objects.equals(key.address, address) && (methods == null || methods.contains(key.methodId)))
+			{
+				size -= entry.getValue().weight;
+				iterator.remove();
+			}
+		}
+	}
+
+	synchronized void clear()
+	{
+		entries.clear();
+		size = 0;
+	}
+
+	private void remove(Key key)
+	{
+		Entry entry = entries.remove(key);
+
+		if(entry != null)
+		{
+			size -= entry.weight;
+		}
+	}
+
+	// Evicts the least recently used entries until the cache fits its
+	// capacity.
+	private void evict()
+	{
+		Iterator<Entry> iterator = entries.values().iterator();
+
+		while(size > capacity && iterator.hasNext())
+		{
+			size -= iterator.next().weight;
+			iterator.remove();
+		}
+	}
+
+	// A call: the skeleton, the method, the codec and the arguments as the
+	// stub encoded them with it, so that two calls are the same if they would
+	// send the same bytes. The encoding is a copy of the arguments, which
+	// later changes by the caller do not alter.
+	static class Key
+	{
+		final InetAddress address;
+		final int port;
+		final long methodId;
+		private final int codecId;
+		final byte[] arguments;
+		private final int hash;
+
+		Key(InetAddress address, int port, long methodId, int codecId, byte[] arguments)
+		{
+			this.address = address;
+			this.port = port;
+			this.methodId = methodId;
+			this.codecId = codecId;
+			this.arguments = arguments;
+			this.hash = Objects.hash(address, port, methodId, codecId) * 31 + Arrays.hashCode(arguments);
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if(!(other instanceof Key))
+			{
+				return false;
+			}
+
+			Key key = (Key)other;
+
+			return methodId == key.methodId && port == key.port && codecId == key.codecId && Objects.equals(address, key.address) && Arrays.equals(arguments, key.arguments);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
+	private static class Entry
+	{
+		final Frame reply;
+		final long expires;
+		final long weight;
+
+		Entry(Frame reply, long expires, long weight)
+		{
+			this.reply = reply;
+			this.expires = expires;
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+//Server side state of one connection from a stub, shared by all transports
+
+package rmi;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Tracks the calls in progress on a connection, so that the connection is
+// closed only once every call received has been answered. A connection stops
+// reading calls when the skeleton is stopped, when the stub closes it, or when
+// it stays idle for IDLE_TIMEOUT milliseconds. A connection shut down
+// gracefully is not closed outright once its calls have been answered: the
+// skeleton closes its output and keeps reading until the stub closes its end,
+// so that the stub has seen the close by the time the connection ends, and
+// does not send a further call on it.
+abstract class ServerConnection
+{
+	// Time after which a connection with no call in progress is closed by the
+	// skeleton, releasing the resources used to read it.
+	static final int IDLE_TIMEOUT = 30000;
+
+	private int inFlight = 0;
+	private boolean reading = true;
+	private boolean closing = false;
+	private boolean linger = false;
+	// Streamed arguments being received, and streamed results being sent, by
+	// call identifier.
+	private final Map<Long, ElementStream.Inbound> inbound = new ConcurrentHashMap<Long, ElementStream.Inbound>();
+	private final Map<Long, ElementStream.Outbound> outbound = new ConcurrentHashMap<Long, ElementStream.Outbound>();
+
+	// Sends a reply. Replies to calls on the same connection may be sent in
+	// any order, but are never interleaved with each other.
+	abstract void send(Frame reply) throws IOException;
+
+	// Stops the arrival of further calls, so that the connection reader sees
+	// the end of the stream.
+	abstract void shutdownInput() throws IOException;
+
+	// Sends the end of the stream to the stub, once the replies already
+	// queued have been written.
+	abstract void shutdownOutput() throws IOException;
+
+	abstract void close();
+
+	// Asks the connection to close. The connection stops accepting calls. It
+	// is closed immediately if no call is in progress, and otherwise once the
+	// replies to the calls in progress have been sent. If the shutdown is
+	// graceful, the connection lingers instead until the stub has closed it.
+	synchronized void shutdown(boolean graceful)
+	{
+		closing = true;
+		linger = graceful;
+
+		if(inFlight == 0)
+		{
+			finish();
+		}
+		else if(!graceful)
+		{
+			try
+			{
+				shutdownInput();
+			}
+			catch(IOException e)
+			{
+				close();
+			}
+		}
+	}
+
+	// Ends a closing connection whose calls have all been answered.
+	private void finish()
+	{
+		if(!linger || !reading)
+		{
+			close();
+			return;
+		}
+
+		try
+		{
+			shutdownOutput();
+		}
+		catch(IOException e)
+		{
+			close();
+		}
+	}
+
+	synchronized boolean beginCall()
+	{
+		if(closing)
+		{
+			return false;
+		}
+
+		inFlight++;
+		return true;
+	}
+
+	synchronized void endCall()
+	{
+		inFlight--;
+
+		if(inFlight == 0 && !reading)
+		{
+			close();
+		}
+		else if(inFlight == 0 && closing)
+		{
+			finish();
+		}
+	}
+
+	// Registers the streamed argument of a call, before its chunks arrive.
+	void receive(long callId, ElementStream.Inbound stream)
+	{
+		stream.open(callId, channel(callId));
+		inbound.put(callId, stream);
+	}
+
+	// Registers the streamed result of a call, before its reply is sent. The
+	// stream is cancelled at once if the connection is no longer read.
+	void produce(long callId, ElementStream.Outbound stream)
+	{
+		outbound.put(callId, stream);
+
+		if(isReading() == false)
+		{
+			stream.cancel();
+		}
+	}
+
+	void produced(long callId)
+	{
+		outbound.remove(callId);
+	}
+
+	// Hands a chunk of a streamed argument, or a credit for a streamed
+	// result, to its stream. Frames of streams which have ended are dropped.
+	void received(Frame frame) throws IOException
+	{
+		if(frame.type == Frame.CHUNK)
+		{
+			ElementStream.Inbound stream = inbound.get(frame.callId);
+
+			if(stream != null)
+			{
+				stream.received(frame);
+			}
+			else
+			{
+				Frame.dispose(frame.streams);
+			}
+		}
+		else
+		{
+			ElementStream.Outbound stream = outbound.get(frame.callId);
+
+			if(stream != null)
+			{
+				stream.credit(frame.credit());
+			}
+		}
+	}
+
+	// The connection as seen by the stream of a call.
+	ElementStream.Channel channel(final long callId)
+	{
+		return new ElementStream.Channel()
+		{
+			public void send(Frame frame) throws IOException
+			{
+				ServerConnection.this.send(frame);
+			}
+
+			public void finished()
+			{
+				inbound.remove(callId);
+			}
+		};
+	}
+
+	// Called when the connection reader stops. The connection stays open until
+	// the calls in progress have replied. Streams in progress end, as their
+	// chunks and credits can no longer arrive.
+	void endReading()
+	{
+		stopReading();
+
+		IOException failure = new EOFException("connection closed");
+
+		for(ElementStream.Inbound stream : inbound.values())
+		{
+			stream.failed(failure);
+		}
+
+		for(ElementStream.Outbound stream : outbound.values())
+		{
+			stream.cancel();
+		}
+	}
+
+	private synchronized void stopReading()
+	{
+		reading = false;
+
+		if(inFlight == 0)
+		{
+			close();
+		}
+	}
+
+	private synchronized boolean isReading()
+	{
+		return reading;
+	}
+
+	synchronized boolean isClosing()
+	{
+		return closing;
+	}
+
+	synchronized boolean isIdle()
+	{
+		return inFlight == 0;
+	}
+}
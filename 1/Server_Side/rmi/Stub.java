@@ -2,8 +2,11 @@ package rmi;
 
 import java.net.*;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.lang.*;
 
 /** RMI stub factory.
@@ -192,4 +195,447 @@ public abstract class Stub
 			throw e;
 		}
     }
+
+    /** Returns a stub for the same skeleton which encodes its calls with the
+        given codec.
+
+        <p>
+        Stubs use the binary codec unless created by this method. The skeleton
+        replies to each call with the codec the call was made with, so stubs
+        using different codecs may share a skeleton. The codec is not carried
+        when the stub is transmitted over the network.
+
+        @param stub The stub.
+        @param codec The codec to use.
+        @return The new stub, equal to <code>stub</code>.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T withCodec(T stub, Codec codec)
+    {
+        if(stub == null || codec == null)
+        {
+            throw new NullPointerException();
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+
+        return (T)Proxy.newProxyInstance(stub.getClass().getClassLoader(), stub.getClass().getInterfaces(), handler.withCodec(codec));
+    }
+
+    /** Returns a stub for the same skeleton whose calls time out.
+
+        <p>
+        Each call made through the returned stub must complete within the
+        given time, including the time taken to connect to the skeleton. The
+        call must also complete before the deadline attached to the calling
+        thread, if any, and the skeleton receives the earlier of the two as the
+        call's deadline. A call which does not complete in time fails with an
+        <code>RMIException</code> whose cause is a
+        <code>SocketTimeoutException</code>; the skeleton may still complete
+        it. The timeout is not carried when the stub is transmitted over the
+        network.
+
+        @param stub The stub.
+        @param timeout The time allowed for each call, or zero for no timeout.
+        @param unit The unit of <code>timeout</code>.
+        @return The new stub, equal to <code>stub</code>.
+        @throws NullPointerException If <code>stub</code> or <code>unit</code>
+                                     is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub,
+                                         or if <code>timeout</code> is
+                                         negative.
+        @see Deadline
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T withTimeout(T stub, long timeout, TimeUnit unit)
+    {
+        if(stub == null || unit == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if(timeout < 0)
+        {
+            throw new IllegalArgumentException("negative timeout");
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+
+        return (T)Proxy.newProxyInstance(stub.getClass().getClassLoader(), stub.getClass().getInterfaces(), handler.withTimeout(unit.toNanos(timeout)));
+    }
+
+    /** Returns a stub for the same skeleton whose connections have the given
+        socket and buffering options.
+
+        <p>
+        Stubs use <code>TransportOptions.defaults()</code> unless created by
+        this method. Stubs with the same address and options share their
+        connections. The accept backlog in the options has no effect on stubs.
+        The options are not carried when the stub is transmitted over the
+        network.
+
+        @param stub The stub.
+        @param options The transport options.
+        @return The new stub, equal to <code>stub</code>.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T withTransportOptions(T stub, TransportOptions options)
+    {
+        if(stub == null || options == null)
+        {
+            throw new NullPointerException();
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+
+        return (T)Proxy.newProxyInstance(stub.getClass().getClassLoader(), stub.getClass().getInterfaces(), handler.withTransportOptions(options));
+    }
+
+    /** Returns a stub for the same skeleton which connects to it through a
+        Unix-domain socket file.
+
+        <p>
+        The skeleton must be on the same host, and must have been started with
+        <code>Transport.unixDomain</code> on the same file. Calls then bypass
+        the TCP stack. The returned stub still carries the skeleton's address,
+        and is equal to <code>stub</code>. The socket file is not carried when
+        the stub is transmitted over the network, so a stub received from
+        another host connects to the address.
+
+        @param stub The stub.
+        @param file The path of the skeleton's socket file.
+        @return The new stub, equal to <code>stub</code>.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+        @throws UnsupportedOperationException If the runtime does not support
+                                              Unix-domain sockets.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T withUnixDomainSocket(T stub, Path file)
+    {
+        if(stub == null || file == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if(!Transport.unixDomainSupported())
+        {
+            throw new UnsupportedOperationException("Unix-domain sockets not supported by this runtime");
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+
+        return (T)Proxy.newProxyInstance(stub.getClass().getClassLoader(), stub.getClass().getInterfaces(), handler.withUnixDomainSocket(file));
+    }
+
+    /** Creates an asynchronous stub for the same skeleton as a given stub.
+
+        <p>
+        The methods of an asynchronous stub send the call and return at once,
+        with a <code>CompletableFuture</code> which is completed when the reply
+        arrives. No thread waits for the reply: replies are read by the thread
+        already reading the stub's connection, so any number of calls may be
+        outstanding at once. The future completes with the return value of the
+        remote method, with the exception it threw, or with an
+        <code>RMIException</code> if the call could not be made. Futures are
+        completed on threads of the common fork-join pool.
+
+        <p>
+        The asynchronous interface is declared by the user. Each of its methods
+        must have the same name and parameter types as a method of the remote
+        interface, and must return <code>CompletableFuture</code>, normally
+        parametrized with the wrapper type of the remote method's return type.
+        For example, <code>byte[] read(Path file, long offset, int length)
+        throws RMIException</code> corresponds to
+        <code>CompletableFuture&lt;byte[]&gt; read(Path file, long offset, int
+        length)</code>.
+
+        @param async A <code>Class</code> object representing the asynchronous
+                     interface.
+        @param stub The stub whose skeleton is to be called.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+        @throws Error If <code>async</code> is not an interface, or if one of
+                      its methods does not return a
+                      <code>CompletableFuture</code> or has no counterpart in
+                      the remote interface.
+     */
+    @SuppressWarnings("unchecked")
+    public static <A> A createAsync(Class<A> async, Object stub)
+    {
+        if(async == null || stub == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if(!async.isInterface())
+        {
+            throw new Error("Not an interface");
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+
+        return (A)Proxy.newProxyInstance(async.getClassLoader(), new Class<?>[] {async}, new AsyncInvocationHandler(async, handler));
+    }
+
+    /** Creates a stub which spreads its calls over several equivalent
+        skeletons.
+
+        <p>
+        Successive calls start at successive replicas. Calls to methods
+        annotated with <code>Idempotent</code> are hedged: if the first replica
+        has not answered when the hedge policy's delay has passed, the call is
+        sent to the next replica as well, and the first reply to arrive is
+        returned, the other call being abandoned. A call to an idempotent
+        method which fails with an <code>RMIException</code> is retried at once
+        on the next replica not yet tried, and fails only when every replica
+        has failed. Exceptions thrown by the remote method are returned as
+        they are, and not retried. Calls to other methods are made through a
+        single replica and never repeated.
+
+        <p>
+        Requests sent for a call carry the deadline and trace of the calling
+        thread. An abandoned request no longer waits for its reply, but the
+        skeleton may still run it.
+
+        @param c A <code>Class</code> object representing the remote interface
+                 implemented by the skeletons.
+        @param policy When calls to idempotent methods are hedged.
+        @param replicas Stubs for the skeletons, in order of preference.
+        @return The replicated stub.
+        @throws NullPointerException If any argument or replica is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>replicas</code> is empty, or
+                                         one of its elements is not a stub.
+        @throws Error If <code>c</code> is not a remote interface.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T createReplicated(Class<T> c, HedgePolicy policy, List<T> replicas)
+    {
+        if(c == null || policy == null || replicas == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if(!c.isInterface() || !RMIException.isRemoteInterface(c))
+        {
+            throw new Error("Not a remote interface");
+        }
+
+        if(replicas.isEmpty())
+        {
+            throw new IllegalArgumentException("no replicas");
+        }
+
+        MyInvocationHandler[] handlers = new MyInvocationHandler[replicas.size()];
+
+        for(int i = 0; i < handlers.length; i++)
+        {
+            if(replicas.get(i) == null)
+            {
+                throw new NullPointerException();
+            }
+
+            handlers[i] = handlerOf(replicas.get(i));
+        }
+
+        return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c}, new ReplicatedInvocationHandler(c, handlers, policy));
+    }
+
+    /** Creates a stub which balances its calls over several skeletons serving
+        the same interface.
+
+        <p>
+        Each call is sent to the skeleton chosen by the balancing policy. A
+        call to a method annotated with <code>Idempotent</code> which fails
+        with an <code>RMIException</code> is retried once on another skeleton;
+        calls to other methods are never repeated. Exceptions thrown by the
+        remote method are returned as they are, and count as replies when
+        skeletons are judged by the policy.
+
+        <p>
+        Asynchronous stubs and batches cannot be created from a balanced
+        stub.
+
+        @param c A <code>Class</code> object representing the remote interface
+                 implemented by the skeletons.
+        @param policy How the skeleton for each call is chosen.
+        @param addresses The network addresses of the skeletons.
+        @return The balanced stub.
+        @throws NullPointerException If any argument or address is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>addresses</code> is empty.
+        @throws Error If <code>c</code> is not a remote interface.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T createBalanced(Class<T> c, BalancingPolicy policy, Collection<InetSocketAddress> addresses)
+    {
+        if(c == null || policy == null || addresses == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if(!c.isInterface() || !RMIException.isRemoteInterface(c))
+        {
+            throw new Error("Not a remote interface");
+        }
+
+        if(addresses.isEmpty())
+        {
+            throw new IllegalArgumentException("no addresses");
+        }
+
+        List<InetSocketAddress> list = new ArrayList<InetSocketAddress>(addresses);
+
+        for(InetSocketAddress address : list)
+        {
+            if(address == null)
+            {
+                throw new NullPointerException();
+            }
+        }
+
+        return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] {c}, new BalancedInvocationHandler(c, list, policy));
+    }
+
+    /** Returns the metrics of the calls made by all stubs for the given
+        interface in this process.
+
+        <p>
+        Statistics are kept for each method of the interface, and include
+        calls made through asynchronous stubs and batches.
+
+        @param c The remote interface.
+        @return The metrics.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+        @throws Error If <code>c</code> is not a remote interface.
+     */
+    public static Metrics getMetrics(Class<?> c)
+    {
+        if(c == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if(!c.isInterface() || !RMIException.isRemoteInterface(c))
+        {
+            throw new Error("Not a remote interface");
+        }
+
+        return MetricsRegistry.forStubs(c);
+    }
+
+    /** Writes a report of the metrics of the calls made by all stubs for the
+        given interface to a file.
+
+        @param c The remote interface.
+        @param file The file, whose contents are replaced.
+        @throws IOException If the file cannot be written.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> is not a remote interface.
+     */
+    public static void dumpMetrics(Class<?> c, File file) throws IOException
+    {
+        if(file == null)
+        {
+            throw new NullPointerException();
+        }
+
+        ((MetricsRegistry)getMetrics(c)).dump(file);
+    }
+
+    /** Discards the cached results of all calls made to the skeleton of a
+        stub.
+
+        <p>
+        Results of methods annotated with <code>Cacheable</code> are cached by
+        skeleton address, so this discards the results cached by every stub
+        for the same skeleton, for all of its remote interfaces.
+
+        @param stub The stub.
+        @throws NullPointerException If <code>stub</code> is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static void invalidate(Object stub)
+    {
+        if(stub == null)
+        {
+            throw new NullPointerException();
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+
+        ResultCache.shared().invalidate(handler.getAddress(), handler.getPort(), null);
+    }
+
+    /** Discards the cached results of calls made to the methods of a given
+        name, through stubs for the same skeleton and remote interface as a
+        given stub.
+
+        @param stub The stub.
+        @param method The name of the method. The results of all overloads of
+                      the method are discarded.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static void invalidate(Object stub, String method)
+    {
+        if(stub == null || method == null)
+        {
+            throw new NullPointerException();
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+        DispatchTable table = DispatchTable.forInterface(handler.getInterface());
+        Set<Long> methods = new HashSet<Long>();
+
+        for(Method candidate : handler.getInterface().getMethods())
+        {
+            if(candidate.getName().equals(method))
+            {
+                methods.add(table.idOf(candidate));
+            }
+        }
+
+        ResultCache.shared().invalidate(handler.getAddress(), handler.getPort(), methods);
+    }
+
+    /** Sets the capacity of the cache of results of <code>Cacheable</code>
+        methods shared by all stubs in this process.
+
+        <p>
+        The capacity is the total size in bytes of the cached replies, with a
+        small allowance for each entry. The default is 16 MiB. Reducing the
+        capacity evicts the least recently used results at once; a capacity of
+        zero disables caching.
+
+        @param bytes The capacity in bytes.
+        @throws IllegalArgumentException If <code>bytes</code> is negative.
+     */
+    public static void setCacheCapacity(long bytes)
+    {
+        if(bytes < 0)
+        {
+            throw new IllegalArgumentException("negative capacity");
+        }
+
+        ResultCache.shared().setCapacity(bytes);
+    }
+
+    // Returns the invocation handler of a stub.
+    private static MyInvocationHandler handlerOf(Object stub)
+    {
+        if(!Proxy.isProxyClass(stub.getClass()) ||
+           !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler))
+        {
+            throw new IllegalArgumentException("not a stub");
+        }
+
+        return (MyInvocationHandler)Proxy.getInvocationHandler(stub);
+    }
 }
@@ -1,136 +1,185 @@
-//File for Server side marshalling, unmarshalling, interface checking and running threads
+//File for Server side connection reading on a dedicated thread, used by the blocking transport
 
 package rmi;
 
 import java.net.*;
 import java.io.*;
-import java.util.*;
-import java.lang.reflect.*;
 
-public class ThreadRunnable<T> extends Thread
+public class ThreadRunnable<T> extends ServerConnection implements Runnable
 {
     private Socket s;
-    private T server;
-    private Class<T> c;
+    private Dispatcher<T> dispatcher;
 	private Skeleton<T> skeleton;
+	private TransportOptions options;
+	private DataOutputStream out;
 
-	public ThreadRunnable(Socket s, T server, Class<T> c, Skeleton<T> skeleton)
+	ThreadRunnable(Socket s, Dispatcher<T> dispatcher, TransportOptions options)
 	{
 		this.s = s;
-        this.server = server;
-        this.c = c;
-		this.skeleton = skeleton;
+        this.dispatcher = dispatcher;
+		this.skeleton = dispatcher.skeleton();
+		this.options = options;
 	}
-	
-	// Method for Checking validity of interface
-	private Boolean isValidInterface(Class<T> c,String str)
+
+	// Writes a reply. Replies to other calls may be written between the DATA
+	// frames carrying its streams.
+	void send(Frame reply) throws IOException
 	{
-		Class[] parentInterfaces = c.getInterfaces();
+		reply.write(out);
+	}
+
+	void shutdownInput() throws IOException
+	{
+		s.shutdownInput();
+	}
 
-		if (str.equals(c.getName()))
-			return true;
-		for (Class c1 : parentInterfaces) {
-			if (str.equals(c1.getName()))
-				return true;
+	void shutdownOutput() throws IOException
+	{
+		s.shutdownOutput();
+	}
+
+	void close()
+	{
+		try
+		{
+			s.close();
 		}
-		return false;
-	}	
-	
+		catch(IOException e)
+		{
+		}
+	}
+
+	// Reads calls arriving on the connection and hands each to the skeleton's
+	// executor, until the stub closes the connection, the connection stays
+	// idle for too long, or the skeleton is stopped.
 	public void run()
 	{
-		ObjectOutputStream oos = null;
-		ObjectInputStream ois = null;
-		
+		int calls = 0;
+		Frame.Assembler assembler = new Frame.Assembler();
+
 		try
-		{			
-			oos = new ObjectOutputStream(s.getOutputStream());								
-			oos.flush();
-			
-			ois = new ObjectInputStream(s.getInputStream());
-			
-			String interfaceName = (String)ois.readObject();
-			String methodName = (String)ois.readObject();
-			Class[] parameterTypes = (Class[])ois.readObject();
-			Object[] arguments = (Object[])ois.readObject();
-			
-			if(isValidInterface(c, interfaceName) == false)
-			{
-				oos.writeObject(false);
-				oos.writeObject(new RMIException("Server side: Interface checking"));
-				return;
-			}
-			
-			//Checking heirarchy of interfaces for methods
-			boolean flag = false;
-			Object result = null;
-			
-			Method[] m = c.getDeclaredMethods();
-			
-			for(Method k : m)
+		{
+			s.setSoTimeout(IDLE_TIMEOUT);
+			options.configure(s);
+
+			out = options.output(s.getOutputStream());
+			Counter counter = new Counter(options.input(s.getInputStream()));
+			DataInputStream in = new DataInputStream(counter);
+
+			while(true)
 			{
-				if(k.getName().equals(methodName) && k.getParameterTypes().length == parameterTypes.length)
+				Frame frame;
+				long start = counter.count;
+
+				try
 				{
-					flag = true;
-					result = k.invoke(server, arguments);
-					oos.writeObject(true);
-					oos.writeObject(result);
-					break;
+					frame = Frame.read(in, assembler);
 				}
-			}
-			
-			if(flag == false)
-			{
-				Class<?>[] parents = c.getInterfaces();
-				
-				for(Class j: parents)
+				catch(SocketTimeoutException e)
 				{
-					Method[] pm = j.getDeclaredMethods();
-					
-					for(Method k : pm)
+					// The bytes of a frame read before the timeout are lost, so
+					// the next read would start within the frame.
+					if(counter.count != start)
 					{
-						if(k.getName().equals(methodName))
+						if(!isClosing())
 						{
-							result =  k.invoke(server, arguments);
-							oos.writeObject(true);
-							oos.writeObject(result);
-							return;
+							skeleton.service_error(new RMIException("Server side: connection stalled within a frame", e));
 						}
+
+						close();
+						return;
 					}
+
+					// A connection waiting for a long call is not idle.
+					if(isIdle())
+					{
+						return;
+					}
+
+					continue;
 				}
-				
-				oos.writeObject(false);
-				oos.writeObject(new RMIException("Interface"));
-			}				
-		}
-		catch(InvocationTargetException ite)
-		{	
-			try
-			{
-				oos.writeObject(false);
-				oos.writeObject(ite.getCause());
-				//System.out.println("Server Side: InvocationTargetException in ThreadRunnable");
-			}
-			catch(IOException j)
-			{
-				//System.out.println("Server side : IO Exception");
+				catch(IOException e)
+				{
+					// The end of the connection between calls is normal, but a
+					// connection closed before carrying any call is reported.
+					if(calls == 0 && !isClosing())
+					{
+						skeleton.service_error(new RMIException("Server side: connection closed before any call", e));
+					}
+
+					return;
+				}
+
+				if(frame == null)
+				{
+					continue;
+				}
+
+				if(dispatcher.dispatch(this, frame) == false)
+				{
+					return;
+				}
+
+				calls++;
 			}
 		}
 		catch(Exception e)
 		{
 			//System.out.println("Server side: Exception from server thread");
-			
-			try
+
+			if(!isClosing())
 			{
-				
-				oos.writeObject(false);
-				oos.writeObject(e);
-				//System.out.println("Server side: General exception");
+				skeleton.service_error(new RMIException("Server Side: IO Exception", e));
 			}
-			catch(IOException j)
+		}
+		finally
+		{
+			assembler.dispose();
+			endReading();
+			skeleton.connectionClosed(this);
+		}
+	}
+
+	// Stream counting the bytes read through it.
+	private static class Counter extends FilterInputStream
+	{
+		long count = 0;
+
+		Counter(InputStream in)
+		{
+			super(in);
+		}
+
+		public int read() throws IOException
+		{
+			int value = in.read();
+
+			if(value >= 0)
 			{
-				skeleton.service_error(new RMIException("Server Side: IO Exception"));
-				//System.out.println("Server side : IO Exception");
+				count++;
 			}
+
+			return value;
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int read = in.read(buffer, offset, length);
+
+			if(read > 0)
+			{
+				count += read;
+			}
+
+			return read;
+		}
+
+		public long skip(long length) throws IOException
+		{
+			long skipped = in.skip(length);
+
+			count += skipped;
+			return skipped;
 		}
 	}
 }
@@ -0,0 +1,251 @@
+//Compact encoding of exceptions, used by the binary codec
+
+package rmi;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// An exception whose only state is its message and cause is written as its
+// message, its cause and, if the sender asks for them, its stack trace,
+// after the class name written by the binary codec, rather than in its
+// serialized form. The receiver creates the exception with its public
+// (String, Throwable) or (String) constructor, looked up once per class.
+// Without the sender's stack trace the exception keeps the stack trace filled
+// in by its constructor, which leads to the caller of the remote method.
+//
+// Exceptions which declare fields of their own, override getMessage, or carry
+// suppressed exceptions, are serialized as before, so that nothing is lost.
+// So are exceptions whose constructor does not reproduce them: before an
+// exception is written, one is created from its message and cause as the
+// receiver would create it, and if the new exception's message or cause
+// differs, because the constructor decorates the message or chooses a cause
+// of its own, the exception is serialized instead.
+// NullPointerException overrides getMessage only to supply a message the
+// exception was created without, so it is encoded compactly as well.
+final class ThrowableCodec
+{
+	// Constructors of a class which cannot be encoded compactly.
+	private static final Constructors NONE = new Constructors(null, null);
+
+	private static final ConcurrentHashMap<Class<?>, Constructors> types = new ConcurrentHashMap<Class<?>, Constructors>();
+
+	private ThrowableCodec()
+	{
+	}
+
+	// Whether an exception is encoded compactly.
+	static boolean isCompact(Throwable value)
+	{
+		Constructors constructors = constructors(value.getClass());
+
+		return constructors != NONE && value.getSuppressed().length == 0 && constructors.recreates(value);
+	}
+
+	// Writes the contents of an exception for which isCompact is true.
+	static void write(DataOutputStream out, Throwable value, Codec codec, boolean stackTrace) throws IOException
+	{
+		Throwable cause = value.getCause();
+
+		codec.writeValue(out, value.getMessage());
+		codec.writeValue(out, cause == value ? null : cause);
+		out.writeBoolean(stackTrace);
+
+		if(stackTrace)
+		{
+			StackTraceElement[] elements = value.getStackTrace();
+
+			out.writeInt(elements.length);
+
+			for(StackTraceElement element : elements)
+			{
+				out.writeUTF(element.getClassName());
+				out.writeUTF(element.getMethodName());
+				codec.writeValue(out, element.getFileName());
+				out.writeInt(element.getLineNumber());
+			}
+		}
+	}
+
+	// Reads the contents of an exception of the given class written by write.
+	static Throwable read(DataInputStream in, Codec codec, Class<?> type) throws IOException, ClassNotFoundException
+	{
+		Constructors constructors = constructors(type);
+
+		if(constructors == NONE)
+		{
+			throw new InvalidClassException(type.getName(), "not a compactly encoded exception");
+		}
+
+		Object message = codec.readValue(in);
+		Object cause = codec.readValue(in);
+
+		if((message != null && !(message instanceof String)) || (cause != null && !(cause instanceof Throwable)))
+		{
+			throw new StreamCorruptedException("invalid exception contents for " + type.getName());
+		}
+
+		Throwable value = constructors.create((String)message, (Throwable)cause);
+
+		if(in.readBoolean())
+		{
+			int length = in.readInt();
+
+			Frame.checkArrayLength(in, length);
+
+			StackTraceElement[] elements = new StackTraceElement[length];
+
+			for(int i = 0; i < length; i++)
+			{
+				String className = in.readUTF();
+				String methodName = in.readUTF();
+				Object fileName = codec.readValue(in);
+
+				if(fileName != null && !(fileName instanceof String))
+				{
+					throw new StreamCorruptedException("invalid stack trace of " + type.getName());
+				}
+
+				elements[i] = new StackTraceElement(className, methodName, (String)fileName, in.readInt());
+			}
+
+			value.setStackTrace(elements);
+		}
+
+		return value;
+	}
+
+	private static Constructors constructors(Class<?> type)
+	{
+		Constructors constructors = types.get(type);
+
+		if(constructors == null)
+		{
+			constructors = lookup(type);
+			types.putIfAbsent(type, constructors);
+		}
+
+		return constructors;
+	}
+
+	// Finds the public constructors of an exception class, or returns NONE if
+	// the class is not an exception or has state of its own.
+	private static Constructors lookup(Class<?> type)
+	{
+		if(!Throwable.class.isAssignableFrom(type) || !Modifier.isPublic(type.getModifiers()))
+		{
+			return NONE;
+		}
+
+		try
+		{
+			Class<?> declaring = type.getMethod("getMessage").getDeclaringClass();
+
+			if(declaring != Throwable.class && declaring != NullPointerException.class)
+			{
+				return NONE;
+			}
+		}
+		catch(NoSuchMethodException e)
+		{
+			return NONE;
+		}
+
+		for(Class<?> c = type; c != Throwable.class; c = c.getSuperclass())
+		{
+			for(Field field : c.getDeclaredFields())
+			{
+				if(!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()))
+				{
+					return NONE;
+				}
+			}
+		}
+
+		MethodHandle withCause = constructor(type, String.class, Throwable.class);
+		MethodHandle withMessage = constructor(type, String.class);
+
+		if(withCause == null && withMessage == null)
+		{
+			return NONE;
+		}
+
+		return new Constructors(withCause, withMessage);
+	}
+
+	private static MethodHandle constructor(Class<?> type, Class<?>... parameters)
+	{
+		try
+		{
+			MethodHandle handle = MethodHandles.publicLookup().unreflectConstructor(type.getConstructor(parameters));
+
+			return handle.asType(handle.type().changeReturnType(Throwable.class));
+		}
+		catch(NoSuchMethodException | IllegalAccessException | SecurityException e)
+		{
+			return null;
+		}
+	}
+
+	// The constructors of an exception class taking a message and a cause,
+	// and a message alone, either of which may be missing.
+	private static class Constructors
+	{
+		private final MethodHandle withCause;
+		private final MethodHandle withMessage;
+
+		Constructors(MethodHandle withCause, MethodHandle withMessage)
+		{
+			this.withCause = withCause;
+			this.withMessage = withMessage;
+		}
+
+		// Whether the exception created from the message and cause of the
+		// given one has the same message and cause.
+		boolean recreates(Throwable value)
+		{
+			String message = value.getMessage();
+			Throwable cause = value.getCause();
+
+			try
+			{
+				Throwable copy = create(message, cause);
+
+				return Objects.equals(copy.getMessage(), message) && copy.getCause() == cause;
+			}
+			catch(IOException e)
+			{
+				return false;
+			}
+		}
+
+		Throwable create(String message, Throwable cause) throws IOException
+		{
+			try
+			{
+				if(withCause != null && (cause != null || withMessage == null))
+				{
+					return (Throwable)withCause.invokeExact(message, cause);
+				}
+
+				Throwable value = (Throwable)withMessage.invokeExact(message);
+
+				if(cause != null)
+				{
+					value.initCause(cause);
+				}
+
+				return value;
+			}
+			catch(Throwable t)
+			{
+				InvalidObjectException failure = new InvalidObjectException("unable to create exception: " + t);
+
+				failure.initCause(t);
+				throw failure;
+			}
+		}
+	}
+}
@@ -0,0 +1,452 @@
+package rmi;
+
+import java.io.*;
+import java.util.*;
+
+/** Offline analysis of trace logs.
+
+	<p>
+	Reads the span logs written by <code>Tracer</code> in any number of
+	processes, reassembles each trace from its spans, and prints the slowest
+	traces as trees of spans. The spans on the critical path of each trace, the
+	chain of spans which determined its duration, are marked with an asterisk,
+	and the time each spent itself, rather than waiting for its children, is
+	shown. Skeleton spans also show the time the call waited to start, and the
+	time taken to decode the arguments, execute the method and encode the
+	reply. A summary then lists, for each span name, the number of spans, their
+	mean and maximum durations, and the total time the spans contributed to
+	critical paths.
+
+	<p>
+	Span start times are taken from the clock of the process which recorded
+	each span, so spans from different hosts are only aligned as well as their
+	clocks are.
+
+	<p>
+	Usage: <code>java rmi.TraceAnalyzer [-n count] [-t trace] file...</code>,
+	where <code>count</code> is the number of slowest traces printed (10 by
+	default) and <code>trace</code> the hexadecimal ID of a single trace to be
+	printed instead. Rolled-over log files must be listed explicitly.
+ */
+public final class TraceAnalyzer
+{
+	private final Map<Long, List<Span>> traces = new HashMap<Long, List<Span>>();
+	private int malformed = 0;
+
+	private TraceAnalyzer()
+	{
+	}
+
+	/** Analyzes trace logs and prints the report to standard output.
+
+		@param arguments Options and names of log files.
+	 */
+	public static void main(String[] arguments)
+	{
+		System.exit(run(arguments, System.out));
+	}
+
+	// Runs the analyzer with the given command line, and returns the exit
+	// status.
+	static int run(String[] arguments, PrintStream out)
+	{
+		int count = 10;
+		Long selected = null;
+		List<File> files = new ArrayList<File>();
+
+		try
+		{
+			for(int i = 0; i < arguments.length; i++)
+			{
+				if(arguments[i].equals("-n") && i + 1 < arguments.length)
+				{
+					count = Integer.parseInt(arguments[++i]);
+				}
+				else if(arguments[i].equals("-t") && i + 1 < arguments.length)
+				{
+					selected = Long.parseUnsignedLong(arguments[++i], 16);
+				}
+				else
+				{
+					files.add(new File(arguments[i]));
+				}
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			files.clear();
+		}
+
+		if(files.isEmpty())
+		{
+			out.println("usage: java rmi.TraceAnalyzer [-n count] [-t trace] file...");
+			return 2;
+		}
+
+		TraceAnalyzer analyzer = new TraceAnalyzer();
+
+		try
+		{
+			for(File file : files)
+			{
+				analyzer.read(file);
+			}
+		}
+		catch(IOException e)
+		{
+			out.println("unable to read trace log: " + e);
+			return 1;
+		}
+
+		analyzer.report(out, count, selected);
+		return 0;
+	}
+
+	private void read(File file) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		try
+		{
+			String line;
+
+			while((line = reader.readLine()) != null)
+			{
+				Span span = Span.parse(line);
+
+				if(span == null)
+				{
+					malformed++;
+					continue;
+				}
+
+				List<Span> spans = traces.get(span.traceId);
+
+				if(spans == null)
+				{
+					spans = new ArrayList<Span>();
+					traces.put(span.traceId, spans);
+				}
+
+				spans.add(span);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	private void report(PrintStream out, int count, Long selected)
+	{
+		List<Trace> all = new ArrayList<Trace>();
+
+		for(Map.Entry<Long, List<Span>> entry : traces.entrySet())
+		{
+			all.add(new Trace(entry.getKey(), entry.getValue()));
+		}
+
+		Collections.sort(all, new Comparator<Trace>()
+		{
+			public int compare(Trace first, Trace second)
+			{
+				return Long.compare(second.duration(), first.duration());
+			}
+		});
+
+		int spans = 0;
+
+		for(Trace trace : all)
+		{
+			spans += trace.spans.size();
+		}
+
+		out.println(all.size() + " traces, " + spans + " spans" + (malformed == 0 ? "" : ", " + malformed + " malformed lines skipped"));
+		out.println();
+
+		int printed = 0;
+
+		for(Trace trace : all)
+		{
+			if(selected != null ? trace.id == selected.longValue() : printed < count)
+			{
+				trace.print(out);
+				printed++;
+			}
+		}
+
+		if(selected != null && printed == 0)
+		{
+			out.println("trace " + Long.toHexString(selected) + " not found");
+			out.println();
+		}
+
+		summarize(out, all);
+	}
+
+	// Prints the statistics of each span name over all traces.
+	private static void summarize(PrintStream out, List<Trace> all)
+	{
+		Map<String, long[]> names = new TreeMap<String, long[]>();
+
+		for(Trace trace : all)
+		{
+			for(Span span : trace.spans)
+			{
+				String name = span.kind + " " + span.name;
+				long[] totals = names.get(name);
+
+				if(totals == null)
+				{
+					totals = new long[4];
+					names.put(name, totals);
+				}
+
+				totals[0]++;
+				totals[1] += span.duration;
+				totals[2] = Math.max(totals[2], span.duration);
+				totals[3] += span.critical;
+			}
+		}
+
+		out.println(String.format("%-40s %8s %12s %12s %14s", "span", "count", "mean ms", "max ms", "critical ms"));
+
+		for(Map.Entry<String, long[]> entry : names.entrySet())
+		{
+			long[] totals = entry.getValue();
+
+			out.println(String.format("%-40s %8d %12s %12s %14s", entry.getKey(), totals[0], millis(totals[1] / totals[0]), millis(totals[2]), millis(totals[3])));
+		}
+	}
+
+	private static String millis(long nanos)
+	{
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	// The spans of one trace, arranged in trees. Spans whose parent was not
+	// recorded, such as the first call of a trace, are roots.
+	private static class Trace
+	{
+		final long id;
+		final List<Span> spans;
+		final List<Span> roots = new ArrayList<Span>();
+		private final long start;
+		private final long end;
+
+		Trace(long id, List<Span> spans)
+		{
+			this.id = id;
+			this.spans = spans;
+
+			Map<Long, Span> byId = new HashMap<Long, Span>();
+
+			for(Span span : spans)
+			{
+				byId.put(span.spanId, span);
+			}
+
+			long first = Long.MAX_VALUE;
+			long last = Long.MIN_VALUE;
+
+			for(Span span : spans)
+			{
+				Span parent = span.parentId == 0 ? null : byId.get(span.parentId);
+
+				if(parent == null || parent == span)
+				{
+					roots.add(span);
+				}
+				else
+				{
+					parent.children.add(span);
+				}
+
+				first = Math.min(first, span.start);
+				last = Math.max(last, span.end());
+			}
+
+			start = first;
+			end = last;
+
+			for(Span span : spans)
+			{
+				Collections.sort(span.children, Span.BY_START);
+			}
+
+			Collections.sort(roots, Span.BY_START);
+
+			for(Span root : roots)
+			{
+				root.markCritical();
+			}
+		}
+
+		long duration()
+		{
+			return end - start;
+		}
+
+		void print(PrintStream out)
+		{
+			out.println("trace " + Long.toHexString(id) + "  " + millis(duration()) + " ms  " + spans.size() + " spans");
+
+			for(Span root : roots)
+			{
+				root.print(out, start, "  ");
+			}
+
+			out.println();
+		}
+	}
+
+	// One line of a trace log.
+	private static class Span
+	{
+		static final Comparator<Span> BY_START = new Comparator<Span>()
+		{
+			public int compare(Span first, Span second)
+			{
+				return Long.compare(first.start, second.start);
+			}
+		};
+
+		long traceId;
+		long spanId;
+		long parentId;
+		char kind;
+		String name;
+		String peer;
+		// Start in nanoseconds since the epoch, and duration in nanoseconds.
+		long start;
+		long duration;
+		long queue;
+		long decode;
+		long execute;
+		long encode;
+		boolean error;
+		final List<Span> children = new ArrayList<Span>();
+		boolean onCriticalPath = false;
+		// Time the span spent on the critical path itself, rather than in
+		// critical children.
+		long critical = 0;
+
+		// Parses a line of a log, or returns null if it is not a span.
+		static Span parse(String line)
+		{
+			String[] fields = line.split("\t");
+
+			if(fields.length != 13 || fields[3].length() != 1)
+			{
+				return null;
+			}
+
+			try
+			{
+				Span span = new Span();
+
+				span.traceId = Long.parseUnsignedLong(fields[0], 16);
+				span.spanId = Long.parseUnsignedLong(fields[1], 16);
+				span.parentId = Long.parseUnsignedLong(fields[2], 16);
+				span.kind = fields[3].charAt(0);
+				span.name = fields[4];
+				span.peer = fields[5];
+				span.start = Long.parseLong(fields[6]) * 1000;
+				span.duration = Long.parseLong(fields[7]);
+				span.queue = Long.parseLong(fields[8]);
+				span.decode = Long.parseLong(fields[9]);
+				span.execute = Long.parseLong(fields[10]);
+				span.encode = Long.parseLong(fields[11]);
+				span.error = fields[12].equals("1");
+				return span;
+			}
+			catch(NumberFormatException e)
+			{
+				return null;
+			}
+		}
+
+		long end()
+		{
+			return start + duration;
+		}
+
+		// Marks the critical path below this span. Working back from the end
+		// of the span, the child which ended last is critical, then the child
+		// which ended last before that child started, and so on; the time not
+		// covered by critical children is the span's own.
+		void markCritical()
+		{
+			onCriticalPath = true;
+
+			long cursor = end();
+			long own = duration;
+			List<Span> remaining = new ArrayList<Span>(children);
+
+			while(true)
+			{
+				Span last = null;
+
+				for(Span child : remaining)
+				{
+					if(child.start < cursor && (last == null || Math.min(child.end(), cursor) > Math.min(last.end(), cursor)))
+					{
+						last = child;
+					}
+				}
+
+				if(last == null)
+				{
+					break;
+				}
+
+				remaining.remove(last);
+				last.markCritical();
+
+				long covered = Math.min(last.end(), cursor) - Math.max(last.start, start);
+
+				own -= Math.max(0, covered);
+				cursor = last.start;
+			}
+
+			critical = Math.max(0, own);
+		}
+
+		void print(PrintStream out, long traceStart, String indent)
+		{
+			StringBuilder line = new StringBuilder();
+
+			line.append(onCriticalPath ? '*' : ' ').append(indent).append(kind).append(' ').append(name);
+
+			if(!peer.equals("-"))
+			{
+				line.append(" -> ").append(peer);
+			}
+
+			line.append("  +").append(millis(start - traceStart)).append(" ms  ").append(millis(duration)).append(" ms");
+
+			if(onCriticalPath)
+			{
+				line.append("  self ").append(millis(critical)).append(" ms");
+			}
+
+			if(queue >= 0)
+			{
+				line.append("  [queue ").append(millis(queue)).append(" decode ").append(millis(decode)).append(" execute ").append(millis(execute))
+					.append(" encode ").append(millis(encode)).append(']');
+			}
+
+			if(error)
+			{
+				line.append("  ERROR");
+			}
+
+			out.println(line);
+
+			for(Span child : children)
+			{
+				child.print(out, traceStart, indent + "  ");
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+//Identifiers of the trace and span a thread is working in
+
+package rmi;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// A call made while a context is attached to the thread is a child span of the
+// attached span: it belongs to the same trace, and is sent to the skeleton
+// with the trace ID and its own span ID, so that the span of the skeleton, and
+// the calls made by the remote method, are children of the call in turn.
+// Contexts exist only for sampled traces.
+final class TraceContext
+{
+	private static final ThreadLocal<TraceContext> current = new ThreadLocal<TraceContext>();
+
+	final long traceId;
+	final long spanId;
+
+	TraceContext(long traceId, long spanId)
+	{
+		this.traceId = traceId;
+		this.spanId = spanId;
+	}
+
+	// Returns the context of a new trace.
+	static TraceContext root()
+	{
+		return new TraceContext(newId(), newId());
+	}
+
+	// Returns the context of a new span in the same trace.
+	TraceContext child()
+	{
+		return new TraceContext(traceId, newId());
+	}
+
+	static TraceContext current()
+	{
+		return current.get();
+	}
+
+	// Attaches the context to the current thread, and returns the context
+	// previously attached, to be restored when the span ends.
+	TraceContext attach()
+	{
+		TraceContext previous = current.get();
+
+		current.set(this);
+		return previous;
+	}
+
+	static void restore(TraceContext previous)
+	{
+		if(previous == null)
+		{
+			current.remove();
+		}
+		else
+		{
+			current.set(previous);
+		}
+	}
+
+	// Identifiers are random and never zero, which stands for no parent.
+	private static long newId()
+	{
+		long id;
+
+		do
+		{
+			id = ThreadLocalRandom.current().nextLong();
+		}
+		while(id == 0);
+
+		return id;
+	}
+}
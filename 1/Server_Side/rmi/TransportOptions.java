@@ -0,0 +1,233 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+
+/** Socket and buffering options of the connections between stubs and
+	skeletons.
+
+	<p>
+	The same options apply to both ends of a connection: skeletons take them
+	with <code>Skeleton.setTransportOptions</code>, and stubs with
+	<code>Stub.withTransportOptions</code>. The options are:
+
+	<ul>
+	<li>the size of the buffers through which frames are written and read.
+		With buffering, a frame leaves in a single write and a small frame is
+		read in a single read. Without, each field of a frame is a separate
+		system call. The non-blocking transport always reads and writes through
+		buffers, and takes only their size from the options.</li>
+	<li>whether Nagle's algorithm is disabled (<code>TCP_NODELAY</code>). With
+		Nagle's algorithm a small frame may be held back until the previous
+		one has been acknowledged, which with delayed acknowledgements can add
+		tens of milliseconds to a call.</li>
+	<li>the sizes of the socket send and receive buffers, which bound the data
+		in flight on a connection, or zero to leave them to the system.</li>
+	<li>the length of the queue of connections waiting to be accepted by a
+		skeleton, or zero for the transport's default: 50 for the blocking
+		transport, and 1024 for the non-blocking transport, which expects
+		bursts of connections from many clients.</li>
+	</ul>
+
+	<p>
+	The default options buffer frames in 8 KiB buffers and disable Nagle's
+	algorithm. Options are immutable: each <code>with</code> method returns a
+	new set of options.
+ */
+public final class TransportOptions
+{
+	private static final TransportOptions DEFAULTS = new TransportOptions(8192, true, 0, 0, 0);
+
+	private final int bufferSize;
+	private final boolean tcpNoDelay;
+	private final int sendBufferSize;
+	private final int receiveBufferSize;
+	private final int backlog;
+
+	private TransportOptions(int bufferSize, boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize, int backlog)
+	{
+		this.bufferSize = bufferSize;
+		this.tcpNoDelay = tcpNoDelay;
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+		this.backlog = backlog;
+	}
+
+	/** Returns the default options. */
+	public static TransportOptions defaults()
+	{
+		return DEFAULTS;
+	}
+
+	/** Returns options with the given buffer size.
+
+		@param bytes The size of the buffers through which frames are written
+					 and read, or zero to write and read the socket directly.
+		@return The new options.
+		@throws IllegalArgumentException If <code>bytes</code> is negative.
+	 */
+	public TransportOptions withBuffering(int bytes)
+	{
+		if(bytes < 0)
+		{
+			throw new IllegalArgumentException("negative buffer size");
+		}
+
+		return new TransportOptions(bytes, tcpNoDelay, sendBufferSize, receiveBufferSize, backlog);
+	}
+
+	/** Returns options which enable or disable Nagle's algorithm.
+
+		@param noDelay <code>true</code> to disable Nagle's algorithm.
+		@return The new options.
+	 */
+	public TransportOptions withTcpNoDelay(boolean noDelay)
+	{
+		return new TransportOptions(bufferSize, noDelay, sendBufferSize, receiveBufferSize, backlog);
+	}
+
+	/** Returns options with the given socket buffer sizes.
+
+		@param send The size of the socket send buffer, or zero for the system
+					default.
+		@param receive The size of the socket receive buffer, or zero for the
+					   system default.
+		@return The new options.
+		@throws IllegalArgumentException If either size is negative.
+	 */
+	public TransportOptions withSocketBuffers(int send, int receive)
+	{
+		if(send < 0 || receive < 0)
+		{
+			throw new IllegalArgumentException("negative socket buffer size");
+		}
+
+		return new TransportOptions(bufferSize, tcpNoDelay, send, receive, backlog);
+	}
+
+	/** Returns options with the given accept backlog.
+
+		@param connections The number of connections which may wait to be
+						   accepted by a skeleton, or zero for the transport's
+						   default.
+		@return The new options.
+		@throws IllegalArgumentException If <code>connections</code> is
+										 negative.
+	 */
+	public TransportOptions withBacklog(int connections)
+	{
+		if(connections < 0)
+		{
+			throw new IllegalArgumentException("negative backlog");
+		}
+
+		return new TransportOptions(bufferSize, tcpNoDelay, sendBufferSize, receiveBufferSize, connections);
+	}
+
+	// Getter method for the buffer size
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	// Getter method for TCP_NODELAY
+	public boolean getTcpNoDelay()
+	{
+		return tcpNoDelay;
+	}
+
+	// Getter method for the socket send buffer size
+	public int getSendBufferSize()
+	{
+		return sendBufferSize;
+	}
+
+	// Getter method for the socket receive buffer size
+	public int getReceiveBufferSize()
+	{
+		return receiveBufferSize;
+	}
+
+	// Getter method for the accept backlog
+	public int getBacklog()
+	{
+		return backlog;
+	}
+
+	// Applies the socket options to a socket, before it is connected. The
+	// receive buffer must be sized before the connection is established for
+	// sizes above 64 KiB to take effect.
+	void configure(Socket socket) throws SocketException
+	{
+		socket.setTcpNoDelay(tcpNoDelay);
+
+		if(sendBufferSize > 0)
+		{
+			socket.setSendBufferSize(sendBufferSize);
+		}
+
+		if(receiveBufferSize > 0)
+		{
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	// Applies the receive buffer size to a listening socket, before it is
+	// bound, so that accepted sockets inherit it from the start.
+	void configure(ServerSocket socket) throws SocketException
+	{
+		if(receiveBufferSize > 0)
+		{
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	// Accept backlog, or the given default if none was set.
+	int backlog(int transportDefault)
+	{
+		return backlog > 0 ? backlog : transportDefault;
+	}
+
+	// Buffer size of the non-blocking transport, which must buffer.
+	int channelBufferSize()
+	{
+		return Math.max(bufferSize, 1024);
+	}
+
+	// Stream through which frames are written to a socket.
+	DataOutputStream output(OutputStream out)
+	{
+		return new DataOutputStream(bufferSize > 0 ? new BufferedOutputStream(out, bufferSize) : out);
+	}
+
+	// Stream through which frames are read from a socket.
+	DataInputStream input(InputStream in)
+	{
+		return new DataInputStream(bufferSize > 0 ? new BufferedInputStream(in, bufferSize) : in);
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		if(!(other instanceof TransportOptions))
+		{
+			return false;
+		}
+
+		TransportOptions options = (TransportOptions)other;
+
+		return bufferSize == options.bufferSize && tcpNoDelay == options.tcpNoDelay && sendBufferSize == options.sendBufferSize && receiveBufferSize == options.receiveBufferSize && backlog == options.backlog;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return ((((bufferSize * 31) + (tcpNoDelay ? 1 : 0)) * 31 + sendBufferSize) * 31 + receiveBufferSize) * 31 + backlog;
+	}
+
+	@Override
+	public String toString()
+	{
+		return (bufferSize > 0 ? "buffered(" + bufferSize + ")" : "unbuffered") + (tcpNoDelay ? ", nodelay" : ", nagle") + (sendBufferSize > 0 ? ", sndbuf " + sendBufferSize : "") + (receiveBufferSize > 0 ? ", rcvbuf " + receiveBufferSize : "") + (backlog > 0 ? ", backlog " + backlog : "");
+	}
+}
@@ -0,0 +1,180 @@
+//Unix-domain socket channels, looked up reflectively where the platform provides them
+
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Unix-domain sockets are available from Java 16. They are looked up
+// reflectively, so that the library still compiles and runs on platforms
+// which predate them, where they are reported as unsupported.
+final class UnixDomain
+{
+	private static final Method ADDRESS = lookup("java.net.UnixDomainSocketAddress", "of", Path.class);
+	private static final Method OPEN_SERVER = lookup("java.nio.channels.ServerSocketChannel", "open", ProtocolFamily.class);
+	private static final Method OPEN_CLIENT = lookup("java.nio.channels.SocketChannel", "open", ProtocolFamily.class);
+
+	private UnixDomain()
+	{
+	}
+
+	private static Method lookup(String className, String name, Class<?> parameter)
+	{
+		try
+		{
+			return Class.forName(className).getMethod(name, parameter);
+		}
+		catch(ClassNotFoundException | NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+	static boolean isSupported()
+	{
+		return ADDRESS != null && OPEN_SERVER != null && OPEN_CLIENT != null;
+	}
+
+	// Opens a listening channel bound to the given socket file. A file left
+	// behind by an earlier run is replaced.
+	static ServerSocketChannel listen(Path file, int backlog) throws IOException
+	{
+		Files.deleteIfExists(file);
+
+		ServerSocketChannel channel = (ServerSocketChannel)invoke(OPEN_SERVER, unix());
+
+		try
+		{
+			channel.bind(address(file), backlog);
+			return channel;
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	// Opens a blocking channel connected to the given socket file.
+	static SocketChannel connect(Path file) throws IOException
+	{
+		SocketChannel channel = (SocketChannel)invoke(OPEN_CLIENT, unix());
+
+		try
+		{
+			channel.connect(address(file));
+			return channel;
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static SocketAddress address(Path file) throws IOException
+	{
+		return (SocketAddress)invoke(ADDRESS, file);
+	}
+
+	private static ProtocolFamily unix()
+	{
+		try
+		{
+			return StandardProtocolFamily.valueOf("UNIX");
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new UnsupportedOperationException("Unix-domain sockets not supported by this runtime");
+		}
+	}
+
+	private static Object invoke(Method method, Object argument) throws IOException
+	{
+		if(method == null)
+		{
+			throw new UnsupportedOperationException("Unix-domain sockets not supported by this runtime");
+		}
+
+		try
+		{
+			return method.invoke(null, argument);
+		}
+		catch(InvocationTargetException e)
+		{
+			if(e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+
+			throw new IOException(e.getCause());
+		}
+		catch(IllegalAccessException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	// Stream reading a blocking channel. Unlike the streams of
+	// java.nio.channels.Channels, it does not hold the channel's blocking lock
+	// while reading, so that another thread may write to the channel while a
+	// read is waiting.
+	static InputStream input(final SocketChannel channel)
+	{
+		return new InputStream()
+		{
+			public int read() throws IOException
+			{
+				byte[] one = new byte[1];
+
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			public int read(byte[] buffer, int offset, int count) throws IOException
+			{
+				if(count == 0)
+				{
+					return 0;
+				}
+
+				return channel.read(ByteBuffer.wrap(buffer, offset, count));
+			}
+
+			public void close() throws IOException
+			{
+				channel.close();
+			}
+		};
+	}
+
+	// Stream writing a blocking channel.
+	static OutputStream output(final SocketChannel channel)
+	{
+		return new OutputStream()
+		{
+			public void write(int value) throws IOException
+			{
+				write(new byte[] {(byte)value}, 0, 1);
+			}
+
+			public void write(byte[] buffer, int offset, int count) throws IOException
+			{
+				ByteBuffer data = ByteBuffer.wrap(buffer, offset, count);
+
+				while(data.hasRemaining())
+				{
+					channel.write(data);
+				}
+			}
+
+			public void close() throws IOException
+			{
+				channel.close();
+			}
+		};
+	}
+}
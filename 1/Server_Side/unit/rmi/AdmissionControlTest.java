@@ -0,0 +1,259 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Unit test for skeleton admission control.
+
+    <p>
+    Checks that a skeleton with limits runs no more than the allowed number of
+    calls at once, queues calls up to the queue limit, rejects further calls at
+    once with an <code>OverloadException</code>, rejects queued calls which
+    wait longer than the queue timeout even while no other call arrives or
+    completes, and starts calls to exempt methods at once.
+ */
+public class AdmissionControlTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking admission control";
+
+    private Skeleton<AdmissionInterface>    skeleton;
+    private AdmissionServer                 server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("rejecting calls beyond the queue limit");
+
+        AdmissionInterface      stub = start(AdmissionControl.limit(
+                                           2, 1, 0, TimeUnit.SECONDS));
+        AsyncAdmissionInterface async =
+            Stub.createAsync(AsyncAdmissionInterface.class, stub);
+
+        try
+        {
+            CompletableFuture<Void> first = async.block();
+            CompletableFuture<Void> second = async.block();
+
+            if(!server.entered.tryAcquire(2, 10, TimeUnit.SECONDS))
+                throw new TestFailed("admitted calls did not start");
+
+            CompletableFuture<Void> queued = async.block();
+
+            // Calls may travel on different connections, so the queued call is
+            // only known to be queued once the skeleton has received it.
+            waitQueued(1);
+            expectOverload(stub);
+
+            if(server.entered.tryAcquire(500, TimeUnit.MILLISECONDS))
+                throw new TestFailed("call beyond the limit was started");
+
+            server.release.release(3);
+
+            first.get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+            queued.get(10, TimeUnit.SECONDS);
+
+            if(server.maximum != 2)
+                throw new TestFailed(server.maximum + " calls ran at once");
+
+            skeleton.stop();
+
+            task("rejecting calls which wait too long");
+
+            stub = start(AdmissionControl.limit(1, 1, 100,
+                                                TimeUnit.MILLISECONDS));
+            async = Stub.createAsync(AsyncAdmissionInterface.class, stub);
+
+            first = async.block();
+
+            if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+                throw new TestFailed("admitted call did not start");
+
+            queued = async.block();
+
+            // The queued call is rejected while the first is still running.
+            try
+            {
+                queued.get(2, TimeUnit.SECONDS);
+                throw new TestFailed("call waiting too long was run");
+            }
+            catch(ExecutionException e)
+            {
+                if(!(e.getCause() instanceof OverloadException))
+                    throw new TestFailed("unexpected failure", e.getCause());
+            }
+
+            server.release.release();
+            first.get(10, TimeUnit.SECONDS);
+
+            skeleton.stop();
+
+            task("starting calls to exempt methods at once");
+
+            stub = start(AdmissionControl.limit(1, 1, 0, TimeUnit.SECONDS)
+                             .exempt("unblock"));
+            async = Stub.createAsync(AsyncAdmissionInterface.class, stub);
+
+            first = async.block();
+
+            if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+                throw new TestFailed("admitted call did not start");
+
+            queued = async.block();
+            waitQueued(1);
+
+            // The running and waiting limits are both reached, yet the calls
+            // releasing the blocked calls are started.
+            stub.unblock();
+            first.get(10, TimeUnit.SECONDS);
+
+            if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+                throw new TestFailed("queued call did not start");
+
+            stub.unblock();
+            queued.get(10, TimeUnit.SECONDS);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    // Starts a skeleton with the given limits and returns a stub for it.
+    private AdmissionInterface start(AdmissionControl admission)
+        throws TestFailed
+    {
+        server = new AdmissionServer();
+        skeleton = new Skeleton<AdmissionInterface>(AdmissionInterface.class,
+                                                    server,
+                                                    new InetSocketAddress(
+                                                        "127.0.0.1", 0));
+        skeleton.setAdmissionControl(admission);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return Stub.create(AdmissionInterface.class, skeleton.getAddress());
+    }
+
+    // Waits until the skeleton holds the given number of calls in its queue.
+    private void waitQueued(int calls) throws TestFailed, InterruptedException
+    {
+        AdmissionQueue  admission = skeleton.dispatcher().admission();
+        long            deadline = System.nanoTime() +
+                                   TimeUnit.SECONDS.toNanos(5);
+
+        while(admission.queued() != calls)
+        {
+            if(System.nanoTime() - deadline > 0)
+                throw new TestFailed("call not queued");
+
+            Thread.sleep(10);
+        }
+    }
+
+    // Makes a call which should be rejected at once.
+    private void expectOverload(AdmissionInterface stub) throws TestFailed
+    {
+        long        start = System.nanoTime();
+
+        try
+        {
+            stub.block();
+            throw new TestFailed("call beyond the limit was accepted");
+        }
+        catch(OverloadException e)
+        {
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected failure", e);
+        }
+
+        if(System.nanoTime() - start > TimeUnit.SECONDS.toNanos(2))
+            throw new TestFailed("overloaded call was not rejected at once");
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.release(100);
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface AdmissionInterface
+    {
+        public void block() throws RMIException;
+        public void unblock() throws RMIException;
+    }
+
+    /** Asynchronous counterpart of the remote interface. */
+    public interface AsyncAdmissionInterface
+    {
+        public CompletableFuture<Void> block();
+    }
+
+    // Server whose calls wait until released, counting the calls running at
+    // once.
+    private static class AdmissionServer implements AdmissionInterface
+    {
+        final Semaphore         entered = new Semaphore(0);
+        final Semaphore         release = new Semaphore(0);
+        private int             running = 0;
+        volatile int            maximum = 0;
+
+        @Override
+        public void block()
+        {
+            synchronized(this)
+            {
+                running++;
+                maximum = Math.max(maximum, running);
+            }
+
+            entered.release();
+
+            try
+            {
+                release.tryAcquire(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+
+            synchronized(this)
+            {
+                running--;
+            }
+        }
+
+        @Override
+        public void unblock()
+        {
+            release.release();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unit test for asynchronous stubs.
+
+    <p>
+    Checks that a single thread can have many calls outstanding through an
+    asynchronous stub, that each future completes with the result of its
+    call, and that exceptions thrown by the remote method complete the future
+    exceptionally.
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    private static final int    CALLS = 100;
+
+    private Skeleton<SlowInterface> skeleton;
+    private final CountDownLatch    arrived = new CountDownLatch(CALLS);
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<SlowInterface>(SlowInterface.class,
+                                               new SlowServer(),
+                                               new InetSocketAddress(
+                                                   "127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        SlowInterface       stub = Stub.create(SlowInterface.class,
+                                               skeleton.getAddress());
+        AsyncSlowInterface  async = Stub.createAsync(AsyncSlowInterface.class,
+                                                     stub);
+
+        task("making " + CALLS + " calls from one thread");
+
+        List<CompletableFuture<Integer>>    futures =
+            new ArrayList<CompletableFuture<Integer>>();
+
+        for(int i = 0; i < CALLS; i++)
+            futures.add(async.square(i));
+
+        // The server answers no call before every call has arrived, so this
+        // only succeeds if no call waited for its reply.
+        try
+        {
+            for(int i = 0; i < CALLS; i++)
+            {
+                if(futures.get(i).get(30, TimeUnit.SECONDS) != i * i)
+                    throw new TestFailed("call returned incorrect result");
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("asynchronous call failed", t);
+        }
+
+        task("checking that exceptions complete futures");
+
+        try
+        {
+            async.fail().get(30, TimeUnit.SECONDS);
+            throw new TestFailed("future completed normally");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof IllegalStateException))
+                throw new TestFailed("future failed with unexpected " +
+                                     "exception", e.getCause());
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("asynchronous call failed", t);
+        }
+
+        task("checking that asynchronous interfaces are verified");
+
+        try
+        {
+            Stub.createAsync(BadAsyncInterface.class, stub);
+            throw new TestFailed("asynchronous interface not verified");
+        }
+        catch(Error e)
+        {
+        }
+
+        task();
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface SlowInterface
+    {
+        public int square(int value) throws RMIException;
+        public void fail() throws RMIException;
+    }
+
+    /** Asynchronous counterpart of <code>SlowInterface</code>. */
+    public interface AsyncSlowInterface
+    {
+        public CompletableFuture<Integer> square(int value);
+        public CompletableFuture<Void> fail();
+    }
+
+    /** Asynchronous interface with a method missing from
+        <code>SlowInterface</code>. */
+    public interface BadAsyncInterface
+    {
+        public CompletableFuture<Integer> square(long value);
+    }
+
+    private class SlowServer implements SlowInterface
+    {
+        @Override
+        public int square(int value) throws RMIException
+        {
+            arrived.countDown();
+
+            try
+            {
+                arrived.await(30, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+
+            return value * value;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit test for balanced stubs.
+
+    <p>
+    Checks that calls are spread over all skeletons, that the least-outstanding
+    policy avoids a skeleton busy with a call, that the EWMA policy avoids a
+    slow skeleton, and that a skeleton which has stopped is ejected, calls to
+    idempotent methods being retried on another skeleton.
+ */
+public class BalancedStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking balanced stubs";
+
+    private final List<Skeleton<BalancedInterface>> skeletons =
+        new ArrayList<Skeleton<BalancedInterface>>();
+    private final List<BalancedServer>              servers =
+        new ArrayList<BalancedServer>();
+    private final List<InetSocketAddress>           addresses =
+        new ArrayList<InetSocketAddress>();
+
+    /** Starts three skeletons.
+
+        @throws TestFailed If a skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        for(int index = 0; index < 3; ++index)
+        {
+            BalancedServer              server = new BalancedServer(index);
+            Skeleton<BalancedInterface> skeleton =
+                new Skeleton<BalancedInterface>(BalancedInterface.class,
+                                                server,
+                                                new InetSocketAddress(
+                                                    "127.0.0.1", 0));
+
+            try
+            {
+                skeleton.start();
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start skeleton", t);
+            }
+
+            skeletons.add(skeleton);
+            servers.add(server);
+            addresses.add(skeleton.getAddress());
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("spreading calls over all skeletons");
+
+            BalancedInterface   stub = Stub.createBalanced(
+                BalancedInterface.class, BalancingPolicy.leastOutstanding(),
+                addresses);
+
+            for(int call = 0; call < 60; ++call)
+                stub.id();
+
+            for(BalancedServer server : servers)
+            {
+                if(server.calls.get() == 0)
+                    throw new TestFailed("skeleton " + server.index +
+                                         " not called");
+            }
+
+            task("avoiding a busy skeleton");
+
+            final BalancedInterface held = stub;
+            Thread                  holder = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        held.hold();
+                    }
+                    catch(RMIException e)
+                    {
+                    }
+                }
+            };
+
+            holder.start();
+
+            int                 busy = -1;
+
+            for(int wait = 0; busy < 0 && wait < 500; ++wait)
+            {
+                for(BalancedServer server : servers)
+                {
+                    if(server.entered.tryAcquire())
+                        busy = server.index;
+                }
+
+                if(busy < 0)
+                    Thread.sleep(10);
+            }
+
+            if(busy < 0)
+                throw new TestFailed("held call did not start");
+
+            for(int call = 0; call < 30; ++call)
+            {
+                if(stub.id() == busy)
+                    throw new TestFailed("call sent to busy skeleton");
+            }
+
+            servers.get(busy).release.release();
+            holder.join(10000);
+
+            task("avoiding a slow skeleton");
+
+            reset();
+            servers.get(0).delay = 200;
+            stub = Stub.createBalanced(BalancedInterface.class,
+                                       BalancingPolicy.ewmaLatency(
+                                           10, TimeUnit.SECONDS),
+                                       addresses);
+
+            for(int call = 0; call < 20; ++call)
+                stub.id();
+
+            // Each skeleton is tried once before its latency is known.
+            if(servers.get(0).calls.get() > 1)
+                throw new TestFailed("slow skeleton called " +
+                                     servers.get(0).calls.get() + " times");
+
+            servers.get(0).delay = 0;
+
+            checkEjection();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    // Stops a skeleton, and checks that it fails at most one call before it
+    // is ejected, and that calls to idempotent methods do not fail.
+    private void checkEjection() throws TestFailed, RMIException
+    {
+        task("ejecting a stopped skeleton");
+
+        skeletons.get(2).stop();
+
+        BalancingPolicy     policy = BalancingPolicy.leastOutstanding()
+                                         .withOutlierEjection(
+                                             1, 10, TimeUnit.SECONDS);
+        BalancedInterface   stub = Stub.createBalanced(
+            BalancedInterface.class, policy, addresses);
+        int                 failures = 0;
+
+        for(int call = 0; call < 30; ++call)
+        {
+            try
+            {
+                stub.id();
+            }
+            catch(RMIException e)
+            {
+                failures++;
+            }
+        }
+
+        if(failures > 1)
+            throw new TestFailed(failures + " calls sent to stopped skeleton");
+
+        stub = Stub.createBalanced(BalancedInterface.class, policy, addresses);
+
+        for(int call = 0; call < 30; ++call)
+            stub.lookup();
+    }
+
+    private void reset()
+    {
+        for(BalancedServer server : servers)
+            server.calls.set(0);
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        for(BalancedServer server : servers)
+            server.release.release(100);
+
+        for(Skeleton<BalancedInterface> skeleton : skeletons)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface BalancedInterface
+    {
+        public int id() throws RMIException;
+        @Idempotent
+        public int lookup() throws RMIException;
+        public void hold() throws RMIException;
+    }
+
+    // Server which identifies itself, counting its calls.
+    private static class BalancedServer implements BalancedInterface
+    {
+        final int               index;
+        final AtomicInteger     calls = new AtomicInteger();
+        final Semaphore         entered = new Semaphore(0);
+        final Semaphore         release = new Semaphore(0);
+        volatile long           delay = 0;
+
+        BalancedServer(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public int id()
+        {
+            calls.incrementAndGet();
+
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch(InterruptedException e)
+            {
+            }
+
+            return index;
+        }
+
+        @Override
+        public int lookup()
+        {
+            return id();
+        }
+
+        @Override
+        public void hold()
+        {
+            entered.release();
+
+            try
+            {
+                release.tryAcquire(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+    }
+}
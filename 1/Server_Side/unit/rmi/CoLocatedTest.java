@@ -0,0 +1,355 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Unit test for calls between co-located stubs and skeletons.
+
+    <p>
+    Checks that a skeleton allowing in-process calls runs the calls of stubs
+    in the same JVM on the calling thread, that arguments and results are
+    still copied, that in-process calls run with the caller's deadline and
+    observe admission control, refusing a queued call once its deadline
+    passes, that other skeletons are called over a connection, and that
+    in-process calls stop with the skeleton. Where the runtime supports them,
+    also checks that a stub reaches a skeleton through its Unix-domain socket
+    file, and that the file is removed when the skeleton stops.
+ */
+public class CoLocatedTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking co-located calls";
+
+    private Skeleton<CopyInterface>     skeleton;
+    private CopyServer                  server;
+    private TemporaryDirectory          directory;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkInProcess();
+            checkUnixDomain();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    private void checkInProcess() throws Throwable
+    {
+        task("calling a skeleton in the same JVM directly");
+
+        skeleton = start(Transport.blocking(), true);
+
+        CopyInterface           stub = Stub.create(CopyInterface.class,
+                                                   skeleton);
+
+        if(stub.caller() != Thread.currentThread().getId())
+            throw new TestFailed("in-process call ran on another thread");
+
+        task("copying arguments and results of in-process calls");
+
+        checkCopy(stub, 16);
+        checkCopy(stub, 1 << 20);
+
+        List<String>            list = new ArrayList<String>();
+
+        list.add("first");
+
+        if(stub.append(list).size() != 2 || list.size() != 1)
+            throw new TestFailed("in-process call shared a list");
+
+        task("running in-process calls with the caller's deadline");
+
+        CopyInterface           timed = Stub.withTimeout(stub, 5,
+                                                         TimeUnit.SECONDS);
+        long                    remaining = timed.remaining();
+
+        if(remaining <= 0 || remaining > 5000)
+            throw new TestFailed("in-process call ran without the deadline");
+
+        if(timed.caller() != Thread.currentThread().getId())
+            throw new TestFailed("call with a deadline ran on another thread");
+
+        task("admitting in-process calls");
+
+        skeleton.stop();
+        skeleton = start(Transport.blocking(), true,
+                         AdmissionControl.limit(1, 0, 0, TimeUnit.SECONDS));
+        stub = Stub.create(CopyInterface.class, skeleton);
+
+        Thread                  holder = hold(stub);
+
+        if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+            throw new TestFailed("held call did not start");
+
+        try
+        {
+            stub.caller();
+            throw new TestFailed("in-process call beyond the limit was run");
+        }
+        catch(OverloadException e)
+        {
+        }
+
+        server.release.release();
+        holder.join(10000);
+
+        if(stub.caller() != Thread.currentThread().getId())
+            throw new TestFailed("admitted call ran on another thread");
+
+        task("refusing queued in-process calls once their deadline passes");
+
+        skeleton.stop();
+        skeleton = start(Transport.blocking(), true,
+                         AdmissionControl.limit(1, 1, 0, TimeUnit.SECONDS));
+        stub = Stub.create(CopyInterface.class, skeleton);
+        holder = hold(stub);
+
+        if(!server.entered.tryAcquire(10, TimeUnit.SECONDS))
+            throw new TestFailed("held call did not start");
+
+        long                    start = System.nanoTime();
+
+        try
+        {
+            Stub.withTimeout(stub, 200, TimeUnit.MILLISECONDS).caller();
+            throw new TestFailed("queued in-process call was run");
+        }
+        catch(OverloadException e)
+        {
+        }
+
+        if(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(180))
+            throw new TestFailed("queued call refused before its deadline");
+
+        server.release.release();
+        holder.join(10000);
+
+        task("calling other skeletons over a connection");
+
+        skeleton.stop();
+        skeleton = start(Transport.blocking(), false);
+        stub = Stub.create(CopyInterface.class, skeleton);
+
+        if(stub.caller() == Thread.currentThread().getId())
+            throw new TestFailed("call ran on the calling thread");
+
+        task("stopping in-process calls with the skeleton");
+
+        skeleton.stop();
+        skeleton = start(Transport.blocking(), true);
+        stub = Stub.create(CopyInterface.class, skeleton);
+        stub.caller();
+        skeleton.stop();
+        skeleton = null;
+
+        try
+        {
+            stub.caller();
+            throw new TestFailed("call to stopped skeleton succeeded");
+        }
+        catch(RMIException e)
+        {
+        }
+    }
+
+    // Checks that an array modified by the server is not the caller's, and
+    // that the array returned is not the server's.
+    private void checkCopy(CopyInterface stub, int length) throws Throwable
+    {
+        byte[]                  data = new byte[length];
+        byte[]                  result = stub.fill(data);
+
+        if(data[0] != 0 || result[0] != 1 || result == data)
+            throw new TestFailed("call shared an argument");
+
+        result[length - 1] = 2;
+
+        if(server.last[length - 1] != 1)
+            throw new TestFailed("call shared a result");
+    }
+
+    // Starts a thread which makes a call that holds its slot until released.
+    private Thread hold(final CopyInterface stub)
+    {
+        Thread                  holder = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.hold();
+                }
+                catch(RMIException e)
+                {
+                }
+            }
+        };
+
+        holder.start();
+        return holder;
+    }
+
+    private void checkUnixDomain() throws Throwable
+    {
+        if(!Transport.unixDomainSupported())
+            return;
+
+        task("calling a skeleton through a Unix-domain socket");
+
+        directory = new TemporaryDirectory();
+
+        Path                    file = new File(directory.root(),
+                                                "skeleton.sock").toPath();
+
+        skeleton = start(Transport.unixDomain(file), false);
+
+        CopyInterface           tcp = Stub.create(CopyInterface.class,
+                                                  skeleton);
+        CopyInterface           unix = Stub.withUnixDomainSocket(tcp, file);
+
+        if(!unix.equals(tcp))
+            throw new TestFailed("stub through socket file not equal");
+
+        checkCopy(unix, 16);
+        checkCopy(unix, 1 << 20);
+        checkCopy(tcp, 16);
+
+        task("removing the socket file when the skeleton stops");
+
+        skeleton.stop();
+        skeleton = null;
+
+        if(Files.exists(file))
+            throw new TestFailed("socket file not removed");
+
+        try
+        {
+            unix.caller();
+            throw new TestFailed("call through removed socket succeeded");
+        }
+        catch(RMIException e)
+        {
+        }
+    }
+
+    private Skeleton<CopyInterface> start(Transport transport,
+                                          boolean inProcess)
+        throws RMIException
+    {
+        return start(transport, inProcess, AdmissionControl.unlimited());
+    }
+
+    private Skeleton<CopyInterface> start(Transport transport,
+                                          boolean inProcess,
+                                          AdmissionControl admission)
+        throws RMIException
+    {
+        server = new CopyServer();
+
+        Skeleton<CopyInterface> started = new Skeleton<CopyInterface>(
+            CopyInterface.class, server,
+            new InetSocketAddress("127.0.0.1", 0));
+
+        started.setTransport(transport);
+        started.setInProcessCalls(inProcess);
+        started.setAdmissionControl(admission);
+        started.start();
+        return started;
+    }
+
+    /** Stops the test skeleton and removes the socket directory. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.release.release(100);
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        if(directory != null)
+            directory.remove();
+    }
+
+    /** Remote interface used by the test. */
+    public interface CopyInterface
+    {
+        public long caller() throws RMIException;
+        public byte[] fill(byte[] data) throws RMIException;
+        public List<String> append(List<String> list) throws RMIException;
+        public long remaining() throws RMIException;
+        public void hold() throws RMIException;
+    }
+
+    // Server which modifies its arguments and keeps its results.
+    private static class CopyServer implements CopyInterface
+    {
+        volatile byte[]         last;
+        final Semaphore         entered = new Semaphore(0);
+        final Semaphore         release = new Semaphore(0);
+
+        @Override
+        public long caller()
+        {
+            return Thread.currentThread().getId();
+        }
+
+        @Override
+        public byte[] fill(byte[] data)
+        {
+            Arrays.fill(data, (byte)1);
+            last = data;
+            return data;
+        }
+
+        @Override
+        public List<String> append(List<String> list)
+        {
+            list.add("second");
+            return list;
+        }
+
+        @Override
+        public long remaining()
+        {
+            Deadline            deadline = Deadline.current();
+
+            return deadline == null ? -1
+                                    : deadline.remaining(TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void hold()
+        {
+            entered.release();
+
+            try
+            {
+                release.tryAcquire(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit test for stub connection pooling.
+
+    <p>
+    Checks that consecutive calls through a stub share one persistent
+    connection, that a stub whose pooled connection was closed by a
+    stopped skeleton reconnects once the skeleton is restarted, that a
+    call whose connection fails after the call was sent is not sent again, and
+    that a pool left without connections is retired and replaced.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub connection pooling";
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress("127.0.0.1", 7001);
+    private Skeleton<PoolTestInterface> skeleton;
+    private final PoolTestServer        server = new PoolTestServer();
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<PoolTestInterface>(PoolTestInterface.class,
+                                                   server, address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        PoolTestInterface   stub = Stub.create(PoolTestInterface.class,
+                                               address);
+        ConnectionPool      pool = ConnectionPool.get(address.getAddress(),
+                                                      address.getPort());
+
+        task("making consecutive calls");
+
+        call(stub, 1);
+        call(stub, 2);
+        call(stub, 3);
+
+        if(pool.size() != 1)
+        {
+            throw new TestFailed("consecutive calls did not share a " +
+                                 "connection: " + pool.size() +
+                                 " connections pooled");
+        }
+
+        task("restarting the skeleton");
+
+        // A graceful stop returns once the stub has seen its connection
+        // close, so the next call is not sent on that connection.
+        skeleton.stop(10, TimeUnit.SECONDS);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to restart skeleton", t);
+        }
+
+        task("calling through a connection closed by the skeleton");
+
+        call(stub, 4);
+
+        task("calling through a connection closed after the call ran");
+
+        try
+        {
+            stub.restart();
+            throw new TestFailed("call answered after its connection closed");
+        }
+        catch(RMIException e)
+        {
+        }
+
+        if(server.restarts.get() != 1)
+        {
+            throw new TestFailed("call ran " + server.restarts.get() +
+                                 " times");
+        }
+
+        // The stub may see its connection close before the skeleton has
+        // started again.
+        try
+        {
+            if(!server.restarted.tryAcquire(10, TimeUnit.SECONDS))
+                throw new TestFailed("skeleton not restarted");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        call(stub, 5);
+
+        task("retiring a pool left without connections");
+
+        ConnectionPool.reap(System.currentTimeMillis() +
+                            ConnectionPool.IDLE_TIMEOUT);
+
+        if(!pool.isRetired() || ConnectionPool.get(address.getAddress(),
+                                                   address.getPort()) == pool)
+        {
+            throw new TestFailed("pool without connections not retired");
+        }
+
+        call(stub, 6);
+
+        if(ConnectionPool.get(address.getAddress(), address.getPort())
+                .size() != 1)
+        {
+            throw new TestFailed("stub did not use the new pool");
+        }
+
+        task();
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    private void call(PoolTestInterface stub, int value) throws TestFailed
+    {
+        try
+        {
+            if(stub.echo(value) != value)
+                throw new TestFailed("call returned incorrect result");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call test skeleton", e);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface PoolTestInterface
+    {
+        public int echo(int value) throws RMIException;
+        public void restart() throws RMIException;
+    }
+
+    // Server which, when asked, restarts the skeleton while the call is in
+    // progress, so that the connection fails after the call has run.
+    private class PoolTestServer implements PoolTestInterface
+    {
+        final AtomicInteger     restarts = new AtomicInteger();
+        final Semaphore         restarted = new Semaphore(0);
+
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public void restart() throws RMIException
+        {
+            restarts.incrementAndGet();
+            skeleton.stop(0, TimeUnit.SECONDS);
+            skeleton.start();
+            restarted.release();
+        }
+    }
+}
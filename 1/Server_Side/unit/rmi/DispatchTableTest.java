@@ -0,0 +1,196 @@
+package rmi;
+
+import test.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/** Unit test for the dispatch table of a remote interface.
+
+    <p>
+    Checks that overloaded methods receive distinct method IDs, that methods
+    inherited from superinterfaces are included in the table and static
+    methods are not, that method
+    IDs depend only on method signatures, and that the handles in the table
+    invoke the methods they belong to.
+ */
+public class DispatchTableTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking method dispatch table";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        DispatchTable   table = DispatchTable.forInterface(DerivedInterface.class);
+
+        task("checking that every interface method is in the table");
+
+        if(table.size() != 5)
+            throw new TestFailed("table has " + table.size() + " methods");
+
+        for(Method method : DerivedInterface.class.getMethods())
+        {
+            if(Modifier.isStatic(method.getModifiers()))
+            {
+                if(table.entry(method) != null)
+                    throw new TestFailed("static method " + method +
+                                         " is in the table");
+
+                continue;
+            }
+
+            if(!method.equals(table.lookup(table.idOf(method))))
+                throw new TestFailed("lookup of " + method + " failed");
+        }
+
+        task("checking that overloaded methods have distinct IDs");
+
+        try
+        {
+            Method  two = DerivedInterface.class.getMethod("add", int.class,
+                                                           int.class);
+            Method  three = DerivedInterface.class.getMethod("add", int.class,
+                                                             int.class,
+                                                             int.class);
+            Method  longs = DerivedInterface.class.getMethod("add", long.class,
+                                                             long.class);
+
+            if(table.idOf(two) == table.idOf(three) ||
+               table.idOf(two) == table.idOf(longs))
+            {
+                throw new TestFailed("overloaded methods share a method ID");
+            }
+
+            task("checking that method IDs do not depend on the interface");
+
+            Method  inherited = BaseInterface.class.getMethod("name");
+
+            if(DispatchTable.methodId(inherited) !=
+               DispatchTable.forInterface(BaseInterface.class).idOf(inherited))
+            {
+                throw new TestFailed("inherited method has different IDs in " +
+                                     "base and derived interface");
+            }
+
+            if(table.lookup(DispatchTable.methodId(inherited)) == null)
+                throw new TestFailed("inherited method not in table");
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new TestFailed("test interface method missing", e);
+        }
+
+        task("checking that unknown IDs are rejected");
+
+        if(table.lookup(0) != null)
+            throw new TestFailed("lookup of unknown method ID succeeded");
+
+        checkInvokers(table);
+
+        task();
+    }
+
+    // Checks that method handles pass arguments and results, including those
+    // of primitive types and of methods without arguments, and throw the
+    // exceptions thrown by the methods as they are.
+    private void checkInvokers(DispatchTable table) throws TestFailed
+    {
+        task("invoking methods through their handles");
+
+        Object  server = new DerivedServer();
+
+        try
+        {
+            Method  add = DerivedInterface.class.getMethod("add", int.class,
+                                                           int.class);
+            Method  name = BaseInterface.class.getMethod("name");
+            Method  fail = DerivedInterface.class.getMethod("fail");
+
+            Object  sum = table.entry(add).invoker.invoke(server,
+                                                          new Object[] {2, 3});
+
+            if(!Integer.valueOf(5).equals(sum))
+                throw new TestFailed("add returned " + sum);
+
+            if(!"derived".equals(table.entry(name).invoker.invoke(server,
+                                                                   null)))
+            {
+                throw new TestFailed("method without arguments not invoked");
+            }
+
+            try
+            {
+                table.entry(fail).invoker.invoke(server, new Object[0]);
+                throw new TestFailed("exception not thrown");
+            }
+            catch(IllegalStateException e)
+            {
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("invocation failed", t);
+        }
+    }
+
+    /** Base remote interface used by the test. */
+    public interface BaseInterface
+    {
+        public String name() throws RMIException;
+    }
+
+    /** Derived remote interface used by the test. */
+    public interface DerivedInterface extends BaseInterface
+    {
+        public int add(int x, int y) throws RMIException;
+        public int add(int x, int y, int z) throws RMIException;
+        public long add(long x, long y) throws RMIException;
+        public void fail() throws RMIException;
+
+        public static int zero() throws RMIException
+        {
+            return 0;
+        }
+    }
+
+    private static class DerivedServer implements DerivedInterface
+    {
+        @Override
+        public String name()
+        {
+            return "derived";
+        }
+
+        @Override
+        public int add(int x, int y)
+        {
+            return x + y;
+        }
+
+        @Override
+        public int add(int x, int y, int z)
+        {
+            return x + y + z;
+        }
+
+        @Override
+        public long add(long x, long y)
+        {
+            return x + y;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+    }
+}
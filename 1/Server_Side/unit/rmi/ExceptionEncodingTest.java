@@ -0,0 +1,267 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+
+/** Unit test for the compact encoding of exceptions.
+
+    <p>
+    Checks that exceptions thrown by remote methods reach the caller with
+    their type, message and cause, that exceptions with state of their own or
+    with suppressed exceptions, or whose constructors change the message they
+    are given, are passed whole, that the compact encoding is
+    much smaller than the serialized form, and that the server's stack traces
+    are sent only when the skeleton asks for them.
+ */
+public class ExceptionEncodingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking exception encoding";
+
+    private Skeleton<ThrowerInterface>  skeleton;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkCompact();
+            checkStackTraces();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    private void checkCompact() throws Throwable
+    {
+        task("passing exceptions with their type, message and cause");
+
+        ThrowerInterface        stub = start(false);
+        Throwable               thrown = call(stub, 0);
+
+        if(!(thrown instanceof FileNotFoundException) ||
+           !"/directory/file.txt".equals(thrown.getMessage()))
+        {
+            throw new TestFailed("wrong exception " + thrown);
+        }
+
+        thrown = call(stub, 1);
+
+        if(!(thrown instanceof IllegalStateException) ||
+           !"state".equals(thrown.getMessage()) ||
+           !(thrown.getCause() instanceof IOException) ||
+           !"cause".equals(thrown.getCause().getMessage()))
+        {
+            throw new TestFailed("wrong exception or cause " + thrown);
+        }
+
+        thrown = call(stub, 2);
+
+        if(!(thrown instanceof NullPointerException) ||
+           thrown.getMessage() != null)
+        {
+            throw new TestFailed("wrong exception " + thrown);
+        }
+
+        task("passing exceptions with state of their own whole");
+
+        thrown = call(stub, 3);
+
+        if(!(thrown instanceof CodedException) ||
+           ((CodedException)thrown).code != 42)
+        {
+            throw new TestFailed("state of exception lost");
+        }
+
+        thrown = call(stub, 4);
+
+        if(thrown.getSuppressed().length != 1)
+            throw new TestFailed("suppressed exception lost");
+
+        thrown = call(stub, 5);
+
+        if(!(thrown instanceof PrefixedException) ||
+           !"prefixed: message".equals(thrown.getMessage()))
+        {
+            throw new TestFailed("message changed to " + thrown.getMessage());
+        }
+
+        task("checking compactness");
+
+        Throwable               sample =
+            new FileNotFoundException("/directory/file.txt");
+
+        if(size(Codec.binary(), sample) * 4 >
+           size(Codec.serialization(), sample))
+        {
+            throw new TestFailed("exception takes " +
+                                 size(Codec.binary(), sample) + " bytes");
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    private void checkStackTraces() throws Throwable
+    {
+        task("keeping the server's stack trace by default");
+
+        ThrowerInterface        stub = start(false);
+
+        if(thrownBy(call(stub, 0), "fail"))
+            throw new TestFailed("server's stack trace sent");
+
+        skeleton.stop();
+
+        task("sending the server's stack trace when asked to");
+
+        stub = start(true);
+
+        if(!thrownBy(call(stub, 0), "fail"))
+            throw new TestFailed("server's stack trace not sent");
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    private ThrowerInterface start(boolean stackTraces)
+        throws RMIException, UnknownHostException
+    {
+        skeleton = new Skeleton<ThrowerInterface>(ThrowerInterface.class,
+            new ThrowerServer(), new InetSocketAddress("127.0.0.1", 0));
+        skeleton.setStackTraces(stackTraces);
+        skeleton.start();
+
+        return Stub.create(ThrowerInterface.class, skeleton);
+    }
+
+    private Throwable call(ThrowerInterface stub, int kind) throws TestFailed
+    {
+        try
+        {
+            stub.fail(kind);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call failed", e);
+        }
+        catch(Throwable t)
+        {
+            return t;
+        }
+
+        throw new TestFailed("remote method did not throw");
+    }
+
+    // Whether the stack trace of an exception includes the given method of
+    // the server.
+    private boolean thrownBy(Throwable thrown, String method)
+    {
+        for(StackTraceElement element : thrown.getStackTrace())
+        {
+            if(element.getClassName().equals(ThrowerServer.class.getName()) &&
+               element.getMethodName().equals(method))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private int size(Codec codec, Object value) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+
+            codec.writeValue(new DataOutputStream(bytes), value);
+            return bytes.size();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode " + value, e);
+        }
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Exception with state other than its message and cause. */
+    public static class CodedException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        final int   code;
+
+        CodedException(int code)
+        {
+            super("code " + code);
+            this.code = code;
+        }
+    }
+
+    /** Exception whose constructor changes the message it is given. */
+    public static class PrefixedException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public PrefixedException(String message)
+        {
+            super("prefixed: " + message);
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface ThrowerInterface
+    {
+        public void fail(int kind) throws RMIException, IOException,
+                                          CodedException;
+    }
+
+    // Server throwing a different exception for each kind.
+    private static class ThrowerServer implements ThrowerInterface
+    {
+        @Override
+        public void fail(int kind) throws IOException, CodedException
+        {
+            switch(kind)
+            {
+                case 0:
+                    throw new FileNotFoundException("/directory/file.txt");
+                case 1:
+                    throw new IllegalStateException("state",
+                                                    new IOException("cause"));
+                case 2:
+                    throw new NullPointerException();
+                case 3:
+                    throw new CodedException(42);
+                case 5:
+                    throw new PrefixedException("message");
+                default:
+                    IOException failure = new IOException("suppressing");
+
+                    failure.addSuppressed(new IOException("suppressed"));
+                    throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Unit test for call metrics.
+
+    <p>
+    Checks that latency histograms report percentiles within their stated
+    accuracy, that skeletons and stubs count calls, errors and bytes for each
+    method, that a skeleton's metrics can be read remotely through the
+    <code>Metrics</code> interface, and that metrics can be written to a file.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call metrics";
+
+    private Skeleton<MetricsInterface>  skeleton;
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<MetricsInterface>(MetricsInterface.class,
+                                                  new MetricsServer(),
+                                                  new InetSocketAddress(
+                                                      "127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkHistogram();
+
+        task("counting calls and errors");
+
+        MetricsInterface    stub = Stub.create(MetricsInterface.class,
+                                               skeleton.getAddress());
+
+        try
+        {
+            for(int call = 0; call < 100; ++call)
+                stub.echo("call " + call);
+
+            for(int call = 0; call < 5; ++call)
+            {
+                try
+                {
+                    stub.fail();
+                }
+                catch(IllegalStateException e)
+                {
+                }
+            }
+
+            task("reading skeleton metrics remotely");
+
+            Metrics             remote = Stub.create(Metrics.class,
+                                                     skeleton.getAddress());
+
+            check(remote.statistics(), true);
+            check(Stub.getMetrics(MetricsInterface.class).statistics(), false);
+
+            task("writing metrics to a file");
+
+            File                file = File.createTempFile("metrics", null);
+
+            try
+            {
+                skeleton.dumpMetrics(file);
+
+                BufferedReader  reader = new BufferedReader(
+                                             new FileReader(file));
+                StringBuilder   contents = new StringBuilder();
+                String          line;
+
+                while((line = reader.readLine()) != null)
+                    contents.append(line).append('\n');
+
+                reader.close();
+
+                if(!contents.toString().startsWith(MethodStatistics.header()) ||
+                   contents.indexOf("echo(Ljava/lang/String;)") < 0 ||
+                   contents.indexOf("fail()V") < 0)
+                {
+                    throw new TestFailed("metrics file incomplete");
+                }
+            }
+            finally
+            {
+                file.delete();
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    // Checks the percentiles of a histogram of known values.
+    private void checkHistogram() throws TestFailed
+    {
+        task("checking latency histogram accuracy");
+
+        LatencyHistogram    histogram = new LatencyHistogram();
+
+        for(long value = 1; value <= 100000; ++value)
+            histogram.record(value * 1000);
+
+        long[]              percentiles = histogram.percentiles(0.5, 0.99,
+                                                                0.999);
+        long[]              expected = {50000000L, 99000000L, 99900000L};
+
+        for(int index = 0; index < expected.length; ++index)
+        {
+            double  error = Math.abs(percentiles[index] - expected[index]) /
+                            (double)expected[index];
+
+            if(error > 0.03)
+                throw new TestFailed("percentile " + percentiles[index] +
+                                     " differs from " + expected[index]);
+        }
+
+        if(histogram.count() != 100000 || histogram.max() != 100000000L)
+            throw new TestFailed("histogram count or maximum incorrect");
+
+        for(long value = 0; value < 1L << 62; value = value + value / 2 + 1)
+        {
+            int     bucket = LatencyHistogram.index(value);
+            long    midpoint = LatencyHistogram.midpoint(bucket);
+
+            if(Math.abs(midpoint - value) > value / 32 + 1)
+                throw new TestFailed("value " + value + " counted in " +
+                                     "bucket with midpoint " + midpoint);
+        }
+    }
+
+    // Checks the statistics of the test interface, as kept by the skeleton or
+    // by the stubs.
+    private void check(MethodStatistics[] statistics, boolean server)
+        throws TestFailed
+    {
+        MethodStatistics    echo = null;
+        MethodStatistics    fail = null;
+
+        for(MethodStatistics method : statistics)
+        {
+            if(method.isServer() != server)
+                throw new TestFailed("statistics from the wrong side");
+
+            if(method.getMethod().startsWith("echo"))
+                echo = method;
+            else if(method.getMethod().startsWith("fail"))
+                fail = method;
+        }
+
+        if(echo == null || fail == null)
+            throw new TestFailed("method missing from statistics");
+
+        if(echo.getCalls() != 100 || echo.getErrors() != 0)
+            throw new TestFailed("echo counted " + echo.getCalls() +
+                                 " calls and " + echo.getErrors() + " errors");
+
+        if(fail.getCalls() != 5 || fail.getErrors() != 5)
+            throw new TestFailed("fail counted " + fail.getCalls() +
+                                 " calls and " + fail.getErrors() + " errors");
+
+        if(echo.getBytesIn() <= 100 * 6 || echo.getBytesOut() <= 100 * 6)
+            throw new TestFailed("bytes not counted");
+
+        if(echo.getInFlight() != 0)
+            throw new TestFailed("completed calls counted as in flight");
+
+        if(echo.getP50() <= 0 || echo.getP50() > echo.getP99() ||
+           echo.getP99() > echo.getP999() || echo.getP999() > echo.getMaxLatency())
+        {
+            throw new TestFailed("inconsistent latency percentiles");
+        }
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface MetricsInterface
+    {
+        public String echo(String value) throws RMIException;
+        public void fail() throws RMIException;
+    }
+
+    private static class MetricsServer implements MetricsInterface
+    {
+        @Override
+        public String echo(String value)
+        {
+            return value;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+
+/** Unit test for multiplexed connections.
+
+    <p>
+    Sends a call which blocks in the server and then, on the same connection,
+    a call which returns immediately. The second call must complete while the
+    first is still in progress.
+ */
+public class MultiplexTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking connection multiplexing";
+
+    private final InetSocketAddress     address =
+        new InetSocketAddress("127.0.0.1", 7001);
+    private Skeleton<MultiplexTestInterface>    skeleton;
+    private Connection                  connection;
+    private boolean                     released = false;
+    private Throwable                   slow_failure = null;
+    private boolean                     slow_done = false;
+
+    /** Starts the test skeleton and opens a connection to it. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<MultiplexTestInterface>(
+            MultiplexTestInterface.class, new MultiplexTestServer(), address);
+
+        try
+        {
+            skeleton.start();
+            connection = Connection.open(address, null, TransportOptions.defaults());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("starting a call which blocks in the server");
+
+        new Thread(new SlowCall()).start();
+
+        task("calling on the same connection while the first call blocks");
+
+        Object  result = call("fast");
+
+        if(!"fast".equals(result))
+            throw new TestFailed("fast call returned incorrect result");
+
+        synchronized(this)
+        {
+            if(slow_done)
+                throw new TestFailed("blocking call completed too early");
+
+            released = true;
+            notifyAll();
+        }
+
+        task("waiting for the blocking call to complete");
+
+        synchronized(this)
+        {
+            while(!slow_done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        if(slow_failure != null)
+            throw new TestFailed("blocking call failed", slow_failure);
+
+        task();
+    }
+
+    /** Closes the connection and stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        synchronized(this)
+        {
+            released = true;
+            notifyAll();
+        }
+
+        if(connection != null)
+            connection.close();
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    private Object call(String method) throws TestFailed
+    {
+        try
+        {
+            long        id = DispatchTable.methodId(
+                MultiplexTestInterface.class.getMethod(method));
+            Frame       request = Frame.marshalCall(Codec.binary(), id, null,
+                                                    null, new Object[0]);
+            Frame       reply = connection.call(request, null);
+
+            if(!reply.isNormalReturn())
+                throw new TestFailed("call threw an exception");
+
+            return reply.result();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call test skeleton", t);
+        }
+    }
+
+    private class SlowCall implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            Throwable   failure = null;
+
+            try
+            {
+                call("slow");
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+
+            synchronized(MultiplexTest.this)
+            {
+                slow_failure = failure;
+                slow_done = true;
+                MultiplexTest.this.notifyAll();
+            }
+        }
+    }
+
+    /** Remote interface used by the test. */
+    public interface MultiplexTestInterface
+    {
+        public String slow() throws RMIException;
+        public String fast() throws RMIException;
+    }
+
+    private class MultiplexTestServer implements MultiplexTestInterface
+    {
+        @Override
+        public String slow()
+        {
+            synchronized(MultiplexTest.this)
+            {
+                while(!released)
+                {
+                    try
+                    {
+                        MultiplexTest.this.wait();
+                    }
+                    catch(InterruptedException e) { }
+                }
+            }
+
+            return "slow";
+        }
+
+        @Override
+        public String fast()
+        {
+            return "fast";
+        }
+    }
+}
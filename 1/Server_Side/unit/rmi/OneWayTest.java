@@ -0,0 +1,183 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Unit test for one-way methods.
+
+    <p>
+    Checks that a stub calling a one-way method does not wait for the method
+    to run, that the method runs all the same, that exceptions thrown by
+    one-way methods are reported to the skeleton's <code>service_error</code>
+    method, and that one-way methods must return <code>void</code>.
+ */
+public class OneWayTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking one-way methods";
+
+    private OneWaySkeleton      skeleton;
+    private OneWayServer        server;
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new OneWayServer();
+        skeleton = new OneWaySkeleton(server);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        OneWayInterface     stub = Stub.create(OneWayInterface.class,
+                                               skeleton.getAddress());
+
+        try
+        {
+            task("returning without waiting for the method");
+
+            long            start = System.nanoTime();
+
+            stub.hold("first");
+
+            if(System.nanoTime() - start > TimeUnit.SECONDS.toNanos(2))
+                throw new TestFailed("stub waited for one-way method");
+
+            if(!"first".equals(server.entered.poll(10, TimeUnit.SECONDS)))
+                throw new TestFailed("one-way method not run");
+
+            server.release.release();
+
+            task("making ordinary calls on the same connection");
+
+            if(!stub.echo("echo").equals("echo"))
+                throw new TestFailed("wrong result");
+
+            task("reporting failures to the skeleton");
+
+            stub.fail();
+
+            Throwable       error = skeleton.errors.poll(10, TimeUnit.SECONDS);
+
+            if(error == null)
+                throw new TestFailed("failure of one-way method not reported");
+
+            if(!(error.getCause() instanceof IllegalStateException))
+                throw new TestFailed("wrong failure reported", error);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task("rejecting one-way methods which return a value");
+
+        try
+        {
+            Stub.create(InvalidInterface.class, skeleton.getAddress());
+            throw new TestFailed("stub created for invalid one-way method");
+        }
+        catch(Error e)
+        {
+        }
+
+        task();
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        server.release.release(100);
+        skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface OneWayInterface
+    {
+        @OneWay
+        public void hold(String value) throws RMIException;
+        @OneWay
+        public void fail() throws RMIException;
+        public String echo(String value) throws RMIException;
+    }
+
+    /** Remote interface with a one-way method returning a value. */
+    public interface InvalidInterface
+    {
+        @OneWay
+        public String value() throws RMIException;
+    }
+
+    // Skeleton keeping the errors reported to it.
+    private static class OneWaySkeleton extends Skeleton<OneWayInterface>
+    {
+        final BlockingQueue<RMIException>   errors =
+            new LinkedBlockingQueue<RMIException>();
+
+        OneWaySkeleton(OneWayServer server)
+        {
+            super(OneWayInterface.class, server,
+                  new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        @Override
+        protected void service_error(RMIException exception)
+        {
+            errors.add(exception);
+        }
+    }
+
+    // Server whose held calls wait until released.
+    private static class OneWayServer implements OneWayInterface
+    {
+        final BlockingQueue<String> entered =
+            new LinkedBlockingQueue<String>();
+        final Semaphore             release = new Semaphore(0);
+
+        @Override
+        public void hold(String value)
+        {
+            entered.add(value);
+
+            try
+            {
+                release.tryAcquire(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public String echo(String value)
+        {
+            return value;
+        }
+    }
+}
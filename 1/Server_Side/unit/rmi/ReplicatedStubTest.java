@@ -0,0 +1,269 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit test for replicated stubs.
+
+    <p>
+    Checks that calls to idempotent methods are hedged to a second replica
+    when the first is slow, that they are retried on another replica when a
+    replica is down, that exceptions thrown by the remote method are neither
+    hedged nor retried, that other methods are sent to one replica only, and
+    that hedge delays follow the observed latencies.
+ */
+public class ReplicatedStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking replicated stubs";
+
+    private final List<Skeleton<ReplicaInterface>>  skeletons =
+        new ArrayList<Skeleton<ReplicaInterface>>();
+    private final List<ReplicaServer>               servers =
+        new ArrayList<ReplicaServer>();
+
+    /** Starts a slow and a fast replica.
+
+        @throws TestFailed If a skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        start(2000);
+        start(0);
+    }
+
+    private void start(long delay) throws TestFailed
+    {
+        ReplicaServer               server = new ReplicaServer(delay);
+        Skeleton<ReplicaInterface>  skeleton =
+            new Skeleton<ReplicaInterface>(ReplicaInterface.class, server,
+                                           new InetSocketAddress("127.0.0.1",
+                                                                 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        skeletons.add(skeleton);
+        servers.add(server);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        List<ReplicaInterface>  replicas = new ArrayList<ReplicaInterface>();
+
+        for(Skeleton<ReplicaInterface> skeleton : skeletons)
+            replicas.add(Stub.create(ReplicaInterface.class,
+                                     skeleton.getAddress()));
+
+        ReplicaInterface        stub = Stub.createReplicated(
+            ReplicaInterface.class,
+            HedgePolicy.afterDelay(50, TimeUnit.MILLISECONDS), replicas);
+
+        try
+        {
+            task("hedging calls to a slow replica");
+
+            long                start = System.nanoTime();
+
+            for(int call = 0; call < 4; ++call)
+            {
+                if(!stub.read(call).equals("read " + call))
+                    throw new TestFailed("wrong result");
+            }
+
+            if(System.nanoTime() - start > TimeUnit.SECONDS.toNanos(1))
+                throw new TestFailed("calls waited for the slow replica");
+
+            // Calls starting at the slow replica are hedged to the fast one,
+            // so the fast replica answers every call.
+            if(servers.get(0).calls.get() < 2 ||
+               servers.get(1).calls.get() != 4)
+            {
+                throw new TestFailed("replicas called " +
+                                     servers.get(0).calls.get() + " and " +
+                                     servers.get(1).calls.get() + " times");
+            }
+
+            task("sending other calls to one replica");
+
+            reset();
+            stub.write(0);
+            stub.write(1);
+
+            if(servers.get(0).calls.get() + servers.get(1).calls.get() != 2)
+                throw new TestFailed("call to non-idempotent method repeated");
+
+            task("returning remote exceptions without retrying");
+
+            reset();
+
+            for(int call = 0; call < 2; ++call)
+            {
+                try
+                {
+                    stub.fail();
+                    throw new TestFailed("exception not thrown");
+                }
+                catch(IllegalStateException e)
+                {
+                }
+            }
+
+            if(servers.get(0).calls.get() + servers.get(1).calls.get() != 2)
+                throw new TestFailed("failed call retried");
+
+            task("retrying calls when a replica is down");
+
+            servers.get(0).release();
+            skeletons.get(0).stop();
+
+            ReplicaInterface    retrying = Stub.createReplicated(
+                ReplicaInterface.class, HedgePolicy.none(), replicas);
+
+            for(int call = 0; call < 4; ++call)
+                retrying.read(call);
+
+            try
+            {
+                Stub.createReplicated(ReplicaInterface.class,
+                                      HedgePolicy.none(),
+                                      replicas.subList(0, 1)).read(0);
+                throw new TestFailed("call to stopped replica succeeded");
+            }
+            catch(RMIException e)
+            {
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        checkPercentileDelay();
+
+        task();
+    }
+
+    // Checks that a percentile policy uses its minimum until enough latencies
+    // are known, and then the percentile of the latencies.
+    private void checkPercentileDelay() throws TestFailed
+    {
+        task("taking hedge delays from observed latencies");
+
+        HedgePolicy         policy = HedgePolicy.afterPercentile(0.5, 1,
+                                         TimeUnit.MILLISECONDS);
+        LatencyHistogram    latencies = new LatencyHistogram();
+        long                millisecond = TimeUnit.MILLISECONDS.toNanos(1);
+
+        if(policy.delayNanos(null) != millisecond)
+            throw new TestFailed("minimum delay not used without latencies");
+
+        for(int call = 1; call <= 100; ++call)
+            latencies.record(call * 10 * millisecond);
+
+        long                delay = policy.delayNanos(latencies);
+
+        if(Math.abs(delay - 500 * millisecond) > 20 * millisecond)
+            throw new TestFailed("median delay is " + delay + " ns");
+
+        if(HedgePolicy.none().delayNanos(latencies) >= 0)
+            throw new TestFailed("policy without hedging hedges");
+    }
+
+    private void reset()
+    {
+        for(ReplicaServer server : servers)
+            server.calls.set(0);
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        for(ReplicaServer server : servers)
+            server.release();
+
+        for(Skeleton<ReplicaInterface> skeleton : skeletons)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface ReplicaInterface
+    {
+        @Idempotent
+        public String read(int index) throws RMIException;
+        @Idempotent
+        public void fail() throws RMIException;
+        public void write(int index) throws RMIException;
+    }
+
+    // Server which delays every call by a fixed time, counting its calls.
+    private static class ReplicaServer implements ReplicaInterface
+    {
+        final AtomicInteger         calls = new AtomicInteger();
+        private final long          delay;
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        ReplicaServer(long delay)
+        {
+            this.delay = delay;
+        }
+
+        void release()
+        {
+            released.countDown();
+        }
+
+        private void pause()
+        {
+            calls.incrementAndGet();
+
+            try
+            {
+                released.await(delay, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+
+        @Override
+        public String read(int index)
+        {
+            pause();
+            return "read " + index;
+        }
+
+        @Override
+        public void fail()
+        {
+            calls.incrementAndGet();
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public void write(int index)
+        {
+            pause();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit test for streamed arguments and results.
+
+    <p>
+    Checks, with each transport, that a streamed result can be read before
+    the skeleton has produced all of it, and that the skeleton produces only
+    a bounded window of elements ahead of the reader; that a streamed argument
+    is received in full; that a streamed result survives the clearing of the
+    connection pool; that closing a streamed result stops the skeleton
+    from producing it; and that an exception thrown while producing a result
+    is thrown by the stub's iterator.
+ */
+public class StreamedIteratorTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streamed iterators";
+
+    /** Number of elements of long streams. This is many times the window of
+        chunks a sender may have unconsumed, yet small enough for both
+        transports to stream it several times within the test timeout. */
+    private static final int    COUNT = 100000;
+
+    private Skeleton<StreamInterface>   skeleton;
+    private StreamServer                server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            check(Transport.blocking());
+            check(Transport.nio(1, 1));
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task();
+    }
+
+    private void check(Transport transport) throws Throwable
+    {
+        server = new StreamServer();
+        skeleton = new Skeleton<StreamInterface>(StreamInterface.class,
+            server, new InetSocketAddress("127.0.0.1", 0));
+        skeleton.setTransport(transport);
+        skeleton.start();
+
+        StreamInterface     stub = Stub.create(StreamInterface.class,
+                                               skeleton.getAddress());
+
+        task("reading a streamed result with the " + transport +
+             " transport");
+
+        Iterator<Integer>   range = stub.range(COUNT);
+
+        if(!range.hasNext() || range.next() != 0)
+            throw new TestFailed("wrong first element");
+
+        // The skeleton is held back by the reader, so it cannot have
+        // produced much more than a window of chunks.
+        Thread.sleep(100);
+
+        if(server.produced.get() >= COUNT / 2)
+        {
+            throw new TestFailed("skeleton produced " +
+                                 server.produced.get() + " elements ahead");
+        }
+
+        long                expected = 1;
+
+        while(range.hasNext())
+        {
+            if(range.next() != expected)
+                throw new TestFailed("wrong element " + expected);
+
+            ++expected;
+        }
+
+        if(expected != COUNT)
+            throw new TestFailed("received " + expected + " elements");
+
+        task("clearing the connection pool during a streamed result with " +
+             "the " + transport + " transport");
+
+        range = stub.range(COUNT);
+        range.next();
+
+        // Connections streaming a result are not idle, and stay open.
+        ConnectionPool.get(skeleton.getAddress().getAddress(),
+                           skeleton.getAddress().getPort()).clear();
+
+        expected = 1;
+
+        while(range.hasNext())
+        {
+            if(range.next() != expected)
+                throw new TestFailed("wrong element " + expected);
+
+            ++expected;
+        }
+
+        if(expected != COUNT)
+            throw new TestFailed("received " + expected + " elements");
+
+        task("sending a streamed argument with the " + transport +
+             " transport");
+
+        if(stub.sum("total", new Counter(COUNT)) !=
+           (long)COUNT * (COUNT - 1) / 2)
+        {
+            throw new TestFailed("wrong sum of streamed argument");
+        }
+
+        if(stub.sum("empty", null) != 0)
+            throw new TestFailed("wrong sum of missing argument");
+
+        task("closing a streamed result early with the " + transport +
+             " transport");
+
+        server.produced.set(0);
+        range = stub.range(COUNT);
+
+        for(int index = 0; index < 10; ++index)
+            range.next();
+
+        ((Closeable)range).close();
+
+        // Wait for the skeleton to stop producing.
+        int                 produced = -1;
+
+        while(produced != server.produced.get())
+        {
+            produced = server.produced.get();
+            Thread.sleep(200);
+        }
+
+        if(produced >= COUNT / 2)
+            throw new TestFailed("skeleton produced the closed result");
+
+        if(range.hasNext())
+            throw new TestFailed("closed result has elements");
+
+        task("failing a streamed result with the " + transport +
+             " transport");
+
+        Iterator<Integer>   failing = stub.failing(5000);
+
+        try
+        {
+            for(int index = 0; index < 5000; ++index)
+                failing.next();
+
+            failing.hasNext();
+            throw new TestFailed("producer exception not thrown");
+        }
+        catch(IllegalStateException e)
+        {
+        }
+
+        if(!stub.range(3).hasNext())
+            throw new TestFailed("connection unusable after failed stream");
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Remote interface used by the test. */
+    public interface StreamInterface
+    {
+        public Iterator<Integer> range(int count) throws RMIException;
+        public Iterator<Integer> failing(int count) throws RMIException;
+        public long sum(String name, Iterator<Integer> values)
+            throws RMIException;
+    }
+
+    // Iterator over the integers from zero, failing after a given number if
+    // asked to.
+    private static class Counter implements Iterator<Integer>
+    {
+        private final int       count;
+        private final boolean   fail;
+        private final AtomicInteger produced;
+        private int             next = 0;
+
+        Counter(int count)
+        {
+            this(count, false, new AtomicInteger());
+        }
+
+        Counter(int count, boolean fail, AtomicInteger produced)
+        {
+            this.count = count;
+            this.fail = fail;
+            this.produced = produced;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if(next == count && fail)
+                throw new IllegalStateException("producer failed");
+
+            return next < count;
+        }
+
+        @Override
+        public Integer next()
+        {
+            if(!hasNext())
+                throw new NoSuchElementException();
+
+            produced.incrementAndGet();
+            return next++;
+        }
+    }
+
+    // Server producing its results lazily, counting the elements produced.
+    private static class StreamServer implements StreamInterface
+    {
+        final AtomicInteger produced = new AtomicInteger();
+
+        @Override
+        public Iterator<Integer> range(int count)
+        {
+            return new Counter(count, false, produced);
+        }
+
+        @Override
+        public Iterator<Integer> failing(int count)
+        {
+            return new Counter(count, true, new AtomicInteger());
+        }
+
+        @Override
+        public long sum(String name, Iterator<Integer> values)
+        {
+            long    total = 0;
+
+            while(values.hasNext())
+                total += values.next();
+
+            return total;
+        }
+    }
+}
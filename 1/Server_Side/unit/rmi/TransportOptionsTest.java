@@ -0,0 +1,133 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+
+/** Unit test for transport options.
+
+    <p>
+    Checks that calls succeed between stubs and skeletons with each
+    combination of buffering and <code>TCP_NODELAY</code>, on both transports,
+    that stubs share connection pools only with stubs having the same options,
+    and that invalid options are rejected.
+ */
+public class TransportOptionsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking transport options";
+
+    private Skeleton<RemoteInterface>   skeleton;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        TransportOptions        defaults = TransportOptions.defaults();
+        TransportOptions[]      options =
+            {defaults,
+             defaults.withBuffering(0),
+             defaults.withBuffering(16).withSocketBuffers(4096, 4096),
+             defaults.withTcpNoDelay(false).withBacklog(4)};
+
+        try
+        {
+            for(TransportOptions option : options)
+            {
+                check(option, Transport.blocking());
+                check(option, Transport.nio(1, 1));
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        task("sharing connection pools by options");
+
+        InetAddress             local = InetAddress.getLoopbackAddress();
+
+        if(ConnectionPool.get(local, 1, defaults.withBuffering(0)) !=
+           ConnectionPool.get(local, 1, defaults.withBuffering(0)))
+        {
+            throw new TestFailed("equal options do not share a pool");
+        }
+
+        if(ConnectionPool.get(local, 1, defaults.withBuffering(0)) ==
+           ConnectionPool.get(local, 1, defaults))
+        {
+            throw new TestFailed("different options share a pool");
+        }
+
+        task("rejecting invalid options");
+
+        try
+        {
+            defaults.withSocketBuffers(-1, 0);
+            throw new TestFailed("negative socket buffer accepted");
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+
+        try
+        {
+            defaults.withBacklog(-1);
+            throw new TestFailed("negative backlog accepted");
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+
+        task();
+    }
+
+    private void check(TransportOptions options, Transport transport)
+        throws Throwable
+    {
+        task("calling with " + options + " over the " + transport +
+             " transport");
+
+        skeleton = new Skeleton<RemoteInterface>(RemoteInterface.class,
+            new PingServer(), new InetSocketAddress("127.0.0.1", 0));
+        skeleton.setTransport(transport);
+        skeleton.setTransportOptions(options);
+        skeleton.start();
+
+        RemoteInterface         stub = Stub.withTransportOptions(
+            Stub.create(RemoteInterface.class, skeleton), options);
+
+        for(int call = 0; call < 20; ++call)
+        {
+            if(!stub.ping(call).equals("Pong " + call))
+                throw new TestFailed("wrong result");
+        }
+
+        skeleton.stop();
+        skeleton = null;
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    // Server answering pings.
+    private static class PingServer implements RemoteInterface
+    {
+        @Override
+        public String ping(int idNumber)
+        {
+            return "Pong " + idNumber;
+        }
+    }
+}
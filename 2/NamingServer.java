@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import rmi.*;
 import common.*;
@@ -69,10 +70,12 @@ public class NamingServer implements Service, Registration
     private class stubPair {
         private Storage storage;
         private Command command;
+        private Command copyCommand;
 
-        public stubPair(Storage storage, Command command) {
-            this.storage = storage;
-            this.command = command;
+        public stubPair(Storage storage, Command command, Command copyCommand) {
+            this.storage     = storage;
+            this.command     = command;
+            this.copyCommand = copyCommand;
         }
 
         public Storage getStorage() {
@@ -83,6 +86,14 @@ public class NamingServer implements Service, Registration
             return command;
         }
 
+        /*
+         * Command stub used for copies, which is not bounded by the command
+         * timeout.
+         */
+        public Command getCopyCommand() {
+            return copyCommand;
+        }
+
         /*
         * Needed to compare stubPair objects.
         * Prevents duplication registration of stubs with the
@@ -296,7 +307,7 @@ public class NamingServer implements Service, Registration
 
                 try {
                     // Copy the file.
-                    if (sp.getCommand().copy(filePath, node.getStubPair().getStorage())) {
+                    if (sp.getCopyCommand().copy(filePath, node.getStubPair().getStorage())) {
                         node.addStubPair(sp);
                         replCounter.put(filePath, 0);
                     } else {
@@ -383,6 +394,17 @@ public class NamingServer implements Service, Registration
     // Storage and Comamnd Stubs
     private volatile Vector<stubPair>   stubList;
 
+    // Time allowed for each command sent to a storage server, other than
+    // copy, in seconds.
+    private static final long           COMMAND_TIMEOUT = 60;
+
+    // Default admission limits of the client interface: calls running at
+    // once, calls waiting, and time in seconds after which a waiting call is
+    // rejected.
+    private static final int            SERVICE_MAX_RUNNING = 1024;
+    private static final int            SERVICE_MAX_QUEUED = 4096;
+    private static final long           SERVICE_QUEUE_TIMEOUT = 5;
+
     // file system root
     private fileNode                    fileRoot;
 
@@ -473,6 +495,22 @@ public class NamingServer implements Service, Registration
         serviceSkeleton      = new TestSkeleton<Service>(Service.class, this, serviceAddress, this);
         registrationSkeleton = new TestSkeleton<Registration>(Registration.class, this, registrationAddress, this);
 
+        // Under a thundering herd of clients, calls beyond the limits are
+        // rejected quickly rather than each starting a thread. Calls to lock
+        // may block until other clients call unlock, so neither counts
+        // toward the limits: blocked lock calls cannot then hold every
+        // running slot while the unlock calls which would release them wait
+        // in the queue.
+        serviceSkeleton.setAdmissionControl(
+            AdmissionControl.limit(SERVICE_MAX_RUNNING, SERVICE_MAX_QUEUED,
+                                   SERVICE_QUEUE_TIMEOUT, TimeUnit.SECONDS)
+                .exempt("lock", "unlock"));
+
+        // Storage servers and clients sharing the JVM of the naming server
+        // call it directly rather than over loopback.
+        serviceSkeleton.setInProcessCalls(true);
+        registrationSkeleton.setInProcessCalls(true);
+
         stubList             = new Vector<stubPair>();
 
         lockList             = new ConcurrentHashMap<Path, rwLock>();
@@ -497,6 +535,41 @@ public class NamingServer implements Service, Registration
         registrationSkeleton.start();
     }
 
+    /** Selects the strategy used to run calls made to
+        both the client and registration interfaces.
+
+        <p>
+        This method must be called before the server is started.
+
+        @param strategy The executor strategy.
+        @throws NullPointerException If <code>strategy</code> is
+                                     <code>null</code>.
+     */
+    public synchronized void setExecutorStrategy(ExecutorStrategy strategy)
+    {
+        serviceSkeleton.setExecutorStrategy(strategy);
+        registrationSkeleton.setExecutorStrategy(strategy);
+    }
+
+    /** Sets the limits on the calls run at once by the client and
+        registration interfaces.
+
+        <p>
+        By default the client interface rejects calls beyond 1024 running and
+        4096 waiting, and the registration interface has no limits. This
+        method must be called before the server is started.
+
+        @param service Admission control of the client interface.
+        @param registration Admission control of the registration interface.
+        @throws NullPointerException If either argument is <code>null</code>.
+     */
+    public synchronized void setAdmissionControl(AdmissionControl service,
+                                                 AdmissionControl registration)
+    {
+        serviceSkeleton.setAdmissionControl(service);
+        registrationSkeleton.setAdmissionControl(registration);
+    }
+
     /** Stops the naming server.
 
         <p>
@@ -802,7 +875,15 @@ public class NamingServer implements Service, Registration
             throw new NullPointerException("Files cannot be null");
         }
 
-        stubPair sp = new stubPair(client_stub, command_stub);
+        // Commands are bounded by a timeout so that a stalled storage server
+        // cannot hold delete or replication forever. Copies are not: the
+        // deadline of a copy would be inherited by every read the storage
+        // server makes for it, so that a large file could not be copied in
+        // time. The storage server bounds each of those reads instead.
+        Command timed_stub = Stub.withTimeout(command_stub, COMMAND_TIMEOUT,
+                                              TimeUnit.SECONDS);
+
+        stubPair sp = new stubPair(client_stub, timed_stub, command_stub);
 
         synchronized(this) {
             if (stubList.contains(sp)) {
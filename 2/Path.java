@@ -3,6 +3,10 @@ package common;
 import java.io.*;
 import java.util.*;
 
+import rmi.BinaryCodec;
+import rmi.Codec;
+import rmi.TypeCodec;
+
 /** Distributed filesystem paths.
 
     <p>
@@ -24,6 +28,25 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable
     private String       filePath;
     private List<String> compList;
 
+    // Paths are passed to and returned from nearly every storage and naming
+    // call, so the binary codec writes them as their string form rather than
+    // serializing the component list as well.
+    static {
+        BinaryCodec.register(Path.class, new TypeCodec<Path>() {
+            @Override
+            public void write(Path value, DataOutputStream out, Codec codec)
+                throws IOException {
+                out.writeUTF(value.filePath);
+            }
+
+            @Override
+            public Path read(DataInputStream in, Codec codec)
+                throws IOException {
+                return new Path(in.readUTF());
+            }
+        });
+    }
+
     /** Helper function.
       @name checkComponent
       @description checks if given component does not include invalid entries
@@ -2,6 +2,7 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.TimeUnit;
 
 import common.*;
 import rmi.*;
@@ -24,6 +25,11 @@ public class StorageServer implements Storage, Command
     private volatile boolean clientStopped = false;
     private volatile boolean commandStopped = false;
 
+    // Time allowed for each call copy makes to the storage server it copies
+    // from, in seconds. Copies themselves have no timeout, since their
+    // duration grows with the size of the file.
+    private static final long READ_TIMEOUT = 60;
+
     //private Skeleton<Storage> storageSkeleton;
     //private Skeleton<Command> commandSkeleton;
 
@@ -92,6 +98,11 @@ public class StorageServer implements Storage, Command
             InetSocketAddress address = new InetSocketAddress(command_port);
             commandSkeleton = new TestSkeleton<Command>(Command.class, this, address, this);
         }
+
+        // A naming server, client or other storage server running in the
+        // same JVM calls this server directly rather than over loopback.
+        storageSkeleton.setInProcessCalls(true);
+        commandSkeleton.setInProcessCalls(true);
     }
 
     /** Creats a storage server, given a directory on the local filesystem.
@@ -177,6 +188,40 @@ public class StorageServer implements Storage, Command
         }
     }
 
+    /** Selects the strategy used to run calls made to
+        both the storage and command interfaces.
+
+        <p>
+        This method must be called before the server is started.
+
+        @param strategy The executor strategy.
+        @throws NullPointerException If <code>strategy</code> is
+                                     <code>null</code>.
+     */
+    public synchronized void setExecutorStrategy(ExecutorStrategy strategy)
+    {
+        storageSkeleton.setExecutorStrategy(strategy);
+        commandSkeleton.setExecutorStrategy(strategy);
+    }
+
+    /** Selects the transport on which calls are received by
+        both the storage and command interfaces.
+
+        <p>
+        This method must be called before the server is started. A storage
+        server holding many mostly idle client connections should use
+        <code>Transport.nio()</code> together with a bounded executor.
+
+        @param transport The transport.
+        @throws NullPointerException If <code>transport</code> is
+                                     <code>null</code>.
+     */
+    public synchronized void setTransport(Transport transport)
+    {
+        storageSkeleton.setTransport(transport);
+        commandSkeleton.setTransport(transport);
+    }
+
     /** Stops the storage server.
 
         <p>
@@ -399,6 +444,11 @@ public class StorageServer implements Storage, Command
 
     /** Copies a file from another storage server.
 
+        <p>
+        The reads issued to <code>server</code> inherit the deadline of the
+        call to <code>copy</code>, if it has one, so that a stalled source
+        server cannot hold this server beyond the caller's deadline.
+
         @param file Path to the file to be copied.
         @param server Storage server from which the file is to be downloaded.
         @return <code>true</code> if the file is successfully copied;
@@ -420,6 +470,8 @@ public class StorageServer implements Storage, Command
             throw new NullPointerException("Null parameter");
         }
 
+        server = Stub.withTimeout(server, READ_TIMEOUT, TimeUnit.SECONDS);
+
         server.read(file, 0, 1);
 
         // If this file already exists, delete it.